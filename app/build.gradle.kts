@@ -69,6 +69,11 @@ android {
     kotlinOptions {
         jvmTarget = "17"
     }
+
+    // Tests unitaires (src/test) : android.util.Log, SystemClock… renvoient des valeurs par défaut
+    testOptions {
+        unitTests.isReturnDefaultValues = true
+    }
 }
 
 // ─── Renommer l'APK de sortie avec la version ──────────────────────────────
@@ -0,0 +1,205 @@
+package net.appstorefr.perfectdnsmanager
+
+import android.content.ClipData
+import android.content.ClipboardManager
+import android.content.Context
+import android.graphics.Typeface
+import android.os.Bundle
+import android.util.Log
+import android.view.Gravity
+import android.view.View
+import android.widget.*
+import androidx.appcompat.app.AlertDialog
+import androidx.appcompat.app.AppCompatActivity
+import net.appstorefr.perfectdnsmanager.service.DiagLog
+import net.appstorefr.perfectdnsmanager.service.DnsVpnControl
+import net.appstorefr.perfectdnsmanager.util.LocaleHelper
+
+/**
+ * Journal de diagnostic (voir DiagLog) : niveau enregistré, dernières lignes des processus de
+ * l'interface et du VPN, copie pour le support.
+ */
+class DiagLogActivity : AppCompatActivity() {
+
+    companion object {
+        /** Entrées affichées (les plus récentes) */
+        private const val SHOWN = 500
+    }
+
+    override fun attachBaseContext(newBase: Context) {
+        super.attachBaseContext(LocaleHelper.applyLocale(newBase))
+    }
+
+    private lateinit var btnLevel: Button
+    private lateinit var btnFilter: Button
+    private lateinit var tvLines: TextView
+    /** Niveau minimal affiché */
+    private var filter = Log.INFO
+
+    override fun onCreate(savedInstanceState: Bundle?) {
+        super.onCreate(savedInstanceState)
+        DiagLog.init(this)
+
+        val root = ScrollView(this).apply {
+            setBackgroundColor(0xFF1E1E1E.toInt())
+        }
+        val mainLayout = LinearLayout(this).apply {
+            orientation = LinearLayout.VERTICAL
+            setPadding(32, 32, 32, 32)
+        }
+        root.addView(mainLayout)
+
+        // Header
+        val header = LinearLayout(this).apply {
+            orientation = LinearLayout.HORIZONTAL
+            gravity = Gravity.CENTER_VERTICAL
+        }
+        val btnBack = Button(this).apply {
+            text = getString(R.string.back_arrow)
+            setTextColor(0xFFFFFFFF.toInt())
+            setBackgroundResource(R.drawable.focusable_item_background)
+            foreground = resources.getDrawable(R.drawable.btn_focus_foreground, theme)
+            isFocusable = true
+            setPadding(20, 10, 20, 10)
+            setOnClickListener { finish() }
+        }
+        header.addView(btnBack)
+        header.addView(TextView(this).apply {
+            text = getString(R.string.diag_log_title)
+            setTextColor(0xFFFFFFFF.toInt())
+            textSize = 20f
+            setTypeface(typeface, Typeface.BOLD)
+            gravity = Gravity.CENTER
+            layoutParams = LinearLayout.LayoutParams(0, LinearLayout.LayoutParams.WRAP_CONTENT, 1f)
+        })
+        mainLayout.addView(header)
+
+        mainLayout.addView(View(this).apply {
+            layoutParams = LinearLayout.LayoutParams(LinearLayout.LayoutParams.MATCH_PARENT, 24)
+        })
+
+        btnLevel = actionButton { pickLevel() }
+        mainLayout.addView(btnLevel)
+        updateLevelButton()
+
+        mainLayout.addView(TextView(this).apply {
+            text = getString(R.string.diag_log_hint)
+            setTextColor(0xFFAAAAAA.toInt())
+            textSize = 12f
+            setPadding(0, 12, 0, 12)
+        })
+
+        val actions = LinearLayout(this).apply { orientation = LinearLayout.HORIZONTAL }
+        btnFilter = actionButton { pickFilter() }.apply {
+            layoutParams = LinearLayout.LayoutParams(0, LinearLayout.LayoutParams.WRAP_CONTENT, 1f)
+        }
+        actions.addView(btnFilter)
+        actions.addView(actionButton { load() }.apply {
+            text = getString(R.string.diag_log_refresh)
+            layoutParams = LinearLayout.LayoutParams(0, LinearLayout.LayoutParams.WRAP_CONTENT, 1f)
+        })
+        actions.addView(actionButton { copy() }.apply {
+            text = getString(R.string.diag_log_copy)
+            layoutParams = LinearLayout.LayoutParams(0, LinearLayout.LayoutParams.WRAP_CONTENT, 1f)
+        })
+        mainLayout.addView(actions)
+
+        tvLines = TextView(this).apply {
+            setTextColor(0xFFDDDDDD.toInt())
+            textSize = 11f
+            typeface = Typeface.MONOSPACE
+            setPadding(0, 16, 0, 16)
+            setTextIsSelectable(true)
+        }
+        mainLayout.addView(tvLines)
+
+        mainLayout.addView(actionButton { confirmClear() }.apply {
+            text = getString(R.string.diag_log_clear)
+            setTextColor(0xFFEF9A9A.toInt())
+        })
+
+        setContentView(root)
+        btnBack.requestFocus()
+    }
+
+    override fun onResume() {
+        super.onResume()
+        load()
+    }
+
+    private fun actionButton(onClick: () -> Unit) = Button(this).apply {
+        setTextColor(0xFFFFFFFF.toInt())
+        setBackgroundResource(R.drawable.focusable_item_background)
+        foreground = resources.getDrawable(R.drawable.btn_focus_foreground, theme)
+        isFocusable = true
+        isAllCaps = false
+        textSize = 13f
+        setOnClickListener { onClick() }
+    }
+
+    private fun load() {
+        val shown = filter
+        btnFilter.text = getString(R.string.diag_log_filter, levelName(shown))
+        Thread {
+            val lines = DiagLog.readRecent(this, shown, SHOWN)
+            runOnUiThread {
+                if (isFinishing || shown != filter) return@runOnUiThread
+                tvLines.text = if (lines.isEmpty()) getString(R.string.diag_log_empty) else lines.joinToString("\n")
+            }
+        }.start()
+    }
+
+    private fun levelName(level: Int): String = when (level) {
+        DiagLog.OFF -> getString(R.string.diag_log_level_off)
+        Log.ERROR -> getString(R.string.diag_log_level_error)
+        Log.WARN -> getString(R.string.diag_log_level_warn)
+        Log.INFO -> getString(R.string.diag_log_level_info)
+        else -> getString(R.string.diag_log_level_debug)
+    }
+
+    private fun pickFilter() {
+        val levels = listOf(Log.ERROR, Log.WARN, Log.INFO, Log.DEBUG)
+        AlertDialog.Builder(this)
+            .setItems(levels.map { levelName(it) }.toTypedArray()) { _, i ->
+                filter = levels[i]
+                load()
+            }
+            .show()
+    }
+
+    // ── Réglages ─────────────────────
+
+    private fun updateLevelButton() {
+        btnLevel.text = getString(R.string.diag_log_level, levelName(DiagLog.level))
+    }
+
+    /** Niveau enregistré, appliqué au VPN actif sans le redémarrer ; debug seulement dans les builds debug */
+    private fun pickLevel() {
+        val levels = listOf(DiagLog.OFF, Log.ERROR, Log.WARN, Log.INFO) + if (BuildConfig.DEBUG) listOf(Log.DEBUG) else emptyList()
+        AlertDialog.Builder(this)
+            .setItems(levels.map { levelName(it) }.toTypedArray()) { _, i ->
+                val level = levels[i]
+                DnsVpnControl.commitThenReload(this, { DiagLog.setLevel(this, level) }) {
+                    if (!isFinishing) updateLevelButton()
+                }
+            }
+            .show()
+    }
+
+    private fun copy() {
+        val clipboard = getSystemService(CLIPBOARD_SERVICE) as ClipboardManager
+        clipboard.setPrimaryClip(ClipData.newPlainText("Diagnostic log", tvLines.text))
+        Toast.makeText(this, getString(R.string.diag_log_copied), Toast.LENGTH_SHORT).show()
+    }
+
+    private fun confirmClear() {
+        AlertDialog.Builder(this)
+            .setMessage(getString(R.string.diag_log_clear_confirm))
+            .setPositiveButton(getString(R.string.delete)) { _, _ ->
+                DiagLog.clear(this)
+                load()
+            }
+            .setNegativeButton(getString(R.string.cancel), null)
+            .show()
+    }
+}
@@ -77,8 +77,8 @@ class DnsProviderDetailActivity : AppCompatActivity() {
             btnAddProfile.setOnClickListener { showAddNextDnsProfileDialog() }
         }
 
-        // Group profiles by type, ordered: DoH > DoQ > DoT > Standard
-        val typeOrder = listOf(DnsType.DOH, DnsType.DOQ, DnsType.DOT, DnsType.DEFAULT)
+        // Group profiles by type, ordered: DoH > DoQ > DNSCrypt > DoT > Standard
+        val typeOrder = listOf(DnsType.DOH, DnsType.DOQ, DnsType.DNSCRYPT, DnsType.DOT, DnsType.DEFAULT)
         val grouped = typeOrder.mapNotNull { type ->
             val typeProfiles = profiles.filter { it.type == type }
             if (typeProfiles.isNotEmpty()) type to typeProfiles else null
@@ -281,13 +281,15 @@ class DnsProviderDetailActivity : AppCompatActivity() {
                     DnsType.DOQ -> "DoQ"
                     DnsType.DOH -> "DoH"
                     DnsType.DOT -> "DoT"
+                    DnsType.DNSCRYPT -> "DNSCrypt"
                     DnsType.DEFAULT -> "Standard"
                 }
                 val primary = when (type) {
                     DnsType.DOQ -> "quic://dns.nextdns.io/$profileId"
                     DnsType.DOH -> "https://dns.nextdns.io/$profileId"
                     DnsType.DOT -> "$profileId.dns.nextdns.io"
-                    DnsType.DEFAULT -> "45.90.28.0"
+                    // Standard (NextDNS ne propose pas DNSCrypt, absent de protoCodes)
+                    else -> "45.90.28.0"
                 }
                 val secondary = if (type == DnsType.DEFAULT) "45.90.30.0" else null
                 val customPrefs = getSharedPreferences("nextdns_profiles", MODE_PRIVATE)
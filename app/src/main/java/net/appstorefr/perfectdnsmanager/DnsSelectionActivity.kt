@@ -195,7 +195,7 @@ class DnsSelectionActivity : AppCompatActivity() {
         ) { _, profiles ->
             val best = profiles.minByOrNull {
                 when (it.type) {
-                    DnsType.DOH -> 0; DnsType.DOQ -> 1; DnsType.DOT -> 2; DnsType.DEFAULT -> 3
+                    DnsType.DOH -> 0; DnsType.DOQ -> 1; DnsType.DNSCRYPT -> 2; DnsType.DOT -> 3; DnsType.DEFAULT -> 4
                 }
             }
             if (best != null) returnProfileToMain(best)
@@ -15,8 +15,13 @@ import android.widget.TextView
 import androidx.appcompat.app.AppCompatActivity
 import net.appstorefr.perfectdnsmanager.data.DnsProfile
 import net.appstorefr.perfectdnsmanager.data.DnsType
+import net.appstorefr.perfectdnsmanager.service.DnsVpnControl
+import net.appstorefr.perfectdnsmanager.service.DnsVpnService
+import net.appstorefr.perfectdnsmanager.service.EcsPolicy
+import net.appstorefr.perfectdnsmanager.service.TlsSessionCache
 import net.appstorefr.perfectdnsmanager.util.DnsColors
 import net.appstorefr.perfectdnsmanager.util.DnsTester
+import net.appstorefr.perfectdnsmanager.util.DnsWire
 import net.appstorefr.perfectdnsmanager.util.LocaleHelper
 import okhttp3.OkHttpClient
 import java.util.concurrent.TimeUnit
@@ -34,6 +39,7 @@ class DnsSpeedtestActivity : AppCompatActivity() {
     private lateinit var scrollRanking: ScrollView
     private lateinit var btnStartStop: Button
     private lateinit var btnBack: Button
+    private lateinit var btnCdnTest: Button
 
     @Volatile
     private var cancelled = false
@@ -49,6 +55,16 @@ class DnsSpeedtestActivity : AppCompatActivity() {
         private const val COLOR_WHITE = 0xFFEEEEEE.toInt()
         private const val COLOR_CYAN = 0xFF00BCD4.toInt()
         private const val COLOR_GOLD = 0xFFFFD700.toInt()
+
+        /** Petits objets servis par des CDN qui choisissent leur serveur d'après le DNS */
+        private val CDN_URLS = listOf(
+            "https://www.gstatic.com/generate_204",
+            "https://cdn.jsdelivr.net/npm/jquery@3.7.1/package.json",
+            "https://www.akamai.com/favicon.ico",
+            "https://www.fastly.com/favicon.ico",
+            "https://d1.awsstatic.com/favicon.ico"
+        )
+        private const val PREF_CDN_RESULTS = "ecs_cdn_results_json"
     }
 
     private data class SpeedResult(
@@ -67,6 +83,7 @@ class DnsSpeedtestActivity : AppCompatActivity() {
     override fun onCreate(savedInstanceState: Bundle?) {
         super.onCreate(savedInstanceState)
         setContentView(R.layout.activity_dns_speedtest)
+        TlsSessionCache.init(this)
 
         tvCurrentTest = findViewById(R.id.tvCurrentTest)
         layoutProviders = findViewById(R.id.layoutProviders)
@@ -78,6 +95,8 @@ class DnsSpeedtestActivity : AppCompatActivity() {
 
         btnBack.setOnClickListener { finish() }
         btnStartStop.setOnClickListener { toggleStartStop() }
+        btnCdnTest = findViewById(R.id.btnCdnTest)
+        btnCdnTest.setOnClickListener { if (!running) startCdnTest() }
 
         // Force focus sur btnStartStop
         btnStartStop.isFocusable = true
@@ -164,7 +183,8 @@ class DnsSpeedtestActivity : AppCompatActivity() {
 
                 appendProgress("${testProfiles.size} fournisseurs", COLOR_WHITE)
 
-                val sharedClient = OkHttpClient.Builder()
+                val sharedClient = TlsSessionCache.applyTo(OkHttpClient.Builder())
+                    .dns(DnsTester.bootstrapDns(this))
                     .connectTimeout(5, TimeUnit.SECONDS)
                     .readTimeout(5, TimeUnit.SECONDS)
                     .writeTimeout(5, TimeUnit.SECONDS)
@@ -189,10 +209,15 @@ class DnsSpeedtestActivity : AppCompatActivity() {
                                 DnsTester.measureDohLatency(profile.primary, client = sharedClient)
                             }
                             DnsType.DOT -> {
-                                DnsTester.measureDotLatency(profile.primary)
-                                DnsTester.measureDotLatency(profile.primary)
+                                DnsTester.measureDotLatency(this, profile.primary)
+                                DnsTester.measureDotLatency(this, profile.primary)
+                            }
+                            DnsType.DOQ -> DnsTester.measureDoqLatency(this, profile.primary)
+                            DnsType.DNSCRYPT -> {
+                                // 1er appel : récupération du certificat (mis en cache)
+                                DnsTester.measureDnsCryptLatency(profile.primary)
+                                DnsTester.measureDnsCryptLatency(profile.primary)
                             }
-                            DnsType.DOQ -> DnsTester.measureDoqLatency(profile.primary)
                             else -> DnsTester.measureLatency(profile.primary)
                         }
                     } catch (_: Exception) { null }
@@ -232,6 +257,110 @@ class DnsSpeedtestActivity : AppCompatActivity() {
         }.also { it.start() }
     }
 
+    /**
+     * Latence de téléchargement depuis des CDN, résolus par le DNS du VPN actif (requêtes
+     * directes vers son IP DNS virtuelle : ni cache système ni cache Android). Le résultat est
+     * gardé par upstream + mode Client Subnet et comparé aux autres modes déjà mesurés.
+     */
+    private fun startCdnTest() {
+        recentProgressLines.clear()
+        tvRanking.text = ""
+        cancelled = false
+        if (!DnsVpnControl.isRunning(this)) {
+            appendProgress(getString(R.string.cdn_test_vpn_off), COLOR_ORANGE)
+            return
+        }
+        val prefs = getSharedPreferences("prefs", MODE_PRIVATE)
+        val upstream = try {
+            com.google.gson.Gson().fromJson(prefs.getString("selected_profile_json", null), DnsProfile::class.java)?.primary
+        } catch (_: Exception) { null } ?: return
+        val mode = EcsPolicy.loadModes(this)[upstream] ?: EcsPolicy.MODE_PASS
+        setButtonStop()
+        btnCdnTest.isEnabled = false
+        appendProgress("CDN : $upstream (${ecsModeLabel(mode)})", COLOR_CYAN)
+
+        testThread = Thread {
+            try {
+                val times = mutableListOf<Long>()
+                for (url in CDN_URLS) {
+                    if (cancelled) break
+                    val host = java.net.URI(url).host
+                    val ms = measureDownload(url, resolveViaVpn(host))
+                    appendProgress("$host -> ${ms?.let { "$it ms" } ?: "Erreur / Timeout"}", if (ms != null) COLOR_WHITE else COLOR_GREY)
+                    if (ms != null) times.add(ms)
+                }
+                if (times.isEmpty() || cancelled) return@Thread
+                val median = times.sorted()[times.size / 2]
+
+                val results = try { org.json.JSONObject(prefs.getString(PREF_CDN_RESULTS, null) ?: "{}") } catch (_: Exception) { org.json.JSONObject() }
+                results.put("$upstream|$mode", median)
+                prefs.edit().putString(PREF_CDN_RESULTS, results.toString()).apply()
+
+                runOnUiThread {
+                    val buf = SpannableStringBuilder()
+                    appendToBuf(buf, getString(R.string.cdn_test_result_title), COLOR_GOLD)
+                    appendToBuf(buf, "\u2500\u2500\u2500\u2500\u2500\u2500\u2500\u2500\u2500\u2500\u2500\u2500\u2500\u2500\u2500\u2500\u2500\u2500\u2500\u2500", COLOR_GOLD)
+                    appendToBuf(buf, upstream, COLOR_WHITE)
+                    appendToBuf(buf, "${ecsModeLabel(mode)} : $median ms", COLOR_GREEN)
+                    for (other in intArrayOf(EcsPolicy.MODE_PASS, EcsPolicy.MODE_STRIP, EcsPolicy.MODE_INJECT)) {
+                        if (other == mode || !results.has("$upstream|$other")) continue
+                        val before = results.getLong("$upstream|$other")
+                        val delta = if (before > 0) (median - before) * 100 / before else 0
+                        appendToBuf(buf, "${ecsModeLabel(other)} : $before ms  (${if (delta > 0) "+" else ""}$delta %)",
+                            if (delta < 0) COLOR_GREEN else if (delta > 0) COLOR_ORANGE else COLOR_WHITE)
+                    }
+                    appendToBuf(buf, "", COLOR_WHITE)
+                    appendToBuf(buf, getString(R.string.cdn_test_hint), COLOR_GREY)
+                    tvRanking.text = buf
+                }
+            } catch (e: Exception) {
+                appendProgress("ERREUR : ${e.message}", COLOR_RED)
+            } finally {
+                setButtonStart()
+                runOnUiThread { btnCdnTest.isEnabled = true }
+            }
+        }.also { it.start() }
+    }
+
+    private fun ecsModeLabel(mode: Int): String = getString(EcsPolicy.labelRes(mode))
+
+    /** Adresses IPv4 de `host` par l'IP DNS virtuelle du VPN (requête EDNS0 : la politique ECS s'applique) */
+    private fun resolveViaVpn(host: String): List<java.net.InetAddress> {
+        val query = DnsWire.buildQuery(host, id = kotlin.random.Random.nextInt(0x10000), edns = true)
+        return try {
+            java.net.DatagramSocket().use { sock ->
+                sock.soTimeout = 3000
+                sock.send(java.net.DatagramPacket(query, query.size, java.net.InetAddress.getByName(DnsVpnService.DNS_ADDR_PRIMARY), 53))
+                val buf = ByteArray(4096)
+                val pkt = java.net.DatagramPacket(buf, buf.size)
+                sock.receive(pkt)
+                DnsWire.parseAddresses(buf, pkt.length)?.addresses.orEmpty()
+            }
+        } catch (_: Exception) { emptyList() }
+    }
+
+    /** Connexion neuve (TCP + TLS) + téléchargement complet, null si échec */
+    private fun measureDownload(url: String, addresses: List<java.net.InetAddress>): Long? {
+        if (addresses.isEmpty()) return null
+        val client = OkHttpClient.Builder()
+            .dns(object : okhttp3.Dns { override fun lookup(hostname: String) = addresses })
+            .connectionPool(okhttp3.ConnectionPool(0, 1, TimeUnit.SECONDS))
+            .connectTimeout(5, TimeUnit.SECONDS)
+            .readTimeout(5, TimeUnit.SECONDS)
+            .build()
+        return try {
+            val t0 = android.os.SystemClock.elapsedRealtime()
+            client.newCall(okhttp3.Request.Builder().url(url).build()).execute().use { resp ->
+                resp.body?.bytes()
+                if (resp.code >= 400) null else android.os.SystemClock.elapsedRealtime() - t0
+            }
+        } catch (_: Exception) {
+            null
+        } finally {
+            client.dispatcher.executorService.shutdown()
+        }
+    }
+
     private fun updatePanels(results: List<SpeedResult>, final: Boolean) {
         runOnUiThread {
             val sorted = results.sortedWith(compareBy(nullsLast()) { it.latency })
@@ -423,6 +552,7 @@ class DnsSpeedtestActivity : AppCompatActivity() {
                         "DoH" -> DnsColors.colorForType(DnsType.DOH)
                         "DoQ" -> DnsColors.colorForType(DnsType.DOQ)
                         "DoT" -> DnsColors.colorForType(DnsType.DOT)
+                        "DNSCrypt" -> DnsColors.colorForType(DnsType.DNSCRYPT)
                         else -> DnsColors.colorForType(DnsType.DEFAULT)
                     }
 
@@ -542,6 +672,7 @@ class DnsSpeedtestActivity : AppCompatActivity() {
         "DoH" -> DnsColors.colorForType(DnsType.DOH)
         "DoQ" -> DnsColors.colorForType(DnsType.DOQ)
         "DoT" -> DnsColors.colorForType(DnsType.DOT)
+        "DNSCrypt" -> DnsColors.colorForType(DnsType.DNSCRYPT)
         else -> DnsColors.colorForType(DnsType.DEFAULT)
     }
 
@@ -0,0 +1,294 @@
+package net.appstorefr.perfectdnsmanager
+
+import android.content.Context
+import android.graphics.Typeface
+import android.os.Bundle
+import android.os.Handler
+import android.os.Looper
+import android.view.Gravity
+import android.view.View
+import android.widget.*
+import androidx.appcompat.app.AlertDialog
+import androidx.appcompat.app.AppCompatActivity
+import net.appstorefr.perfectdnsmanager.service.DnsMetrics
+import net.appstorefr.perfectdnsmanager.service.DnsVpnControl
+import net.appstorefr.perfectdnsmanager.service.QueryContext
+import net.appstorefr.perfectdnsmanager.service.QueryTracer
+import net.appstorefr.perfectdnsmanager.util.DnsWire
+import net.appstorefr.perfectdnsmanager.util.LocaleHelper
+import org.json.JSONArray
+import org.json.JSONObject
+import kotlin.math.roundToInt
+
+/**
+ * Statistiques du VPN : requêtes, cache, échéances, puis latence p50/p90/p99 et erreurs par
+ * transport et par upstream. Rafraîchies chaque seconde tant que l'écran est visible.
+ * Traçage activé : requêtes les plus lentes avec la durée de chaque étape (voir QueryTracer).
+ */
+class DnsStatsActivity : AppCompatActivity() {
+
+    companion object {
+        private const val REFRESH_MS = 1000L
+        /** Hauteurs des barres de l'histogramme */
+        private const val BARS = "▁▂▃▄▅▆▇█"
+    }
+
+    override fun attachBaseContext(newBase: Context) {
+        super.attachBaseContext(LocaleHelper.applyLocale(newBase))
+    }
+
+    private lateinit var tvOverview: TextView
+    private lateinit var tvDeadlines: TextView
+    private lateinit var transportsContainer: LinearLayout
+    private lateinit var upstreamsContainer: LinearLayout
+    private lateinit var btnTrace: Button
+    private lateinit var slowContainer: LinearLayout
+    /** Liste des requêtes lentes affichée : reconstruite seulement si elle change */
+    private var slowShown: String? = null
+    private val handler = Handler(Looper.getMainLooper())
+
+    private val refresh = object : Runnable {
+        override fun run() {
+            Thread {
+                val snap = DnsVpnControl.metrics(this@DnsStatsActivity)
+                val slow = DnsVpnControl.slowQueries(this@DnsStatsActivity)
+                runOnUiThread {
+                    if (!isFinishing) {
+                        render(snap)
+                        renderSlow(slow)
+                    }
+                }
+            }.start()
+            handler.postDelayed(this, REFRESH_MS)
+        }
+    }
+
+    override fun onCreate(savedInstanceState: Bundle?) {
+        super.onCreate(savedInstanceState)
+
+        val root = ScrollView(this).apply {
+            setBackgroundColor(0xFF1E1E1E.toInt())
+        }
+        val mainLayout = LinearLayout(this).apply {
+            orientation = LinearLayout.VERTICAL
+            setPadding(32, 32, 32, 32)
+        }
+        root.addView(mainLayout)
+
+        // Header
+        val header = LinearLayout(this).apply {
+            orientation = LinearLayout.HORIZONTAL
+            gravity = Gravity.CENTER_VERTICAL
+        }
+        val btnBack = Button(this).apply {
+            text = getString(R.string.back_arrow)
+            setTextColor(0xFFFFFFFF.toInt())
+            setBackgroundResource(R.drawable.focusable_item_background)
+            foreground = resources.getDrawable(R.drawable.btn_focus_foreground, theme)
+            isFocusable = true
+            setPadding(20, 10, 20, 10)
+            setOnClickListener { finish() }
+        }
+        header.addView(btnBack)
+        header.addView(TextView(this).apply {
+            text = getString(R.string.dns_stats_title)
+            setTextColor(0xFFFFFFFF.toInt())
+            textSize = 20f
+            setTypeface(typeface, Typeface.BOLD)
+            gravity = Gravity.CENTER
+            layoutParams = LinearLayout.LayoutParams(0, LinearLayout.LayoutParams.WRAP_CONTENT, 1f)
+        })
+        mainLayout.addView(header)
+
+        mainLayout.addView(View(this).apply {
+            layoutParams = LinearLayout.LayoutParams(LinearLayout.LayoutParams.MATCH_PARENT, 24)
+        })
+
+        tvOverview = bodyText().also { mainLayout.addView(it) }
+        tvDeadlines = bodyText().apply {
+            setTextColor(0xFFAAAAAA.toInt())
+            setPadding(0, 12, 0, 0)
+        }.also { mainLayout.addView(it) }
+
+        mainLayout.addView(sectionTitle(getString(R.string.dns_stats_transports)))
+        transportsContainer = LinearLayout(this).apply { orientation = LinearLayout.VERTICAL }
+        mainLayout.addView(transportsContainer)
+
+        mainLayout.addView(sectionTitle(getString(R.string.dns_stats_upstreams)))
+        upstreamsContainer = LinearLayout(this).apply { orientation = LinearLayout.VERTICAL }
+        mainLayout.addView(upstreamsContainer)
+
+        mainLayout.addView(sectionTitle(getString(R.string.slow_queries_title)))
+        btnTrace = Button(this).apply {
+            setTextColor(0xFFFFFFFF.toInt())
+            setBackgroundResource(R.drawable.focusable_item_background)
+            foreground = resources.getDrawable(R.drawable.btn_focus_foreground, theme)
+            isFocusable = true
+            isAllCaps = false
+            setOnClickListener { pickSampling() }
+        }
+        mainLayout.addView(btnTrace)
+        slowContainer = LinearLayout(this).apply { orientation = LinearLayout.VERTICAL }
+        mainLayout.addView(slowContainer)
+        updateTraceButton()
+
+        setContentView(root)
+        btnBack.requestFocus()
+    }
+
+    override fun onResume() {
+        super.onResume()
+        handler.post(refresh)
+    }
+
+    override fun onPause() {
+        handler.removeCallbacks(refresh)
+        super.onPause()
+    }
+
+    private fun render(snap: JSONObject?) {
+        if (snap == null) {
+            tvOverview.text = getString(R.string.dns_stats_inactive)
+            tvDeadlines.text = ""
+            transportsContainer.removeAllViews()
+            upstreamsContainer.removeAllViews()
+            return
+        }
+        tvOverview.text = getString(R.string.dns_stats_overview,
+            snap.optLong("queries"), snap.optDouble("qps", 0.0),
+            (snap.optDouble("cacheHitRatio", 0.0) * 100).roundToInt(), snap.optLong("cacheHits"),
+            msLabel(snap.optLong("p50", -1)), msLabel(snap.optLong("p90", -1)),
+            snap.optInt("inFlight"), snap.optLong("local"))
+        tvDeadlines.text = getString(R.string.dns_stats_deadlines,
+            snap.optLong("expiredQueued"), snap.optLong("expiredUpstream"), snap.optLong("coalesced"))
+        fill(transportsContainer, snap.optJSONArray("transports"))
+        fill(upstreamsContainer, snap.optJSONArray("upstreams"))
+    }
+
+    private fun fill(container: LinearLayout, entries: JSONArray?) {
+        container.removeAllViews()
+        if (entries == null) return
+        for (i in 0 until entries.length()) {
+            val e = entries.getJSONObject(i)
+            container.addView(TextView(this).apply {
+                text = e.optString("name")
+                setTextColor(0xFFFFFFFF.toInt())
+                textSize = 14f
+                setTypeface(typeface, Typeface.BOLD)
+                setPadding(0, 16, 0, 0)
+            })
+            container.addView(bodyText().apply {
+                text = getString(R.string.dns_stats_line,
+                    e.optLong("answers"), e.optLong("errors"), e.optLong("timeouts"),
+                    msLabel(e.optLong("p50", -1)), msLabel(e.optLong("p90", -1)), msLabel(e.optLong("p99", -1)))
+            })
+            e.optJSONArray("histogram")?.let { h ->
+                container.addView(TextView(this).apply {
+                    text = histogram(h)
+                    setTextColor(0xFF4FC3F7.toInt())
+                    textSize = 13f
+                    typeface = Typeface.MONOSPACE
+                })
+            }
+        }
+    }
+
+    private fun samplingLabel(every: Int): String = when (every) {
+        0 -> getString(R.string.query_trace_off)
+        1 -> getString(R.string.query_trace_all)
+        else -> getString(R.string.query_trace_every, every)
+    }
+
+    private fun updateTraceButton() {
+        val every = getSharedPreferences("prefs", MODE_PRIVATE).getInt(QueryTracer.PREF_SAMPLE, 0)
+        btnTrace.text = getString(R.string.query_trace_button, samplingLabel(every))
+    }
+
+    /** Échantillonnage du traçage, appliqué au VPN actif sans le redémarrer */
+    private fun pickSampling() {
+        val choices = QueryTracer.SAMPLE_CHOICES
+        AlertDialog.Builder(this)
+            .setTitle(getString(R.string.query_trace_pick))
+            .setItems(choices.map { samplingLabel(it) }.toTypedArray()) { _, i ->
+                DnsVpnControl.commitThenReload(this, { QueryTracer.save(this, choices[i]) }) {
+                    if (!isFinishing) updateTraceButton()
+                }
+            }
+            .setNegativeButton(getString(R.string.cancel), null)
+            .show()
+    }
+
+    /** Requêtes tracées, de la plus lente à la moins lente, avec le détail des étapes */
+    private fun renderSlow(records: JSONArray?) {
+        val json = records?.toString()
+        if (json == slowShown) return
+        slowShown = json
+        slowContainer.removeAllViews()
+        if (records == null || records.length() == 0) {
+            slowContainer.addView(bodyText().apply {
+                text = getString(if (records == null) R.string.slow_queries_hint else R.string.slow_queries_empty)
+                setTextColor(0xFFAAAAAA.toInt())
+                setPadding(0, 12, 0, 0)
+            })
+            return
+        }
+        for (i in 0 until records.length()) {
+            val r = records.getJSONObject(i)
+            val answeredBy = when (r.optInt("source")) {
+                QueryContext.SOURCE_CACHE -> getString(R.string.slow_query_cache)
+                QueryContext.SOURCE_LOCAL -> getString(R.string.slow_query_local)
+                else -> r.optString("upstream")
+            }
+            slowContainer.addView(TextView(this).apply {
+                text = "${r.optString("qname")} ${DnsWire.typeName(r.optInt("qtype"))} · ${usLabel(r.optLong("totalUs"))}\n→ $answeredBy"
+                setTextColor(0xFFFFFFFF.toInt())
+                textSize = 14f
+                setTypeface(typeface, Typeface.BOLD)
+                setPadding(0, 16, 0, 0)
+            })
+            val spans = r.optJSONArray("spans") ?: continue
+            val lines = StringBuilder()
+            for (j in 0 until spans.length()) {
+                val span = spans.getJSONObject(j)
+                val label = (if (span.optBoolean("nested")) "  ↳ " else "") + span.optString("label")
+                if (lines.isNotEmpty()) lines.append('\n')
+                lines.append(label.padEnd(18)).append(usLabel(span.optLong("us")).padStart(10))
+            }
+            slowContainer.addView(TextView(this).apply {
+                text = lines
+                setTextColor(0xFFDDDDDD.toInt())
+                textSize = 12f
+                typeface = Typeface.MONOSPACE
+            })
+        }
+    }
+
+    private fun usLabel(us: Long): String = String.format("%.1f ms", us / 1000.0)
+
+    /** Une barre par seuil de DnsMetrics.BUCKETS_MS, du plus rapide au plus lent */
+    private fun histogram(counts: JSONArray): String {
+        val max = (0 until counts.length()).maxOfOrNull { counts.optLong(it) } ?: 0L
+        if (max == 0L) return ""
+        val bars = StringBuilder()
+        for (i in 0 until counts.length()) {
+            val c = counts.optLong(i)
+            bars.append(if (c == 0L) ' ' else BARS[((c * (BARS.length - 1)) / max).toInt()])
+        }
+        return "≤${DnsMetrics.BUCKETS_MS.first()}ms $bars >${DnsMetrics.BUCKETS_MS.last() / 1000}s"
+    }
+
+    private fun msLabel(ms: Long): String = if (ms < 0) "—" else "$ms ms"
+
+    private fun bodyText() = TextView(this).apply {
+        setTextColor(0xFFDDDDDD.toInt())
+        textSize = 13f
+    }
+
+    private fun sectionTitle(title: String) = TextView(this).apply {
+        text = title
+        setTextColor(0xFF4FC3F7.toInt())
+        textSize = 16f
+        setTypeface(typeface, Typeface.BOLD)
+        setPadding(0, 32, 0, 0)
+    }
+}
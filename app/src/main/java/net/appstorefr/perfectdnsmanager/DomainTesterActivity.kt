@@ -10,7 +10,7 @@ import com.google.gson.Gson
 import net.appstorefr.perfectdnsmanager.data.DnsProfile
 import net.appstorefr.perfectdnsmanager.data.DnsType
 import net.appstorefr.perfectdnsmanager.data.ProfileManager
-import net.appstorefr.perfectdnsmanager.service.DnsVpnService
+import net.appstorefr.perfectdnsmanager.service.DnsVpnControl
 import net.appstorefr.perfectdnsmanager.util.DnsTester
 import net.appstorefr.perfectdnsmanager.util.LocaleHelper
 import net.appstorefr.perfectdnsmanager.util.UrlBlockingTester
@@ -98,7 +98,7 @@ class DomainTesterActivity : AppCompatActivity() {
                 bottomMargin = 16
             }
 
-            val vpnRunning = DnsVpnService.isVpnRunning
+            val vpnRunning = DnsVpnControl.isRunning(this@DomainTesterActivity)
             val dotMode = android.provider.Settings.Global.getString(contentResolver, "private_dns_mode")
             val isDotActive = dotMode == "hostname"
 
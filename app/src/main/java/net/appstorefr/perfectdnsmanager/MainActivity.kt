@@ -24,7 +24,9 @@ import androidx.appcompat.app.AppCompatActivity
 import net.appstorefr.perfectdnsmanager.data.DnsProfile
 import net.appstorefr.perfectdnsmanager.data.DnsType
 import net.appstorefr.perfectdnsmanager.service.AdbDnsManager
+import net.appstorefr.perfectdnsmanager.service.DnsVpnControl
 import net.appstorefr.perfectdnsmanager.service.DnsVpnService
+import net.appstorefr.perfectdnsmanager.service.DomainStats
 import net.appstorefr.perfectdnsmanager.service.UpdateManager
 import net.appstorefr.perfectdnsmanager.util.DnsLeakTester
 import net.appstorefr.perfectdnsmanager.util.LocaleHelper
@@ -74,7 +76,7 @@ class MainActivity : AppCompatActivity() {
     }
 
     private fun typeLabelFor(type: DnsType) = when (type) {
-        DnsType.DOH -> "DoH"; DnsType.DOT -> "DoT"; DnsType.DOQ -> "DoQ"; DnsType.DEFAULT -> "Standard"
+        DnsType.DOH -> "DoH"; DnsType.DOT -> "DoT"; DnsType.DOQ -> "DoQ"; DnsType.DNSCRYPT -> "DNSCrypt"; DnsType.DEFAULT -> "Standard"
     }
 
     private val vpnPermissionLauncher = registerForActivityResult(
@@ -105,12 +107,13 @@ class MainActivity : AppCompatActivity() {
                 val newProfile = Gson().fromJson(profileJson, DnsProfile::class.java)
                 val wasActive = isActive
                 selectedProfile = newProfile
-                prefs.edit().putString("selected_profile_json", profileJson).apply()
                 updateSelectButtonText()
-                // Auto-reconnexion : si DNS était actif, reconnecter avec le nouveau profil
-                if (wasActive) {
+                // Auto-reconnexion : si DNS était actif, reconnecter avec le nouveau profil,
+                // une fois le profil écrit (relu par le processus :vpn au redémarrage)
+                commitSelectedProfile(profileJson) {
+                    if (!wasActive) return@commitSelectedProfile
                     val adbWasActive = adbManager.getCurrentPrivateDnsMode()?.contains("hostname") == true
-                    val vpnWasActive = DnsVpnService.isVpnRunning || prefs.getBoolean("vpn_active", false)
+                    val vpnWasActive = DnsVpnControl.isRunning(this) || prefs.getBoolean("vpn_active", false)
                     val newMethod = methodForProfile(newProfile)  // "VPN" ou "ADB"
 
                     // D'abord, stopper l'ancienne méthode proprement
@@ -265,7 +268,7 @@ class MainActivity : AppCompatActivity() {
             } catch (_: Exception) { "" }
 
             // DNS status check (VPN + DoT)
-            val vpnRunning = DnsVpnService.isVpnRunning
+            val vpnRunning = DnsVpnControl.isRunning(this)
             val dotActive = try {
                 val mode = android.provider.Settings.Global.getString(contentResolver, "private_dns_mode")
                 mode == "hostname"
@@ -364,22 +367,41 @@ class MainActivity : AppCompatActivity() {
                 val defaultJson = prefs.getString("default_profile_json", null)
                 val selectedJson = prefs.getString("selected_profile_json", null)
                 val profileJson = defaultJson ?: selectedJson
-                if (profileJson != null && !DnsVpnService.isVpnRunning) {
+                if (profileJson != null && !DnsVpnControl.isRunning(this)) {
                     try {
                         val profile = Gson().fromJson(profileJson, DnsProfile::class.java)
                         selectedProfile = profile
-                        prefs.edit().putString("selected_profile_json", profileJson).apply()
+                        commitSelectedProfile(profileJson)
                         updateSelectButtonText()
                         if (methodForProfile(profile) == "VPN") applyDnsViaVpn(profile)
                     } catch (_: Exception) {}
                 }
             }
+            reloadAutoSwitch()
             checkStatus()
         }
         // Afficher les infos IP automatiquement
         refreshIpDisplay()
     }
 
+    /**
+     * Bascule du mode auto : profil et libellé écrits par le processus :vpn (voir
+     * AutoProviderSelector.saveSwitch), relus ici avant que l'interface n'écrive dans le même fichier
+     */
+    private fun reloadAutoSwitch() {
+        @Suppress("DEPRECATION")
+        getSharedPreferences("prefs", Context.MODE_MULTI_PROCESS)
+        if (!DnsVpnControl.isRunning(this)) return
+        val json = prefs.getString("selected_profile_json", null) ?: return
+        try {
+            val profile = Gson().fromJson(json, DnsProfile::class.java)
+            if (profile != selectedProfile) {
+                selectedProfile = profile
+                updateSelectButtonText()
+            }
+        } catch (_: Exception) {}
+    }
+
     private fun applyGoldenIndicators() {
         val gold = Color.parseColor("#FFD700")
         val tvProvider: TextView = findViewById(R.id.tvDnsProviderLabel)
@@ -508,7 +530,7 @@ class MainActivity : AppCompatActivity() {
             mode == "hostname"
         } catch (_: Exception) { false }
 
-        if (!DnsVpnService.isVpnRunning && !isDotActive) {
+        if (!DnsVpnControl.isRunning(this) && !isDotActive) {
             Toast.makeText(this, getString(R.string.vpn_required_for_report), Toast.LENGTH_LONG).show()
             return
         }
@@ -653,7 +675,28 @@ class MainActivity : AppCompatActivity() {
                 display.appendLine()
             }
 
-            // === 4. Device / Hardware info (dernier) ===
+            // === 4. Domaines les plus demandés, bloqués et lents du jour ===
+            if (t.isInterrupted) return@Thread
+            val domainStats = try { DomainStats.today(this@MainActivity) } catch (_: Exception) { null }
+            if (domainStats != null && DomainStats.total(domainStats, DomainStats.QUERIED) > 0) {
+                display.appendLine("\u2501\u2501\u2501 ${getString(R.string.top_domains_title)} \u2501\u2501\u2501")
+                display.appendLine(getString(R.string.top_domains_summary,
+                    DomainStats.total(domainStats, DomainStats.QUERIED), DomainStats.total(domainStats, DomainStats.BLOCKED),
+                    DomainStats.total(domainStats, DomainStats.SLOW), domainStats.optLong("slowMs", DomainStats.SLOW_MS)))
+                for ((category, title) in listOf(
+                    DomainStats.QUERIED to R.string.top_domains_queried,
+                    DomainStats.BLOCKED to R.string.top_domains_blocked,
+                    DomainStats.SLOW to R.string.top_domains_slow
+                )) {
+                    val top = DomainStats.top(domainStats, category).take(5)
+                    if (top.isEmpty()) continue
+                    display.appendLine("  ${getString(title)} :")
+                    for (e in top) display.appendLine("    \u2022 ${e.name} (${e.count})")
+                }
+                display.appendLine()
+            }
+
+            // === 5. Device / Hardware info (dernier) ===
             val deviceType = if (packageManager.hasSystemFeature("android.software.leanback")) {
                 getString(R.string.device_type_tv)
             } else if (resources.configuration.smallestScreenWidthDp >= 600) {
@@ -967,7 +1010,7 @@ class MainActivity : AppCompatActivity() {
             prefs.edit().putBoolean("language_change_pending", false).apply()
         }
 
-        val vpnReallyActive = DnsVpnService.isVpnRunning
+        val vpnReallyActive = DnsVpnControl.isRunning(this)
         val vpnSavedActive = prefs.getBoolean("vpn_active", false)
         val adbIsActive = adbManager.getCurrentPrivateDnsMode()?.contains("hostname") == true
 
@@ -1003,7 +1046,7 @@ class MainActivity : AppCompatActivity() {
             if (profileJson != null) {
                 try {
                     selectedProfile = Gson().fromJson(profileJson, DnsProfile::class.java)
-                    prefs.edit().putString("selected_profile_json", profileJson).apply()
+                    commitSelectedProfile(profileJson)
                 } catch (_: Exception) {
                     selectedProfile = null
                 }
@@ -1027,7 +1070,7 @@ class MainActivity : AppCompatActivity() {
             }
         }
 
-        val vpnReallyActive = DnsVpnService.isVpnRunning
+        val vpnReallyActive = DnsVpnControl.isRunning(this)
         val vpnSavedActive = prefs.getBoolean("vpn_active", false)
 
         if (vpnReallyActive && vpnSavedActive) {
@@ -1056,10 +1099,22 @@ class MainActivity : AppCompatActivity() {
 
     private fun clearSelectedProfile() {
         selectedProfile = null
-        prefs.edit().remove("selected_profile_json").apply()
+        commitSelectedProfile(null)
         updateSelectButtonText()
     }
 
+    /**
+     * Profil sélectionné : relu par le processus :vpn (groupe d'endpoints, démarrage always-on),
+     * donc écrit par commit() avant tout démarrage ou redémarrage du VPN (voir DnsVpnControl.commitThen)
+     */
+    private fun commitSelectedProfile(profileJson: String?, done: (() -> Unit)? = null) {
+        DnsVpnControl.commitThen(this, {
+            prefs.edit().apply {
+                if (profileJson != null) putString("selected_profile_json", profileJson) else remove("selected_profile_json")
+            }.commit()
+        }, {}, done)
+    }
+
     private fun setupUI() {
         layoutSelectDns.requestFocus()
 
@@ -1175,7 +1230,7 @@ class MainActivity : AppCompatActivity() {
 
     private fun proceedWithAdb(profile: DnsProfile) {
         // Stopper le VPN s'il tourne avant d'activer ADB (évite conflit DoH+DoT)
-        if (DnsVpnService.isVpnRunning) {
+        if (DnsVpnControl.isRunning(this)) {
             startService(Intent(this, DnsVpnService::class.java).apply { action = DnsVpnService.ACTION_STOP })
             prefs.edit().putBoolean("vpn_active", false).putString("vpn_label", "").apply()
         }
@@ -1209,22 +1264,30 @@ class MainActivity : AppCompatActivity() {
 
     private fun startVpnService(profile: DnsProfile) {
         // Première connexion VPN : activer auto-start, auto-reconnect et disable IPv6
-        if (!prefs.getBoolean("first_vpn_done", false)) {
-            prefs.edit()
-                .putBoolean("auto_start_enabled", true)
-                .putBoolean("auto_reconnect_dns", true)
-                .putBoolean("disable_ipv6", true)
-                .putBoolean("first_vpn_done", true)
-                .apply()
-        }
-
-        val intent = Intent(this, DnsVpnService::class.java).apply {
+        val firstVpn = !prefs.getBoolean("first_vpn_done", false)
+        val profileJson = Gson().toJson(profile)
+        val app = applicationContext
+        val intent = Intent(app, DnsVpnService::class.java).apply {
             action = DnsVpnService.ACTION_START
             putExtra(DnsVpnService.EXTRA_DNS_PRIMARY, profile.primary)
             profile.secondary?.let { putExtra(DnsVpnService.EXTRA_DNS_SECONDARY, it) }
         }
-        if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.O) startForegroundService(intent)
-        else startService(intent)
+        // disable_ipv6 et le profil sont lus par le processus :vpn au démarrage : service lancé
+        // seulement une fois l'écriture faite
+        DnsVpnControl.commitThen(this, {
+            prefs.edit().apply {
+                putString("selected_profile_json", profileJson)
+                if (firstVpn) {
+                    putBoolean("auto_start_enabled", true)
+                    putBoolean("auto_reconnect_dns", true)
+                    putBoolean("disable_ipv6", true)
+                    putBoolean("first_vpn_done", true)
+                }
+            }.commit()
+        }, {
+            if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.O) app.startForegroundService(intent)
+            else app.startService(intent)
+        })
         val label = "DNS via VPN: ${profile.providerName}\n${profile.primary}"
         prefs.edit()
             .putBoolean("vpn_active", true)
@@ -1247,7 +1310,7 @@ class MainActivity : AppCompatActivity() {
 
     private fun disableDnsQuiet(onDone: () -> Unit) {
         val adbIsActive = adbManager.getCurrentPrivateDnsMode()?.contains("hostname") == true
-        val vpnIsActive = DnsVpnService.isVpnRunning || prefs.getBoolean("vpn_active", false)
+        val vpnIsActive = DnsVpnControl.isRunning(this) || prefs.getBoolean("vpn_active", false)
         // Stopper le VPN si actif
         if (vpnIsActive) {
             startService(Intent(this, DnsVpnService::class.java).apply { action = DnsVpnService.ACTION_STOP })
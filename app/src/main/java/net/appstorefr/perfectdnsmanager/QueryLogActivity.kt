@@ -0,0 +1,326 @@
+package net.appstorefr.perfectdnsmanager
+
+import android.content.Context
+import android.graphics.Typeface
+import android.os.Bundle
+import android.text.format.DateFormat
+import android.view.Gravity
+import android.view.View
+import android.view.inputmethod.EditorInfo
+import android.widget.*
+import androidx.appcompat.app.AlertDialog
+import androidx.appcompat.app.AppCompatActivity
+import net.appstorefr.perfectdnsmanager.service.DnsVpnControl
+import net.appstorefr.perfectdnsmanager.service.QueryLog
+import net.appstorefr.perfectdnsmanager.service.QueryLogReader
+import net.appstorefr.perfectdnsmanager.util.DnsWire
+import net.appstorefr.perfectdnsmanager.util.LocaleHelper
+import java.util.Date
+
+/**
+ * Journal des requêtes du VPN (voir QueryLog) : pages de PAGE_SIZE requêtes, de la plus récente
+ * à la plus ancienne, filtrées par domaine, période, application et type de réponse.
+ * Les fichiers sont lus directement, la lecture tourne hors du thread principal.
+ */
+class QueryLogActivity : AppCompatActivity() {
+
+    companion object {
+        private const val PAGE_SIZE = 100
+        private const val HOUR_MS = 3_600_000L
+        private val PERIODS = longArrayOf(HOUR_MS, 24 * HOUR_MS, 7 * 24 * HOUR_MS, 0)
+        private const val STATUS_ALL = 0
+        private const val STATUS_ERRORS = 1
+        private const val STATUS_CACHED = 2
+    }
+
+    override fun attachBaseContext(newBase: Context) {
+        super.attachBaseContext(LocaleHelper.applyLocale(newBase))
+    }
+
+    private lateinit var reader: QueryLogReader
+    private lateinit var btnEnabled: Button
+    private lateinit var etDomain: EditText
+    private lateinit var btnPeriod: Button
+    private lateinit var btnApp: Button
+    private lateinit var btnStatus: Button
+    private lateinit var listContainer: LinearLayout
+    private lateinit var btnMore: Button
+
+    private var period = 1
+    private var appUid: Int? = null
+    private var appLabel: String? = null
+    private var status = STATUS_ALL
+    /** Heure de la dernière entrée affichée : la page suivante commence avant */
+    private var cursor = Long.MAX_VALUE
+    /** Incrémenté à chaque nouvelle recherche : une page en retard est ignorée */
+    private var generation = 0
+    private val appLabels = java.util.concurrent.ConcurrentHashMap<Int, String>()
+
+    override fun onCreate(savedInstanceState: Bundle?) {
+        super.onCreate(savedInstanceState)
+        reader = QueryLogReader(QueryLog.dir(this))
+
+        val root = ScrollView(this).apply {
+            setBackgroundColor(0xFF1E1E1E.toInt())
+        }
+        val mainLayout = LinearLayout(this).apply {
+            orientation = LinearLayout.VERTICAL
+            setPadding(32, 32, 32, 32)
+        }
+        root.addView(mainLayout)
+
+        // Header
+        val header = LinearLayout(this).apply {
+            orientation = LinearLayout.HORIZONTAL
+            gravity = Gravity.CENTER_VERTICAL
+        }
+        val btnBack = Button(this).apply {
+            text = getString(R.string.back_arrow)
+            setTextColor(0xFFFFFFFF.toInt())
+            setBackgroundResource(R.drawable.focusable_item_background)
+            foreground = resources.getDrawable(R.drawable.btn_focus_foreground, theme)
+            isFocusable = true
+            setPadding(20, 10, 20, 10)
+            setOnClickListener { finish() }
+        }
+        header.addView(btnBack)
+        header.addView(TextView(this).apply {
+            text = getString(R.string.query_log_title)
+            setTextColor(0xFFFFFFFF.toInt())
+            textSize = 20f
+            setTypeface(typeface, Typeface.BOLD)
+            gravity = Gravity.CENTER
+            layoutParams = LinearLayout.LayoutParams(0, LinearLayout.LayoutParams.WRAP_CONTENT, 1f)
+        })
+        mainLayout.addView(header)
+
+        mainLayout.addView(View(this).apply {
+            layoutParams = LinearLayout.LayoutParams(LinearLayout.LayoutParams.MATCH_PARENT, 24)
+        })
+
+        btnEnabled = actionButton { toggleEnabled() }
+        mainLayout.addView(btnEnabled)
+        updateEnabledButton()
+
+        // Filtres
+        val searchRow = LinearLayout(this).apply {
+            orientation = LinearLayout.HORIZONTAL
+            gravity = Gravity.CENTER_VERTICAL
+        }
+        etDomain = EditText(this).apply {
+            hint = getString(R.string.query_log_filter_hint)
+            setTextColor(0xFFFFFFFF.toInt())
+            setHintTextColor(0xFF888888.toInt())
+            isSingleLine = true
+            imeOptions = EditorInfo.IME_ACTION_SEARCH
+            setOnEditorActionListener { _, actionId, _ ->
+                if (actionId == EditorInfo.IME_ACTION_SEARCH) { reload(); true } else false
+            }
+            layoutParams = LinearLayout.LayoutParams(0, LinearLayout.LayoutParams.WRAP_CONTENT, 1f)
+        }
+        searchRow.addView(etDomain)
+        searchRow.addView(actionButton { reload() }.apply { text = getString(R.string.query_log_search) })
+        mainLayout.addView(searchRow)
+
+        val filterRow = LinearLayout(this).apply { orientation = LinearLayout.HORIZONTAL }
+        btnPeriod = actionButton { pickPeriod() }.apply { layoutParams = weighted() }
+        btnApp = actionButton { pickApp() }.apply { layoutParams = weighted() }
+        btnStatus = actionButton { pickStatus() }.apply { layoutParams = weighted() }
+        filterRow.addView(btnPeriod)
+        filterRow.addView(btnApp)
+        filterRow.addView(btnStatus)
+        mainLayout.addView(filterRow)
+        updateFilterButtons()
+
+        listContainer = LinearLayout(this).apply { orientation = LinearLayout.VERTICAL }
+        mainLayout.addView(listContainer)
+
+        btnMore = actionButton { loadPage() }.apply {
+            text = getString(R.string.query_log_more)
+            visibility = View.GONE
+        }
+        mainLayout.addView(btnMore)
+
+        mainLayout.addView(actionButton { confirmClear() }.apply {
+            text = getString(R.string.query_log_clear)
+            setTextColor(0xFFEF9A9A.toInt())
+        })
+
+        setContentView(root)
+        btnBack.requestFocus()
+        reload()
+    }
+
+    private fun actionButton(onClick: () -> Unit) = Button(this).apply {
+        setTextColor(0xFFFFFFFF.toInt())
+        setBackgroundResource(R.drawable.focusable_item_background)
+        foreground = resources.getDrawable(R.drawable.btn_focus_foreground, theme)
+        isFocusable = true
+        isAllCaps = false
+        textSize = 13f
+        setOnClickListener { onClick() }
+    }
+
+    private fun weighted() = LinearLayout.LayoutParams(0, LinearLayout.LayoutParams.WRAP_CONTENT, 1f)
+
+    // ── Filtres ─────────────────────
+
+    private fun periodLabel(i: Int): String = getString(when (i) {
+        0 -> R.string.query_log_period_1h
+        1 -> R.string.query_log_period_24h
+        2 -> R.string.query_log_period_7d
+        else -> R.string.query_log_period_all
+    })
+
+    private fun statusLabel(s: Int): String = getString(when (s) {
+        STATUS_ERRORS -> R.string.query_log_status_errors
+        STATUS_CACHED -> R.string.query_log_status_cached
+        else -> R.string.query_log_status_all
+    })
+
+    private fun updateFilterButtons() {
+        btnPeriod.text = periodLabel(period)
+        btnApp.text = appLabel ?: getString(R.string.query_log_all_apps)
+        btnStatus.text = statusLabel(status)
+    }
+
+    private fun pickPeriod() {
+        AlertDialog.Builder(this)
+            .setItems(PERIODS.indices.map { periodLabel(it) }.toTypedArray()) { _, i ->
+                period = i
+                updateFilterButtons()
+                reload()
+            }
+            .show()
+    }
+
+    private fun pickStatus() {
+        val choices = intArrayOf(STATUS_ALL, STATUS_ERRORS, STATUS_CACHED)
+        AlertDialog.Builder(this)
+            .setItems(choices.map { statusLabel(it) }.toTypedArray()) { _, i ->
+                status = choices[i]
+                updateFilterButtons()
+                reload()
+            }
+            .show()
+    }
+
+    private fun pickApp() {
+        Thread {
+            val pm = packageManager
+            val apps = pm.getInstalledApplications(0)
+                .map { it.uid to pm.getApplicationLabel(it).toString() }
+                .distinctBy { it.first }
+                .sortedBy { it.second.lowercase() }
+            runOnUiThread {
+                val labels = listOf(getString(R.string.query_log_all_apps)) + apps.map { it.second }
+                AlertDialog.Builder(this)
+                    .setItems(labels.toTypedArray()) { _, i ->
+                        if (i == 0) { appUid = null; appLabel = null }
+                        else { appUid = apps[i - 1].first; appLabel = apps[i - 1].second }
+                        updateFilterButtons()
+                        reload()
+                    }
+                    .show()
+            }
+        }.start()
+    }
+
+    private fun currentFilter(): QueryLogReader.Filter {
+        val window = PERIODS[period]
+        return QueryLogReader.Filter(
+            since = if (window > 0) System.currentTimeMillis() - window else 0,
+            text = etDomain.text.toString().trim().ifEmpty { null },
+            uid = appUid,
+            errorsOnly = status == STATUS_ERRORS,
+            cachedOnly = status == STATUS_CACHED
+        )
+    }
+
+    // ── Pages ─────────────────────
+
+    private fun reload() {
+        generation++
+        cursor = Long.MAX_VALUE
+        listContainer.removeAllViews()
+        btnMore.visibility = View.GONE
+        loadPage()
+    }
+
+    private fun loadPage() {
+        val gen = generation
+        val filter = currentFilter()
+        val before = cursor
+        btnMore.isEnabled = false
+        Thread {
+            val entries = reader.page(filter, before, PAGE_SIZE)
+            entries.forEach { e -> if (e.uid >= 0) appLabels.getOrPut(e.uid) { labelForUid(e.uid) } }
+            runOnUiThread {
+                if (gen != generation || isFinishing) return@runOnUiThread
+                if (entries.isEmpty() && listContainer.childCount == 0) {
+                    listContainer.addView(TextView(this).apply {
+                        text = getString(R.string.query_log_empty)
+                        setTextColor(0xFFAAAAAA.toInt())
+                        textSize = 13f
+                        setPadding(0, 24, 0, 0)
+                    })
+                }
+                entries.forEach { listContainer.addView(entryView(it)) }
+                entries.lastOrNull()?.let { cursor = it.time }
+                btnMore.isEnabled = true
+                btnMore.visibility = if (entries.size == PAGE_SIZE) View.VISIBLE else View.GONE
+            }
+        }.start()
+    }
+
+    private fun labelForUid(uid: Int): String {
+        val pm = packageManager
+        val pkg = pm.getPackagesForUid(uid)?.firstOrNull() ?: return "uid $uid"
+        return try { pm.getApplicationLabel(pm.getApplicationInfo(pkg, 0)).toString() } catch (_: Exception) { pkg }
+    }
+
+    private fun entryView(e: QueryLogReader.Entry): View {
+        val time = DateFormat.getTimeFormat(this).format(Date(e.time))
+        val source = when {
+            e.cached -> getString(R.string.slow_query_cache)
+            e.local -> getString(R.string.slow_query_local)
+            else -> e.upstream ?: ""
+        }
+        val details = listOfNotNull(DnsWire.rcodeName(e.rcode), "${e.latencyMs} ms", source.ifEmpty { null },
+            if (e.uid >= 0) appLabels[e.uid] else null)
+        return TextView(this).apply {
+            text = "$time  ${e.qname} ${DnsWire.typeName(e.qtype)}\n${details.joinToString(" · ")}"
+            setTextColor(if (e.rcode != 0) 0xFFEF9A9A.toInt() else 0xFFDDDDDD.toInt())
+            textSize = 12f
+            setPadding(0, 10, 0, 10)
+            isFocusable = true
+            setBackgroundResource(R.drawable.focusable_item_background)
+        }
+    }
+
+    // ── Réglages ─────────────────────
+
+    private fun updateEnabledButton() {
+        btnEnabled.text = getString(if (QueryLog.isEnabled(this)) R.string.query_log_enabled else R.string.query_log_disabled)
+    }
+
+    /** Active / désactive le journal et l'applique au VPN actif sans le redémarrer */
+    private fun toggleEnabled() {
+        val enabled = !QueryLog.isEnabled(this)
+        DnsVpnControl.commitThenReload(this, { QueryLog.setEnabled(this, enabled) }) {
+            if (!isFinishing) updateEnabledButton()
+        }
+    }
+
+    private fun confirmClear() {
+        AlertDialog.Builder(this)
+            .setMessage(getString(R.string.query_log_clear_confirm))
+            .setPositiveButton(getString(R.string.delete)) { _, _ ->
+                QueryLog.clear(this)
+                Toast.makeText(this, getString(R.string.query_log_cleared), Toast.LENGTH_SHORT).show()
+                reload()
+            }
+            .setNegativeButton(getString(R.string.cancel), null)
+            .show()
+    }
+}
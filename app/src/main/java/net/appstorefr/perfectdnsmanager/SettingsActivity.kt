@@ -18,6 +18,14 @@ import androidx.appcompat.app.AlertDialog
 import androidx.appcompat.app.AppCompatActivity
 import net.appstorefr.perfectdnsmanager.data.ProfileManager
 import net.appstorefr.perfectdnsmanager.service.AdbDnsManager
+import net.appstorefr.perfectdnsmanager.service.AppUpstreamRouter
+import net.appstorefr.perfectdnsmanager.service.DotClient
+import net.appstorefr.perfectdnsmanager.service.KeepaliveScheduler
+import net.appstorefr.perfectdnsmanager.service.MetricsServer
+import net.appstorefr.perfectdnsmanager.service.AutoProviderSelector
+import net.appstorefr.perfectdnsmanager.service.EcsPolicy
+import net.appstorefr.perfectdnsmanager.service.MultipathRouter
+import net.appstorefr.perfectdnsmanager.service.QosScheduler
 import net.appstorefr.perfectdnsmanager.service.ShizukuManager
 import net.appstorefr.perfectdnsmanager.util.LocaleHelper
 import okhttp3.MediaType.Companion.toMediaType
@@ -122,6 +130,7 @@ class SettingsActivity : AppCompatActivity() {
                         net.appstorefr.perfectdnsmanager.data.DnsType.DOH -> "DoH"
                         net.appstorefr.perfectdnsmanager.data.DnsType.DOT -> "DoT"
                         net.appstorefr.perfectdnsmanager.data.DnsType.DOQ -> "DoQ"
+                        net.appstorefr.perfectdnsmanager.data.DnsType.DNSCRYPT -> "DNSCrypt"
                         net.appstorefr.perfectdnsmanager.data.DnsType.DEFAULT -> "Standard"
                     }
                     val methodLabel = if (profile.type == net.appstorefr.perfectdnsmanager.data.DnsType.DOT) "ADB" else "VPN"
@@ -145,26 +154,94 @@ class SettingsActivity : AppCompatActivity() {
         // IPv6
         switchDisableIpv6.isChecked = prefs.getBoolean("disable_ipv6", false)
         switchDisableIpv6.setOnCheckedChangeListener { _, isChecked ->
-            prefs.edit().putBoolean("disable_ipv6", isChecked).apply()
-            // Auto-reconnexion VPN si actif
-            if (net.appstorefr.perfectdnsmanager.service.DnsVpnService.isVpnRunning) {
-                val profileJson = prefs.getString("selected_profile_json", null)
-                if (profileJson != null) {
-                    try {
-                        val profile = com.google.gson.Gson().fromJson(profileJson, net.appstorefr.perfectdnsmanager.data.DnsProfile::class.java)
-                        if (profile.type != net.appstorefr.perfectdnsmanager.data.DnsType.DOT) {
-                            val intent = Intent(this, net.appstorefr.perfectdnsmanager.service.DnsVpnService::class.java).apply {
-                                action = net.appstorefr.perfectdnsmanager.service.DnsVpnService.ACTION_START
-                                putExtra(net.appstorefr.perfectdnsmanager.service.DnsVpnService.EXTRA_DNS_PRIMARY, profile.primary)
-                                profile.secondary?.let { putExtra(net.appstorefr.perfectdnsmanager.service.DnsVpnService.EXTRA_DNS_SECONDARY, it) }
-                            }
-                            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) startForegroundService(intent)
-                            else startService(intent)
-                            Toast.makeText(this, getString(R.string.vpn_reconnecting_ipv6), Toast.LENGTH_SHORT).show()
-                        }
-                    } catch (_: Exception) {}
-                }
-            }
+            // Auto-reconnexion VPN si actif, une fois la valeur écrite (lue au démarrage du VPN)
+            net.appstorefr.perfectdnsmanager.service.DnsVpnControl.commitThen(this,
+                { prefs.edit().putBoolean("disable_ipv6", isChecked).commit() },
+                { restartVpnForIpv6() })
+        }
+
+        // Multi-chemins Wi-Fi + cellulaire, appliqué au prochain démarrage VPN (Android 5.1+)
+        val switchMultipath: Switch = findViewById(R.id.switchMultipath)
+        switchMultipath.isEnabled = MultipathRouter.isSupported()
+        switchMultipath.isChecked = MultipathRouter.isSupported() && prefs.getBoolean(MultipathRouter.PREF_ENABLED, false)
+        switchMultipath.setOnCheckedChangeListener { _, isChecked ->
+            prefs.edit().putBoolean(MultipathRouter.PREF_ENABLED, isChecked).apply()
+        }
+
+        // Réponses tronquées des DNS classiques re-demandées sur TCP/53 en clair, faute de flux chiffré (prochain démarrage VPN)
+        val switchTcpCleartext: Switch = findViewById(R.id.switchTcpCleartext)
+        switchTcpCleartext.isChecked = prefs.getBoolean(DotClient.PREF_CLEARTEXT, false)
+        switchTcpCleartext.setOnCheckedChangeListener { _, isChecked ->
+            prefs.edit().putBoolean(DotClient.PREF_CLEARTEXT, isChecked).apply()
+        }
+
+        // QoS par application (Android 10+) : limite de débit + priorités, appliquée au prochain démarrage VPN
+        val switchQos: Switch = findViewById(R.id.switchQos)
+        switchQos.isEnabled = AppUpstreamRouter.isSupported()
+        switchQos.isChecked = AppUpstreamRouter.isSupported() && prefs.getBoolean(QosScheduler.PREF_ENABLED, false)
+        switchQos.setOnCheckedChangeListener { _, isChecked ->
+            prefs.edit().putBoolean(QosScheduler.PREF_ENABLED, isChecked).apply()
+        }
+        val tvQosMode: TextView = findViewById(R.id.tvQosMode)
+        fun showQosMode(mode: Int) {
+            tvQosMode.text = getString(if (mode == QosScheduler.MODE_CACHE_ONLY) R.string.qos_excess_cache else R.string.qos_excess_refused)
+        }
+        showQosMode(prefs.getInt(QosScheduler.PREF_EXCESS_MODE, QosScheduler.MODE_REFUSED))
+        findViewById<View>(R.id.rowQosMode).setOnClickListener {
+            val next = if (prefs.getInt(QosScheduler.PREF_EXCESS_MODE, QosScheduler.MODE_REFUSED) == QosScheduler.MODE_REFUSED)
+                QosScheduler.MODE_CACHE_ONLY else QosScheduler.MODE_REFUSED
+            prefs.edit().putInt(QosScheduler.PREF_EXCESS_MODE, next).apply()
+            showQosMode(next)
+        }
+
+        // Mode auto : désactivé par défaut, même avec des candidats enregistrés (prochain démarrage VPN)
+        val switchAutoProvider: Switch = findViewById(R.id.switchAutoProvider)
+        switchAutoProvider.isChecked = prefs.getBoolean(AutoProviderSelector.PREF_ENABLED, false)
+        switchAutoProvider.setOnCheckedChangeListener { _, isChecked ->
+            prefs.edit().putBoolean(AutoProviderSelector.PREF_ENABLED, isChecked).apply()
+        }
+
+        // Mode auto : marge d'avance exigée avant de changer de fournisseur
+        val tvAutoMargin: TextView = findViewById(R.id.tvAutoMargin)
+        tvAutoMargin.text = "${prefs.getInt(AutoProviderSelector.PREF_MARGIN, AutoProviderSelector.DEFAULT_MARGIN)}%"
+        findViewById<View>(R.id.rowAutoMargin).setOnClickListener {
+            val margins = AutoProviderSelector.MARGINS
+            val current = prefs.getInt(AutoProviderSelector.PREF_MARGIN, AutoProviderSelector.DEFAULT_MARGIN)
+            val next = margins[(margins.indexOf(current) + 1) % margins.size]
+            prefs.edit().putInt(AutoProviderSelector.PREF_MARGIN, next).apply()
+            tvAutoMargin.text = "$next%"
+        }
+
+        // Keepalive : nombre d'upstreams chiffrés gardés chauds (0 = désactivé), appliqué au prochain démarrage VPN
+        val tvKeepaliveCount: TextView = findViewById(R.id.tvKeepaliveCount)
+        fun showKeepaliveCount(n: Int) {
+            tvKeepaliveCount.text = if (n == 0) getString(R.string.keepalive_off) else n.toString()
+        }
+        showKeepaliveCount(prefs.getInt(KeepaliveScheduler.PREF_HOT_COUNT, KeepaliveScheduler.DEFAULT_HOT_COUNT))
+        findViewById<View>(R.id.rowKeepalive).setOnClickListener {
+            val current = prefs.getInt(KeepaliveScheduler.PREF_HOT_COUNT, KeepaliveScheduler.DEFAULT_HOT_COUNT)
+            val next = (current + 1) % (KeepaliveScheduler.MAX_HOT_COUNT + 1)
+            prefs.edit().putInt(KeepaliveScheduler.PREF_HOT_COUNT, next).apply()
+            showKeepaliveCount(next)
+        }
+
+        // Métriques Prometheus : 127.0.0.1 par défaut (adb forward), réseau local sur demande ; appliqué au VPN actif
+        val switchMetricsEndpoint: Switch = findViewById(R.id.switchMetricsEndpoint)
+        val switchMetricsLan: Switch = findViewById(R.id.switchMetricsLan)
+        fun commitMetricsEndpoint(key: String, value: Boolean) {
+            net.appstorefr.perfectdnsmanager.service.DnsVpnControl.commitThenReload(this, {
+                prefs.edit().putBoolean(key, value).commit()
+            })
+        }
+        switchMetricsEndpoint.isChecked = prefs.getBoolean(MetricsServer.PREF_ENABLED, false)
+        switchMetricsLan.isChecked = prefs.getBoolean(MetricsServer.PREF_LAN, false)
+        switchMetricsLan.isEnabled = switchMetricsEndpoint.isChecked
+        switchMetricsEndpoint.setOnCheckedChangeListener { _, isChecked ->
+            switchMetricsLan.isEnabled = isChecked
+            commitMetricsEndpoint(MetricsServer.PREF_ENABLED, isChecked)
+        }
+        switchMetricsLan.setOnCheckedChangeListener { _, isChecked ->
+            commitMetricsEndpoint(MetricsServer.PREF_LAN, isChecked)
         }
 
         // ── DNS DoT via ADB : toggle show/hide ADB sub-section ──
@@ -334,9 +411,9 @@ class SettingsActivity : AppCompatActivity() {
 
                 // Désactiver les rewrite rules
                 val repo = net.appstorefr.perfectdnsmanager.data.DnsRewriteRepository(this)
-                val rules = repo.getAllRules()
-                rules.filter { it.isEnabled }.forEach { repo.updateRule(it.copy(isEnabled = false)) }
-                reloadVpnRewriteRules()
+                commitRewriteRules {
+                    repo.getAllRules().filter { it.isEnabled }.forEach { repo.updateRule(it.copy(isEnabled = false)) }
+                }
             }
         }
 
@@ -375,6 +452,43 @@ class SettingsActivity : AppCompatActivity() {
         // Split tunneling (bypass VPN per-app)
         findViewById<Button>(R.id.btnSplitTunnel).setOnClickListener { showSplitTunnelDialog() }
 
+        // DNS par application : upstream dédié pour certaines apps, dans le VPN
+        findViewById<Button>(R.id.btnAppDns).setOnClickListener { showAppDnsDialog() }
+
+        // Requêtes par application (compteurs QoS), clic = prioritaire ou non
+        findViewById<Button>(R.id.btnQosStats).setOnClickListener { showQosStatsDialog() }
+
+        // Statistiques DNS : latence par upstream, cache, échéances
+        findViewById<Button>(R.id.btnDnsStats).setOnClickListener {
+            startActivity(Intent(this, DnsStatsActivity::class.java))
+        }
+
+        // Journal des requêtes : historique persistant, filtres
+        findViewById<Button>(R.id.btnQueryLog).setOnClickListener {
+            startActivity(Intent(this, QueryLogActivity::class.java))
+        }
+
+        // Domaines les plus demandés, bloqués et lents, par jour
+        findViewById<Button>(R.id.btnTopDomains).setOnClickListener {
+            startActivity(Intent(this, TopDomainsActivity::class.java))
+        }
+
+        // Threads du VPN : CPU et réveils par minute
+        findViewById<Button>(R.id.btnThreadProfile).setOnClickListener {
+            startActivity(Intent(this, ThreadProfileActivity::class.java))
+        }
+
+        // Journal de diagnostic : niveau, lecture et copie pour le support
+        findViewById<Button>(R.id.btnDiagLog).setOnClickListener {
+            startActivity(Intent(this, DiagLogActivity::class.java))
+        }
+
+        // Mode auto : candidats entre lesquels le VPN choisit selon le réseau
+        findViewById<Button>(R.id.btnAutoProvider).setOnClickListener { showAutoProviderDialog() }
+
+        // Client Subnet (ECS) par upstream : transmis, retiré ou injecté
+        findViewById<Button>(R.id.btnEcs).setOnClickListener { showEcsDialog() }
+
         // Import / Export configuration (collapsible)
         val layoutImportExportContent: LinearLayout = findViewById(R.id.layoutImportExportContent)
         val rowImportExport: LinearLayout = findViewById(R.id.rowImportExport)
@@ -447,6 +561,206 @@ class SettingsActivity : AppCompatActivity() {
         btnSupport.setOnClickListener { startActivity(Intent(this, SupportActivity::class.java)) }
     }
 
+    // ── QoS : requêtes par application ─────────────────────
+
+    private fun showQosStatsDialog() {
+        val counts = net.appstorefr.perfectdnsmanager.service.DnsVpnControl.qosSnapshot(this)
+        if (counts == null) {
+            Toast.makeText(this, getString(R.string.qos_inactive), Toast.LENGTH_LONG).show()
+            return
+        }
+        val pm = packageManager
+        val pkgs = counts.map { pm.getPackagesForUid(it.uid)?.firstOrNull() }
+        val items = counts.mapIndexed { i, c ->
+            val name = pkgs[i]?.let { pkg ->
+                try { pm.getApplicationLabel(pm.getApplicationInfo(pkg, 0)).toString() } catch (_: Exception) { pkg }
+            } ?: "uid ${c.uid}"
+            (if (c.priority) "★ " else "") + name + "\n" + getString(R.string.qos_stats_line, c.queries, c.limited)
+        }
+        AlertDialog.Builder(this)
+            .setTitle(getString(R.string.qos_stats_title))
+            .setItems(items.toTypedArray()) { _, which ->
+                val pkg = pkgs[which] ?: return@setItems
+                val priority = QosScheduler.loadPriorityApps(this).toMutableSet()
+                if (!priority.remove(pkg)) priority.add(pkg)
+                QosScheduler.savePriorityApps(this, priority)
+                Toast.makeText(this, getString(R.string.qos_priority_saved), Toast.LENGTH_SHORT).show()
+            }
+            .setNegativeButton(getString(R.string.close), null)
+            .show()
+    }
+
+    // ── DNS par application (Android 10+) ─────────────────────
+
+    private fun showAppDnsDialog() {
+        if (!AppUpstreamRouter.isSupported()) {
+            Toast.makeText(this, getString(R.string.app_dns_unsupported), Toast.LENGTH_LONG).show()
+            return
+        }
+        Thread {
+            val pm = packageManager
+            val apps = pm.getInstalledApplications(0)
+                .filter { it.packageName != packageName }
+                .map { it.packageName to pm.getApplicationLabel(it).toString() }
+                .sortedBy { it.second.lowercase() }
+            runOnUiThread { showAppDnsPolicies(apps) }
+        }.start()
+    }
+
+    /** Liste des règles : clic = retirer, dernier élément = ajouter */
+    private fun showAppDnsPolicies(apps: List<Pair<String, String>>) {
+        val labels = apps.toMap()
+        val policies = AppUpstreamRouter.loadPolicies(this).toMutableMap()
+        val pkgs = policies.keys.sortedBy { (labels[it] ?: it).lowercase() }
+        val items = pkgs.map { "${labels[it] ?: it}\n→ ${policies[it]}" } + getString(R.string.app_dns_add)
+        AlertDialog.Builder(this)
+            .setTitle(getString(R.string.app_dns_title))
+            .setItems(items.toTypedArray()) { _, which ->
+                if (which == pkgs.size) {
+                    pickAppForDns(apps, policies)
+                    return@setItems
+                }
+                val pkg = pkgs[which]
+                AlertDialog.Builder(this)
+                    .setMessage(getString(R.string.app_dns_remove, labels[pkg] ?: pkg))
+                    .setPositiveButton(getString(R.string.delete)) { _, _ ->
+                        policies.remove(pkg)
+                        saveAppDnsPolicies(policies) { showAppDnsPolicies(apps) }
+                    }
+                    .setNegativeButton(getString(R.string.cancel)) { _, _ -> showAppDnsPolicies(apps) }
+                    .show()
+            }
+            .setNegativeButton(getString(R.string.close), null)
+            .show()
+    }
+
+    private fun pickAppForDns(apps: List<Pair<String, String>>, policies: MutableMap<String, String>) {
+        AlertDialog.Builder(this)
+            .setTitle(getString(R.string.app_dns_pick_app))
+            .setItems(apps.map { it.second }.toTypedArray()) { _, which ->
+                val pkg = apps[which].first
+                // Profils utilisables par le VPN (DoT passe par le DNS privé du système)
+                val profiles = ProfileManager(this).loadProfiles()
+                    .filter { it.type != net.appstorefr.perfectdnsmanager.data.DnsType.DOT }
+                AlertDialog.Builder(this)
+                    .setTitle(getString(R.string.app_dns_pick_dns))
+                    .setItems(profiles.map { "${it.providerName} - ${it.name} (${it.type})" }.toTypedArray()) { _, i ->
+                        policies[pkg] = profiles[i].primary
+                        saveAppDnsPolicies(policies) { showAppDnsPolicies(apps) }
+                    }
+                    .setNegativeButton(getString(R.string.cancel)) { _, _ -> showAppDnsPolicies(apps) }
+                    .show()
+            }
+            .setNegativeButton(getString(R.string.cancel)) { _, _ -> showAppDnsPolicies(apps) }
+            .show()
+    }
+
+    /** Enregistre les règles et les applique au VPN actif par hot-swap (TUN conservé), puis done */
+    private fun saveAppDnsPolicies(policies: Map<String, String>, done: () -> Unit) {
+        val saved = policies.toMap()
+        net.appstorefr.perfectdnsmanager.service.DnsVpnControl.commitThen(this,
+            { AppUpstreamRouter.savePolicies(this, saved) }, { reloadRunningVpn() }) {
+            if (!isFinishing) done()
+        }
+    }
+
+    /** Redémarre le VPN actif (TUN recréé) pour appliquer le blocage IPv6 */
+    private fun restartVpnForIpv6() {
+        if (!net.appstorefr.perfectdnsmanager.service.DnsVpnControl.isRunning(this)) return
+        val profileJson = prefs.getString("selected_profile_json", null) ?: return
+        try {
+            val profile = com.google.gson.Gson().fromJson(profileJson, net.appstorefr.perfectdnsmanager.data.DnsProfile::class.java)
+            if (profile.type == net.appstorefr.perfectdnsmanager.data.DnsType.DOT) return
+            val intent = Intent(this, net.appstorefr.perfectdnsmanager.service.DnsVpnService::class.java).apply {
+                action = net.appstorefr.perfectdnsmanager.service.DnsVpnService.ACTION_START
+                putExtra(net.appstorefr.perfectdnsmanager.service.DnsVpnService.EXTRA_DNS_PRIMARY, profile.primary)
+                profile.secondary?.let { putExtra(net.appstorefr.perfectdnsmanager.service.DnsVpnService.EXTRA_DNS_SECONDARY, it) }
+            }
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) startForegroundService(intent)
+            else startService(intent)
+            runOnUiThread { Toast.makeText(this, getString(R.string.vpn_reconnecting_ipv6), Toast.LENGTH_SHORT).show() }
+        } catch (_: Exception) {}
+    }
+
+    /** Relit les politiques du VPN actif : hot-swap vers le même profil (TUN conservé) */
+    private fun reloadRunningVpn() {
+        if (!net.appstorefr.perfectdnsmanager.service.DnsVpnControl.isRunning(this)) return
+        val profileJson = prefs.getString("selected_profile_json", null) ?: return
+        try {
+            val profile = com.google.gson.Gson().fromJson(profileJson, net.appstorefr.perfectdnsmanager.data.DnsProfile::class.java)
+            if (profile.type == net.appstorefr.perfectdnsmanager.data.DnsType.DOT) return
+            val intent = Intent(this, net.appstorefr.perfectdnsmanager.service.DnsVpnService::class.java).apply {
+                action = net.appstorefr.perfectdnsmanager.service.DnsVpnService.ACTION_RESTART
+                putExtra(net.appstorefr.perfectdnsmanager.service.DnsVpnService.EXTRA_DNS_PRIMARY, profile.primary)
+                profile.secondary?.let { putExtra(net.appstorefr.perfectdnsmanager.service.DnsVpnService.EXTRA_DNS_SECONDARY, it) }
+            }
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) startForegroundService(intent)
+            else startService(intent)
+        } catch (_: Exception) {}
+    }
+
+    // ── Client Subnet (ECS) par upstream ─────────────────────
+
+    private fun ecsModeLabel(mode: Int): String = getString(EcsPolicy.labelRes(mode))
+
+    /** Profils du VPN avec leur mode ECS : clic = choisir le mode (primaire et secondaire) */
+    private fun showEcsDialog() {
+        val profiles = ProfileManager(this).loadProfiles()
+            .filter { it.type != net.appstorefr.perfectdnsmanager.data.DnsType.DOT }
+        val modes = EcsPolicy.loadModes(this).toMutableMap()
+        AlertDialog.Builder(this)
+            .setTitle(getString(R.string.ecs_title))
+            .setItems(profiles.map {
+                "${it.providerName} - ${it.name} (${it.type})\n→ ${ecsModeLabel(modes[it.primary] ?: EcsPolicy.MODE_PASS)}"
+            }.toTypedArray()) { _, which ->
+                val profile = profiles[which]
+                val choices = intArrayOf(EcsPolicy.MODE_PASS, EcsPolicy.MODE_STRIP, EcsPolicy.MODE_INJECT)
+                AlertDialog.Builder(this)
+                    .setTitle("${profile.providerName} - ${profile.name}")
+                    .setItems(choices.map { ecsModeLabel(it) }.toTypedArray()) { _, i ->
+                        for (upstream in listOfNotNull(profile.primary, profile.secondary?.ifEmpty { null })) {
+                            modes[upstream] = choices[i]
+                        }
+                        net.appstorefr.perfectdnsmanager.service.DnsVpnControl.commitThen(this,
+                            { EcsPolicy.saveModes(this, modes) }, { reloadRunningVpn() }) {
+                            if (!isFinishing) showEcsDialog()
+                        }
+                    }
+                    .setNegativeButton(getString(R.string.cancel)) { _, _ -> showEcsDialog() }
+                    .show()
+            }
+            .setNegativeButton(getString(R.string.close), null)
+            .show()
+    }
+
+    // ── Mode auto (fournisseur par réseau) ─────────────────────
+
+    /** Candidats du mode auto : moins de 2 = désactivé, appliqué au prochain démarrage du VPN */
+    private fun showAutoProviderDialog() {
+        // Profils utilisables par le VPN (DoT passe par le DNS privé du système)
+        val profiles = ProfileManager(this).loadProfiles()
+            .filter { it.type != net.appstorefr.perfectdnsmanager.data.DnsType.DOT }
+        val selected = AutoProviderSelector.loadCandidateIds(this).toSet()
+        val checked = BooleanArray(profiles.size) { profiles[it].id in selected }
+        AlertDialog.Builder(this)
+            .setTitle(getString(R.string.auto_provider_title))
+            .setMultiChoiceItems(profiles.map { "${it.providerName} - ${it.name} (${it.type})" }.toTypedArray(), checked) { _, i, isChecked ->
+                checked[i] = isChecked
+            }
+            .setPositiveButton(getString(R.string.save)) { _, _ ->
+                val ids = profiles.filterIndexed { i, _ -> checked[i] }.map { it.id }
+                AutoProviderSelector.saveCandidateIds(this, ids)
+                val msg = when {
+                    ids.size < 2 -> getString(R.string.auto_provider_off)
+                    ids.size > AutoProviderSelector.MAX_CANDIDATES -> getString(R.string.auto_provider_max, AutoProviderSelector.MAX_CANDIDATES)
+                    else -> getString(R.string.auto_provider_saved, ids.size)
+                }
+                Toast.makeText(this, msg, Toast.LENGTH_LONG).show()
+            }
+            .setNegativeButton(getString(R.string.cancel), null)
+            .show()
+    }
+
     // ── Split tunneling (bypass VPN per-app) ─────────────────────
 
     private fun loadExcludedApps(): MutableSet<String> {
@@ -850,7 +1164,7 @@ class SettingsActivity : AppCompatActivity() {
                 saveExcludedApps(selected)
                 Toast.makeText(this, getString(R.string.split_tunnel_saved), Toast.LENGTH_SHORT).show()
 
-                if (net.appstorefr.perfectdnsmanager.service.DnsVpnService.isVpnRunning) {
+                if (net.appstorefr.perfectdnsmanager.service.DnsVpnControl.isRunning(this)) {
                     val profileJson = prefs.getString("selected_profile_json", null)
                     if (profileJson != null) {
                         try {
@@ -875,7 +1189,7 @@ class SettingsActivity : AppCompatActivity() {
                 saveExcludedApps(emptySet())
                 Toast.makeText(this, "Toutes les applications ont \u00e9t\u00e9 d\u00e9coch\u00e9es", Toast.LENGTH_SHORT).show()
 
-                if (net.appstorefr.perfectdnsmanager.service.DnsVpnService.isVpnRunning) {
+                if (net.appstorefr.perfectdnsmanager.service.DnsVpnControl.isRunning(this)) {
                     val profileJson = prefs.getString("selected_profile_json", null)
                     if (profileJson != null) {
                         try {
@@ -985,8 +1299,7 @@ class SettingsActivity : AppCompatActivity() {
                         toDomain = target,
                         isEnabled = true
                     )
-                    repo.addRule(rule)
-                    reloadVpnRewriteRules()
+                    commitRewriteRules { repo.addRule(rule) }
                     Toast.makeText(this, getString(R.string.rewrite_added, domain, target), Toast.LENGTH_SHORT).show()
                 }
             }
@@ -1000,8 +1313,7 @@ class SettingsActivity : AppCompatActivity() {
             .setTitle("${rule.fromDomain} → ${rule.toDomain}")
             .setMessage(getString(R.string.status_label, statusText))
             .setPositiveButton(if (rule.isEnabled) getString(R.string.disable_button) else getString(R.string.enable_button)) { _, _ ->
-                repo.updateRule(rule.copy(isEnabled = !rule.isEnabled))
-                reloadVpnRewriteRules()
+                commitRewriteRules { repo.updateRule(rule.copy(isEnabled = !rule.isEnabled)) }
                 val newStatus = if (!rule.isEnabled) getString(R.string.rule_enabled) else getString(R.string.rule_disabled)
                 Toast.makeText(this, newStatus, Toast.LENGTH_SHORT).show()
             }
@@ -1010,8 +1322,7 @@ class SettingsActivity : AppCompatActivity() {
                     .setTitle(getString(R.string.confirm_title))
                     .setMessage(getString(R.string.delete_rule_confirm, rule.fromDomain, rule.toDomain))
                     .setPositiveButton(getString(R.string.delete)) { _, _ ->
-                        repo.deleteRule(rule)
-                        reloadVpnRewriteRules()
+                        commitRewriteRules { repo.deleteRule(rule) }
                         Toast.makeText(this, getString(R.string.rule_deleted), Toast.LENGTH_SHORT).show()
                     }
                     .setNegativeButton(getString(R.string.cancel), null)
@@ -1021,12 +1332,9 @@ class SettingsActivity : AppCompatActivity() {
             .show()
     }
 
-    private fun reloadVpnRewriteRules() {
-        try {
-            val intent = android.content.Intent(this, net.appstorefr.perfectdnsmanager.service.DnsVpnService::class.java)
-            intent.action = net.appstorefr.perfectdnsmanager.service.DnsVpnService.ACTION_RELOAD_RULES
-            startService(intent)
-        } catch (_: Exception) { }
+    /** Modifie les règles (commit hors du thread principal) puis les recharge dans le VPN actif */
+    private fun commitRewriteRules(write: () -> Unit) {
+        net.appstorefr.perfectdnsmanager.service.DnsVpnControl.commitThenReload(this, write)
     }
 
     private fun exportConfiguration() {
@@ -0,0 +1,219 @@
+package net.appstorefr.perfectdnsmanager
+
+import android.content.Context
+import android.graphics.Typeface
+import android.os.Bundle
+import android.os.Handler
+import android.os.Looper
+import android.view.Gravity
+import android.view.View
+import android.widget.*
+import androidx.appcompat.app.AppCompatActivity
+import net.appstorefr.perfectdnsmanager.service.DnsVpnControl
+import net.appstorefr.perfectdnsmanager.service.ThreadProfiler
+import net.appstorefr.perfectdnsmanager.util.LocaleHelper
+import org.json.JSONArray
+import org.json.JSONObject
+
+/**
+ * Diagnostic des threads du VPN (voir ThreadProfiler) : CPU, réveils et préemptions par minute,
+ * par groupe de threads, avec la tendance des dernières minutes.
+ */
+class ThreadProfileActivity : AppCompatActivity() {
+
+    companion object {
+        private const val REFRESH_MS = 5000L
+        /** Minutes affichées dans les tendances */
+        private const val TREND = 30
+        private const val BARS = "▁▂▃▄▅▆▇█"
+    }
+
+    override fun attachBaseContext(newBase: Context) {
+        super.attachBaseContext(LocaleHelper.applyLocale(newBase))
+    }
+
+    private lateinit var btnEnabled: Button
+    private lateinit var tvSummary: TextView
+    private lateinit var tvTrend: TextView
+    private lateinit var groupsContainer: LinearLayout
+    /** Profil affiché : reconstruit seulement s'il change */
+    private var shown: String? = null
+    private val handler = Handler(Looper.getMainLooper())
+
+    private val refresh = object : Runnable {
+        override fun run() {
+            Thread {
+                val profile = DnsVpnControl.threadProfile(this@ThreadProfileActivity)
+                runOnUiThread { if (!isFinishing) render(profile) }
+            }.start()
+            handler.postDelayed(this, REFRESH_MS)
+        }
+    }
+
+    override fun onCreate(savedInstanceState: Bundle?) {
+        super.onCreate(savedInstanceState)
+
+        val root = ScrollView(this).apply {
+            setBackgroundColor(0xFF1E1E1E.toInt())
+        }
+        val mainLayout = LinearLayout(this).apply {
+            orientation = LinearLayout.VERTICAL
+            setPadding(32, 32, 32, 32)
+        }
+        root.addView(mainLayout)
+
+        // Header
+        val header = LinearLayout(this).apply {
+            orientation = LinearLayout.HORIZONTAL
+            gravity = Gravity.CENTER_VERTICAL
+        }
+        val btnBack = Button(this).apply {
+            text = getString(R.string.back_arrow)
+            setTextColor(0xFFFFFFFF.toInt())
+            setBackgroundResource(R.drawable.focusable_item_background)
+            foreground = resources.getDrawable(R.drawable.btn_focus_foreground, theme)
+            isFocusable = true
+            setPadding(20, 10, 20, 10)
+            setOnClickListener { finish() }
+        }
+        header.addView(btnBack)
+        header.addView(TextView(this).apply {
+            text = getString(R.string.thread_profile_title)
+            setTextColor(0xFFFFFFFF.toInt())
+            textSize = 20f
+            setTypeface(typeface, Typeface.BOLD)
+            gravity = Gravity.CENTER
+            layoutParams = LinearLayout.LayoutParams(0, LinearLayout.LayoutParams.WRAP_CONTENT, 1f)
+        })
+        mainLayout.addView(header)
+
+        mainLayout.addView(View(this).apply {
+            layoutParams = LinearLayout.LayoutParams(LinearLayout.LayoutParams.MATCH_PARENT, 24)
+        })
+
+        btnEnabled = Button(this).apply {
+            setTextColor(0xFFFFFFFF.toInt())
+            setBackgroundResource(R.drawable.focusable_item_background)
+            foreground = resources.getDrawable(R.drawable.btn_focus_foreground, theme)
+            isFocusable = true
+            isAllCaps = false
+            setOnClickListener { toggleEnabled() }
+        }
+        mainLayout.addView(btnEnabled)
+        updateEnabledButton()
+
+        mainLayout.addView(TextView(this).apply {
+            text = getString(R.string.thread_profile_hint)
+            setTextColor(0xFFAAAAAA.toInt())
+            textSize = 12f
+            setPadding(0, 12, 0, 0)
+        })
+
+        tvSummary = TextView(this).apply {
+            setTextColor(0xFFDDDDDD.toInt())
+            textSize = 13f
+            setPadding(0, 16, 0, 0)
+        }
+        mainLayout.addView(tvSummary)
+        tvTrend = TextView(this).apply {
+            setTextColor(0xFF4FC3F7.toInt())
+            textSize = 13f
+            typeface = Typeface.MONOSPACE
+        }
+        mainLayout.addView(tvTrend)
+
+        groupsContainer = LinearLayout(this).apply { orientation = LinearLayout.VERTICAL }
+        mainLayout.addView(groupsContainer)
+
+        setContentView(root)
+        btnBack.requestFocus()
+    }
+
+    override fun onResume() {
+        super.onResume()
+        handler.post(refresh)
+    }
+
+    override fun onPause() {
+        handler.removeCallbacks(refresh)
+        super.onPause()
+    }
+
+    private fun render(profile: JSONObject?) {
+        val json = profile?.toString()
+        if (json == shown) return
+        shown = json
+        groupsContainer.removeAllViews()
+        tvTrend.text = ""
+        if (profile == null) {
+            tvSummary.text = getString(R.string.thread_profile_inactive)
+            return
+        }
+        val cpu = profile.optJSONArray("cpuMs")
+        if (cpu == null || cpu.length() == 0) {
+            tvSummary.text = getString(R.string.thread_profile_waiting)
+            return
+        }
+        val lastCpu = last(cpu)
+        tvSummary.text = getString(R.string.thread_profile_summary,
+            lastCpu, lastCpu * 100.0 / ThreadProfiler.SAMPLE_MS, last(profile.optJSONArray("wakeups")),
+            profile.optInt("threads"), last(profile.optJSONArray("created")), last(profile.optJSONArray("exitedCpuMs")))
+        tvTrend.text = "${getString(R.string.thread_profile_cpu).padEnd(8)} ${trend(cpu)}\n" +
+            "${getString(R.string.thread_profile_wakeups).padEnd(8)} ${trend(profile.optJSONArray("wakeups"))}"
+
+        val groups = profile.optJSONArray("groups") ?: return
+        for (i in 0 until groups.length()) {
+            val g = groups.getJSONObject(i)
+            val threads = g.optInt("threads")
+            groupsContainer.addView(TextView(this).apply {
+                text = if (threads > 0) "${g.optString("name")} ×$threads" else g.optString("name")
+                setTextColor(if (threads > 0) 0xFFFFFFFF.toInt() else 0xFF888888.toInt())
+                textSize = 14f
+                setTypeface(typeface, Typeface.BOLD)
+                setPadding(0, 16, 0, 0)
+            })
+            groupsContainer.addView(TextView(this).apply {
+                text = getString(R.string.thread_profile_line, last(g.optJSONArray("cpuMs")),
+                    last(g.optJSONArray("wakeups")), last(g.optJSONArray("preemptions")))
+                setTextColor(0xFFDDDDDD.toInt())
+                textSize = 13f
+            })
+            groupsContainer.addView(TextView(this).apply {
+                text = "${getString(R.string.thread_profile_cpu).padEnd(8)} ${trend(g.optJSONArray("cpuMs"))}\n" +
+                    "${getString(R.string.thread_profile_wakeups).padEnd(8)} ${trend(g.optJSONArray("wakeups"))}"
+                setTextColor(0xFF4FC3F7.toInt())
+                textSize = 12f
+                typeface = Typeface.MONOSPACE
+            })
+        }
+    }
+
+    /** Dernière minute relevée */
+    private fun last(values: JSONArray?): Long =
+        if (values == null || values.length() == 0) 0 else values.optLong(values.length() - 1)
+
+    /** Une barre par minute, les TREND dernières, hauteur relative au maximum affiché */
+    private fun trend(values: JSONArray?): String {
+        if (values == null) return ""
+        val from = maxOf(0, values.length() - TREND)
+        val max = (from until values.length()).maxOfOrNull { values.optLong(it) } ?: 0L
+        val bars = StringBuilder()
+        for (i in from until values.length()) {
+            val v = values.optLong(i)
+            bars.append(if (max == 0L || v == 0L) ' ' else BARS[((v * (BARS.length - 1)) / max).toInt()])
+        }
+        return "$bars  max $max"
+    }
+
+    private fun updateEnabledButton() {
+        btnEnabled.text = getString(if (ThreadProfiler.isEnabled(this)) R.string.thread_profile_enabled else R.string.thread_profile_disabled)
+    }
+
+    /** Active / désactive le profileur et l'applique au VPN actif sans le redémarrer */
+    private fun toggleEnabled() {
+        val enabled = !ThreadProfiler.isEnabled(this)
+        DnsVpnControl.commitThenReload(this, { ThreadProfiler.setEnabled(this, enabled) }) {
+            if (!isFinishing) updateEnabledButton()
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package net.appstorefr.perfectdnsmanager
+
+import android.content.Context
+import android.graphics.Typeface
+import android.os.Bundle
+import android.view.Gravity
+import android.view.View
+import android.widget.*
+import androidx.appcompat.app.AlertDialog
+import androidx.appcompat.app.AppCompatActivity
+import net.appstorefr.perfectdnsmanager.service.DnsVpnControl
+import net.appstorefr.perfectdnsmanager.service.DomainStats
+import net.appstorefr.perfectdnsmanager.util.LocaleHelper
+import org.json.JSONObject
+
+/**
+ * Domaines les plus demandés, bloqués et lents (voir DomainStats) : journée en cours ou jours
+ * précédents enregistrés.
+ */
+class TopDomainsActivity : AppCompatActivity() {
+
+    companion object {
+        /** Lignes affichées par classement */
+        private const val SHOWN = 20
+    }
+
+    override fun attachBaseContext(newBase: Context) {
+        super.attachBaseContext(LocaleHelper.applyLocale(newBase))
+    }
+
+    private lateinit var btnEnabled: Button
+    private lateinit var btnDay: Button
+    private lateinit var tvSummary: TextView
+    private lateinit var listsContainer: LinearLayout
+
+    /** Jour affiché (aaaa-mm-jj), null = journée en cours */
+    private var day: String? = null
+
+    override fun onCreate(savedInstanceState: Bundle?) {
+        super.onCreate(savedInstanceState)
+
+        val root = ScrollView(this).apply {
+            setBackgroundColor(0xFF1E1E1E.toInt())
+        }
+        val mainLayout = LinearLayout(this).apply {
+            orientation = LinearLayout.VERTICAL
+            setPadding(32, 32, 32, 32)
+        }
+        root.addView(mainLayout)
+
+        // Header
+        val header = LinearLayout(this).apply {
+            orientation = LinearLayout.HORIZONTAL
+            gravity = Gravity.CENTER_VERTICAL
+        }
+        val btnBack = Button(this).apply {
+            text = getString(R.string.back_arrow)
+            setTextColor(0xFFFFFFFF.toInt())
+            setBackgroundResource(R.drawable.focusable_item_background)
+            foreground = resources.getDrawable(R.drawable.btn_focus_foreground, theme)
+            isFocusable = true
+            setPadding(20, 10, 20, 10)
+            setOnClickListener { finish() }
+        }
+        header.addView(btnBack)
+        header.addView(TextView(this).apply {
+            text = getString(R.string.top_domains_title)
+            setTextColor(0xFFFFFFFF.toInt())
+            textSize = 20f
+            setTypeface(typeface, Typeface.BOLD)
+            gravity = Gravity.CENTER
+            layoutParams = LinearLayout.LayoutParams(0, LinearLayout.LayoutParams.WRAP_CONTENT, 1f)
+        })
+        mainLayout.addView(header)
+
+        mainLayout.addView(View(this).apply {
+            layoutParams = LinearLayout.LayoutParams(LinearLayout.LayoutParams.MATCH_PARENT, 24)
+        })
+
+        btnEnabled = actionButton { toggleEnabled() }
+        mainLayout.addView(btnEnabled)
+        updateEnabledButton()
+
+        btnDay = actionButton { pickDay() }
+        mainLayout.addView(btnDay)
+
+        tvSummary = TextView(this).apply {
+            setTextColor(0xFFDDDDDD.toInt())
+            textSize = 13f
+            setPadding(0, 16, 0, 0)
+        }
+        mainLayout.addView(tvSummary)
+
+        listsContainer = LinearLayout(this).apply { orientation = LinearLayout.VERTICAL }
+        mainLayout.addView(listsContainer)
+
+        mainLayout.addView(actionButton { confirmClear() }.apply {
+            text = getString(R.string.top_domains_clear)
+            setTextColor(0xFFEF9A9A.toInt())
+        })
+
+        setContentView(root)
+        btnBack.requestFocus()
+    }
+
+    override fun onResume() {
+        super.onResume()
+        load()
+    }
+
+    private fun actionButton(onClick: () -> Unit) = Button(this).apply {
+        setTextColor(0xFFFFFFFF.toInt())
+        setBackgroundResource(R.drawable.focusable_item_background)
+        foreground = resources.getDrawable(R.drawable.btn_focus_foreground, theme)
+        isFocusable = true
+        isAllCaps = false
+        textSize = 13f
+        setOnClickListener { onClick() }
+    }
+
+    private fun load() {
+        val shown = day
+        btnDay.text = getString(R.string.top_domains_day, shown ?: getString(R.string.top_domains_today))
+        Thread {
+            val stats = if (shown == null) DomainStats.today(this) else DomainStats.readDay(this, shown)
+            runOnUiThread { if (!isFinishing && shown == day) render(stats) }
+        }.start()
+    }
+
+    private fun render(stats: JSONObject?) {
+        listsContainer.removeAllViews()
+        if (stats == null || DomainStats.total(stats, DomainStats.QUERIED) == 0L) {
+            tvSummary.text = getString(R.string.top_domains_empty)
+            return
+        }
+        tvSummary.text = getString(R.string.top_domains_summary,
+            DomainStats.total(stats, DomainStats.QUERIED), DomainStats.total(stats, DomainStats.BLOCKED),
+            DomainStats.total(stats, DomainStats.SLOW), stats.optLong("slowMs", DomainStats.SLOW_MS))
+        for (category in DomainStats.CATEGORIES) {
+            listsContainer.addView(TextView(this).apply {
+                text = getString(when (category) {
+                    DomainStats.BLOCKED -> R.string.top_domains_blocked
+                    DomainStats.SLOW -> R.string.top_domains_slow
+                    else -> R.string.top_domains_queried
+                })
+                setTextColor(0xFF4FC3F7.toInt())
+                textSize = 16f
+                setTypeface(typeface, Typeface.BOLD)
+                setPadding(0, 32, 0, 8)
+            })
+            val top = DomainStats.top(stats, category).take(SHOWN)
+            listsContainer.addView(TextView(this).apply {
+                text = if (top.isEmpty()) getString(R.string.top_domains_none)
+                else top.joinToString("\n") { "${it.count.toString().padStart(7)}  ${it.name}" }
+                setTextColor(0xFFDDDDDD.toInt())
+                textSize = 12f
+                typeface = Typeface.MONOSPACE
+            })
+        }
+    }
+
+    private fun pickDay() {
+        Thread {
+            val today = DomainStats.dayKey(System.currentTimeMillis())
+            val days = DomainStats.days(this).filter { it != today }
+            runOnUiThread {
+                val labels = listOf(getString(R.string.top_domains_today)) + days
+                AlertDialog.Builder(this)
+                    .setItems(labels.toTypedArray()) { _, i ->
+                        day = if (i == 0) null else days[i - 1]
+                        load()
+                    }
+                    .show()
+            }
+        }.start()
+    }
+
+    // ── Réglages ─────────────────────
+
+    private fun updateEnabledButton() {
+        btnEnabled.text = getString(if (DomainStats.isEnabled(this)) R.string.top_domains_enabled else R.string.top_domains_disabled)
+    }
+
+    /** Active / désactive le comptage et l'applique au VPN actif sans le redémarrer */
+    private fun toggleEnabled() {
+        val enabled = !DomainStats.isEnabled(this)
+        DnsVpnControl.commitThenReload(this, { DomainStats.setEnabled(this, enabled) }) {
+            if (!isFinishing) updateEnabledButton()
+        }
+    }
+
+    private fun confirmClear() {
+        AlertDialog.Builder(this)
+            .setMessage(getString(R.string.top_domains_clear_confirm))
+            .setPositiveButton(getString(R.string.delete)) { _, _ ->
+                DnsVpnControl.commitThenReload(this, { DomainStats.clear(this) })
+                Toast.makeText(this, getString(R.string.top_domains_cleared), Toast.LENGTH_SHORT).show()
+                day = null
+                listsContainer.postDelayed({ if (!isFinishing) load() }, 500)
+            }
+            .setNegativeButton(getString(R.string.cancel), null)
+            .show()
+    }
+}
@@ -100,6 +100,18 @@ class ConfigManager(private val context: Context) {
             root.add("excludedApps", JsonParser.parseString(excludedAppsJson))
         }
 
+        // DNS par application (package → upstream)
+        val appPoliciesJson = prefs.getString("app_upstream_policies_json", null)
+        if (appPoliciesJson != null) {
+            root.add("appUpstreamPolicies", JsonParser.parseString(appPoliciesJson))
+        }
+
+        // Client Subnet par upstream (upstream → mode)
+        val ecsPoliciesJson = prefs.getString("ecs_policies_json", null)
+        if (ecsPoliciesJson != null) {
+            root.add("ecsPolicies", JsonParser.parseString(ecsPoliciesJson))
+        }
+
         return gson.newBuilder().setPrettyPrinting().create().toJson(root)
     }
 
@@ -163,6 +175,18 @@ class ConfigManager(private val context: Context) {
             root.add("excludedApps", JsonParser.parseString(excludedAppsJson))
         }
 
+        // DNS par application (package → upstream)
+        val appPoliciesJson = prefs.getString("app_upstream_policies_json", null)
+        if (appPoliciesJson != null) {
+            root.add("appUpstreamPolicies", JsonParser.parseString(appPoliciesJson))
+        }
+
+        // Client Subnet par upstream (upstream → mode)
+        val ecsPoliciesJson = prefs.getString("ecs_policies_json", null)
+        if (ecsPoliciesJson != null) {
+            root.add("ecsPolicies", JsonParser.parseString(ecsPoliciesJson))
+        }
+
         return gson.newBuilder().setPrettyPrinting().create().toJson(root)
     }
 
@@ -177,7 +201,10 @@ class ConfigManager(private val context: Context) {
         var profileCount = 0
         if (root.has("profiles") && !root.get("profiles").isJsonNull) {
             val profileType = object : TypeToken<List<DnsProfile>>() {}.type
-            val profiles: List<DnsProfile> = gson.fromJson(root.get("profiles"), profileType)
+            // Groupes d'endpoints normalisés (JSON édité à la main : poids, stratégie inconnue...) ;
+            // un groupe illisible est ignoré, le profil garde son upstream simple
+            val profiles: List<DnsProfile> = gson.fromJson<List<DnsProfile>>(root.get("profiles"), profileType)
+                .map { if (it.group != null) it.copy(group = try { it.group.sanitized() } catch (_: Exception) { null }) else it }
             profileCount = profiles.size
 
             // Save via ProfileManager (SharedPrefs "dns_profiles_v2", key "profiles")
@@ -238,6 +265,14 @@ class ConfigManager(private val context: Context) {
             prefs.edit().putString("excluded_apps_json", root.get("excludedApps").toString()).apply()
         }
 
+        // ── DNS par application ──
+        if (root.has("appUpstreamPolicies") && root.get("appUpstreamPolicies").isJsonObject) {
+            prefs.edit().putString("app_upstream_policies_json", root.get("appUpstreamPolicies").toString()).apply()
+        }
+        if (root.has("ecsPolicies") && root.get("ecsPolicies").isJsonObject) {
+            prefs.edit().putString("ecs_policies_json", root.get("ecsPolicies").toString()).apply()
+        }
+
         // ── Settings ──
         var settingsRestored = false
         if (importSettings && root.has("settings") && !root.get("settings").isJsonNull) {
@@ -14,7 +14,9 @@ data class DnsProfile(
     val description: String? = null,
     val isCustom: Boolean = false,
     val testUrl: String? = null,
-    val isOperatorDns: Boolean = false
+    val isOperatorDns: Boolean = false,
+    /** Endpoints supplémentaires répartis derrière le primaire (mode VPN), null = primaire seul */
+    val group: UpstreamGroup? = null
 ) {
     companion object {
         data class ProviderRating(val speed: Int, val privacy: Int)
@@ -141,6 +143,12 @@ data class DnsProfile(
             DnsProfile(id = 1003, providerName = "AdGuard", name = "Standard", type = DnsType.DOT,
                 primary = "dns.adguard-dns.com",
                 description = "Bloque pubs et traqueurs (DoT)", testUrl = "https://adguard.com/test.html"),
+            DnsProfile(id = 1007, providerName = "AdGuard", name = "Unfiltered", type = DnsType.DNSCRYPT,
+                primary = "sdns://AQMAAAAAAAAAEjk0LjE0MC4xNC4xNDA6NTQ0MyC16ETWuDo-PhJo62gfvqcN48X6aNvWiBQdvy7AZrLa-iUyLmRuc2NyeXB0LnVuZmlsdGVyZWQubnMxLmFkZ3VhcmQuY29t",
+                description = "Sans filtre (DNSCrypt)", testUrl = "https://adguard.com/test.html"),
+            DnsProfile(id = 1008, providerName = "AdGuard", name = "Standard", type = DnsType.DNSCRYPT,
+                primary = "sdns://AQMAAAAAAAAAETk0LjE0MC4xNC4xNDo1NDQzINErR_JS3PLCu_iZEIbq95zkSV2LFsigxDIuUso_OQhzIjIuZG5zY3J5cHQuZGVmYXVsdC5uczEuYWRndWFyZC5jb20",
+                description = "Bloque pubs et traqueurs (DNSCrypt)", testUrl = "https://adguard.com/test.html"),
 
             // ══════════════════════════════════════════════════════
             //  4. Surfshark  ★ DoQ
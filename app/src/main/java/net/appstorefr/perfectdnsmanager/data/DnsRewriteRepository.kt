@@ -17,7 +17,7 @@ class DnsRewriteRepository(context: Context) {
 
     private fun saveRules(rules: List<DnsRewriteRule>) {
         val json = gson.toJson(rules)
-        prefs.edit().putString("rules", json).apply()
+        prefs.edit().putString("rules", json).commit()
     }
 
     fun addRule(rule: DnsRewriteRule) {
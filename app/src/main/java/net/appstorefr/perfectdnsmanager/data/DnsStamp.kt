@@ -0,0 +1,142 @@
+package net.appstorefr.perfectdnsmanager.data
+
+import android.util.Base64
+
+/**
+ * Stamp DNS (sdns://), format https://dnscrypt.info/stamps-specifications
+ *
+ * Protocoles reconnus : DNS classique, DNSCrypt, DoH, DoT, DoQ.
+ * Un stamp DNSCrypt est conservé tel quel comme upstream (il porte la clé du provider),
+ * les autres sont convertis vers le format d'upstream habituel de l'app.
+ */
+class DnsStamp private constructor(
+    val stamp: String,
+    val protocol: Int,
+    val props: Long,
+    /** IP du serveur (sans port ni crochets), vide si absente du stamp */
+    val address: String,
+    val port: Int,
+    /** Clé publique Ed25519 du provider (DNSCrypt) */
+    val providerPublicKey: ByteArray?,
+    /** Nom du provider (DNSCrypt, ex. 2.dnscrypt-cert.example.com) */
+    val providerName: String?,
+    /** Hostname TLS (DoH / DoT / DoQ), éventuellement suivi de :port */
+    val hostname: String?,
+    val path: String?
+) {
+    companion object {
+        const val PROTO_PLAIN = 0x00
+        const val PROTO_DNSCRYPT = 0x01
+        const val PROTO_DOH = 0x02
+        const val PROTO_DOT = 0x03
+        const val PROTO_DOQ = 0x04
+
+        private const val PREFIX = "sdns://"
+
+        fun isStamp(s: String) = s.trim().startsWith(PREFIX, ignoreCase = true)
+
+        /** @return le stamp décodé, ou null s'il est malformé ou d'un protocole non géré */
+        fun parse(input: String): DnsStamp? = try {
+            val stamp = input.trim()
+            if (!isStamp(stamp)) null else {
+                fromBytes(stamp, Base64.decode(stamp.substring(PREFIX.length),
+                    Base64.URL_SAFE or Base64.NO_PADDING or Base64.NO_WRAP))
+            }
+        } catch (_: Exception) { null }
+
+        /** Contenu binaire du stamp `stamp`, déjà décodé du base64 (tests unitaires : sans android.util) */
+        internal fun fromBytes(stamp: String, data: ByteArray): DnsStamp? = try {
+            decode(stamp, Reader(data))
+        } catch (_: Exception) { null }
+
+        private fun decode(stamp: String, r: Reader): DnsStamp? {
+            val protocol = r.byte()
+            val props = r.props()
+            return when (protocol) {
+                PROTO_PLAIN -> {
+                    val (ip, port) = splitAddress(r.lpString(), 53)
+                    DnsStamp(stamp, protocol, props, ip, port, null, null, null, null)
+                }
+                PROTO_DNSCRYPT -> {
+                    val (ip, port) = splitAddress(r.lpString(), 443)
+                    val pk = r.lp()
+                    if (pk.size != 32 || ip.isEmpty()) return null
+                    DnsStamp(stamp, protocol, props, ip, port, pk, r.lpString(), null, null)
+                }
+                PROTO_DOH -> {
+                    val (ip, port) = splitAddress(r.lpString(), 443)
+                    r.vlp() // hashes des certificats : non vérifiés (trust store système)
+                    val host = r.lpString()
+                    DnsStamp(stamp, protocol, props, ip, port, null, null, host, r.lpString())
+                }
+                PROTO_DOT, PROTO_DOQ -> {
+                    val (ip, port) = splitAddress(r.lpString(), 853)
+                    r.vlp()
+                    DnsStamp(stamp, protocol, props, ip, port, null, null, r.lpString(), null)
+                }
+                else -> null
+            }
+        }
+
+        /** "1.2.3.4:5443", "[2001:db8::1]:443", "1.2.3.4" ou "" → (ip, port) */
+        private fun splitAddress(addr: String, defaultPort: Int): Pair<String, Int> {
+            if (addr.startsWith("[")) {
+                val end = addr.indexOf(']')
+                val port = addr.substring(end + 1).removePrefix(":").toIntOrNull() ?: defaultPort
+                return addr.substring(1, end) to port
+            }
+            val colon = addr.lastIndexOf(':')
+            return if (colon > 0 && addr.indexOf(':') == colon) {
+                addr.substring(0, colon) to (addr.substring(colon + 1).toIntOrNull() ?: defaultPort)
+            } else addr to defaultPort
+        }
+    }
+
+    val type: DnsType
+        get() = when (protocol) {
+            PROTO_DNSCRYPT -> DnsType.DNSCRYPT
+            PROTO_DOH -> DnsType.DOH
+            PROTO_DOT -> DnsType.DOT
+            PROTO_DOQ -> DnsType.DOQ
+            else -> DnsType.DEFAULT
+        }
+
+    /** Valeur à stocker dans DnsProfile.primary pour ce stamp */
+    fun toUpstream(): String = when (protocol) {
+        PROTO_DNSCRYPT -> stamp
+        PROTO_DOH -> "https://$hostname${path?.ifEmpty { null } ?: "/dns-query"}"
+        PROTO_DOT -> hostname!!.substringBefore(':')
+        PROTO_DOQ -> "quic://$hostname"
+        else -> address
+    }
+
+    /** Nom lisible du serveur, pour pré-remplir le nom du profil */
+    val displayName: String
+        get() = providerName?.removePrefix("2.dnscrypt-cert.")?.removePrefix("2.dnscrypt.")
+            ?: hostname?.substringBefore(':') ?: address
+
+    private class Reader(private val data: ByteArray) {
+        private var pos = 0
+        fun byte(): Int = data[pos++].toInt() and 0xFF
+        fun props(): Long {
+            var v = 0L
+            for (i in 0 until 8) v = v or (byte().toLong() shl (8 * i))
+            return v
+        }
+        fun lp(): ByteArray {
+            val n = byte()
+            return data.copyOfRange(pos, pos + n).also { pos += n }
+        }
+        fun lpString(): String = String(lp(), Charsets.UTF_8)
+        fun vlp(): List<ByteArray> {
+            val out = ArrayList<ByteArray>()
+            do {
+                val n = byte()
+                val len = n and 0x7F
+                out.add(data.copyOfRange(pos, pos + len))
+                pos += len
+            } while (n and 0x80 != 0)
+            return out
+        }
+    }
+}
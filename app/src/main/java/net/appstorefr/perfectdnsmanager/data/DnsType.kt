@@ -4,5 +4,6 @@ enum class DnsType {
     DEFAULT,
     DOH, // DNS over HTTPS
     DOT, // DNS over TLS
-    DOQ  // DNS over QUIC
+    DOQ, // DNS over QUIC
+    DNSCRYPT // DNSCrypt v2 (stamp sdns://)
 }
\ No newline at end of file
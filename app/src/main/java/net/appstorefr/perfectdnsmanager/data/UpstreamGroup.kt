@@ -0,0 +1,50 @@
+package net.appstorefr.perfectdnsmanager.data
+
+/**
+ * Groupe d'endpoints d'un même fournisseur servis derrière une seule IP DNS virtuelle
+ * (plusieurs IP anycast, ou DoH + DoQ du même résolveur).
+ *
+ * Les champs sont nullables : un profil importé (Gson) peut avoir un groupe incomplet,
+ * normalisé par [sanitized].
+ */
+data class UpstreamGroup(
+    val endpoints: List<Endpoint>? = null,
+    val strategy: Strategy? = null
+) {
+    /** Endpoint et son poids (stratégies pondérées) ; upstream absent possible dans un JSON importé */
+    data class Endpoint(val upstream: String? = null, val weight: Int = 1)
+
+    enum class Strategy {
+        /** Chacun son tour */
+        ROUND_ROBIN,
+        /** Plus faible latence moyenne (moyenne mobile exponentielle) */
+        EWMA,
+        /** Tirage aléatoire selon les poids */
+        WEIGHTED_RANDOM,
+        /** Même nom → même endpoint (hachage cohérent), pour profiter du cache de l'upstream */
+        CONSISTENT_HASH
+    }
+
+    /** Groupe utilisable, ou null s'il n'a pas au moins 2 endpoints */
+    fun sanitized(): UpstreamGroup? {
+        val clean = endpoints.orEmpty()
+            .filter { it.upstream?.isNotBlank() == true }
+            .map { Endpoint(it.upstream!!.trim(), it.weight.coerceIn(1, 100)) }
+            .distinctBy { it.upstream }
+        return if (clean.size < 2) null else UpstreamGroup(clean, strategy ?: Strategy.EWMA)
+    }
+
+    companion object {
+        /**
+         * Groupe saisi dans le formulaire : le primaire puis un endpoint par ligne,
+         * poids optionnel après un espace (ex. "https://dns.example/dns-query 3")
+         */
+        fun parse(primary: String, text: String, strategy: Strategy): UpstreamGroup? {
+            val extra = text.lines().map { it.trim() }.filter { it.isNotEmpty() }.map { line ->
+                val parts = line.split(Regex("\\s+"))
+                Endpoint(parts[0], parts.getOrNull(1)?.toIntOrNull() ?: 1)
+            }
+            return UpstreamGroup(listOf(Endpoint(primary)) + extra, strategy).sanitized()
+        }
+    }
+}
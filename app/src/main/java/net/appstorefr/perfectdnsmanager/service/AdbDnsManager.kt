@@ -3,7 +3,6 @@ package net.appstorefr.perfectdnsmanager.service
 import android.content.Context
 import android.content.pm.PackageManager
 import android.provider.Settings
-import android.util.Log
 import net.appstorefr.perfectdnsmanager.adblib.AndroidBase64
 import com.cgutman.adblib.AdbConnection
 import com.cgutman.adblib.AdbCrypto
@@ -42,10 +41,14 @@ class AdbDnsManager(private val context: Context) {
     private val shizukuManager = ShizukuManager(context)
     val shizuku: ShizukuManager get() = shizukuManager
 
+    init {
+        DiagLog.init(context)
+    }
+
     // ─── API publiques ────────────────────────────────────────────────────────
 
     fun enablePrivateDns(hostname: String): Boolean {
-        Log.i(TAG, "=== ACTIVATION DNS: $hostname ===")
+        DiagLog.i(TAG) { "=== ACTIVATION DNS: $hostname ===" }
         lastError = ""
         lastMethod = ""
 
@@ -57,7 +60,7 @@ class AdbDnsManager(private val context: Context) {
 
         // Méthode 2 : Shizuku (Android 11+ — si installé, démarré et permission accordée)
         if (shizukuManager.isShizukuAvailable()) {
-            Log.i(TAG, "Tentative via Shizuku...")
+            DiagLog.i(TAG) { "Tentative via Shizuku..." }
             try {
                 if (shizukuManager.enablePrivateDns(hostname)) {
                     lastMethod = "Shizuku"
@@ -66,7 +69,7 @@ class AdbDnsManager(private val context: Context) {
                     return true
                 }
             } catch (e: Exception) {
-                Log.w(TAG, "Shizuku échoué: ${e.message}")
+                DiagLog.w(TAG) { "Shizuku échoué: ${e.message}" }
             }
         }
 
@@ -80,7 +83,7 @@ class AdbDnsManager(private val context: Context) {
     }
 
     fun disablePrivateDns(): Boolean {
-        Log.i(TAG, "=== DÉSACTIVATION DNS ===")
+        DiagLog.i(TAG) { "=== DÉSACTIVATION DNS ===" }
         lastError = ""
         lastMethod = ""
 
@@ -92,14 +95,14 @@ class AdbDnsManager(private val context: Context) {
 
         // Méthode 2 : Shizuku
         if (shizukuManager.isShizukuAvailable()) {
-            Log.i(TAG, "Désactivation via Shizuku...")
+            DiagLog.i(TAG) { "Désactivation via Shizuku..." }
             try {
                 if (shizukuManager.disablePrivateDns()) {
                     lastMethod = "Shizuku"
                     return true
                 }
             } catch (e: Exception) {
-                Log.w(TAG, "Shizuku désactivation échouée: ${e.message}")
+                DiagLog.w(TAG) { "Shizuku désactivation échouée: ${e.message}" }
             }
         }
 
@@ -119,7 +122,7 @@ class AdbDnsManager(private val context: Context) {
         File(dir, PRIVATE_KEY_NAME).delete()
         context.getSharedPreferences("adb_prefs", Context.MODE_PRIVATE)
             .edit().remove(PREF_PERMISSION_GRANTED).apply()
-        Log.i(TAG, "Clés ADB et permission réinitialisées")
+        DiagLog.i(TAG) { "Clés ADB et permission réinitialisées" }
     }
 
     // ─── Vérification permission ─────────────────────────────────────────────
@@ -148,7 +151,7 @@ class AdbDnsManager(private val context: Context) {
      * @param callback callback sur le thread appelant (NON sur le UI thread)
      */
     fun selfGrantPermission(callback: SelfGrantCallback) {
-        Log.i(TAG, "=== SELF-GRANT PERMISSION ===")
+        DiagLog.i(TAG) { "=== SELF-GRANT PERMISSION ===" }
 
         // Déjà accordée ?
         if (isPermissionGranted()) {
@@ -177,7 +180,7 @@ class AdbDnsManager(private val context: Context) {
             var connected = false
             for (port in portsToTry) {
                 try {
-                    Log.i(TAG, "Self-grant: tentative $ADB_HOST:$port...")
+                    DiagLog.i(TAG) { "Self-grant: tentative $ADB_HOST:$port..." }
                     callback.onProgress("port:$port")
                     socket = Socket()
                     socket.soTimeout = CONN_TIMEOUT
@@ -185,12 +188,12 @@ class AdbDnsManager(private val context: Context) {
 
                     connection = AdbConnection.create(socket, crypto)
                     connection.connect()
-                    Log.i(TAG, "Self-grant: connecté sur port $port")
+                    DiagLog.i(TAG) { "Self-grant: connecté sur port $port" }
                     prefs.edit().putInt(PREF_LAST_ADB_PORT, port).apply()
                     connected = true
                     break
                 } catch (e: Exception) {
-                    Log.w(TAG, "Self-grant port $port: ${e.message}")
+                    DiagLog.w(TAG) { "Self-grant port $port: ${e.message}" }
                     try { socket?.close() } catch (_: Exception) {}
                     socket = null
                     connection = null
@@ -209,7 +212,7 @@ class AdbDnsManager(private val context: Context) {
                 connection,
                 "pm grant ${context.packageName} android.permission.WRITE_SECURE_SETTINGS"
             )
-            Log.i(TAG, "Self-grant result: '$grantResult'")
+            DiagLog.i(TAG) { "Self-grant result: '$grantResult'" }
 
             if (grantResult.contains("Exception", ignoreCase = true) ||
                 grantResult.contains("error", ignoreCase = true) ||
@@ -222,12 +225,12 @@ class AdbDnsManager(private val context: Context) {
             Thread.sleep(500)
             if (isPermissionGranted()) {
                 prefs.edit().putBoolean(PREF_PERMISSION_GRANTED, true).apply()
-                Log.i(TAG, "Self-grant: permission accordée avec succès !")
+                DiagLog.i(TAG) { "Self-grant: permission accordée avec succès !" }
                 callback.onSuccess()
             } else {
                 // La commande n'a pas retourné d'erreur mais la permission n'est pas là
                 // Essayer une seconde fois
-                Log.w(TAG, "Self-grant: pm grant OK mais permission pas encore effective, retry...")
+                DiagLog.w(TAG) { "Self-grant: pm grant OK mais permission pas encore effective, retry..." }
                 val retryResult = execShellCommand(
                     connection,
                     "pm grant ${context.packageName} android.permission.WRITE_SECURE_SETTINGS"
@@ -242,10 +245,10 @@ class AdbDnsManager(private val context: Context) {
             }
 
         } catch (e: IOException) {
-            Log.e(TAG, "Self-grant IOException: ${e.message}")
+            DiagLog.e(TAG) { "Self-grant IOException: ${e.message}" }
             callback.onError("IO:${e.message}")
         } catch (e: Exception) {
-            Log.e(TAG, "Self-grant error: ${e.message}")
+            DiagLog.e(TAG) { "Self-grant error: ${e.message}" }
             callback.onError("${e.javaClass.simpleName}:${e.message}")
         } finally {
             try { connection?.close() } catch (_: Exception) {}
@@ -261,13 +264,13 @@ class AdbDnsManager(private val context: Context) {
             Settings.Global.putString(context.contentResolver, KEY_DNS_MODE, "hostname")
             val mode = getCurrentPrivateDnsMode()
             val ok = mode == "hostname"
-            Log.i(TAG, "Settings API enable -> mode=$mode ok=$ok")
+            DiagLog.i(TAG) { "Settings API enable -> mode=$mode ok=$ok" }
             ok
         } catch (e: SecurityException) {
-            Log.w(TAG, "Settings API: permission refusée")
+            DiagLog.w(TAG) { "Settings API: permission refusée" }
             false
         } catch (e: Exception) {
-            Log.w(TAG, "Settings API: ${e.message}")
+            DiagLog.w(TAG) { "Settings API: ${e.message}" }
             false
         }
     }
@@ -278,13 +281,13 @@ class AdbDnsManager(private val context: Context) {
             Settings.Global.putString(context.contentResolver, KEY_DNS_SPECIFIER, "")
             val mode = getCurrentPrivateDnsMode()
             val ok = mode == "off" || mode.isNullOrEmpty()
-            Log.i(TAG, "Settings API disable -> mode=$mode ok=$ok")
+            DiagLog.i(TAG) { "Settings API disable -> mode=$mode ok=$ok" }
             ok
         } catch (e: SecurityException) {
-            Log.w(TAG, "Settings API: permission refusée")
+            DiagLog.w(TAG) { "Settings API: permission refusée" }
             false
         } catch (e: Exception) {
-            Log.w(TAG, "Settings API: ${e.message}")
+            DiagLog.w(TAG) { "Settings API: ${e.message}" }
             false
         }
     }
@@ -304,7 +307,7 @@ class AdbDnsManager(private val context: Context) {
                 val crypto = readOrCreateCrypto()
                 if (crypto == null) {
                     lastError = "Impossible de charger/créer la clé ADB"
-                    Log.e(TAG, lastError)
+                    DiagLog.e(TAG) { lastError }
                     return@Thread
                 }
 
@@ -316,19 +319,19 @@ class AdbDnsManager(private val context: Context) {
                 var connected = false
                 for (port in portsToTry) {
                     try {
-                        Log.i(TAG, "Tentative ADB $ADB_HOST:$port (timeout ${CONN_TIMEOUT}ms)...")
+                        DiagLog.i(TAG) { "Tentative ADB $ADB_HOST:$port (timeout ${CONN_TIMEOUT}ms)..." }
                         socket = Socket()
                         socket.soTimeout = CONN_TIMEOUT
                         socket.connect(InetSocketAddress(ADB_HOST, port), CONN_TIMEOUT)
 
                         connection = AdbConnection.create(socket, crypto)
                         connection.connect()
-                        Log.i(TAG, "Connexion ADB établie sur port $port")
+                        DiagLog.i(TAG) { "Connexion ADB établie sur port $port" }
                         prefs.edit().putInt(PREF_LAST_ADB_PORT, port).apply()
                         connected = true
                         break
                     } catch (e: IOException) {
-                        Log.w(TAG, "Port $port: ${e.message}")
+                        DiagLog.w(TAG) { "Port $port: ${e.message}" }
                         try { socket?.close() } catch (_: Exception) {}
                         socket = null
                         connection = null
@@ -342,18 +345,18 @@ class AdbDnsManager(private val context: Context) {
                         "2. Le débogage réseau est activé\n" +
                         "3. Redémarrez l'appareil si nécessaire\n\n" +
                         "Ports testés: ${portsToTry.joinToString()}"
-                    Log.e(TAG, lastError)
+                    DiagLog.e(TAG) { lastError }
                     return@Thread
                 }
 
                 // Auto-grant WRITE_SECURE_SETTINGS à la première connexion réussie
                 if (!prefs.getBoolean(PREF_PERMISSION_GRANTED, false)) {
-                    Log.i(TAG, "Auto-grant WRITE_SECURE_SETTINGS...")
+                    DiagLog.i(TAG) { "Auto-grant WRITE_SECURE_SETTINGS..." }
                     val grantResult = execShellCommand(
                         connection,
                         "pm grant ${context.packageName} android.permission.WRITE_SECURE_SETTINGS"
                     )
-                    Log.i(TAG, "Grant result: '$grantResult'")
+                    DiagLog.i(TAG) { "Grant result: '$grantResult'" }
 
                     // Vérifier si le grant a échoué
                     if (grantResult.contains("Exception", ignoreCase = true) ||
@@ -362,7 +365,7 @@ class AdbDnsManager(private val context: Context) {
                         lastError = "Permission WRITE_SECURE_SETTINGS refusée.\n\n" +
                             "Résultat: $grantResult\n\n" +
                             "Essayez depuis un PC :\nadb shell pm grant ${context.packageName} android.permission.WRITE_SECURE_SETTINGS"
-                        Log.e(TAG, lastError)
+                        DiagLog.e(TAG) { lastError }
                         return@Thread
                     }
 
@@ -375,7 +378,7 @@ class AdbDnsManager(private val context: Context) {
                         if (hostname.isNotEmpty()) trySettingsEnable(hostname) else false
                     }
                     if (apiOk) {
-                        Log.i(TAG, "Settings API réussie après grant")
+                        DiagLog.i(TAG) { "Settings API réussie après grant" }
                         success = true
                         return@Thread
                     }
@@ -384,25 +387,25 @@ class AdbDnsManager(private val context: Context) {
                 // Ouvrir un shell et envoyer chaque commande
                 shellStream = connection.open("shell:")
                 for (cmd in commands) {
-                    Log.i(TAG, "ADB shell: $cmd")
+                    DiagLog.i(TAG) { "ADB shell: $cmd" }
                     shellStream.write("$cmd\n".toByteArray(Charsets.UTF_8))
                     Thread.sleep(300)
                 }
                 success = true
                 lastError = ""
-                Log.i(TAG, "Commandes ADB envoyées avec succès")
+                DiagLog.i(TAG) { "Commandes ADB envoyées avec succès" }
 
             } catch (e: IOException) {
                 lastError = "Erreur connexion ADB: ${e.message}"
-                Log.e(TAG, "ADB IOException: ${e.message}")
+                DiagLog.e(TAG) { "ADB IOException: ${e.message}" }
                 context.getSharedPreferences("adb_prefs", Context.MODE_PRIVATE)
                     .edit().remove(PREF_PERMISSION_GRANTED).apply()
             } catch (e: InterruptedException) {
                 lastError = "Connexion ADB interrompue"
-                Log.e(TAG, "ADB InterruptedException: ${e.message}")
+                DiagLog.e(TAG) { "ADB InterruptedException: ${e.message}" }
             } catch (e: Exception) {
                 lastError = "Erreur ADB: ${e.javaClass.simpleName}: ${e.message}"
-                Log.e(TAG, lastError)
+                DiagLog.e(TAG) { lastError }
             } finally {
                 try { shellStream?.close() } catch (_: Exception) {}
                 try { connection?.close() } catch (_: Exception) {}
@@ -429,7 +432,7 @@ class AdbDnsManager(private val context: Context) {
             }
             result.toString().trim()
         } catch (e: Exception) {
-            Log.w(TAG, "execShellCommand '$cmd': ${e.message}")
+            DiagLog.w(TAG) { "execShellCommand '$cmd': ${e.message}" }
             ""
         } finally {
             try { stream?.close() } catch (_: Exception) {}
@@ -444,17 +447,17 @@ class AdbDnsManager(private val context: Context) {
         val privFile = File(dir, PRIVATE_KEY_NAME)
         return try {
             if (pubFile.exists() && privFile.exists()) {
-                Log.i(TAG, "Chargement clés ADB existantes")
+                DiagLog.i(TAG) { "Chargement clés ADB existantes" }
                 AdbCrypto.loadAdbKeyPair(AndroidBase64(), privFile, pubFile)
             } else {
-                Log.i(TAG, "Génération nouvelle paire de clés ADB...")
+                DiagLog.i(TAG) { "Génération nouvelle paire de clés ADB..." }
                 val crypto = AdbCrypto.generateAdbKeyPair(AndroidBase64())
                 crypto.saveAdbKeyPair(privFile, pubFile)
-                Log.i(TAG, "Clés ADB générées et sauvegardées")
+                DiagLog.i(TAG) { "Clés ADB générées et sauvegardées" }
                 crypto
             }
         } catch (e: Exception) {
-            Log.e(TAG, "Erreur crypto: ${e.message}")
+            DiagLog.e(TAG) { "Erreur crypto: ${e.message}" }
             null
         }
     }
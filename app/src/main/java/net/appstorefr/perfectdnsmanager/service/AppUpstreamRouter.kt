@@ -0,0 +1,123 @@
+package net.appstorefr.perfectdnsmanager.service
+
+import android.content.Context
+import android.content.pm.PackageManager
+import android.net.ConnectivityManager
+import android.os.Build
+import android.os.Process
+import android.os.SystemClock
+import org.json.JSONObject
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Routage des requêtes DNS par application (Android 10+)
+ *
+ * - Politiques : package → upstream (préférence app_upstream_policies_json), résolues en UID
+ *   une fois à la construction : aucun appel PackageManager par requête
+ * - UID propriétaire d'une requête : ConnectivityManager.getConnectionOwnerUid sur le 5-tuple
+ *   vu dans le TUN, mémorisé 60 s ; l'appel binder n'a lieu qu'une fois par socket client
+ * - Une instance par jeu d'upstreams : recréée (et politiques relues) à chaque hot-swap
+ * - Sans politique, peut servir à la seule attribution des requêtes (QoS par application)
+ */
+class AppUpstreamRouter private constructor(
+    private val context: Context,
+    private val uidPolicies: Map<Int, String>
+) {
+
+    companion object {
+        private const val T = "AppRouter"
+        const val PREF_POLICIES = "app_upstream_policies_json"
+        private const val UID_TTL_MS = 60_000L
+        private const val MAX_CACHED = 4096
+        /** cachedUid : UID pas encore connu (Process.INVALID_UID est un résultat mémorisable) */
+        const val UID_UNKNOWN = Int.MIN_VALUE
+
+        fun isSupported() = Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q
+
+        /** Politiques enregistrées : package → upstream */
+        fun loadPolicies(context: Context): Map<String, String> {
+            val json = context.getSharedPreferences("prefs", Context.MODE_PRIVATE)
+                .getString(PREF_POLICIES, null) ?: return emptyMap()
+            return try {
+                val obj = JSONObject(json)
+                obj.keys().asSequence().associateWith { obj.getString(it) }.filterValues { it.isNotEmpty() }
+            } catch (_: Exception) { emptyMap() }
+        }
+
+        fun savePolicies(context: Context, policies: Map<String, String>) {
+            val obj = JSONObject()
+            for ((pkg, upstream) in policies.toSortedMap()) obj.put(pkg, upstream)
+            context.getSharedPreferences("prefs", Context.MODE_PRIVATE).edit()
+                .putString(PREF_POLICIES, obj.toString()).commit()
+        }
+
+        /**
+         * Routeur pour les politiques courantes, null si Android < 10, ou si aucune politique
+         * et que l'attribution n'est pas demandée (attributeAll)
+         */
+        fun load(context: Context, attributeAll: Boolean = false): AppUpstreamRouter? {
+            if (!isSupported()) return null
+            val policies = loadPolicies(context)
+            if (policies.isEmpty() && !attributeAll) return null
+            val pm = context.packageManager
+            val byUid = HashMap<Int, String>()
+            for ((pkg, upstream) in policies) {
+                try {
+                    byUid[pm.getApplicationInfo(pkg, 0).uid] = upstream
+                } catch (_: PackageManager.NameNotFoundException) {
+                    DiagLog.i(T) { "Policy for $pkg ignored: not installed" }
+                }
+            }
+            if (byUid.isEmpty() && !attributeAll) return null
+            DiagLog.i(T) { "${byUid.size} app policies loaded" }
+            return AppUpstreamRouter(context.applicationContext, byUid)
+        }
+    }
+
+    private class Owner(val uid: Int, val expiresAt: Long)
+
+    private val owners = ConcurrentHashMap<Long, Owner>()
+
+    /** Upstreams des politiques (préchauffage, keepalive) */
+    val upstreams: List<String> = uidPolicies.values.distinct()
+
+    /** Clé du 5-tuple : IP source, port source, dernier octet de l'IP DNS virtuelle, protocole (port destination = 53) */
+    private fun key(proto: Int, srcIp: ByteArray, srcPort: Int, dstIp: ByteArray): Long {
+        val src = ((srcIp[0].toLong() and 0xFF) shl 24) or ((srcIp[1].toLong() and 0xFF) shl 16) or
+            ((srcIp[2].toLong() and 0xFF) shl 8) or (srcIp[3].toLong() and 0xFF)
+        return (src shl 32) or (srcPort.toLong() shl 16) or ((dstIp[3].toLong() and 0xFF) shl 8) or proto.toLong()
+    }
+
+    /** UID déjà connu pour ce 5-tuple, UID_UNKNOWN s'il faut appeler ownerUid (hors du thread TUN) */
+    fun cachedUid(proto: Int, srcIp: ByteArray, srcPort: Int, dstIp: ByteArray): Int {
+        val owner = owners[key(proto, srcIp, srcPort, dstIp)] ?: return UID_UNKNOWN
+        return if (SystemClock.elapsedRealtime() < owner.expiresAt) owner.uid else UID_UNKNOWN
+    }
+
+    /** UID propriétaire de la socket cliente (appel binder), mémorisé pour les requêtes suivantes */
+    fun ownerUid(proto: Int, srcIp: ByteArray, srcPort: Int, dstIp: ByteArray, dstPort: Int): Int {
+        val uid = try {
+            val cm = context.getSystemService(Context.CONNECTIVITY_SERVICE) as ConnectivityManager
+            cm.getConnectionOwnerUid(
+                proto,
+                InetSocketAddress(InetAddress.getByAddress(srcIp), srcPort),
+                InetSocketAddress(InetAddress.getByAddress(dstIp), dstPort)
+            )
+        } catch (e: Exception) {
+            DiagLog.w(T) { "getConnectionOwnerUid: ${e.message}" }
+            Process.INVALID_UID
+        }
+        if (owners.size >= MAX_CACHED) {
+            val now = SystemClock.elapsedRealtime()
+            owners.entries.removeAll { it.value.expiresAt <= now }
+            if (owners.size >= MAX_CACHED) owners.clear()
+        }
+        owners[key(proto, srcIp, srcPort, dstIp)] = Owner(uid, SystemClock.elapsedRealtime() + UID_TTL_MS)
+        return uid
+    }
+
+    /** Upstream imposé à cette application, null = upstream du profil */
+    fun upstreamFor(uid: Int): String? = uidPolicies[uid]
+}
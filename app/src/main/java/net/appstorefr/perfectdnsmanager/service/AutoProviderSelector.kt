@@ -0,0 +1,299 @@
+package net.appstorefr.perfectdnsmanager.service
+
+import android.content.Context
+import android.content.SharedPreferences
+import android.net.ConnectivityManager
+import android.net.NetworkCapabilities
+import android.net.wifi.WifiManager
+import android.os.Build
+import android.os.PowerManager
+import android.os.SystemClock
+import android.telephony.TelephonyManager
+import com.google.gson.Gson
+import net.appstorefr.perfectdnsmanager.data.DnsProfile
+import net.appstorefr.perfectdnsmanager.data.DnsType
+import net.appstorefr.perfectdnsmanager.data.ProfileManager
+import org.json.JSONArray
+import org.json.JSONObject
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.TimeUnit
+
+/**
+ * Mode "auto" : choix du fournisseur le plus rapide pour le réseau courant
+ *
+ * - Activé explicitement (préférence auto_provider_enabled, désactivée par défaut)
+ * - Candidats choisis par l'utilisateur (préférence auto_provider_candidates_json, ids de profils) :
+ *   jamais de bascule vers un fournisseur au filtrage différent non choisi
+ * - N'agit que si le fournisseur actif est lui-même un candidat : un profil choisi à la main
+ *   hors des candidats n'est jamais remplacé
+ * - Scores par réseau (SSID si lisible, sinon empreinte DNS/passerelle ; opérateur en mobile)
+ *   et par upstream : latence des sondes (EWMA) + fiabilité (sondes et trafic réel du VPN)
+ * - Sondes légères toutes les 5 min écran allumé (et juste après un changement de réseau),
+ *   aucune en économie d'énergie
+ * - Bascule si un candidat bat l'actif (mesuré lui aussi) d'au moins `margin` % sur 3 évaluations de suite,
+ *   et seulement quand le VPN est au repos (jamais au milieu d'une rafale de requêtes)
+ * - Scores persistés (fichier "auto_provider") : le réseau du bureau est reconnu au retour, sans tout remesurer
+ * - Bascule persistée comme profil sélectionné (voir saveSwitch) : un redémarrage garde le fournisseur choisi
+ */
+class AutoProviderSelector(
+    private val context: Context,
+    private val candidates: List<DnsProfile>,
+    /** Latence d'une requête canari vers l'upstream (ms), null si échec */
+    private val probe: (upstream: String) -> Long?,
+    /** Aucune requête récente ni en vol : une bascule ne coupe rien */
+    private val isQuiet: () -> Boolean,
+    private val switchTo: (DnsProfile) -> Unit
+) {
+
+    companion object {
+        private const val T = "AutoProvider"
+        const val PREF_ENABLED = "auto_provider_enabled"
+        const val PREF_CANDIDATES = "auto_provider_candidates_json"
+        const val PREF_MARGIN = "auto_provider_margin_pct"
+        const val DEFAULT_MARGIN = 20
+        val MARGINS = intArrayOf(10, 20, 30, 50)
+        const val MAX_CANDIDATES = 6
+        /** Scores écrits par le processus du VPN : fichier à part (jamais écrasé par l'interface) */
+        private const val SCORES_PREFS = "auto_provider"
+        private const val PREF_SCORES = "scores_json"
+        private const val TICK_S = 5L
+        private const val PROBE_INTERVAL_MS = 5 * 60_000L
+        private const val CONSECUTIVE_WINS = 3
+        private const val MIN_SAMPLES = 3
+        private const val ALPHA = 0.3
+        /** Pénalité de latence d'un upstream peu fiable : (1 - fiabilité) × pénalité */
+        private const val FAILURE_PENALTY_MS = 2000.0
+        private const val MAX_NETWORKS = 20
+
+        fun loadCandidateIds(context: Context): List<Long> {
+            val json = context.getSharedPreferences("prefs", Context.MODE_PRIVATE)
+                .getString(PREF_CANDIDATES, null) ?: return emptyList()
+            return try {
+                val arr = JSONArray(json)
+                (0 until arr.length()).map { arr.getLong(it) }
+            } catch (_: Exception) { emptyList() }
+        }
+
+        fun saveCandidateIds(context: Context, ids: List<Long>) {
+            val arr = JSONArray()
+            ids.take(MAX_CANDIDATES).forEach { arr.put(it) }
+            context.getSharedPreferences("prefs", Context.MODE_PRIVATE).edit()
+                .putString(PREF_CANDIDATES, arr.toString()).apply()
+        }
+
+        /**
+         * Bascule persistée par le processus du VPN, avec commit() : profil sélectionné (relu aux
+         * redémarrages boot, always-on et rechargement, et par profileGroup) et libellé affiché
+         * par l'interface, qui relit le fichier à la reprise
+         */
+        fun saveSwitch(prefs: SharedPreferences, profile: DnsProfile): Boolean =
+            prefs.edit()
+                .putString("selected_profile_json", Gson().toJson(profile))
+                .putString("vpn_label", "DNS via VPN: ${profile.providerName}\n${profile.primary}")
+                .commit()
+
+        /** Sélecteur pour les candidats enregistrés, null si le mode auto est désactivé ou a moins de 2 candidats */
+        fun fromPrefs(
+            context: Context, probe: (String) -> Long?, isQuiet: () -> Boolean, switchTo: (DnsProfile) -> Unit
+        ): AutoProviderSelector? {
+            if (!context.getSharedPreferences("prefs", Context.MODE_PRIVATE).getBoolean(PREF_ENABLED, false)) return null
+            val ids = loadCandidateIds(context)
+            if (ids.size < 2) return null
+            val byId = ProfileManager(context).loadProfiles().associateBy { it.id }
+            val profiles = ids.mapNotNull { byId[it] }.filter { it.type != DnsType.DOT }
+            return if (profiles.size < 2) null else AutoProviderSelector(context, profiles, probe, isQuiet, switchTo)
+        }
+    }
+
+    private class Score {
+        var latency = -1.0
+        var reliability = 1.0
+        var samples = 0
+
+        fun value(): Double = latency + (1 - reliability) * FAILURE_PENALTY_MS
+    }
+
+    private val margin = context.getSharedPreferences("prefs", Context.MODE_PRIVATE).getInt(PREF_MARGIN, DEFAULT_MARGIN) / 100.0
+    private val scorePrefs = context.getSharedPreferences(SCORES_PREFS, Context.MODE_PRIVATE)
+    /** réseau → upstream → score */
+    private val scores = LinkedHashMap<String, HashMap<String, Score>>(16, 0.75f, true)
+    private var executor: ScheduledExecutorService? = null
+    @Volatile private var networkKey = ""
+    @Volatile private var lastProbeAt = 0L
+    @Volatile private var current: String? = null
+    private var challenger: String? = null
+    private var wins = 0
+
+    init { loadScores() }
+
+    /** Upstream primaire actuellement servi par le VPN */
+    fun setCurrent(upstream: String) { current = upstream }
+
+    @Synchronized
+    fun start() {
+        if (executor != null) return
+        DiagLog.i(T) { "Auto mode: ${candidates.map { it.providerName + " " + it.name }}, margin ${(margin * 100).toInt()}%" }
+        executor = Executors.newSingleThreadScheduledExecutor { r ->
+            Thread(r, "AutoProvider").apply { isDaemon = true }
+        }.also { it.scheduleWithFixedDelay({ tick() }, TICK_S, TICK_S, TimeUnit.SECONDS) }
+    }
+
+    @Synchronized
+    fun stop() {
+        executor?.shutdownNow()
+        executor = null
+        synchronized(scores) { saveScores() }
+    }
+
+    /** Changement de réseau : nouvelle série de sondes au prochain tick */
+    fun onNetworkChanged() {
+        lastProbeAt = 0
+    }
+
+    /** Réponse du trafic réel : l'upstream est fiable sur ce réseau */
+    fun onAnswer(upstream: String) = recordReliability(upstream, 1.0)
+
+    /** Pas de réponse du trafic réel */
+    fun onFailure(upstream: String) = recordReliability(upstream, 0.0)
+
+    private fun recordReliability(upstream: String, ok: Double) {
+        if (candidates.none { it.primary == upstream }) return
+        synchronized(scores) {
+            val s = scoresFor(networkKey).getOrPut(upstream) { Score() }
+            s.reliability += ALPHA / 4 * (ok - s.reliability) // trafic abondant : poids réduit par échantillon
+        }
+    }
+
+    private fun scoresFor(network: String): HashMap<String, Score> {
+        val map = scores.getOrPut(network) { HashMap() }
+        while (scores.size > MAX_NETWORKS) scores.remove(scores.keys.first())
+        return map
+    }
+
+    private fun isCandidate(upstream: String?) = upstream != null && candidates.any { it.primary == upstream }
+
+    private fun tick() {
+        try {
+            // Profil hors candidats choisi à la main : ni sonde ni bascule
+            if (!isCandidate(current)) {
+                challenger = null; wins = 0
+                return
+            }
+            networkKey = currentNetworkKey()
+            val pm = context.getSystemService(Context.POWER_SERVICE) as PowerManager
+            val due = SystemClock.elapsedRealtime() - lastProbeAt >= PROBE_INTERVAL_MS
+            if (!due || !pm.isInteractive || pm.isPowerSaveMode) {
+                maybeSwitch(evaluateOnly = true)
+                return
+            }
+            lastProbeAt = SystemClock.elapsedRealtime()
+            for (profile in candidates) {
+                val ms = probe(profile.primary)
+                synchronized(scores) {
+                    val s = scoresFor(networkKey).getOrPut(profile.primary) { Score() }
+                    if (ms != null) s.latency = if (s.latency < 0) ms.toDouble() else s.latency + ALPHA * (ms - s.latency)
+                    s.reliability += ALPHA * ((if (ms != null) 1.0 else 0.0) - s.reliability)
+                    s.samples++
+                }
+            }
+            synchronized(scores) { saveScores() }
+            maybeSwitch(evaluateOnly = false)
+        } catch (e: Exception) {
+            DiagLog.w(T) { "tick: ${e.message}" }
+        }
+    }
+
+    /**
+     * Une évaluation = une série de sondes ; entre deux séries, on ne fait que retenter
+     * une bascule déjà décidée mais repoussée parce que le VPN n'était pas au repos
+     */
+    private fun maybeSwitch(evaluateOnly: Boolean) {
+        val active = current ?: return
+        if (!isCandidate(active)) return
+        if (!evaluateOnly) {
+            val (best, activeScore, bestScore) = synchronized(scores) {
+                val net = scoresFor(networkKey)
+                fun measured(upstream: String) = net[upstream]?.takeIf { it.samples >= MIN_SAMPLES && it.latency >= 0 }
+                val ranked = candidates.mapNotNull { p -> measured(p.primary)?.let { p to it.value() } }
+                val top = ranked.minByOrNull { it.second } ?: return
+                Triple(top.first, measured(active)?.value(), top.second)
+            }
+            // Actif pas encore assez mesuré : pas de comparaison, donc pas de bascule
+            val better = best.primary != active && activeScore != null && bestScore < activeScore * (1 - margin)
+            if (better && best.primary == challenger) wins++
+            else if (better) { challenger = best.primary; wins = 1 }
+            else { challenger = null; wins = 0 }
+            if (better) DiagLog.i(T) { "$networkKey: ${best.providerName} ${bestScore.toInt()}ms vs active ${activeScore?.toInt()}ms ($wins/$CONSECUTIVE_WINS)" }
+        }
+        val target = challenger ?: return
+        if (wins < CONSECUTIVE_WINS || !isQuiet()) return
+        val profile = candidates.firstOrNull { it.primary == target } ?: return
+        DiagLog.i(T) { "Switching to ${profile.providerName} - ${profile.name} on $networkKey" }
+        challenger = null
+        wins = 0
+        current = profile.primary
+        switchTo(profile)
+    }
+
+    /** Identité du réseau : type + SSID (si lisible) ou empreinte DNS/passerelle, opérateur en mobile */
+    private fun currentNetworkKey(): String {
+        val cm = context.getSystemService(Context.CONNECTIVITY_SERVICE) as ConnectivityManager
+        val network = BootstrapResolver.physicalNetwork(cm) ?: return "none"
+        val caps = cm.getNetworkCapabilities(network)
+        val lp = cm.getLinkProperties(network)
+        return when {
+            caps?.hasTransport(NetworkCapabilities.TRANSPORT_CELLULAR) == true -> {
+                val tm = context.getSystemService(Context.TELEPHONY_SERVICE) as TelephonyManager
+                "cell:${tm.networkOperator}"
+            }
+            caps?.hasTransport(NetworkCapabilities.TRANSPORT_WIFI) == true -> {
+                @Suppress("DEPRECATION")
+                val ssid = (context.applicationContext.getSystemService(Context.WIFI_SERVICE) as WifiManager)
+                    .connectionInfo?.ssid?.trim('"')
+                if (!ssid.isNullOrEmpty() && ssid != "<unknown ssid>") "wifi:$ssid"
+                else "wifi:" + fingerprint(lp)
+            }
+            else -> "other:" + fingerprint(lp)
+        }
+    }
+
+    private fun fingerprint(lp: android.net.LinkProperties?): String {
+        if (lp == null) return "?"
+        val gateways = if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)
+            lp.routes.filter { it.isDefaultRoute }.mapNotNull { it.gateway?.hostAddress } else emptyList()
+        return (lp.dnsServers.map { it.hostAddress } + gateways + listOfNotNull(lp.domains)).sorted().joinToString(",")
+    }
+
+    // ── Persistance ──────────────────────────────────────────────────────
+
+    private fun loadScores() {
+        val json = scorePrefs.getString(PREF_SCORES, null) ?: return
+        try {
+            val root = JSONObject(json)
+            for (net in root.keys()) {
+                val obj = root.getJSONObject(net)
+                val map = HashMap<String, Score>()
+                for (upstream in obj.keys()) {
+                    val a = obj.getJSONArray(upstream)
+                    map[upstream] = Score().apply {
+                        latency = a.getDouble(0); reliability = a.getDouble(1); samples = a.getInt(2)
+                    }
+                }
+                scores[net] = map
+            }
+        } catch (_: Exception) {}
+    }
+
+    private fun saveScores() {
+        val root = JSONObject()
+        for ((net, map) in scores) {
+            val obj = JSONObject()
+            for ((upstream, s) in map) {
+                obj.put(upstream, JSONArray().put(s.latency).put(s.reliability).put(s.samples))
+            }
+            root.put(net, obj)
+        }
+        scorePrefs.edit().putString(PREF_SCORES, root.toString()).apply()
+    }
+}
@@ -0,0 +1,241 @@
+package net.appstorefr.perfectdnsmanager.service
+
+import android.content.Context
+import android.net.ConnectivityManager
+import android.net.LinkProperties
+import android.net.Network
+import android.net.NetworkCapabilities
+import android.net.VpnService
+import android.os.SystemClock
+import net.appstorefr.perfectdnsmanager.util.DnsWire
+import java.net.DatagramPacket
+import java.net.DatagramSocket
+import java.net.Inet4Address
+import java.net.Inet6Address
+import java.net.InetAddress
+import java.net.SocketTimeoutException
+import java.util.concurrent.Callable
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutorCompletionService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.FutureTask
+import java.util.concurrent.TimeUnit
+import kotlin.random.Random
+
+/**
+ * Résolveur bootstrap des hostnames d'upstreams chiffrés (DoH, DoQ, DoT)
+ *
+ * - Sockets protégées : les requêtes ne repassent pas par le tunnel VPN
+ * - Interroge en parallèle le DNS du réseau physique et plusieurs résolveurs publics,
+ *   la première réponse exploitable gagne
+ * - Requêtes A et AAAA, toutes les adresses retournées (IPv6 seulement si le réseau en a)
+ * - Cache respectant le TTL, servi périmé pendant un rafraîchissement en tâche de fond
+ * - Résolutions concurrentes du même host fusionnées
+ * - Réponses du DNS du réseau (split-horizon possible) oubliées au changement de réseau
+ */
+object BootstrapResolver {
+
+    private const val T = "Bootstrap"
+    private const val QUERY_TIMEOUT_MS = 2000L
+    /** Attente max de la réponse AAAA une fois la réponse A reçue */
+    private const val AAAA_GRACE_MS = 150L
+    private const val MIN_TTL_S = 30L
+    private const val MAX_TTL_S = 3600L
+    /** Durée pendant laquelle une entrée expirée peut encore être servie */
+    private const val STALE_MS = 24 * 3600_000L
+
+    private val PUBLIC_SERVERS = listOf(
+        byteArrayOf(8, 8, 8, 8),
+        byteArrayOf(1, 1, 1, 1),
+        byteArrayOf(9, 9, 9, 9)
+    ).map { InetAddress.getByAddress(it) }
+
+    /** networkScoped : réponse du DNS du réseau physique, valable uniquement sur ce réseau */
+    private class Entry(val addresses: List<InetAddress>, val expiresAt: Long, val networkScoped: Boolean)
+    private class ServerAnswer(val addresses: List<InetAddress>, val ttlSeconds: Long, val fromNetworkDns: Boolean = false)
+
+    private val cache = ConcurrentHashMap<String, Entry>()
+    private val inFlight = ConcurrentHashMap<String, Future<Entry?>>()
+    private val executor = Executors.newCachedThreadPool { r ->
+        Thread(r, "Bootstrap").apply { isDaemon = true }
+    }
+
+    /**
+     * Résout un hostname en bypassant le VPN.
+     * @return toutes les adresses connues (IPv6 d'abord si le réseau physique en a), liste vide si échec
+     */
+    fun resolve(service: VpnService, host: String): List<InetAddress> = resolve(service, host) { service.protect(it) }
+
+    /**
+     * Même résolution depuis un autre processus (testeurs de l'interface) : sockets protégées par
+     * le binder du VPN s'il tourne, envoyées directement sinon
+     */
+    fun resolveOutsideVpn(context: Context, host: String): List<InetAddress> {
+        if (isIpLiteral(host)) return listOf(InetAddress.getByName(host))
+        val vpnRunning = DnsVpnControl.isRunning(context)
+        return resolve(context, host) { !vpnRunning || DnsVpnControl.protect(context, it) }
+    }
+
+    private fun resolve(context: Context, host: String, protect: (DatagramSocket) -> Boolean): List<InetAddress> {
+        if (isIpLiteral(host)) return listOf(InetAddress.getByName(host))
+
+        val now = SystemClock.elapsedRealtime()
+        cache[host]?.let { entry ->
+            if (now < entry.expiresAt) return entry.addresses
+            if (now < entry.expiresAt + STALE_MS) {
+                lookupAsync(context, host, protect)
+                return entry.addresses
+            }
+        }
+        return try {
+            lookupAsync(context, host, protect).get(QUERY_TIMEOUT_MS + 500, TimeUnit.MILLISECONDS)?.addresses ?: emptyList()
+        } catch (e: Exception) {
+            DiagLog.w(T) { "resolve $host: ${e.javaClass.simpleName}" }
+            emptyList()
+        }
+    }
+
+    /** Oublie tout le cache (ex. changement de profil) */
+    fun clear() = cache.clear()
+
+    /** Changement de réseau : oublie les réponses obtenues via le DNS de l'ancien réseau */
+    fun onNetworkChanged() {
+        cache.entries.removeAll { it.value.networkScoped }
+    }
+
+    private fun lookupAsync(context: Context, host: String, protect: (DatagramSocket) -> Boolean): Future<Entry?> {
+        inFlight[host]?.let { return it }
+        val task = FutureTask(Callable {
+            try { lookup(context, host, protect) } finally { inFlight.remove(host) }
+        })
+        inFlight.putIfAbsent(host, task)?.let { return it }
+        executor.execute(task)
+        return task
+    }
+
+    private fun lookup(context: Context, host: String, protect: (DatagramSocket) -> Boolean): Entry? {
+        val cm = context.getSystemService(Context.CONNECTIVITY_SERVICE) as ConnectivityManager
+        val linkProps = physicalLinkProperties(cm)
+        val networkDns = linkProps?.dnsServers.orEmpty()
+        val wantV6 = linkProps?.linkAddresses?.any {
+            val a = it.address
+            a is Inet6Address && !a.isLinkLocalAddress && !a.isSiteLocalAddress
+        } ?: false
+
+        val completion = ExecutorCompletionService<ServerAnswer?>(executor)
+        val servers = networkDns + PUBLIC_SERVERS.filter { it !in networkDns }
+        val futures = servers.map { server ->
+            completion.submit {
+                val answer = queryServer(protect, server, host, wantV6)
+                if (answer != null && server in networkDns) ServerAnswer(answer.addresses, answer.ttlSeconds, true) else answer
+            }
+        }
+
+        try {
+            val deadline = SystemClock.elapsedRealtime() + QUERY_TIMEOUT_MS
+            repeat(futures.size) {
+                val remaining = deadline - SystemClock.elapsedRealtime()
+                if (remaining <= 0) return@repeat
+                val answer = completion.poll(remaining, TimeUnit.MILLISECONDS)?.get() ?: return@repeat
+                if (answer.addresses.isEmpty()) return@repeat
+                val ttl = answer.ttlSeconds.coerceIn(MIN_TTL_S, MAX_TTL_S)
+                val entry = Entry(order(answer.addresses), SystemClock.elapsedRealtime() + ttl * 1000, answer.fromNetworkDns)
+                cache[host] = entry
+                return entry
+            }
+        } finally {
+            futures.forEach { it.cancel(true) }
+        }
+        DiagLog.w(T) { "No bootstrap answer for $host (${servers.size} servers)" }
+        return null
+    }
+
+    /** Envoie A (+ AAAA) sur une même socket protégée et attend les deux réponses */
+    private fun queryServer(
+        protect: (DatagramSocket) -> Boolean, server: InetAddress, host: String, wantV6: Boolean
+    ): ServerAnswer? {
+        val sock = DatagramSocket()
+        try {
+            if (!protect(sock)) return null
+            val idA = Random.nextInt(0x10000)
+            val idAAAA = (idA + 1) and 0xFFFF
+            val qA = DnsWire.buildQuery(host, DnsWire.TYPE_A, idA)
+            sock.send(DatagramPacket(qA, qA.size, server, 53))
+            if (wantV6) {
+                val qAAAA = DnsWire.buildQuery(host, DnsWire.TYPE_AAAA, idAAAA)
+                sock.send(DatagramPacket(qAAAA, qAAAA.size, server, 53))
+            }
+
+            var v4: DnsWire.AddressAnswer? = null
+            var v6: DnsWire.AddressAnswer? = null
+            var gotA = false
+            var gotAAAA = !wantV6
+            var deadline = SystemClock.elapsedRealtime() + QUERY_TIMEOUT_MS
+            val buf = ByteArray(1500)
+            while (!(gotA && gotAAAA)) {
+                val remaining = deadline - SystemClock.elapsedRealtime()
+                if (remaining <= 0) break
+                sock.soTimeout = remaining.toInt()
+                val pkt = DatagramPacket(buf, buf.size)
+                try { sock.receive(pkt) } catch (_: SocketTimeoutException) { break }
+                if (pkt.address != server || pkt.length < DnsWire.HEADER_SIZE) continue
+                when (DnsWire.u16(buf, 0)) {
+                    idA -> if (!gotA) {
+                        gotA = true
+                        v4 = DnsWire.parseAddresses(buf, pkt.length)
+                        deadline = minOf(deadline, SystemClock.elapsedRealtime() + AAAA_GRACE_MS)
+                    }
+                    idAAAA -> if (!gotAAAA) {
+                        gotAAAA = true
+                        v6 = DnsWire.parseAddresses(buf, pkt.length)
+                    }
+                }
+            }
+            val addresses = v4?.addresses.orEmpty() + v6?.addresses.orEmpty()
+            if (addresses.isEmpty()) return null
+            val ttl = listOfNotNull(v4, v6).filter { it.addresses.isNotEmpty() }.minOf { it.ttlSeconds }
+            return ServerAnswer(addresses, ttl)
+        } catch (e: Exception) {
+            DiagLog.w(T) { "query ${server.hostAddress} for $host: ${e.message}" }
+            return null
+        } finally {
+            sock.close()
+        }
+    }
+
+    /** Alterne IPv6 / IPv4 (RFC 8305) pour que l'appelant puisse essayer les deux familles */
+    private fun order(addresses: List<InetAddress>): List<InetAddress> {
+        val v6 = addresses.filterIsInstance<Inet6Address>().distinct()
+        val v4 = addresses.filterIsInstance<Inet4Address>().distinct()
+        val out = ArrayList<InetAddress>(v6.size + v4.size)
+        for (i in 0 until maxOf(v6.size, v4.size)) {
+            if (i < v6.size) out.add(v6[i])
+            if (i < v4.size) out.add(v4[i])
+        }
+        return out
+    }
+
+    /** Réseau physique sous-jacent (Wi-Fi, cellulaire, Ethernet), hors VPN */
+    fun physicalNetwork(cm: ConnectivityManager): Network? = try {
+        cm.allNetworks.firstOrNull { network ->
+            val caps = cm.getNetworkCapabilities(network)
+            caps != null &&
+                !caps.hasTransport(NetworkCapabilities.TRANSPORT_VPN) &&
+                (caps.hasTransport(NetworkCapabilities.TRANSPORT_WIFI) ||
+                 caps.hasTransport(NetworkCapabilities.TRANSPORT_CELLULAR) ||
+                 caps.hasTransport(NetworkCapabilities.TRANSPORT_ETHERNET))
+        }
+    } catch (e: Exception) {
+        DiagLog.w(T) { "physicalNetwork: ${e.message}" }
+        null
+    }
+
+    private fun physicalLinkProperties(cm: ConnectivityManager): LinkProperties? =
+        physicalNetwork(cm)?.let { network ->
+            try { cm.getLinkProperties(network) } catch (e: Exception) { null }
+        }
+
+    private fun isIpLiteral(host: String) =
+        host.matches(Regex("\\d+\\.\\d+\\.\\d+\\.\\d+")) || (host.contains(':') && host.all { it.isLetterOrDigit() || it == ':' || it == '.' })
+}
@@ -0,0 +1,298 @@
+package net.appstorefr.perfectdnsmanager.service
+
+import android.content.Context
+import android.util.Log
+import net.appstorefr.perfectdnsmanager.BuildConfig
+import java.io.File
+import java.io.FileOutputStream
+import java.io.OutputStreamWriter
+import java.io.Writer
+import java.text.SimpleDateFormat
+import java.util.Date
+import java.util.Locale
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+import java.util.concurrent.locks.LockSupport
+
+/**
+ * Journal de diagnostic asynchrone, à la place de android.util.Log sur les chemins chauds
+ *
+ * - Niveaux vérifiés avant toute construction du message : le message est un lambda inline,
+ *   évalué seulement si le niveau est actif ; désactivé, un appel coûte une lecture volatile
+ * - d() et v() n'existent que dans les builds debug : BuildConfig.DEBUG est une constante,
+ *   le code des appels est retiré à la compilation des builds release
+ * - Appelant : l'enregistrement est copié dans un anneau préalloué (emplacement réservé par
+ *   CAS, publié par son numéro de séquence), sans verrou ni E/S ; anneau plein = enregistrement
+ *   perdu et compté
+ * - Thread "DiagLog" : endormi tant que l'anneau est vide, il vide l'anneau par lots vers
+ *   logcat et vers un fichier texte par processus (filesDir/diaglog/<processus>.log), renommé
+ *   en .1.log au-delà de MAX_FILE_BYTES
+ * - Ligne du fichier : "<heure epoch ms> <processus> <niveau>/<tag> [<thread>]: <message>"
+ * - Lecture (DiagLogActivity) : directement sur les fichiers des deux processus, fusionnés
+ *   par heure epoch et affichés avec date complète et processus
+ */
+object DiagLog {
+
+    private const val T = "DiagLog"
+    const val PREF_LEVEL = "diag_log_level"
+    const val DIR_NAME = "diaglog"
+    /** Niveau désactivé : au-dessus de Log.ASSERT, aucun enregistrement ne passe */
+    const val OFF = Log.ASSERT + 1
+    const val DEFAULT_LEVEL = Log.INFO
+    const val MAX_FILE_BYTES = 256L * 1024
+
+    private const val CAPACITY = 1024
+    private const val MASK = (CAPACITY - 1).toLong()
+    /** Après un réveil, laisse arriver la suite de la rafale avant d'écrire */
+    private const val BATCH_MS = 200L
+
+    private val times = LongArray(CAPACITY)
+    private val levels = IntArray(CAPACITY)
+    private val tags = arrayOfNulls<String>(CAPACITY)
+    private val messages = arrayOfNulls<String>(CAPACITY)
+    private val threads = arrayOfNulls<String>(CAPACITY)
+    private val errors = arrayOfNulls<Throwable>(CAPACITY)
+    /** Séquence publiée dans chaque emplacement (-1 : jamais écrit) */
+    private val published = AtomicLongArray(CAPACITY).apply { for (i in 0 until CAPACITY) set(i, -1) }
+    private val head = AtomicLong()
+    /** Prochaine séquence à traiter (thread d'écriture seul) */
+    @Volatile private var tail = 0L
+    /** Enregistrements perdus, anneau plein */
+    val dropped = AtomicLong()
+
+    /** Niveau minimal enregistré (Log.VERBOSE … Log.ERROR, OFF) */
+    @Volatile var level = DEFAULT_LEVEL
+        private set
+
+    @Volatile private var dir: File? = null
+    private var process = "app"
+    @Volatile private var sleeping = false
+
+    // Fichier courant (thread d'écriture seul)
+    private var out: Writer? = null
+    private var file: File? = null
+    private var fileSize = 0L
+    private var reportedDrops = 0L
+
+    private val writer = Thread({ run() }, "DiagLog").apply {
+        isDaemon = true
+        priority = Thread.MIN_PRIORITY
+        start()
+    }
+
+    fun dir(context: Context) = File(context.filesDir, DIR_NAME)
+
+    fun levelPref(context: Context): Int =
+        context.getSharedPreferences("prefs", Context.MODE_PRIVATE).getInt(PREF_LEVEL, DEFAULT_LEVEL)
+
+    /** Applique le niveau des préférences et active le fichier du processus ; rappelé à chaque rechargement */
+    fun init(context: Context) {
+        if (dir == null) {
+            // "net.appstorefr.perfectdnsmanager:vpn" → "vpn", processus principal → "app"
+            process = try {
+                File("/proc/self/cmdline").readText().trimEnd('\u0000').substringAfter(':', "app")
+            } catch (_: Exception) { "app" }
+            dir = dir(context.applicationContext)
+        }
+        level = levelPref(context)
+    }
+
+    /**
+     * Nouveau niveau, enregistré pour les deux processus (le VPN le relit au rechargement) ;
+     * commit() : à appeler hors du thread principal, avant le rechargement (DnsVpnControl.commitThenReload)
+     */
+    fun setLevel(context: Context, value: Int) {
+        context.getSharedPreferences("prefs", Context.MODE_PRIVATE).edit().putInt(PREF_LEVEL, value).commit()
+        level = value
+    }
+
+    /** Supprime les fichiers des deux processus (les journaux actifs repartent d'un nouveau fichier) */
+    fun clear(context: Context) {
+        dir(context).listFiles()?.forEach { it.delete() }
+    }
+
+    inline fun v(tag: String, msg: () -> String) {
+        if (BuildConfig.DEBUG && level <= Log.VERBOSE) append(Log.VERBOSE, tag, msg(), null)
+    }
+
+    inline fun d(tag: String, msg: () -> String) {
+        if (BuildConfig.DEBUG && level <= Log.DEBUG) append(Log.DEBUG, tag, msg(), null)
+    }
+
+    inline fun i(tag: String, msg: () -> String) {
+        if (level <= Log.INFO) append(Log.INFO, tag, msg(), null)
+    }
+
+    inline fun w(tag: String, error: Throwable? = null, msg: () -> String) {
+        if (level <= Log.WARN) append(Log.WARN, tag, msg(), error)
+    }
+
+    inline fun e(tag: String, error: Throwable? = null, msg: () -> String) {
+        if (level <= Log.ERROR) append(Log.ERROR, tag, msg(), error)
+    }
+
+    @PublishedApi
+    internal fun append(priority: Int, tag: String, msg: String, error: Throwable?) {
+        var seq: Long
+        do {
+            seq = head.get()
+            if (seq - tail >= CAPACITY) {
+                dropped.incrementAndGet()
+                return
+            }
+        } while (!head.compareAndSet(seq, seq + 1))
+
+        val i = (seq and MASK).toInt()
+        times[i] = System.currentTimeMillis()
+        levels[i] = priority
+        tags[i] = tag
+        messages[i] = msg
+        threads[i] = Thread.currentThread().name
+        errors[i] = error
+        published.set(i, seq)
+        // Le thread d'écriture relit l'anneau après s'être déclaré endormi : pas de réveil perdu
+        if (sleeping) {
+            sleeping = false
+            LockSupport.unpark(writer)
+        } else if (seq - tail == (CAPACITY / 2).toLong()) {
+            // Rafale : écriture sans attendre la fin du lot
+            LockSupport.unpark(writer)
+        }
+    }
+
+    private fun run() {
+        while (true) {
+            drain()
+            sleeping = true
+            if (published.get((tail and MASK).toInt()) != tail) {
+                LockSupport.park(this)
+                LockSupport.parkNanos(BATCH_MS * 1_000_000)
+            }
+            sleeping = false
+        }
+    }
+
+    /** Traite les enregistrements publiés, dans l'ordre des séquences */
+    private fun drain() {
+        var seq = tail
+        val drops = dropped.get()
+        if (drops != reportedDrops) {
+            writeLine(System.currentTimeMillis(), Log.WARN, T, Thread.currentThread().name,
+                "${drops - reportedDrops} records dropped (ring full)", null)
+            reportedDrops = drops
+        }
+        if (published.get((seq and MASK).toInt()) != seq) {
+            flush()
+            return
+        }
+        // Journal effacé depuis l'interface : nouveau fichier
+        if (file?.exists() == false) closeFile()
+        while (true) {
+            val i = (seq and MASK).toInt()
+            if (published.get(i) != seq) break
+            writeLine(times[i], levels[i], tags[i] ?: "", threads[i] ?: "", messages[i] ?: "", errors[i])
+            tags[i] = null; messages[i] = null; threads[i] = null; errors[i] = null
+            seq++
+            tail = seq
+        }
+        flush()
+    }
+
+    private fun writeLine(time: Long, priority: Int, tag: String, thread: String, msg: String, error: Throwable?) {
+        val text = if (error != null) msg + '\n' + Log.getStackTraceString(error) else msg
+        Log.println(priority, tag, text)
+        if (dir == null) return
+        try {
+            if (out == null || fileSize >= MAX_FILE_BYTES) openFile()
+            val line = "$time $process ${levelChar(priority)}/$tag [$thread]: $text\n"
+            out!!.write(line)
+            fileSize += line.length
+        } catch (e: Exception) {
+            Log.w(T, "write: ${e.message}")
+            closeFile()
+        }
+    }
+
+    private fun flush() {
+        try { out?.flush() } catch (e: Exception) {
+            Log.w(T, "flush: ${e.message}")
+            closeFile()
+        }
+    }
+
+    private fun openFile() {
+        val dir = dir ?: return
+        closeFile()
+        dir.mkdirs()
+        val f = File(dir, "$process.log")
+        if (f.length() >= MAX_FILE_BYTES) f.renameTo(File(dir, "$process.1.log"))
+        out = OutputStreamWriter(FileOutputStream(f, true), Charsets.UTF_8).buffered(8 * 1024)
+        file = f
+        fileSize = f.length()
+    }
+
+    private fun closeFile() {
+        try { out?.close() } catch (_: Exception) {}
+        out = null
+    }
+
+    fun levelChar(priority: Int): Char = when (priority) {
+        Log.VERBOSE -> 'V'
+        Log.DEBUG -> 'D'
+        Log.INFO -> 'I'
+        Log.WARN -> 'W'
+        Log.ERROR -> 'E'
+        else -> 'A'
+    }
+
+    /** Enregistrement relu : heure epoch, niveau, texte affiché (lignes de continuation comprises) */
+    private class Entry(val time: Long, val level: Char, val text: StringBuilder)
+
+    /** Première ligne d'un enregistrement ("<epoch ms> <processus> <niveau>/…"), null pour une continuation */
+    private fun parseHeader(line: String, display: SimpleDateFormat): Entry? {
+        val sp = line.indexOf(' ')
+        if (sp < 1) return null
+        val time = line.substring(0, sp).toLongOrNull() ?: return null
+        val sp2 = line.indexOf(' ', sp + 1)
+        if (sp2 < 0 || sp2 + 2 >= line.length || line[sp2 + 2] != '/') return null
+        return Entry(time, line[sp2 + 1], StringBuilder(display.format(Date(time))).append(line, sp, line.length))
+    }
+
+    /**
+     * Dernières lignes des journaux des deux processus, dans l'ordre chronologique (heure epoch,
+     * sans ambiguïté d'année), chacune avec sa date complète et son processus ; une ligne de
+     * continuation (trace de pile) suit la ligne qui la précède
+     */
+    fun readRecent(context: Context, minLevel: Int, max: Int): List<String> = readRecent(dir(context), minLevel, max)
+
+    internal fun readRecent(dir: File, minLevel: Int, max: Int): List<String> {
+        val files = dir.listFiles { f -> f.name.endsWith(".log") } ?: return emptyList()
+        val display = SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.ROOT)
+        // Par processus : fichier renommé (.1.log) puis fichier courant
+        val entries = ArrayList<Entry>()
+        for (name in files.map { it.name.substringBefore('.') }.distinct()) {
+            for (f in listOf(File(dir, "$name.1.log"), File(dir, "$name.log"))) {
+                if (!f.exists()) continue
+                try {
+                    var currentEntry: Entry? = null
+                    f.forEachLine { line ->
+                        val entry = parseHeader(line, display)
+                        if (entry != null) {
+                            entries.add(entry)
+                            currentEntry = entry
+                        } else currentEntry?.text?.append('\n')?.append(line)
+                    }
+                } catch (e: Exception) {
+                    Log.w(T, "read ${f.name}: ${e.message}")
+                }
+            }
+        }
+        val levelChars = "VDIWEA"
+        val min = levelChars.indexOf(levelChar(minLevel.coerceIn(Log.VERBOSE, Log.ASSERT)))
+        // Tri stable : à heure égale, l'ordre d'écriture de chaque processus est conservé
+        return entries.filter { levelChars.indexOf(it.level) >= min }
+            .sortedBy { it.time }
+            .takeLast(max)
+            .map { it.text.toString() }
+    }
+}
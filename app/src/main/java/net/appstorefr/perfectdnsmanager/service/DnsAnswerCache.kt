@@ -0,0 +1,72 @@
+package net.appstorefr.perfectdnsmanager.service
+
+import android.os.SystemClock
+import net.appstorefr.perfectdnsmanager.util.DnsWire
+
+/**
+ * Cache des réponses DNS des upstreams, côté VPN, pour le seul mode QoS cache seul (voir
+ * CacheStage) : hors de ce mode, aucune réponse n'est gardée ni servie
+ *
+ * - Clé : upstream + question (nom en minuscules, type, classe) + EDNS présent / bit DO
+ *   + sous-réseau Client Subnet envoyé (une réponse de CDN ne vaut que pour son sous-réseau)
+ * - Durée : plus petit TTL de la réponse (plafonné à 1 h), 30 s pour une réponse vide
+ * - Réponses servies avec l'ID de la requête et les TTL diminués du temps passé en cache
+ * - Seules les réponses NOERROR / NXDOMAIN non tronquées sont gardées ; LRU de 2048 entrées
+ */
+class DnsAnswerCache {
+
+    companion object {
+        private const val MAX_ENTRIES = 2048
+        private const val MAX_TTL_S = 3600L
+        private const val EMPTY_TTL_S = 30L
+    }
+
+    private class Entry(val response: ByteArray, val storedAt: Long, val expiresAt: Long)
+
+    private val entries = object : LinkedHashMap<String, Entry>(256, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, Entry>) = size > MAX_ENTRIES
+    }
+
+    private fun key(upstream: String, query: ByteArray): String? {
+        val end = DnsWire.questionEnd(query, query.size)
+        if (end < 0 || DnsWire.u16(query, 4) != 1) return null
+        val question = query.copyOfRange(DnsWire.HEADER_SIZE, end)
+        // Nom en minuscules (les octets de longueur, < 64, ne sont pas des lettres)
+        for (i in 0 until question.size - 4) {
+            if (question[i] in 'A'.code.toByte()..'Z'.code.toByte()) question[i] = (question[i] + 32).toByte()
+        }
+        val edns = if (!DnsWire.hasEdns(query)) 0 else if (DnsWire.ednsDnssecOk(query)) 2 else 1
+        val scope = if (edns == 0) null else DnsWire.ecsOption(query)?.let { String(it, Charsets.ISO_8859_1) }
+        return "$upstream|$edns|${scope.orEmpty()}|${String(question, Charsets.ISO_8859_1)}"
+    }
+
+    /** Réponse en cache pour cette requête (ID de la requête, TTL vieillis), null si absente ou expirée */
+    fun get(upstream: String, query: ByteArray): ByteArray? {
+        val key = key(upstream, query) ?: return null
+        val now = SystemClock.elapsedRealtime()
+        val entry = synchronized(entries) {
+            val e = entries[key] ?: return null
+            if (now >= e.expiresAt) { entries.remove(key); return null }
+            e
+        }
+        val id = DnsWire.u16(query, 0)
+        return DnsWire.withId(DnsWire.withAgedTtls(entry.response, (now - entry.storedAt) / 1000), id)
+    }
+
+    fun put(upstream: String, query: ByteArray, response: ByteArray) {
+        val rcode = DnsWire.rcode(response)
+        if (rcode != 0 && rcode != DnsWire.RCODE_NXDOMAIN) return
+        if (DnsWire.isTruncated(response)) return
+        val minTtl = DnsWire.minTtl(response) ?: return
+        val ttl = if (minTtl < 0) EMPTY_TTL_S else minOf(minTtl, MAX_TTL_S)
+        if (ttl <= 0) return
+        val key = key(upstream, query) ?: return
+        val now = SystemClock.elapsedRealtime()
+        synchronized(entries) { entries[key] = Entry(response, now, now + ttl * 1000) }
+    }
+
+    fun clear() = synchronized(entries) { entries.clear() }
+
+    /** Réponses gardées (expirées comprises, jusqu'à leur prochaine lecture ou éviction) */
+    fun size(): Int = synchronized(entries) { entries.size }
+}
@@ -0,0 +1,259 @@
+package net.appstorefr.perfectdnsmanager.service
+
+import android.net.VpnService
+import android.os.SystemClock
+import net.appstorefr.perfectdnsmanager.data.DnsStamp
+import net.appstorefr.perfectdnsmanager.util.DnsWire
+import java.io.DataInputStream
+import java.net.DatagramPacket
+import java.net.DatagramSocket
+import java.net.Socket
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.net.SocketTimeoutException
+import java.nio.ByteBuffer
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import kotlin.random.Random
+
+/**
+ * Client DNSCrypt v2 (https://dnscrypt.info/protocol)
+ *
+ * - Upstream décrit par un stamp sdns:// (IP:port du résolveur, clé du provider, nom du provider)
+ * - Certificats récupérés par requête TXT sur le nom du provider, signature Ed25519 vérifiée,
+ *   le certificat valide de plus grand serial est retenu
+ * - Cache des certificats partagé VPN / testeurs ; rotation : re-fetch en tâche de fond toutes
+ *   les heures, immédiat à expiration ou si une réponse ne se déchiffre plus
+ * - X25519-XSalsa20Poly1305, UDP sans état : 1 socket protégée par requête, aucun handshake
+ * - Padding adaptatif : le résolveur tronque (TC) toute réponse plus grande que la requête,
+ *   la taille de requête est alors relevée pour cet upstream
+ * - Réponse encore tronquée au padding max : même requête chiffrée sur TCP (préfixe de longueur)
+ */
+class DnsCryptClient(private val vpnService: VpnService?) {
+
+    companion object {
+        private const val T = "DnsCrypt"
+        private const val TIMEOUT_MS = 5000
+        private const val CERT_REFRESH_MS = 3600_000L
+        private const val CERT_SIZE = 124
+        private const val ES_XSALSA20_POLY1305 = 1
+        private const val MIN_QUERY_SIZE = 256
+        private const val MAX_QUERY_SIZE = 1472
+        private const val PADDING_BLOCK = 64
+        private const val HALF_NONCE = 12
+        private val CERT_MAGIC = byteArrayOf(0x44, 0x4E, 0x53, 0x43) // "DNSC"
+        private val RESOLVER_MAGIC = byteArrayOf(0x72, 0x36, 0x66, 0x6e, 0x76, 0x57, 0x6a, 0x38)
+        /** Marqueur interne : paquet reçu qui n'est pas la réponse attendue */
+        private val NOT_OURS = ByteArray(0)
+
+        /** Certificat retenu + clé partagée précalculée */
+        private class Cert(
+            val clientMagic: ByteArray,
+            val tsEnd: Long,
+            val clientPublicKey: ByteArray,
+            val sharedKey: ByteArray,
+            val fetchedAt: Long
+        )
+
+        private val stamps = ConcurrentHashMap<String, DnsStamp>()
+        private val certs = ConcurrentHashMap<String, Cert>()
+        private val querySizes = ConcurrentHashMap<String, Int>()
+        private val refreshing = ConcurrentHashMap.newKeySet<String>()
+        private val refresher = Executors.newSingleThreadExecutor { r ->
+            Thread(r, "DnsCrypt-cert").apply { isDaemon = true }
+        }
+    }
+
+    /**
+     * Envoie une requête DNS via DNSCrypt.
+     * @param stampStr stamp sdns:// de type DNSCrypt
+     * @return la réponse DNS en clair, ou null si erreur
+     */
+    fun query(dnsPayload: ByteArray, stampStr: String, timeoutMs: Int = TIMEOUT_MS): ByteArray? {
+        return try {
+            val stamp = stamps.getOrPut(stampStr) { DnsStamp.parse(stampStr) ?: return null }
+            if (stamp.protocol != DnsStamp.PROTO_DNSCRYPT) return null
+            val server = InetSocketAddress(InetAddress.getByName(stamp.address), stamp.port)
+
+            val cert = certFor(stampStr, stamp, server) ?: return null
+            val size = querySizes[stampStr] ?: MIN_QUERY_SIZE
+            val timeout = timeoutMs.coerceIn(1, TIMEOUT_MS)
+            var resp = exchange(stampStr, dnsPayload, cert, server, size, timeout) ?: return null
+            if (DnsWire.isTruncated(resp) && size < MAX_QUERY_SIZE) {
+                querySizes[stampStr] = MAX_QUERY_SIZE
+                resp = exchange(stampStr, dnsPayload, cert, server, MAX_QUERY_SIZE, timeout) ?: resp
+            }
+            // Réponse plus grande qu'un datagramme : repli sur TCP
+            if (DnsWire.isTruncated(resp)) {
+                resp = exchangeTcp(stampStr, dnsPayload, cert, server, timeout) ?: resp
+            }
+            resp
+        } catch (e: Exception) {
+            DiagLog.w(T) { "DNSCrypt query err: ${e.javaClass.simpleName}: ${e.message}" }
+            null
+        }
+    }
+
+    private fun certFor(key: String, stamp: DnsStamp, server: InetSocketAddress): Cert? {
+        val cached = certs[key]
+        val nowEpoch = System.currentTimeMillis() / 1000
+        if (cached != null && nowEpoch < cached.tsEnd) {
+            if (SystemClock.elapsedRealtime() - cached.fetchedAt > CERT_REFRESH_MS && refreshing.add(key)) {
+                refresher.execute {
+                    try { fetchCert(stamp, server)?.let { certs[key] = it } } finally { refreshing.remove(key) }
+                }
+            }
+            return cached
+        }
+        synchronized(stamp) {
+            certs[key]?.let { if (nowEpoch < it.tsEnd && it !== cached) return it }
+            val cert = fetchCert(stamp, server) ?: return null
+            certs[key] = cert
+            return cert
+        }
+    }
+
+    /** Récupère et vérifie les certificats du résolveur (TXT <provider name>) */
+    private fun fetchCert(stamp: DnsStamp, server: InetSocketAddress): Cert? {
+        val providerName = stamp.providerName ?: return null
+        val providerKey = stamp.providerPublicKey ?: return null
+        val sock = newSocket()
+        try {
+            val id = Random.nextInt(0x10000)
+            val q = DnsWire.buildQuery(providerName, DnsWire.TYPE_TXT, id)
+            sock.send(DatagramPacket(q, q.size, server))
+            val buf = ByteArray(4096)
+            val pkt = DatagramPacket(buf, buf.size)
+            do { sock.receive(pkt) } while (pkt.length < DnsWire.HEADER_SIZE || DnsWire.u16(buf, 0) != id)
+
+            val nowEpoch = System.currentTimeMillis() / 1000
+            var best: ByteArray? = null
+            var bestSerial = -1L
+            for (c in DnsWire.parseTxt(buf, pkt.length)) {
+                if (c.size < CERT_SIZE || !c.copyOfRange(0, 4).contentEquals(CERT_MAGIC)) continue
+                if (DnsWire.u16(c, 4) != ES_XSALSA20_POLY1305) continue
+                val signed = c.copyOfRange(72, c.size)
+                if (!DnsCryptCrypto.ed25519Verify(providerKey, signed, c.copyOfRange(8, 72))) {
+                    DiagLog.w(T) { "Bad certificate signature for $providerName" }
+                    continue
+                }
+                val serial = DnsWire.u32(c, 112)
+                val tsStart = DnsWire.u32(c, 116)
+                val tsEnd = DnsWire.u32(c, 120)
+                if (nowEpoch < tsStart || nowEpoch >= tsEnd) continue
+                if (serial > bestSerial) { best = c; bestSerial = serial }
+            }
+            val c = best ?: run {
+                DiagLog.w(T) { "No valid certificate for $providerName" }
+                return null
+            }
+
+            // Paire de clés client renouvelée à chaque certificat
+            val clientSecret = DnsCryptCrypto.randomBytes(DnsCryptCrypto.KEY_SIZE)
+            val resolverPk = c.copyOfRange(72, 104)
+            DiagLog.i(T) { "Certificate $providerName serial=$bestSerial" }
+            return Cert(
+                clientMagic = c.copyOfRange(104, 112),
+                tsEnd = DnsWire.u32(c, 120),
+                clientPublicKey = DnsCryptCrypto.x25519PublicKey(clientSecret),
+                sharedKey = DnsCryptCrypto.sharedKey(resolverPk, clientSecret),
+                fetchedAt = SystemClock.elapsedRealtime()
+            )
+        } catch (e: Exception) {
+            DiagLog.w(T) { "fetchCert $providerName: ${e.javaClass.simpleName}: ${e.message}" }
+            return null
+        } finally {
+            sock.close()
+        }
+    }
+
+    /** Chiffre, envoie et déchiffre une requête UDP ; null si pas de réponse authentifiée */
+    private fun exchange(
+        key: String, payload: ByteArray, cert: Cert, server: InetSocketAddress, minSize: Int, timeoutMs: Int
+    ): ByteArray? {
+        val clientNonce = DnsCryptCrypto.randomBytes(HALF_NONCE)
+        val packet = seal(payload, cert, clientNonce, minSize)
+
+        val sock = newSocket(timeoutMs)
+        try {
+            sock.send(DatagramPacket(packet, packet.size, server))
+            val buf = ByteArray(MAX_QUERY_SIZE + 256)
+            while (true) {
+                val pkt = DatagramPacket(buf, buf.size)
+                try { sock.receive(pkt) } catch (_: SocketTimeoutException) { return null }
+                val resp = open(key, cert, clientNonce, buf, pkt.length)
+                if (resp !== NOT_OURS) return resp
+            }
+        } finally {
+            sock.close()
+        }
+    }
+
+    /** Même échange sur TCP : 2 octets de longueur devant la requête et la réponse */
+    private fun exchangeTcp(key: String, payload: ByteArray, cert: Cert, server: InetSocketAddress, timeoutMs: Int): ByteArray? {
+        val clientNonce = DnsCryptCrypto.randomBytes(HALF_NONCE)
+        // Taille aléatoire : sur TCP le padding ne sert qu'à masquer la taille de la requête
+        val packet = seal(payload, cert, clientNonce, MIN_QUERY_SIZE + Random.nextInt(4) * PADDING_BLOCK)
+        val socket = Socket()
+        return try {
+            vpnService?.protect(socket)
+            socket.connect(server, timeoutMs)
+            socket.soTimeout = timeoutMs
+            val out = socket.getOutputStream()
+            out.write(ByteBuffer.allocate(2 + packet.size).putShort(packet.size.toShort()).put(packet).array())
+            out.flush()
+            val input = DataInputStream(socket.getInputStream())
+            val resp = ByteArray(input.readUnsignedShort())
+            input.readFully(resp)
+            open(key, cert, clientNonce, resp, resp.size).takeIf { it !== NOT_OURS }
+        } catch (e: Exception) {
+            DiagLog.w(T) { "TCP exchange: ${e.javaClass.simpleName}: ${e.message}" }
+            null
+        } finally {
+            try { socket.close() } catch (_: Exception) {}
+        }
+    }
+
+    /** clientMagic ‖ clientPk ‖ clientNonce ‖ box(requête paddée) */
+    private fun seal(payload: ByteArray, cert: Cert, clientNonce: ByteArray, minSize: Int): ByteArray {
+        // Padding ISO/IEC 7816-4 : 0x80 puis des zéros, multiple de 64 octets
+        val padded = ByteArray(maxOf(minSize, (payload.size + 1 + PADDING_BLOCK - 1) / PADDING_BLOCK * PADDING_BLOCK))
+        System.arraycopy(payload, 0, padded, 0, payload.size)
+        padded[payload.size] = 0x80.toByte()
+        val box = DnsCryptCrypto.seal(cert.sharedKey, clientNonce.copyOf(DnsCryptCrypto.NONCE_SIZE), padded)
+        return ByteBuffer.allocate(8 + 32 + HALF_NONCE + box.size)
+            .put(cert.clientMagic).put(cert.clientPublicKey).put(clientNonce).put(box).array()
+    }
+
+    /**
+     * Déchiffre une réponse du résolveur.
+     * @return la réponse DNS, NOT_OURS si le paquet ne correspond pas à la requête, null si indéchiffrable
+     */
+    private fun open(key: String, cert: Cert, clientNonce: ByteArray, buf: ByteArray, n: Int): ByteArray? {
+        val header = 8 + DnsCryptCrypto.NONCE_SIZE
+        if (n < header + DnsCryptCrypto.MAC_SIZE) return NOT_OURS
+        if (!buf.copyOfRange(0, 8).contentEquals(RESOLVER_MAGIC)) return NOT_OURS
+        if (!buf.copyOfRange(8, 8 + HALF_NONCE).contentEquals(clientNonce)) return NOT_OURS
+        val nonce = buf.copyOfRange(8, header)
+        val plain = DnsCryptCrypto.open(cert.sharedKey, nonce, buf, header, n - header)
+        if (plain == null) {
+            // Réponse indéchiffrable : certificat probablement renouvelé côté serveur
+            DiagLog.w(T) { "Undecryptable response, dropping certificate" }
+            certs.remove(key, cert)
+            return null
+        }
+        return unpad(plain)
+    }
+
+    private fun unpad(data: ByteArray): ByteArray? {
+        var i = data.size - 1
+        while (i >= 0 && data[i].toInt() == 0) i--
+        if (i < DnsWire.HEADER_SIZE || data[i] != 0x80.toByte()) return null
+        return data.copyOf(i)
+    }
+
+    private fun newSocket(timeoutMs: Int = TIMEOUT_MS): DatagramSocket = DatagramSocket().also {
+        vpnService?.protect(it)
+        it.soTimeout = timeoutMs
+    }
+}
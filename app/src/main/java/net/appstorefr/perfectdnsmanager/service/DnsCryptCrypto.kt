@@ -0,0 +1,315 @@
+package net.appstorefr.perfectdnsmanager.service
+
+import java.math.BigInteger
+import java.security.MessageDigest
+import java.security.SecureRandom
+
+/**
+ * Primitives cryptographiques de DNSCrypt v2 (construction X25519-XSalsa20Poly1305, es-version 1)
+ *
+ * Android n'expose ni X25519, ni Ed25519, ni XSalsa20 avant les API récentes : implémentation
+ * en Kotlin pur, sans dépendance.
+ * - X25519 (RFC 7748) et vérification Ed25519 (RFC 8032) en BigInteger : appelés une fois par
+ *   certificat, le coût (quelques ms) est négligeable
+ * - XSalsa20 + Poly1305 (crypto_secretbox de NaCl) sur entiers : appelés à chaque requête
+ */
+object DnsCryptCrypto {
+
+    const val KEY_SIZE = 32
+    const val NONCE_SIZE = 24
+    const val MAC_SIZE = 16
+
+    private val random = SecureRandom()
+
+    fun randomBytes(n: Int): ByteArray = ByteArray(n).also { random.nextBytes(it) }
+
+    // ── X25519 ───────────────────────────────────────────────────────────
+
+    private val P: BigInteger = BigInteger.ONE.shiftLeft(255).subtract(BigInteger.valueOf(19))
+    private val A24: BigInteger = BigInteger.valueOf(121665)
+
+    /** Clé publique X25519 associée à une clé privée de 32 octets */
+    fun x25519PublicKey(secretKey: ByteArray): ByteArray =
+        x25519(secretKey, ByteArray(32).also { it[0] = 9 })
+
+    fun x25519(scalar: ByteArray, u: ByteArray): ByteArray {
+        val k = scalar.copyOf(32)
+        k[0] = (k[0].toInt() and 248).toByte()
+        k[31] = ((k[31].toInt() and 127) or 64).toByte()
+        val n = decodeLE(k)
+        val uc = u.copyOf(32)
+        uc[31] = (uc[31].toInt() and 127).toByte()
+        val x1 = decodeLE(uc).mod(P)
+
+        var x2 = BigInteger.ONE; var z2 = BigInteger.ZERO
+        var x3 = x1; var z3 = BigInteger.ONE
+        var swap = false
+        for (t in 254 downTo 0) {
+            val bit = n.testBit(t)
+            if (swap != bit) { val tx = x2; x2 = x3; x3 = tx; val tz = z2; z2 = z3; z3 = tz }
+            swap = bit
+            val a = x2.add(z2); val aa = a.multiply(a).mod(P)
+            val b = x2.subtract(z2); val bb = b.multiply(b).mod(P)
+            val e = aa.subtract(bb)
+            val c = x3.add(z3); val d = x3.subtract(z3)
+            val da = d.multiply(a).mod(P); val cb = c.multiply(b).mod(P)
+            val s = da.add(cb); val m = da.subtract(cb)
+            x3 = s.multiply(s).mod(P)
+            z3 = x1.multiply(m.multiply(m)).mod(P)
+            x2 = aa.multiply(bb).mod(P)
+            z2 = e.multiply(aa.add(A24.multiply(e))).mod(P)
+        }
+        if (swap) { x2 = x3; z2 = z3 }
+        return encodeLE(x2.multiply(z2.modPow(P.subtract(BigInteger.valueOf(2)), P)).mod(P))
+    }
+
+    // ── Ed25519 (vérification seule) ─────────────────────────────────────
+
+    private val ED_D: BigInteger = BigInteger.valueOf(-121665)
+        .multiply(BigInteger.valueOf(121666).modInverse(P)).mod(P)
+    private val ED_L: BigInteger = BigInteger.ONE.shiftLeft(252).add(BigInteger("27742317777372353535851937790883648493"))
+    private val SQRT_M1: BigInteger = BigInteger.valueOf(2).modPow(P.subtract(BigInteger.ONE).shiftRight(2), P)
+
+    /** Point en coordonnées étendues (X, Y, Z, T) */
+    private class EdPoint(val x: BigInteger, val y: BigInteger, val z: BigInteger, val t: BigInteger)
+
+    private val ED_BASE: EdPoint by lazy {
+        val y = BigInteger.valueOf(4).multiply(BigInteger.valueOf(5).modInverse(P)).mod(P)
+        val x = recoverX(y, false)!!
+        EdPoint(x, y, BigInteger.ONE, x.multiply(y).mod(P))
+    }
+    private val ED_ZERO = EdPoint(BigInteger.ZERO, BigInteger.ONE, BigInteger.ONE, BigInteger.ZERO)
+
+    fun ed25519Verify(publicKey: ByteArray, message: ByteArray, signature: ByteArray): Boolean {
+        if (publicKey.size != 32 || signature.size != 64) return false
+        val a = decodePoint(publicKey) ?: return false
+        val rBytes = signature.copyOfRange(0, 32)
+        val r = decodePoint(rBytes) ?: return false
+        val s = decodeLE(signature.copyOfRange(32, 64))
+        if (s >= ED_L) return false
+        val sha = MessageDigest.getInstance("SHA-512")
+        sha.update(rBytes); sha.update(publicKey); sha.update(message)
+        val h = decodeLE(sha.digest()).mod(ED_L)
+        return pointEquals(scalarMult(ED_BASE, s), pointAdd(r, scalarMult(a, h)))
+    }
+
+    private fun recoverX(y: BigInteger, sign: Boolean): BigInteger? {
+        if (y >= P) return null
+        val y2 = y.multiply(y)
+        val x2 = y2.subtract(BigInteger.ONE).multiply(ED_D.multiply(y2).add(BigInteger.ONE).modInverse(P)).mod(P)
+        if (x2.signum() == 0) return if (sign) null else BigInteger.ZERO
+        var x = x2.modPow(P.add(BigInteger.valueOf(3)).shiftRight(3), P)
+        if (x.multiply(x).subtract(x2).mod(P).signum() != 0) x = x.multiply(SQRT_M1).mod(P)
+        if (x.multiply(x).subtract(x2).mod(P).signum() != 0) return null
+        if (x.testBit(0) != sign) x = P.subtract(x)
+        return x
+    }
+
+    private fun decodePoint(bytes: ByteArray): EdPoint? {
+        val b = bytes.copyOf()
+        val sign = (b[31].toInt() and 0x80) != 0
+        b[31] = (b[31].toInt() and 0x7F).toByte()
+        val y = decodeLE(b)
+        val x = recoverX(y, sign) ?: return null
+        return EdPoint(x, y, BigInteger.ONE, x.multiply(y).mod(P))
+    }
+
+    private fun pointAdd(p: EdPoint, q: EdPoint): EdPoint {
+        val a = p.y.subtract(p.x).multiply(q.y.subtract(q.x)).mod(P)
+        val b = p.y.add(p.x).multiply(q.y.add(q.x)).mod(P)
+        val c = p.t.multiply(BigInteger.valueOf(2)).multiply(ED_D).multiply(q.t).mod(P)
+        val d = p.z.multiply(BigInteger.valueOf(2)).multiply(q.z).mod(P)
+        val e = b.subtract(a); val f = d.subtract(c); val g = d.add(c); val h = b.add(a)
+        return EdPoint(e.multiply(f).mod(P), g.multiply(h).mod(P), f.multiply(g).mod(P), e.multiply(h).mod(P))
+    }
+
+    private fun scalarMult(p: EdPoint, n: BigInteger): EdPoint {
+        var q = ED_ZERO
+        for (i in n.bitLength() - 1 downTo 0) {
+            q = pointAdd(q, q)
+            if (n.testBit(i)) q = pointAdd(q, p)
+        }
+        return q
+    }
+
+    private fun pointEquals(p: EdPoint, q: EdPoint): Boolean =
+        p.x.multiply(q.z).subtract(q.x.multiply(p.z)).mod(P).signum() == 0 &&
+            p.y.multiply(q.z).subtract(q.y.multiply(p.z)).mod(P).signum() == 0
+
+    private fun decodeLE(b: ByteArray): BigInteger = BigInteger(1, b.reversedArray())
+
+    private fun encodeLE(n: BigInteger): ByteArray {
+        val be = n.toByteArray()
+        val out = ByteArray(32)
+        for (i in 0 until minOf(32, be.size)) out[i] = be[be.size - 1 - i]
+        return out
+    }
+
+    // ── XSalsa20-Poly1305 (crypto_box / crypto_secretbox) ────────────────
+
+    private val SIGMA = intArrayOf(0x61707865, 0x3320646e, 0x79622d32, 0x6b206574)
+
+    /** Clé partagée crypto_box_beforenm : HSalsa20(X25519(sk, pk), 0) */
+    fun sharedKey(publicKey: ByteArray, secretKey: ByteArray): ByteArray =
+        hsalsa20(x25519(secretKey, publicKey), ByteArray(16))
+
+    /** Chiffre et authentifie : retourne MAC (16) || texte chiffré */
+    fun seal(key: ByteArray, nonce: ByteArray, message: ByteArray): ByteArray {
+        val stream = xsalsa20Stream(key, nonce, 32 + message.size)
+        val out = ByteArray(MAC_SIZE + message.size)
+        for (i in message.indices) out[MAC_SIZE + i] = (message[i].toInt() xor stream[32 + i].toInt()).toByte()
+        val tag = poly1305(out, MAC_SIZE, message.size, stream)
+        System.arraycopy(tag, 0, out, 0, MAC_SIZE)
+        return out
+    }
+
+    /** Vérifie et déchiffre MAC || texte chiffré, null si l'authentification échoue */
+    fun open(key: ByteArray, nonce: ByteArray, box: ByteArray, offset: Int = 0, length: Int = box.size - offset): ByteArray? {
+        if (length < MAC_SIZE) return null
+        val ctLen = length - MAC_SIZE
+        val stream = xsalsa20Stream(key, nonce, 32 + ctLen)
+        val tag = poly1305(box, offset + MAC_SIZE, ctLen, stream)
+        if (!MessageDigest.isEqual(tag, box.copyOfRange(offset, offset + MAC_SIZE))) return null
+        val out = ByteArray(ctLen)
+        for (i in 0 until ctLen) out[i] = (box[offset + MAC_SIZE + i].toInt() xor stream[32 + i].toInt()).toByte()
+        return out
+    }
+
+    private fun xsalsa20Stream(key: ByteArray, nonce: ByteArray, length: Int): ByteArray {
+        val subKey = hsalsa20(key, nonce.copyOfRange(0, 16))
+        val state = IntArray(16)
+        val x = IntArray(16)
+        state[0] = SIGMA[0]; state[5] = SIGMA[1]; state[10] = SIGMA[2]; state[15] = SIGMA[3]
+        for (i in 0 until 4) { state[1 + i] = le32(subKey, i * 4); state[11 + i] = le32(subKey, 16 + i * 4) }
+        state[6] = le32(nonce, 16); state[7] = le32(nonce, 20)
+        val out = ByteArray(length)
+        var counter = 0L
+        var pos = 0
+        while (pos < length) {
+            state[8] = counter.toInt(); state[9] = (counter ushr 32).toInt()
+            state.copyInto(x)
+            salsaRounds(x)
+            for (i in 0 until 16) {
+                val w = x[i] + state[i]
+                for (j in 0 until 4) {
+                    if (pos + i * 4 + j < length) out[pos + i * 4 + j] = (w ushr (8 * j)).toByte()
+                }
+            }
+            pos += 64
+            counter++
+        }
+        return out
+    }
+
+    private fun hsalsa20(key: ByteArray, input: ByteArray): ByteArray {
+        val x = IntArray(16)
+        x[0] = SIGMA[0]; x[5] = SIGMA[1]; x[10] = SIGMA[2]; x[15] = SIGMA[3]
+        for (i in 0 until 4) {
+            x[1 + i] = le32(key, i * 4); x[11 + i] = le32(key, 16 + i * 4); x[6 + i] = le32(input, i * 4)
+        }
+        salsaRounds(x)
+        val out = ByteArray(32)
+        intArrayOf(x[0], x[5], x[10], x[15], x[6], x[7], x[8], x[9]).forEachIndexed { i, w -> putLE32(out, i * 4, w) }
+        return out
+    }
+
+    private fun salsaRounds(x: IntArray) {
+        repeat(10) {
+            quarter(x, 0, 4, 8, 12); quarter(x, 5, 9, 13, 1); quarter(x, 10, 14, 2, 6); quarter(x, 15, 3, 7, 11)
+            quarter(x, 0, 1, 2, 3); quarter(x, 5, 6, 7, 4); quarter(x, 10, 11, 8, 9); quarter(x, 15, 12, 13, 14)
+        }
+    }
+
+    private fun quarter(x: IntArray, a: Int, b: Int, c: Int, d: Int) {
+        x[b] = x[b] xor Integer.rotateLeft(x[a] + x[d], 7)
+        x[c] = x[c] xor Integer.rotateLeft(x[b] + x[a], 9)
+        x[d] = x[d] xor Integer.rotateLeft(x[c] + x[b], 13)
+        x[a] = x[a] xor Integer.rotateLeft(x[d] + x[c], 18)
+    }
+
+    /** Poly1305 (limbs de 26 bits), clé = 32 premiers octets de `key` */
+    private fun poly1305(msg: ByteArray, offset: Int, length: Int, key: ByteArray): ByteArray {
+        val mask = 0x3ffffffL
+        val r0 = u32(key, 0) and 0x3ffffff
+        val r1 = (u32(key, 3) ushr 2) and 0x3ffff03
+        val r2 = (u32(key, 6) ushr 4) and 0x3ffc0ff
+        val r3 = (u32(key, 9) ushr 6) and 0x3f03fff
+        val r4 = (u32(key, 12) ushr 8) and 0x00fffff
+        val s1 = r1 * 5; val s2 = r2 * 5; val s3 = r3 * 5; val s4 = r4 * 5
+        var h0 = 0L; var h1 = 0L; var h2 = 0L; var h3 = 0L; var h4 = 0L
+
+        val block = ByteArray(16)
+        var pos = 0
+        while (pos < length) {
+            val n = minOf(16, length - pos)
+            val hibit: Long
+            if (n == 16) {
+                System.arraycopy(msg, offset + pos, block, 0, 16)
+                hibit = 1L shl 24
+            } else {
+                block.fill(0)
+                System.arraycopy(msg, offset + pos, block, 0, n)
+                block[n] = 1
+                hibit = 0
+            }
+            h0 += u32(block, 0) and mask
+            h1 += (u32(block, 3) ushr 2) and mask
+            h2 += (u32(block, 6) ushr 4) and mask
+            h3 += (u32(block, 9) ushr 6) and mask
+            h4 += (u32(block, 12) ushr 8) or hibit
+
+            val d0 = h0 * r0 + h1 * s4 + h2 * s3 + h3 * s2 + h4 * s1
+            var d1 = h0 * r1 + h1 * r0 + h2 * s4 + h3 * s3 + h4 * s2
+            var d2 = h0 * r2 + h1 * r1 + h2 * r0 + h3 * s4 + h4 * s3
+            var d3 = h0 * r3 + h1 * r2 + h2 * r1 + h3 * r0 + h4 * s4
+            var d4 = h0 * r4 + h1 * r3 + h2 * r2 + h3 * r1 + h4 * r0
+            var c = d0 ushr 26; h0 = d0 and mask
+            d1 += c; c = d1 ushr 26; h1 = d1 and mask
+            d2 += c; c = d2 ushr 26; h2 = d2 and mask
+            d3 += c; c = d3 ushr 26; h3 = d3 and mask
+            d4 += c; c = d4 ushr 26; h4 = d4 and mask
+            h0 += c * 5; c = h0 ushr 26; h0 = h0 and mask
+            h1 += c
+            pos += 16
+        }
+
+        // Réduction complète modulo 2^130 - 5
+        var c = h1 ushr 26; h1 = h1 and mask
+        h2 += c; c = h2 ushr 26; h2 = h2 and mask
+        h3 += c; c = h3 ushr 26; h3 = h3 and mask
+        h4 += c; c = h4 ushr 26; h4 = h4 and mask
+        h0 += c * 5; c = h0 ushr 26; h0 = h0 and mask
+        h1 += c
+
+        var g0 = h0 + 5; c = g0 ushr 26; g0 = g0 and mask
+        var g1 = h1 + c; c = g1 ushr 26; g1 = g1 and mask
+        var g2 = h2 + c; c = g2 ushr 26; g2 = g2 and mask
+        var g3 = h3 + c; c = g3 ushr 26; g3 = g3 and mask
+        val g4 = h4 + c - (1L shl 26)
+        if (g4 >= 0) { h0 = g0; h1 = g1; h2 = g2; h3 = g3; h4 = g4 }
+
+        // h + s (mod 2^128)
+        val w0 = (h0 or (h1 shl 26)) and 0xffffffffL
+        val w1 = ((h1 ushr 6) or (h2 shl 20)) and 0xffffffffL
+        val w2 = ((h2 ushr 12) or (h3 shl 14)) and 0xffffffffL
+        val w3 = ((h3 ushr 18) or (h4 shl 8)) and 0xffffffffL
+        var f = w0 + u32(key, 16)
+        val out = ByteArray(16)
+        putLE32(out, 0, f.toInt())
+        f = w1 + u32(key, 20) + (f ushr 32); putLE32(out, 4, f.toInt())
+        f = w2 + u32(key, 24) + (f ushr 32); putLE32(out, 8, f.toInt())
+        f = w3 + u32(key, 28) + (f ushr 32); putLE32(out, 12, f.toInt())
+        return out
+    }
+
+    private fun le32(b: ByteArray, off: Int): Int =
+        (b[off].toInt() and 0xFF) or ((b[off + 1].toInt() and 0xFF) shl 8) or
+            ((b[off + 2].toInt() and 0xFF) shl 16) or ((b[off + 3].toInt() and 0xFF) shl 24)
+
+    private fun u32(b: ByteArray, off: Int): Long = le32(b, off).toLong() and 0xffffffffL
+
+    private fun putLE32(b: ByteArray, off: Int, v: Int) {
+        b[off] = v.toByte(); b[off + 1] = (v ushr 8).toByte()
+        b[off + 2] = (v ushr 16).toByte(); b[off + 3] = (v ushr 24).toByte()
+    }
+}
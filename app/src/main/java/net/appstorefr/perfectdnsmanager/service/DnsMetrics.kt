@@ -0,0 +1,198 @@
+package net.appstorefr.perfectdnsmanager.service
+
+import android.os.SystemClock
+import org.json.JSONArray
+import org.json.JSONObject
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * Métriques du VPN : compteurs et histogrammes de latence par upstream
+ *
+ * - Enregistrement sur le chemin des requêtes : incréments atomiques, aucun verrou ni allocation
+ *   (statistiques d'un upstream créées une fois à sa première réponse)
+ * - Histogrammes à seuils fixes (ms), quantiles estimés par interpolation dans le seuil
+ * - Lecture (écran des statistiques, notification) : snapshot JSON, jamais sur le chemin des requêtes
+ */
+class DnsMetrics {
+
+    companion object {
+        /** Bornes supérieures des seuils (ms) ; un dernier seuil reçoit tout le reste */
+        val BUCKETS_MS = longArrayOf(2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000)
+        const val TRANSPORT_UDP = "udp"
+        const val TRANSPORT_DOH = "doh"
+        const val TRANSPORT_DOQ = "doq"
+        const val TRANSPORT_DNSCRYPT = "dnscrypt"
+
+        fun transportOf(upstream: String): String = when {
+            upstream.startsWith("https://") -> TRANSPORT_DOH
+            upstream.startsWith("quic://") -> TRANSPORT_DOQ
+            upstream.startsWith("sdns://") -> TRANSPORT_DNSCRYPT
+            else -> TRANSPORT_UDP
+        }
+
+        /** Quantile `q` (0..1) d'un histogramme `counts` (BUCKETS_MS + 1 seuils), -1 si vide */
+        fun quantile(counts: LongArray, q: Double): Long {
+            val total = counts.sum()
+            if (total == 0L) return -1
+            val rank = q * total
+            var seen = 0L
+            for (i in counts.indices) {
+                if (counts[i] == 0L) continue
+                if (seen + counts[i] >= rank) {
+                    val lo = if (i == 0) 0L else BUCKETS_MS[i - 1]
+                    val hi = if (i < BUCKETS_MS.size) BUCKETS_MS[i] else BUCKETS_MS.last() * 2
+                    return lo + ((hi - lo) * (rank - seen) / counts[i]).toLong()
+                }
+                seen += counts[i]
+            }
+            return BUCKETS_MS.last() * 2
+        }
+    }
+
+    /** Compteurs d'un upstream */
+    class Upstream(val name: String) {
+        val transport = transportOf(name)
+        val latency = AtomicLongArray(BUCKETS_MS.size + 1)
+        val answers = AtomicLong()
+        val errors = AtomicLong()
+        val timeouts = AtomicLong()
+        /** Somme des latences (ns), pour la moyenne côté Prometheus */
+        val latencyNanos = AtomicLong()
+
+        fun record(nanos: Long) {
+            val ms = nanos / 1_000_000
+            var i = 0
+            while (i < BUCKETS_MS.size && ms > BUCKETS_MS[i]) i++
+            latency.incrementAndGet(i)
+            latencyNanos.addAndGet(nanos)
+            answers.incrementAndGet()
+        }
+    }
+
+    /** Requêtes reçues des clients */
+    val queries = AtomicLong()
+    val cacheHits = AtomicLong()
+    /** Requêtes parties vers un upstream (défauts de cache) */
+    val forwarded = AtomicLong()
+    /** Réponses construites localement (REFUSED de la QoS, SERVFAIL d'échéance) */
+    val local = AtomicLong()
+
+    private val upstreams = ConcurrentHashMap<String, Upstream>()
+    private val startedAt = SystemClock.elapsedRealtime()
+    // Débit : requêtes sur la dernière fenêtre d'au moins 1 s (lecteurs à des rythmes différents)
+    private var lastQueries = 0L
+    private var lastSnapshotAt = startedAt
+    private var qps = 0.0
+
+    fun upstream(name: String): Upstream = upstreams[name] ?: upstreams.getOrPut(name) { Upstream(name) }
+
+    /** Réponse de `upstream` reçue `nanos` après l'envoi */
+    fun onAnswer(upstream: String, nanos: Long) = upstream(upstream).record(nanos)
+
+    /** Échec du transport (erreur, réponse invalide) */
+    fun onError(upstream: String) { upstream(upstream).errors.incrementAndGet() }
+
+    /** Échéance dépassée en attente de l'upstream */
+    fun onTimeout(upstream: String) { upstream(upstream).timeouts.incrementAndGet() }
+
+    /**
+     * État courant pour l'interface : totaux, débit, latence médiane, puis par transport et
+     * par upstream (réponses, erreurs, échéances, p50/p90/p99, histogramme)
+     */
+    @Synchronized
+    fun snapshot(inFlight: Int, deadlines: QueryDeadlines): JSONObject {
+        val now = SystemClock.elapsedRealtime()
+        val q = queries.get()
+        val elapsed = now - lastSnapshotAt
+        if (elapsed >= 1000) {
+            qps = (q - lastQueries) * 1000.0 / elapsed
+            lastQueries = q
+            lastSnapshotAt = now
+        }
+
+        val hits = cacheHits.get()
+        val fwd = forwarded.get()
+        val root = JSONObject()
+            .put("uptimeMs", now - startedAt)
+            .put("queries", q)
+            .put("qps", qps)
+            .put("cacheHits", hits)
+            .put("forwarded", fwd)
+            .put("cacheHitRatio", if (hits + fwd > 0) hits.toDouble() / (hits + fwd) else 0.0)
+            .put("local", local.get())
+            .put("inFlight", inFlight)
+            .put("expiredQueued", deadlines.expiredQueued.get())
+            .put("expiredUpstream", deadlines.expiredUpstream.get())
+            .put("coalesced", deadlines.coalesced.get())
+
+        val byTransport = LinkedHashMap<String, LongArray>()
+        val all = LongArray(BUCKETS_MS.size + 1)
+        val list = JSONArray()
+        for (u in upstreams.values.sortedByDescending { it.answers.get() }) {
+            val counts = LongArray(u.latency.length()) { u.latency.get(it) }
+            for (i in counts.indices) all[i] += counts[i]
+            val agg = byTransport.getOrPut(u.transport) { LongArray(counts.size + 3) }
+            for (i in counts.indices) agg[i] += counts[i]
+            agg[counts.size] += u.answers.get()
+            agg[counts.size + 1] += u.errors.get()
+            agg[counts.size + 2] += u.timeouts.get()
+            list.put(entry(u.name, u.transport, counts, u.answers.get(), u.errors.get(), u.timeouts.get()))
+        }
+        val transports = JSONArray()
+        for ((t, agg) in byTransport) {
+            val n = agg.size - 3
+            transports.put(entry(t, t, agg.copyOf(n), agg[n], agg[n + 1], agg[n + 2]))
+        }
+        return root.put("p50", quantile(all, 0.5)).put("p90", quantile(all, 0.9))
+            .put("transports", transports).put("upstreams", list)
+    }
+
+    /** Mêmes compteurs au format Prometheus ; histogrammes cumulés, bornes en secondes */
+    fun export(e: Exposition, inFlight: Int, deadlines: QueryDeadlines) {
+        e.counter("pdm_queries_total", "Queries received from clients", queries.get())
+        e.counter("pdm_cache_hits_total", "Queries answered from the answer cache", cacheHits.get())
+        e.counter("pdm_cache_misses_total", "Queries forwarded to an upstream", forwarded.get())
+        e.counter("pdm_local_answers_total", "Answers built locally (QoS refusal, deadline SERVFAIL)", local.get())
+        e.gauge("pdm_queries_in_flight", "Queries waiting for an upstream answer", inFlight)
+        e.family("pdm_deadline_expired_total", "counter", "Queries whose deadline expired")
+            .sample("pdm_deadline_expired_total", deadlines.expiredQueued.get(), "stage", "queued")
+            .sample("pdm_deadline_expired_total", deadlines.expiredUpstream.get(), "stage", "upstream")
+        e.counter("pdm_retries_coalesced_total", "Client retries merged with a query already in flight", deadlines.coalesced.get())
+        e.gauge("pdm_uptime_seconds", "Time since the VPN started", (SystemClock.elapsedRealtime() - startedAt) / 1000.0)
+
+        val list = upstreams.values.sortedBy { it.name }
+        e.family("pdm_upstream_answers_total", "counter", "Answers received per upstream")
+        for (u in list) e.sample("pdm_upstream_answers_total", u.answers.get(), "upstream", u.name, "transport", u.transport)
+        e.family("pdm_upstream_errors_total", "counter", "Transport failures per upstream")
+        for (u in list) e.sample("pdm_upstream_errors_total", u.errors.get(), "upstream", u.name, "transport", u.transport)
+        e.family("pdm_upstream_timeouts_total", "counter", "Deadlines expired while waiting for the upstream")
+        for (u in list) e.sample("pdm_upstream_timeouts_total", u.timeouts.get(), "upstream", u.name, "transport", u.transport)
+
+        val name = "pdm_upstream_latency_seconds"
+        e.family(name, "histogram", "Upstream answer latency")
+        for (u in list) {
+            var cumulative = 0L
+            for (i in 0 until u.latency.length()) {
+                cumulative += u.latency.get(i)
+                val le = if (i < BUCKETS_MS.size) (BUCKETS_MS[i] / 1000.0).toString() else "+Inf"
+                e.sample("${name}_bucket", cumulative, "upstream", u.name, "transport", u.transport, "le", le)
+            }
+            e.sample("${name}_sum", u.latencyNanos.get() / 1e9, "upstream", u.name, "transport", u.transport)
+            e.sample("${name}_count", cumulative, "upstream", u.name, "transport", u.transport)
+        }
+    }
+
+    private fun entry(name: String, transport: String, counts: LongArray, answers: Long, errors: Long, timeouts: Long) =
+        JSONObject()
+            .put("name", name)
+            .put("transport", transport)
+            .put("answers", answers)
+            .put("errors", errors)
+            .put("timeouts", timeouts)
+            .put("p50", quantile(counts, 0.5))
+            .put("p90", quantile(counts, 0.9))
+            .put("p99", quantile(counts, 0.99))
+            .put("histogram", JSONArray().apply { counts.forEach { put(it) } })
+}
@@ -0,0 +1,160 @@
+package net.appstorefr.perfectdnsmanager.service
+
+import android.app.ActivityManager
+import android.content.ComponentName
+import android.content.Context
+import android.content.Intent
+import android.content.ServiceConnection
+import android.os.IBinder
+import android.os.ParcelFileDescriptor
+import android.util.Log
+import net.appstorefr.perfectdnsmanager.IDnsVpnControl
+import org.json.JSONArray
+import org.json.JSONObject
+import java.net.DatagramSocket
+import java.util.concurrent.Executors
+
+/**
+ * Accès au moteur VPN depuis l'interface
+ *
+ * - DnsVpnService tourne dans son propre processus (":vpn") : ses champs statiques ne sont pas
+ *   visibles ici, état, protect() et statistiques passent par le binder IDnsVpnControl
+ * - Liaison sans création (flags 0) : elle ne démarre ni ne garde en vie le service, et se
+ *   rétablit d'elle-même quand il (re)démarre
+ * - Démarrage, arrêt et rechargement restent des intents (startService)
+ * - Préférences lues par le VPN : écrites par commit() sur un thread dédié, puis signalées
+ *   (voir commitThen) ; le processus ":vpn" relit le fichier, un apply() encore en vol lui
+ *   ferait lire les anciennes valeurs
+ */
+object DnsVpnControl {
+
+    private const val T = "DnsVpnControl"
+    /** Action de liaison au binder de contrôle (l'action VpnService est réservée au système) */
+    const val ACTION_CONTROL = "net.appstorefr.perfectdnsmanager.VPN_CONTROL"
+
+    @Volatile private var remote: IDnsVpnControl? = null
+    @Volatile private var bound = false
+
+    /** Écritures de préférences suivies d'un signal au VPN, dans l'ordre des demandes */
+    private val prefsWriter = Executors.newSingleThreadExecutor { r ->
+        Thread(r, "PrefsCommit").apply { isDaemon = true }
+    }
+
+    private val connection = object : ServiceConnection {
+        override fun onServiceConnected(name: ComponentName?, binder: IBinder?) {
+            remote = IDnsVpnControl.Stub.asInterface(binder)
+        }
+
+        override fun onServiceDisconnected(name: ComponentName?) {
+            remote = null
+        }
+    }
+
+    private fun bind(context: Context) {
+        if (bound) return
+        synchronized(this) {
+            if (bound) return
+            val app = context.applicationContext
+            bound = try {
+                app.bindService(Intent(app, DnsVpnService::class.java).setAction(ACTION_CONTROL), connection, 0)
+            } catch (e: Exception) {
+                Log.w(T, "bind: ${e.message}")
+                false
+            }
+        }
+    }
+
+    /** VPN établi et actif */
+    fun isRunning(context: Context): Boolean {
+        bind(context)
+        remote?.let { r ->
+            return try { r.isRunning } catch (_: Exception) { false }
+        }
+        // Liaison pas encore établie (lancement de l'interface) : le service n'est au premier plan
+        // que pendant que le VPN tourne
+        return try {
+            val am = context.getSystemService(Context.ACTIVITY_SERVICE) as ActivityManager
+            @Suppress("DEPRECATION")
+            am.getRunningServices(Int.MAX_VALUE).any { it.service.className == DnsVpnService::class.java.name && it.foreground }
+        } catch (_: Exception) { false }
+    }
+
+    /**
+     * Exécute l'écriture (commit() synchrone) hors du thread principal, puis le signal une fois
+     * les valeurs sur le disque ; done, facultatif, est ensuite posté au thread principal
+     */
+    fun commitThen(context: Context, write: () -> Unit, signal: () -> Unit, done: (() -> Unit)? = null) {
+        val app = context.applicationContext
+        prefsWriter.execute {
+            try {
+                // Fichier réécrit par le processus du VPN (bascule du mode auto) : relu avant d'écrire par-dessus
+                @Suppress("DEPRECATION")
+                app.getSharedPreferences("prefs", Context.MODE_MULTI_PROCESS)
+                write()
+                signal()
+            } catch (e: Exception) {
+                Log.w(T, "commit: ${e.message}")
+            }
+            if (done != null) android.os.Handler(app.mainLooper).post(done)
+        }
+    }
+
+    /** Écriture puis ACTION_RELOAD_RULES si le VPN tourne (voir commitThen) */
+    fun commitThenReload(context: Context, write: () -> Unit, done: (() -> Unit)? = null) {
+        val app = context.applicationContext
+        commitThen(app, write, {
+            if (isRunning(app)) {
+                app.startService(Intent(app, DnsVpnService::class.java).setAction(DnsVpnService.ACTION_RELOAD_RULES))
+            }
+        }, done)
+    }
+
+    /** Protège un socket pour qu'il contourne le tunnel (descripteur dupliqué vers le processus du VPN) */
+    fun protect(context: Context, socket: DatagramSocket): Boolean {
+        bind(context)
+        val r = remote ?: return false
+        return try {
+            ParcelFileDescriptor.fromDatagramSocket(socket).use { r.protect(it) }
+        } catch (e: Exception) {
+            Log.w(T, "protect: ${e.message}")
+            false
+        }
+    }
+
+    /** Compteurs QoS par application, null si le VPN ou la QoS est inactif */
+    fun qosSnapshot(context: Context): List<QosScheduler.AppCount>? {
+        bind(context)
+        val counts = try { remote?.qosCounts() } catch (_: Exception) { null } ?: return null
+        return (0 until counts.size / 4).map { i ->
+            QosScheduler.AppCount(counts[i * 4].toInt(), counts[i * 4 + 1], counts[i * 4 + 2], counts[i * 4 + 3] != 0L)
+        }
+    }
+
+    /** Métriques du VPN (voir DnsMetrics.snapshot), null si le VPN est inactif */
+    fun metrics(context: Context): JSONObject? {
+        bind(context)
+        val json = try { remote?.metricsJson() } catch (_: Exception) { null } ?: return null
+        return try { JSONObject(json) } catch (_: Exception) { null }
+    }
+
+    /** Requêtes tracées les plus lentes (voir QueryTracer), null si le VPN ou le traçage est inactif */
+    fun slowQueries(context: Context): JSONArray? {
+        bind(context)
+        val json = try { remote?.slowQueriesJson() } catch (_: Exception) { null } ?: return null
+        return try { JSONArray(json) } catch (_: Exception) { null }
+    }
+
+    /** Bilan de la journée en cours (voir DomainStats.snapshot), null si le VPN ou les statistiques sont inactifs */
+    fun domainStats(context: Context): JSONObject? {
+        bind(context)
+        val json = try { remote?.domainStatsJson() } catch (_: Exception) { null } ?: return null
+        return try { JSONObject(json) } catch (_: Exception) { null }
+    }
+
+    /** Profil des threads du VPN (voir ThreadProfiler.snapshot), null si le VPN ou le profileur est inactif */
+    fun threadProfile(context: Context): JSONObject? {
+        bind(context)
+        val json = try { remote?.threadProfileJson() } catch (_: Exception) { null } ?: return null
+        return try { JSONObject(json) } catch (_: Exception) { null }
+    }
+}
@@ -4,33 +4,61 @@ import android.app.Notification
 import android.app.NotificationChannel
 import android.app.NotificationManager
 import android.app.PendingIntent
+import android.content.BroadcastReceiver
 import android.content.Context
 import android.content.Intent
+import android.content.IntentFilter
+import android.net.ConnectivityManager
+import android.net.LinkProperties
+import android.net.Network
+import android.net.NetworkCapabilities
+import android.net.NetworkRequest
 import android.net.VpnService
 import android.os.Build
+import android.os.Debug
+import android.os.IBinder
 import android.os.ParcelFileDescriptor
+import android.os.PowerManager
+import android.os.Process
+import android.os.SystemClock
 import android.system.OsConstants
-import android.util.Log
 import androidx.core.app.NotificationCompat
 import net.appstorefr.perfectdnsmanager.MainActivity
+import net.appstorefr.perfectdnsmanager.IDnsVpnControl
 import net.appstorefr.perfectdnsmanager.R
+import net.appstorefr.perfectdnsmanager.data.DnsProfile
 import net.appstorefr.perfectdnsmanager.data.DnsRewriteRepository
 import net.appstorefr.perfectdnsmanager.data.DnsRewriteRule
+import net.appstorefr.perfectdnsmanager.data.DnsStamp
+import net.appstorefr.perfectdnsmanager.data.UpstreamGroup
+import net.appstorefr.perfectdnsmanager.util.DnsWire
+import okhttp3.Call
+import okhttp3.ConnectionPool
 import okhttp3.Dns
+import okhttp3.EventListener
 import okhttp3.MediaType.Companion.toMediaType
 import okhttp3.OkHttpClient
 import okhttp3.Request
 import okhttp3.RequestBody.Companion.toRequestBody
+import java.io.File
 import java.io.FileInputStream
 import java.io.FileOutputStream
 import java.net.DatagramPacket
 import java.net.DatagramSocket
 import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.net.Proxy
 import java.net.Socket
-import java.nio.ByteBuffer
 import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledFuture
 import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
 import javax.net.SocketFactory
+import kotlin.math.roundToInt
+import kotlin.random.Random
 
 /**
  * VPN DNS Proxy v34
@@ -48,13 +76,43 @@ class DnsVpnService : VpnService() {
     private var tunOut: FileOutputStream? = null
     private val tunOutLock = Any()
 
-    private var dnsSocket: DatagramSocket? = null
-    private var doqClient: DoQClient? = null
-    private val upstreamMap = ConcurrentHashMap<String, String>()
+    @Volatile private var dnsSocket: DatagramSocket? = null
+    private var tcpHandler: TunTcpHandler? = null
 
-    /** OkHttpClient with protected sockets (bypass VPN) and custom DNS resolver */
+    @Volatile private var upstreams: UpstreamSet? = null
+    private var keepalive: KeepaliveScheduler? = null
+    private class KeepaliveProbe { @Volatile var reconnected = false }
+
+    // Réseau physique : callbacks ConnectivityManager + sortie de doze
+    private var networkCallback: ConnectivityManager.NetworkCallback? = null
+    private var idleReceiver: BroadcastReceiver? = null
+    @Volatile private var networkIdentity: String? = null
+    private var networkCheck: ScheduledFuture<*>? = null
+    private val networkExecutor = Executors.newSingleThreadScheduledExecutor { r ->
+        Thread(r, "NetworkWatch").apply { isDaemon = true }
+    }
+    private val swapGeneration = AtomicInteger()
+
+    // QoS par application (null si désactivée) et cache des réponses upstream
+    @Volatile private var qos: QosScheduler? = null
+    private val answerCache = DnsAnswerCache()
+
+    // Mode multi-chemins (Wi-Fi + cellulaire), null si désactivé
+    @Volatile private var multipath: MultipathRouter? = null
+    /** Client DoH par réseau physique : même config, sockets liées au réseau, pool séparé */
+    private val okHttpByNetwork = ConcurrentHashMap<Network, OkHttpClient>()
+
+    // Mode auto : fournisseur choisi par réseau parmi les candidats (null si désactivé)
+    @Volatile private var autoSelector: AutoProviderSelector? = null
+    @Volatile private var lastQueryAt = 0L
+
+    // Adresses publiques du réseau physique (injection Client Subnet), découvertes si besoin
+    @Volatile private var publicV4: InetAddress? = null
+    @Volatile private var publicV6: InetAddress? = null
+
+    /** OkHttpClient with protected sockets (bypass VPN), custom DNS resolver and shared TLS session cache */
     private val okHttpClient by lazy {
-        OkHttpClient.Builder()
+        TlsSessionCache.applyTo(OkHttpClient.Builder())
             .socketFactory(object : SocketFactory() {
                 override fun createSocket(): Socket = Socket().also { protect(it) }
                 override fun createSocket(host: String, port: Int): Socket =
@@ -68,11 +126,25 @@ class DnsVpnService : VpnService() {
             })
             .dns(object : Dns {
                 override fun lookup(hostname: String): List<InetAddress> {
-                    val resolved = resolveHostBypass(hostname)
-                        ?: throw java.net.UnknownHostException("Cannot resolve $hostname")
-                    return listOf(resolved)
+                    return BootstrapResolver.resolve(this@DnsVpnService, hostname)
+                        .ifEmpty { throw java.net.UnknownHostException("Cannot resolve $hostname") }
                 }
             })
+            // Keepalive : savoir si la requête canari a dû rouvrir une connexion ;
+            // requête tracée : résolution bootstrap, connexion et handshake TLS
+            .eventListenerFactory { call ->
+                val probe = call.request().tag(KeepaliveProbe::class.java)
+                val trace = call.request().tag(QueryTrace::class.java)
+                when {
+                    probe != null -> object : EventListener() {
+                        override fun connectStart(call: Call, inetSocketAddress: InetSocketAddress, proxy: Proxy) {
+                            probe.reconnected = true
+                        }
+                    }
+                    trace != null -> DohTraceListener(trace)
+                    else -> EventListener.NONE
+                }
+            }
             .connectTimeout(5, TimeUnit.SECONDS)
             .readTimeout(5, TimeUnit.SECONDS)
             .writeTimeout(5, TimeUnit.SECONDS)
@@ -81,13 +153,72 @@ class DnsVpnService : VpnService() {
 
     // DNS Rewrite
     private var rewriteRules = listOf<DnsRewriteRule>()
+    /** Chaîne de traitement des requêtes, reconstruite quand la configuration change */
+    @Volatile private var chain: QueryChain? = null
+
+    // Requêtes en vol par ID DNS (voir QueryContext : contexte possédé par qui le retire)
+    private val pending = ConcurrentHashMap<Int, QueryContext>()
+    /** Détection des réponses EDNS0 > SAFE_SIZE perdues, armée seulement tant qu'il y en a en vol */
+    private var lossCheck: ScheduledFuture<*>? = null
+    private var lossCheckRequested = false
+    private val lossCheckLock = Any()
+    @Volatile private var networkKey = ""
+    /** Clés EdnsTuner par upstream pour un réseau (voir pathKey) */
+    private class PathKeys(val network: String) {
+        val byUpstream = ConcurrentHashMap<String, String>()
+    }
+    @Volatile private var pathKeys = PathKeys("")
+    @Volatile private var networkKeyAt = 0L
 
-    // Pending: on stocke aussi le qname original encodé pour restaurer la réponse si rewrite
-    data class Pending(
-        val srcIp: ByteArray, val dstIp: ByteArray, val srcPort: Int,
-        val time: Long, val wasRewritten: Boolean, val originalQnameEncoded: ByteArray?
-    )
-    private val pending = ConcurrentHashMap<Int, Pending>()
+    // Mesure ACTION_START → première réponse DNS renvoyée sur le TUN
+    @Volatile private var startRequestedAt = 0L
+    private val firstAnswerLogged = AtomicBoolean(true)
+    private var establishRetried = false
+    /**
+     * Appels bloquants hors du chemin des paquets : préchauffage, re-fetch des réponses
+     * tronquées, transports chiffrés quand la QoS (et son pool) est désactivée
+     */
+    private val upstreamExecutor = Executors.newCachedThreadPool { r ->
+        Thread(r, "Upstream").apply { isDaemon = true }
+    }
+    /** Résolution UID des requêtes de sockets inconnues (appel binder), hors du thread TUN */
+    private val appRouteExecutor = Executors.newFixedThreadPool(2) { r ->
+        Thread(r, "AppRoute").apply { isDaemon = true }
+    }
+    /** Échéances des requêtes clientes et balayage des requêtes en vol expirées */
+    private val deadlines = QueryDeadlines()
+    /**
+     * Balayage des échéances, seul sur son thread : un SERVFAIL n'attend pas derrière les tâches
+     * périodiques. Une seule passe programmée, à la prochaine échéance, et aucune sans requête en vol
+     */
+    private val sweepExecutor = Executors.newSingleThreadScheduledExecutor { r ->
+        Thread(r, "Deadlines").apply { isDaemon = true }
+    }
+    private var deadlineSweep: ScheduledFuture<*>? = null
+    /** Échéance visée par la passe programmée, Long.MAX_VALUE si aucune */
+    @Volatile private var sweepAt = Long.MAX_VALUE
+    private val sweepLock = Any()
+    /** Tâches périodiques : notification, statistiques, profileur, pertes EDNS0, minuteur TCP */
+    private val timerExecutor = Executors.newSingleThreadScheduledExecutor { r ->
+        Thread(r, "Timers").apply { isDaemon = true }
+    }
+    /** Compteurs et latences par upstream (écran des statistiques, notification), remis à zéro au démarrage */
+    @Volatile private var metrics = DnsMetrics()
+    private var notifRefresh: ScheduledFuture<*>? = null
+    /** Traçage échantillonné des requêtes (requêtes lentes), null si désactivé */
+    @Volatile private var tracer: QueryTracer? = null
+    /** Journal persistant des requêtes (voir QueryLog), null si désactivé */
+    @Volatile private var queryLog: QueryLog? = null
+    /** Domaines les plus demandés, bloqués et lents du jour (voir DomainStats), null si désactivé */
+    @Volatile private var domainStats: DomainStats? = null
+    private var statsPersist: ScheduledFuture<*>? = null
+    /** Temps CPU et réveils par thread du processus (voir ThreadProfiler), null si désactivé */
+    @Volatile private var profiler: ThreadProfiler? = null
+    private var profilerSample: ScheduledFuture<*>? = null
+    /** Point d'accès Prometheus (voir MetricsServer), null si désactivé */
+    @Volatile private var metricsServer: MetricsServer? = null
+    /** Dernier résumé affiché : la notification n'est republiée que s'il change */
+    private var notifSummary: String? = null
 
     companion object {
         const val ACTION_START = "net.appstorefr.perfectdnsmanager.START_VPN"
@@ -99,14 +230,73 @@ class DnsVpnService : VpnService() {
         private const val CH_ID = "dns_vpn_channel"
         private const val NOTIF_ID = 1001
         private const val T = "DnsVPN"
-        @Volatile var isVpnRunning = false; private set
+        private const val TUN_MTU = 1500
+        /** Plus grand payload DNS dans un paquet IPv4/UDP de TUN_MTU octets */
+        private const val MAX_UDP_PAYLOAD = TUN_MTU - 28
+        /** Délai sans réponse au-delà duquel une réponse EDNS0 > 1232 octets est considérée perdue */
+        private const val LOSS_TIMEOUT_MS = 1200L
+        private const val LOSS_CHECK_MS = 250L
+        /** Rafraîchissement du résumé de la notification (écran allumé seulement) */
+        private const val NOTIF_REFRESH_MS = 10_000L
+        private const val PROBE_TIMEOUT_MS = 800
+        /** Attente max d'un upstream chaud avant d'annoncer le TUN */
+        private const val WARMUP_WAIT_MS = 1500L
+        private const val CANARY_DOMAIN = "example.com"
+        /** Hot-swap : attente max du nouveau jeu d'upstreams, puis des requêtes en vol sur l'ancien */
+        private const val SWAP_WARMUP_MS = 3000L
+        private const val SWAP_DRAIN_MS = 10_000L
+        /** IP DNS virtuelle annoncée par le TUN (requêtes directes : test CDN du speedtest) */
+        const val DNS_ADDR_PRIMARY = "192.0.2.2"
+        private const val DNS_ADDR_SECONDARY = "192.0.2.3"
+        /** Regroupe les callbacks réseau d'une même transition */
+        private const val NETWORK_DEBOUNCE_MS = 300L
+        /** Mode auto : bascule seulement après ce délai sans requête (jamais au milieu d'une rafale) */
+        private const val AUTO_QUIET_MS = 3000L
+        /**
+         * Fichiers de préférences écrits par l'interface et lus ici : relus depuis le disque à
+         * chaque commande, le service tournant dans son propre processus (":vpn")
+         */
+        private val SHARED_PREFS = arrayOf("prefs", "dns_rewrite_rules", "dns_profiles_v2")
+
+        // État du processus, lu par le binder de contrôle (l'interface passe par DnsVpnControl)
+        @Volatile private var isVpnRunning = false
+        @Volatile private var instance: DnsVpnService? = null
 
-        /** Instance statique pour accéder à protect() depuis l'extérieur */
-        @Volatile var instance: DnsVpnService? = null; private set
+        /** Binder de contrôle : un par processus, indépendant de l'instance du service */
+        private val control = object : IDnsVpnControl.Stub() {
+            override fun isRunning(): Boolean = isVpnRunning
 
-        /** Protège un DatagramSocket pour qu'il bypass le VPN tunnel */
-        fun protectSocket(socket: java.net.DatagramSocket): Boolean {
-            return instance?.protect(socket) ?: false
+            override fun protect(socket: ParcelFileDescriptor?): Boolean {
+                if (socket == null) return false
+                return try {
+                    instance?.protect(socket.fd) ?: false
+                } finally {
+                    try { socket.close() } catch (_: Exception) {}
+                }
+            }
+
+            override fun qosCounts(): LongArray? {
+                val counts = instance?.qos?.snapshot() ?: return null
+                val out = LongArray(counts.size * 4)
+                counts.forEachIndexed { i, c ->
+                    out[i * 4] = c.uid.toLong()
+                    out[i * 4 + 1] = c.queries
+                    out[i * 4 + 2] = c.limited
+                    out[i * 4 + 3] = if (c.priority) 1 else 0
+                }
+                return out
+            }
+
+            override fun metricsJson(): String? {
+                val service = instance ?: return null
+                return service.metrics.snapshot(service.pending.size, service.deadlines).toString()
+            }
+
+            override fun slowQueriesJson(): String? = instance?.tracer?.slowestJson()?.toString()
+
+            override fun domainStatsJson(): String? = instance?.domainStats?.snapshot()?.toString()
+
+            override fun threadProfileJson(): String? = instance?.profiler?.snapshot()?.toString()
         }
 
         /** Map of IP-based DoH endpoints to their correct TLS/SNI hostname */
@@ -131,9 +321,23 @@ class DnsVpnService : VpnService() {
         )
     }
 
+    override fun onBind(intent: Intent?): IBinder? =
+        if (intent?.action == DnsVpnControl.ACTION_CONTROL) control else super.onBind(intent)
+
     override fun onStartCommand(intent: Intent?, flags: Int, startId: Int): Int {
         // v31: startForeground IMMÉDIATEMENT pour éviter crash ANR au boot
         startForeground(NOTIF_ID, mkNotif(getString(R.string.notif_starting)))
+        // Réglages modifiés par l'interface (autre processus) depuis la dernière commande
+        for (name in SHARED_PREFS) {
+            @Suppress("DEPRECATION")
+            getSharedPreferences(name, Context.MODE_MULTI_PROCESS)
+        }
+        DiagLog.init(this)
+        if (intent?.action != ACTION_STOP && intent?.action != ACTION_RELOAD_RULES) {
+            startRequestedAt = SystemClock.elapsedRealtime()
+            firstAnswerLogged.set(false)
+            establishRetried = false
+        }
         when (intent?.action) {
             ACTION_START -> {
                 dnsServer = intent.getStringExtra(EXTRA_DNS_PRIMARY) ?: "1.1.1.1"
@@ -141,16 +345,27 @@ class DnsVpnService : VpnService() {
                 stopVpn(); startVpn()
             }
             ACTION_RESTART -> {
-                // Changement de profil : stop visible (icône VPN disparaît) puis restart après délai
+                // Changement de profil : hot-swap des upstreams sans toucher au TUN si possible,
+                // sinon stop visible (icône VPN disparaît) puis restart après délai
                 dnsServer = intent.getStringExtra(EXTRA_DNS_PRIMARY) ?: "1.1.1.1"
                 dnsServerSecondary = intent.getStringExtra(EXTRA_DNS_SECONDARY)
-                stopVpn()
-                android.os.Handler(mainLooper).postDelayed({ startVpn() }, 600)
+                if (!hotSwap()) {
+                    stopVpn()
+                    android.os.Handler(mainLooper).postDelayed({ startVpn() }, 600)
+                } else autoSelector?.setCurrent(dnsServer)
             }
             ACTION_STOP -> { stopVpn(); stopSelf() }
             ACTION_RELOAD_RULES -> {
                 rewriteRules = DnsRewriteRepository(this).getAllRules().filter { it.isEnabled }
-                Log.i(T, "Reloaded ${rewriteRules.size} DNS rewrite rules.")
+                DiagLog.i(T) { "Reloaded ${rewriteRules.size} DNS rewrite rules." }
+                tracer = QueryTracer.load(this, tracer)
+                if (isRunning) {
+                    queryLog = QueryLog.load(this, queryLog)
+                    domainStats = DomainStats.load(this, domainStats)
+                    loadProfiler()
+                    metricsServer = MetricsServer.load(this, metricsServer, ::exportMetrics)
+                    chain = buildChain()
+                }
             }
             else -> {
                 // Always-on VPN (system-initiated) ou intent sans action
@@ -166,14 +381,14 @@ class DnsVpnService : VpnService() {
                             )
                             dnsServer = profile.primary
                             dnsServerSecondary = profile.secondary
-                            Log.i(T, "Always-on/system start: ${profile.providerName} - ${profile.primary}")
+                            DiagLog.i(T) { "Always-on/system start: ${profile.providerName} - ${profile.primary}" }
                             stopVpn(); startVpn()
                         } catch (e: Exception) {
-                            Log.e(T, "Failed to parse saved profile: ${e.message}")
+                            DiagLog.e(T) { "Failed to parse saved profile: ${e.message}" }
                             stopSelf()
                         }
                     } else {
-                        Log.w(T, "System started VPN but no saved profile found")
+                        DiagLog.w(T) { "System started VPN but no saved profile found" }
                         stopSelf()
                     }
                 }
@@ -184,18 +399,31 @@ class DnsVpnService : VpnService() {
 
     private fun isDoH(s: String) = s.startsWith("https://")
     private fun isDoQ(s: String) = s.startsWith("quic://")
+    private fun isDnsCrypt(s: String) = s.startsWith("sdns://")
 
     private fun startVpn() {
         try {
-            Log.i(T, "=== START VPN beta-34 ===  primary=$dnsServer  secondary=$dnsServerSecondary")
+            DiagLog.i(T) { "=== START VPN beta-34 ===  primary=$dnsServer  secondary=$dnsServerSecondary" }
+            TlsSessionCache.init(this)
+
+            // Pré-chauffage des upstreams (bootstrap, handshake TLS/QUIC, requête canari)
+            // en parallèle de la construction du TUN
+            val generation = swapGeneration.incrementAndGet()
+            qos = QosScheduler.fromPrefs(this)
+            val set = newUpstreamSet(setOf(DNS_ADDR_PRIMARY))
+            val warm = startWarmUp(set)
 
             // Load rewrite rules
             rewriteRules = DnsRewriteRepository(this).getAllRules().filter { it.isEnabled }
-            Log.i(T, "Loaded ${rewriteRules.size} DNS rewrite rules.")
+            DiagLog.i(T) { "Loaded ${rewriteRules.size} DNS rewrite rules." }
+            tracer = QueryTracer.load(this, tracer)
+            queryLog = QueryLog.load(this, queryLog)
+            domainStats = DomainStats.load(this, domainStats)
+            chain = buildChain()
 
             val builder = Builder()
                 .setSession("Perfect DNS Manager")
-                .setMtu(1500)
+                .setMtu(TUN_MTU)
                 .addAddress("192.168.50.1", 24)
                 .setBlocking(true)
 
@@ -220,13 +448,13 @@ class DnsVpnService : VpnService() {
                             val pkg = arr.getString(i)
                             try {
                                 builder.addDisallowedApplication(pkg)
-                                Log.i(T, "Split tunnel: excluded $pkg")
+                                DiagLog.i(T) { "Split tunnel: excluded $pkg" }
                             } catch (e: Exception) {
-                                Log.w(T, "Split tunnel: cannot exclude $pkg: ${e.message}")
+                                DiagLog.w(T) { "Split tunnel: cannot exclude $pkg: ${e.message}" }
                             }
                         }
                     } catch (e: Exception) {
-                        Log.w(T, "Split tunnel parse error: ${e.message}")
+                        DiagLog.w(T) { "Split tunnel parse error: ${e.message}" }
                     }
                 }
             }
@@ -236,38 +464,98 @@ class DnsVpnService : VpnService() {
                 try {
                     builder.addAddress("fdfe:dcba:9876::1", 126)
                     builder.addRoute("::", 0)
-                    Log.i(T, "IPv6 DISABLED (route ::/0 + AF_INET6)")
-                } catch (e: Exception) { Log.w(T, "IPv6 block err: ${e.message}") }
+                    DiagLog.i(T) { "IPv6 DISABLED (route ::/0 + AF_INET6)" }
+                } catch (e: Exception) { DiagLog.w(T) { "IPv6 block err: ${e.message}" } }
             }
 
-            upstreamMap.clear()
-            val a1 = "192.0.2.2"
-            upstreamMap[a1] = dnsServer
-            builder.addDnsServer(a1)
-            builder.addRoute(a1, 32)
-            if (!dnsServerSecondary.isNullOrEmpty()) {
-                val a2 = "192.0.2.3"
-                upstreamMap[a2] = dnsServerSecondary!!
-                builder.addDnsServer(a2)
-                builder.addRoute(a2, 32)
+            for (addr in set.routes.keys) {
+                builder.addDnsServer(addr)
+                builder.addRoute(addr, 32)
             }
 
-            vpnInterface = builder.establish()
-            if (vpnInterface == null) {
-                Log.w(T, "establish() null, retry in 3s...")
-                Thread.sleep(3000)
-                vpnInterface = builder.establish()
+            // TUN annoncé dès qu'un upstream répond, ou au plus tard après WARMUP_WAIT_MS ;
+            // l'attente se fait hors du thread principal, la suite du démarrage y revient ensuite
+            val waitMs = WARMUP_WAIT_MS - (SystemClock.elapsedRealtime() - startRequestedAt)
+            if (waitMs <= 0 || warm.count == 0L) {
+                establishTun(builder, set, generation)
+                return
+            }
+            upstreamExecutor.execute {
+                if (!warm.await(waitMs, TimeUnit.MILLISECONDS)) {
+                    DiagLog.w(T) { "No upstream warm after ${WARMUP_WAIT_MS}ms, starting anyway" }
+                }
+                android.os.Handler(mainLooper).post { establishTun(builder, set, generation) }
             }
+        } catch (e: Exception) {
+            DiagLog.e(T, e) { "Start err" }; stopVpn(); stopSelf()
+        }
+    }
+
+    /** Fin du démarrage (thread principal) : TUN, sockets, threads et tâches du VPN */
+    private fun establishTun(builder: Builder, set: UpstreamSet, generation: Int) {
+        // VPN arrêté ou relancé pendant le préchauffage : ce démarrage n'est plus d'actualité
+        if (isRunning || swapGeneration.get() != generation) {
+            set.close()
+            return
+        }
+        try {
+            vpnInterface = builder.establish()
             if (vpnInterface == null) {
-                Log.e(T, "establish() still null - VPN consent not granted")
+                set.close()
+                if (!establishRetried) {
+                    // Au boot le consentement peut arriver juste après : un seul nouvel essai,
+                    // sans bloquer le thread principal
+                    establishRetried = true
+                    DiagLog.w(T) { "establish() null, retry in 3s..." }
+                    android.os.Handler(mainLooper).postDelayed({ if (!isRunning) startVpn() }, 3000)
+                    return
+                }
+                DiagLog.e(T) { "establish() still null - VPN consent not granted" }
                 sendVpnPermissionNeededNotification()
                 stopSelf()
                 return
             }
+            upstreams = set
             dnsSocket = DatagramSocket().also { protect(it) }
-            doqClient = DoQClient(this)
+            tcpHandler = TunTcpHandler(TUN_MTU, timerExecutor, ::writeRaw) { query, clientIp, serverIp, clientPort, reply ->
+                val ctx = QueryContext.obtain()
+                System.arraycopy(clientIp, 0, ctx.srcIp, 0, 4)
+                System.arraycopy(serverIp, 0, ctx.dstIp, 0, 4)
+                ctx.srcPort = clientPort
+                ctx.tcpReply = reply
+                ctx.setQuery(query)
+                handleQuery(ctx)
+            }
             tunOut = FileOutputStream(vpnInterface!!.fileDescriptor)
+            metrics = DnsMetrics()
+            notifSummary = null
             isRunning = true; isVpnRunning = true; instance = this
+            notifRefresh = timerExecutor.scheduleWithFixedDelay({ refreshNotification() },
+                NOTIF_REFRESH_MS, NOTIF_REFRESH_MS, TimeUnit.MILLISECONDS)
+            statsPersist = timerExecutor.scheduleWithFixedDelay({ domainStats?.persist() },
+                DomainStats.PERSIST_MS, DomainStats.PERSIST_MS, TimeUnit.MILLISECONDS)
+            loadProfiler()
+            metricsServer = MetricsServer.load(this, metricsServer, ::exportMetrics)
+            keepalive = KeepaliveScheduler(this, ::keepalivePing).also {
+                it.setUpstreams(set.all)
+                it.start()
+            }
+            if (MultipathRouter.isSupported() && getSharedPreferences("prefs", Context.MODE_PRIVATE)
+                    .getBoolean(MultipathRouter.PREF_ENABLED, false)) {
+                multipath = MultipathRouter(this) { resp -> onDnsResponse(resp) }.also { it.start() }
+                DiagLog.i(T) { "Multipath mode enabled" }
+            }
+            autoSelector = AutoProviderSelector.fromPrefs(this, ::probeLatency,
+                { pending.isEmpty() && SystemClock.elapsedRealtime() - lastQueryAt > AUTO_QUIET_MS },
+                { profile ->
+                    // Écrit avant la bascule : profileGroup() la relit, un redémarrage aussi
+                    AutoProviderSelector.saveSwitch(getSharedPreferences("prefs", Context.MODE_PRIVATE), profile)
+                    android.os.Handler(mainLooper).post { switchProvider(profile) }
+                }
+            )?.also {
+                it.setCurrent(dnsServer)
+                it.start()
+            }
 
             tunReaderThread = Thread({
                 val input = FileInputStream(vpnInterface!!.fileDescriptor)
@@ -275,10 +563,10 @@ class DnsVpnService : VpnService() {
                 while (isRunning) {
                     try {
                         val n = input.read(buf)
-                        if (n > 0) onTunPacket(buf.copyOf(n))
+                        if (n > 0) onTunPacket(buf, n)
                         else if (n < 0) break
                     } catch (e: Exception) {
-                        if (isRunning) Log.e(T, "TunReader err", e)
+                        if (isRunning) DiagLog.e(T, e) { "TunReader err" }
                         break
                     }
                 }
@@ -286,16 +574,19 @@ class DnsVpnService : VpnService() {
             }, "TunReader")
 
             dnsReceiverThread = Thread({
-                val rbuf = ByteArray(4096)
+                val rbuf = ByteArray(65535)
                 while (isRunning) {
+                    val sock = dnsSocket
                     try {
                         val pkt = DatagramPacket(rbuf, rbuf.size)
-                        dnsSocket?.soTimeout = 1000
-                        dnsSocket?.receive(pkt)
+                        sock?.soTimeout = 1000
+                        sock?.receive(pkt)
                         if (pkt.length > 12) onDnsResponse(rbuf.copyOf(pkt.length))
                     } catch (_: java.net.SocketTimeoutException) {
                     } catch (e: Exception) {
-                        if (isRunning) Log.e(T, "DnsRecv err", e)
+                        // Socket remplacée après un changement de réseau : on continue sur la nouvelle
+                        if (isRunning && sock !== dnsSocket) continue
+                        if (isRunning) DiagLog.e(T, e) { "DnsRecv err" }
                         break
                     }
                 }
@@ -304,193 +595,877 @@ class DnsVpnService : VpnService() {
 
             tunReaderThread!!.start()
             dnsReceiverThread!!.start()
+            registerNetworkWatch()
+            networkExecutor.execute { refreshPublicAddress() }
             // Mettre à jour la notification avec le vrai DNS (startForeground déjà appelé dans onStartCommand)
             val nm = getSystemService(Context.NOTIFICATION_SERVICE) as android.app.NotificationManager
-            nm.notify(NOTIF_ID, mkNotif("DNS: $dnsServer"))
+            nm.notify(NOTIF_ID, mkNotif("DNS: ${notifLabel()}", notifSummary))
         } catch (e: Exception) {
-            Log.e(T, "Start err", e); stopVpn(); stopSelf()
+            DiagLog.e(T, e) { "Start err" }; stopVpn(); stopSelf()
         }
     }
 
+    /**
+     * Jeu d'upstreams pour le profil courant (dnsServer / dnsServerSecondary).
+     * @param addresses IP DNS virtuelles à servir ; sans secondaire, la 2e pointe aussi sur le primaire
+     */
+    private fun newUpstreamSet(addresses: Set<String>): UpstreamSet {
+        val secondary = dnsServerSecondary?.ifEmpty { null }
+        val routes = LinkedHashMap<String, String>()
+        routes[DNS_ADDR_PRIMARY] = dnsServer
+        if (secondary != null) routes[DNS_ADDR_SECONDARY] = secondary
+        else if (DNS_ADDR_SECONDARY in addresses) routes[DNS_ADDR_SECONDARY] = dnsServer
+        return UpstreamSet(
+            routes, DoQClient(this), DnsCryptClient(this),
+            DotClient(this, getSharedPreferences("prefs", Context.MODE_PRIVATE).getBoolean(DotClient.PREF_CLEARTEXT, false)),
+            AppUpstreamRouter.load(this, attributeAll = qos != null),
+            profileGroup()?.let { mapOf(dnsServer to UpstreamBalancer(it)) }.orEmpty(),
+            EcsPolicy.load(this)?.also { it.setPublicAddress(publicV4, publicV6) }
+        )
+    }
+
+    /** Groupe d'endpoints du profil sélectionné, s'il correspond à l'upstream primaire en cours */
+    private fun profileGroup(): UpstreamGroup? {
+        val json = getSharedPreferences("prefs", Context.MODE_PRIVATE).getString("selected_profile_json", null) ?: return null
+        return try {
+            val profile = com.google.gson.Gson().fromJson(json, DnsProfile::class.java)
+            if (profile.primary != dnsServer) null
+            else profile.group?.sanitized()?.also { DiagLog.i(T) { "Upstream group ${it.strategy}: ${it.endpoints?.map { e -> e.upstream }}" } }
+        } catch (_: Exception) { null }
+    }
+
+    /**
+     * Changement de profil sans recréer le TUN : le nouveau jeu d'upstreams est préchauffé
+     * en tâche de fond, puis remplace l'ancien d'un bloc. Les requêtes déjà parties finissent
+     * sur l'ancien jeu, fermé ensuite.
+     * @return false si le TUN courant ne peut pas servir le nouveau profil (restart complet)
+     */
+    private fun hotSwap(): Boolean {
+        val old = upstreams
+        if (!isRunning || old == null) return false
+        // Un secondaire apparaît alors que le TUN n'annonce qu'une IP DNS : il faut un nouveau TUN
+        if (!dnsServerSecondary.isNullOrEmpty() && DNS_ADDR_SECONDARY !in old.routes) return false
+
+        val generation = swapGeneration.incrementAndGet()
+        val next = newUpstreamSet(old.routes.keys)
+        DiagLog.i(T) { "Hot-swap #$generation: ${old.routes.values} → ${next.routes.values}" }
+        Thread({
+            val t0 = SystemClock.elapsedRealtime()
+            if (!startWarmUp(next).await(SWAP_WARMUP_MS, TimeUnit.MILLISECONDS)) {
+                DiagLog.w(T) { "Hot-swap #$generation: no upstream warm after ${SWAP_WARMUP_MS}ms, switching anyway" }
+            }
+            // Profil re-changé entre-temps ou VPN arrêté : ce jeu n'est plus d'actualité
+            if (!isRunning || swapGeneration.get() != generation) { next.close(); return@Thread }
+            val current = upstreams
+            val swappedAt = System.currentTimeMillis()
+            upstreams = next
+            keepalive?.setUpstreams(next.all)
+            if (next.ecs?.needsPublicAddress == true && publicV4 == null && publicV6 == null) {
+                networkExecutor.execute { refreshPublicAddress() }
+            }
+            DiagLog.i(T) { "Hot-swap #$generation: switched after ${SystemClock.elapsedRealtime() - t0}ms" }
+            (getSystemService(Context.NOTIFICATION_SERVICE) as NotificationManager)
+                .notify(NOTIF_ID, mkNotif("DNS: ${notifLabel()}", notifSummary))
+
+            // Laisser les requêtes parties avant la bascule se terminer sur l'ancien jeu
+            val deadline = SystemClock.elapsedRealtime() + SWAP_DRAIN_MS
+            while (SystemClock.elapsedRealtime() < deadline && pending.values.any { it.time <= swappedAt }) {
+                try { Thread.sleep(100) } catch (_: InterruptedException) { break }
+            }
+            current?.close()
+        }, "HotSwap").start()
+        return true
+    }
+
+    /**
+     * Latence d'un upstream pour le mode auto : une première requête canari ouvre la connexion
+     * si besoin, seule la seconde est mesurée (coût d'une requête sur connexion chaude)
+     */
+    private fun probeLatency(upstream: String): Long? {
+        val set = upstreams ?: return null
+        if (!isRunning || !warmUp(set, upstream)) return null
+        val t0 = SystemClock.elapsedRealtime()
+        return if (warmUp(set, upstream)) SystemClock.elapsedRealtime() - t0 else null
+    }
+
+    /** Bascule décidée par le mode auto (thread principal, comme un changement de profil) */
+    private fun switchProvider(profile: DnsProfile) {
+        if (!isRunning) return
+        dnsServer = profile.primary
+        dnsServerSecondary = profile.secondary
+        if (!hotSwap()) {
+            stopVpn()
+            android.os.Handler(mainLooper).postDelayed({ startVpn() }, 600)
+        }
+    }
+
+    private fun notifLabel(): String =
+        if (isDnsCrypt(dnsServer)) "DNSCrypt ${DnsStamp.parse(dnsServer)?.displayName}" else dnsServer
+
+    /**
+     * Keepalive d'un upstream chiffré : requête canari sur la connexion existante (voir KeepaliveScheduler)
+     * @return false si la connexion existante a répondu, true s'il a fallu en ouvrir une nouvelle,
+     * null en cas d'échec
+     */
+    private fun keepalivePing(upstream: String): Boolean? {
+        val set = upstreams ?: return null
+        val q = DnsWire.buildQuery(CANARY_DOMAIN, id = Random.nextInt(0x10000))
+        if (isDoH(upstream)) {
+            val probe = KeepaliveProbe()
+            return if (doH(q, upstream, probe) != null) probe.reconnected else null
+        }
+        if (!isDoQ(upstream)) return null
+        // Premier essai : sur la connexion ouverte s'il y en a une, sinon sur une nouvelle
+        val wasConnected = set.doq.isConnected(upstream)
+        if (set.doq.query(q, upstream) != null) return !wasConnected
+        // La connexion qu'on croyait ouverte était morte (l'échec l'a invalidée) : second essai,
+        // sur une connexion neuve. Sans connexion au départ, le premier essai en était déjà une.
+        if (!wasConnected) return null
+        return if (set.doq.query(q, upstream) != null) true else null
+    }
+
+    /**
+     * Lance une requête canari vers chaque upstream du jeu.
+     * Le latch est libéré au premier upstream qui répond, ou quand tous ont échoué.
+     */
+    private fun startWarmUp(set: UpstreamSet): CountDownLatch {
+        val targets = set.all
+        val hot = CountDownLatch(1)
+        val remaining = AtomicInteger(targets.size)
+        if (targets.isEmpty()) hot.countDown()
+        for (upstream in targets) {
+            upstreamExecutor.execute {
+                val t0 = SystemClock.elapsedRealtime()
+                val ok = try { warmUp(set, upstream) } catch (e: Exception) { false }
+                DiagLog.i(T) { "Warm-up $upstream: ${if (ok) "ok" else "failed"} in ${SystemClock.elapsedRealtime() - t0}ms" }
+                if (ok || remaining.decrementAndGet() == 0) hot.countDown()
+            }
+        }
+        return hot
+    }
+
+    /** Requête canari par le transport réel : ouvre et garde chaude la connexion de l'upstream */
+    private fun warmUp(set: UpstreamSet, upstream: String): Boolean {
+        val q = DnsWire.buildQuery(CANARY_DOMAIN, id = Random.nextInt(0x10000))
+        val resp = when {
+            isDoH(upstream) -> doH(q, upstream)
+            // Un échec invalide une connexion morte : le 2e essai en ouvre une neuve
+            isDoQ(upstream) -> set.doq.query(q, upstream) ?: set.doq.query(q, upstream)
+            isDnsCrypt(upstream) -> set.dnsCrypt.query(q, upstream)
+            else -> probeUdp(q, upstream)
+        }
+        return resp != null
+    }
+
+    // ── Changements de réseau / doze ──────────────────────────────────────
+
+    private fun registerNetworkWatch() {
+        val cm = getSystemService(Context.CONNECTIVITY_SERVICE) as ConnectivityManager
+        networkIdentity = currentNetworkIdentity(cm)
+        val callback = object : ConnectivityManager.NetworkCallback() {
+            override fun onAvailable(network: Network) = scheduleNetworkCheck()
+            override fun onLost(network: Network) = scheduleNetworkCheck()
+            override fun onLinkPropertiesChanged(network: Network, linkProperties: LinkProperties) = scheduleNetworkCheck()
+        }
+        try {
+            val request = NetworkRequest.Builder()
+                .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                .addCapability(NetworkCapabilities.NET_CAPABILITY_NOT_VPN)
+                .build()
+            cm.registerNetworkCallback(request, callback)
+            networkCallback = callback
+        } catch (e: Exception) { DiagLog.w(T) { "registerNetworkCallback: ${e.message}" } }
+
+        // Sortie de doze : les connexions ont pu être coupées par les NAT pendant le sommeil
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            val receiver = object : BroadcastReceiver() {
+                override fun onReceive(context: Context, intent: Intent) {
+                    val pm = getSystemService(Context.POWER_SERVICE) as PowerManager
+                    if (!pm.isDeviceIdleMode) networkExecutor.execute { recoverConnections(networkChanged = false) }
+                }
+            }
+            registerReceiver(receiver, IntentFilter(PowerManager.ACTION_DEVICE_IDLE_MODE_CHANGED))
+            idleReceiver = receiver
+        }
+    }
+
+    private fun unregisterNetworkWatch() {
+        networkCallback?.let { cb ->
+            try {
+                (getSystemService(Context.CONNECTIVITY_SERVICE) as ConnectivityManager).unregisterNetworkCallback(cb)
+            } catch (_: Exception) {}
+        }
+        networkCallback = null
+        idleReceiver?.let { try { unregisterReceiver(it) } catch (_: Exception) {} }
+        idleReceiver = null
+        networkCheck?.cancel(false)
+    }
+
+    @Synchronized
+    private fun scheduleNetworkCheck() {
+        networkCheck?.cancel(false)
+        networkCheck = networkExecutor.schedule({ checkNetwork() }, NETWORK_DEBOUNCE_MS, TimeUnit.MILLISECONDS)
+    }
+
+    /** Réseau physique + interface + adresses : change au passage Wi-Fi ↔ cellulaire ↔ Ethernet */
+    private fun currentNetworkIdentity(cm: ConnectivityManager): String? {
+        val network = BootstrapResolver.physicalNetwork(cm) ?: return null
+        val lp = try { cm.getLinkProperties(network) } catch (_: Exception) { null }
+        return "$network|${lp?.interfaceName}|${lp?.linkAddresses?.map { it.address.hostAddress }?.sorted()}"
+    }
+
+    private fun checkNetwork() {
+        if (!isRunning) return
+        val cm = getSystemService(Context.CONNECTIVITY_SERVICE) as ConnectivityManager
+        val identity = currentNetworkIdentity(cm)
+        if (identity == networkIdentity) return
+        DiagLog.i(T) { "Network changed: $networkIdentity → $identity" }
+        networkIdentity = identity
+        // Plus de réseau : on attend le suivant
+        if (identity != null) recoverConnections(networkChanged = true)
+    }
+
+    /**
+     * Remet les upstreams en état après un changement de réseau ou une sortie de doze :
+     * sockets liées à l'ancien réseau remplacées, caches propres au réseau vidés,
+     * puis une requête canari par upstream rouvre ce qui doit l'être avant la prochaine requête.
+     */
+    private fun recoverConnections(networkChanged: Boolean) {
+        val set = upstreams ?: return
+        if (!isRunning) return
+        val t0 = SystemClock.elapsedRealtime()
+        if (networkChanged) {
+            networkKeyAt = 0
+            autoSelector?.onNetworkChanged()
+            // Sous-réseau de l'ancien réseau : plus d'injection jusqu'à la nouvelle adresse
+            publicV4 = null; publicV6 = null
+            set.ecs?.setPublicAddress(null, null)
+            // Socket UDP des upstreams classiques : la nouvelle est liée au nouveau réseau
+            val old = dnsSocket
+            dnsSocket = DatagramSocket().also { protect(it) }
+            try { old?.close() } catch (_: Exception) {}
+            // Réponses bootstrap du DNS de l'ancien réseau (split-horizon possible), et réponses
+            // gardées pour le mode QoS cache seul
+            BootstrapResolver.onNetworkChanged()
+            answerCache.clear()
+            // Connexions TCP / TLS / QUIC ouvertes sur l'ancien réseau
+            okHttpClient.connectionPool.evictAll()
+            set.dot.closeAll()
+            set.doq.onNetworkChanged()
+            // Requêtes UDP parties sur l'ancienne socket : leurs réponses ne reviendront pas
+            for (p in pending.values) {
+                if (p.pathKey != null) sendUdp(DnsWire.withEdnsUdpSize(p.query, p.upstreamUdpSize) ?: p.query, p.upstream)
+            }
+        }
+        startWarmUp(set).await(SWAP_WARMUP_MS, TimeUnit.MILLISECONDS)
+        if (networkChanged) refreshPublicAddress()
+        DiagLog.i(T) { "Upstreams recovered (${if (networkChanged) "network change" else "doze exit"}) " +
+            "in ${SystemClock.elapsedRealtime() - t0}ms" }
+    }
+
+    /**
+     * Adresses publiques IPv4 / IPv6 du réseau physique (mêmes services que l'écran principal),
+     * via le client DoH protégé : seulement si un upstream est en injection Client Subnet
+     */
+    private fun refreshPublicAddress() {
+        val set = upstreams ?: return
+        val ecs = set.ecs ?: return
+        if (!ecs.needsPublicAddress || !isRunning) return
+        fun quickGet(url: String): InetAddress? = try {
+            okHttpClient.newCall(Request.Builder().url(url).build()).execute().use { resp ->
+                val body = resp.body?.string()?.trim()
+                if (resp.isSuccessful && !body.isNullOrEmpty() && body.all { it.isLetterOrDigit() || it == '.' || it == ':' })
+                    InetAddress.getByName(body) else null
+            }
+        } catch (_: Exception) { null }
+        val v4 = (quickGet("https://api4.ipify.org") ?: quickGet("https://ipv4.icanhazip.com"))
+            ?.takeIf { it is java.net.Inet4Address }
+        val v6 = if (v4 != null) null else (quickGet("https://api6.ipify.org") ?: quickGet("https://ipv6.icanhazip.com"))
+            ?.takeIf { it is java.net.Inet6Address }
+        publicV4 = v4; publicV6 = v6
+        upstreams?.ecs?.setPublicAddress(v4, v6)
+        DiagLog.i(T) { "Client Subnet: ${if (v4 != null) "/${EcsPolicy.V4_PREFIX}" else if (v6 != null) "/${EcsPolicy.V6_PREFIX}" else "public address unknown"}" }
+    }
+
     // ── Traitement paquet TUN → forward DNS ───────────────────────────────
 
-    private fun onTunPacket(buf: ByteArray) {
+    private fun onTunPacket(buf: ByteArray, n: Int) {
+        val tracer = tracer
+        val t0 = if (tracer != null) System.nanoTime() else 0L
         // IPv4 only
         if ((buf[0].toInt() and 0xF0) shr 4 != 4) return
         val ihl = (buf[0].toInt() and 0x0F) * 4
+        if (n < ihl + 8) return
+        // TCP (proto 6) vers une IP DNS virtuelle : DNS over TCP
+        if (buf[9].toInt() and 0xFF == 6) {
+            if (upstreams?.routeFor(buf, 16) != null) tcpHandler?.onPacket(buf, n, ihl)
+            return
+        }
         // UDP (proto 17) vers port 53
-        if (buf.size < ihl + 8) return
         if (buf[9].toInt() and 0xFF != 17) return
         val dstPort = ((buf[ihl + 2].toInt() and 0xFF) shl 8) or (buf[ihl + 3].toInt() and 0xFF)
         if (dstPort != 53) return
 
-        val srcIp = buf.copyOfRange(12, 16)
-        val dstIp = buf.copyOfRange(16, 20)
-        val srcPort = (buf[ihl].toInt() and 0xFF) shl 8 or (buf[ihl + 1].toInt() and 0xFF)
-        val real = upstreamMap[ipStr(dstIp)] ?: return
-
         val off = ihl + 8
-        if (buf.size - off < 12) return
-        var query = buf.copyOfRange(off, buf.size)
-        val id = (query[0].toInt() and 0xFF) shl 8 or (query[1].toInt() and 0xFF)
-
-        // Rewrite check
-        var wasRewritten = false
-        var originalQnameEncoded: ByteArray? = null
-        val (qname, modifiedQuery) = getQNameAndApplyRewrite(query)
-        if (modifiedQuery != null) {
-            Log.i(T, "DNS Rewrite: '$qname' → règle trouvée")
-            originalQnameEncoded = encodeQName(qname)
-            query = modifiedQuery
-            wasRewritten = true
-        }
-
-        pending[id] = Pending(srcIp, dstIp, srcPort, System.currentTimeMillis(), wasRewritten, originalQnameEncoded)
-
-        if (isDoH(real)) {
-            val q = query
-            Thread {
-                val resp = doH(q, real)
-                if (resp != null) {
-                    val p = pending.remove(id)
-                    if (p != null) writeTun(p, resp)
+        if (n - off < 12) return
+        val ctx = QueryContext.obtain()
+        System.arraycopy(buf, 12, ctx.srcIp, 0, 4)
+        System.arraycopy(buf, 16, ctx.dstIp, 0, 4)
+        ctx.srcPort = (buf[ihl].toInt() and 0xFF) shl 8 or (buf[ihl + 1].toInt() and 0xFF)
+        ctx.setQuery(buf, off, n - off)
+        ctx.trace = tracer?.sample(t0)
+        ctx.trace?.mark("tun read")
+        handleQuery(ctx)
+    }
+
+    /** Requête DNS d'un client (UDP, ou TCP si ctx.tcpReply != null) → chaîne de traitement */
+    private fun handleQuery(ctx: QueryContext) {
+        // Jeu lu une seule fois : la requête termine sur ce jeu même si un hot-swap survient
+        val set = upstreams
+        val chain = chain
+        if (set == null || chain == null || set.routeFor(ctx.dstIp, 0) == null) {
+            // Réponse immédiate plutôt que le silence : un client TCP attendrait sinon son délai
+            // d'expiration sur la connexion (REFUSED : adresse DNS non servie ; SERVFAIL : VPN à l'arrêt)
+            val rcode = if (set == null || chain == null) DnsWire.RCODE_SERVFAIL else DnsWire.RCODE_REFUSED
+            val resp = DnsWire.errorResponse(ctx.query, rcode)
+            val reply = ctx.tcpReply
+            if (reply != null) reply(resp) else writeRaw(buildPkt(ctx.dstIp, ctx.srcIp, 53, ctx.srcPort, resp))
+            QueryContext.recycle(ctx)
+            return
+        }
+        ctx.set = set
+        if (ctx.tcpReply != null) ctx.trace = tracer?.sample(System.nanoTime())
+        ctx.time = System.currentTimeMillis()
+        ctx.deadline = deadlines.deadlineFor(ctx.time, ctx.tcpReply != null)
+        lastQueryAt = SystemClock.elapsedRealtime()
+        metrics.queries.incrementAndGet()
+        val apps = set.apps
+        if (apps == null) {
+            chain.process(ctx)
+            return
+        }
+        // Politique / QoS par application : UID du 5-tuple en cache, sinon résolu hors du thread TUN
+        val proto = if (ctx.tcpReply != null) OsConstants.IPPROTO_TCP else OsConstants.IPPROTO_UDP
+        val uid = apps.cachedUid(proto, ctx.srcIp, ctx.srcPort, ctx.dstIp)
+        if (uid != AppUpstreamRouter.UID_UNKNOWN) {
+            ctx.uid = uid; ctx.hasUid = true
+            chain.process(ctx)
+            return
+        }
+        appRouteExecutor.execute {
+            ctx.uid = apps.ownerUid(proto, ctx.srcIp, ctx.srcPort, ctx.dstIp, 53)
+            ctx.hasUid = true
+            ctx.trace?.mark("app uid")
+            chain.process(ctx)
+        }
+    }
+
+    /**
+     * Chaîne de traitement pour la configuration courante (règles de réécriture, QoS, cache) :
+     * réécriture → routage → Client Subnet → QoS → cache → envoi ; réponses : retour d'information
+     * des upstreams → cache → Client Subnet → qname d'origine
+     */
+    private fun buildChain(): QueryChain {
+        val rewrite = RewriteStage(rewriteRules)
+        // Cache seulement pour le mode QoS "cache seul" : le reste du trafic n'est jamais servi du cache
+        val cache = if (qos?.excessMode == QosScheduler.MODE_CACHE_ONLY) CacheStage(answerCache) else null
+        return QueryChain(
+            listOfNotNull(rewrite, routeStage, EcsStage, qosStage, cache, forwardStage),
+            listOfNotNull(feedbackStage, cache, EcsStage, rewrite),
+            ::deliver,
+            tracer
+        )
+    }
+
+    /** Upstream de la requête : route de l'IP DNS virtuelle (groupe éventuel), ou politique de l'application */
+    private val routeStage = object : QueryStage {
+        override val traceLabel get() = "route"
+
+        override fun onQuery(ctx: QueryContext): QueryChain.Verdict {
+            val set = ctx.set ?: return QueryChain.Verdict.DROPPED
+            val route = set.routeFor(ctx.dstIp, 0) ?: return QueryChain.Verdict.DROPPED
+            val policy = if (ctx.hasUid) set.apps?.upstreamFor(ctx.uid) else null
+            ctx.upstream = policy ?: set.balancers[route]?.pick(ctx.query) ?: route
+            ctx.clientUdpSize = DnsWire.ednsUdpSize(ctx.query)
+            return QueryChain.Verdict.CONTINUE
+        }
+    }
+
+    /** QoS : application au-delà de sa limite → REFUSED, ou cache seul selon le mode ; priorité d'envoi */
+    private val qosStage = object : QueryStage {
+        override val traceLabel get() = "qos"
+
+        override fun onQuery(ctx: QueryContext): QueryChain.Verdict {
+            val qos = qos
+            if (qos == null || !ctx.hasUid) return QueryChain.Verdict.CONTINUE
+            if (!qos.admit(ctx.uid)) {
+                if (qos.excessMode == QosScheduler.MODE_REFUSED) {
+                    ctx.answer = DnsWire.errorResponse(ctx.query, DnsWire.RCODE_REFUSED)
+                    ctx.answerSource = QueryContext.SOURCE_LOCAL
+                    return QueryChain.Verdict.ANSWERED
+                }
+                ctx.cacheOnly = true
+            }
+            ctx.priority = qos.priorityOf(ctx.uid)
+            return QueryChain.Verdict.CONTINUE
+        }
+    }
+
+    /**
+     * Envoi à l'upstream par son transport. La requête est publiée dans `pending` juste avant
+     * l'envoi : ensuite seules des copies locales sont lues, le contexte pouvant être
+     * complété (et recyclé) par un autre thread dès la réponse. Chaque transport est borné par
+     * l'échéance de la requête ; expireOverdue() répond SERVFAIL à sa place si elle est dépassée.
+     */
+    private val forwardStage = object : QueryStage {
+        override val traceLabel get() = "forward"
+
+        override fun onQuery(ctx: QueryContext): QueryChain.Verdict {
+            val set = ctx.set ?: return QueryChain.Verdict.DROPPED
+            val now = System.currentTimeMillis()
+            // Échéance déjà dépassée (résolution de l'UID, file) : le client n'attend plus
+            if (now >= ctx.deadline) {
+                deadlines.expiredQueued.incrementAndGet()
+                return servfail(ctx)
+            }
+            val id = ctx.id
+            // Relance du client pour une requête encore en vol : pas de nouvel envoi
+            val previous = pending[id]
+            if (previous != null && coalesce(previous, ctx, now)) {
+                deadlines.coalesced.incrementAndGet()
+                return QueryChain.Verdict.FORWARDED
+            }
+            val real = ctx.upstream
+            val q = ctx.query
+            val priority = ctx.priority
+            val deadline = ctx.deadline
+            val trace = ctx.trace
+
+            // Upstream UDP classique : taille EDNS0 plafonnée à ce que le chemin laisse passer
+            // (modifiée en place : le message appartient au contexte)
+            val plainUdp = !isDoH(real) && !isDoQ(real) && !isDnsCrypt(real)
+            val mp = if (plainUdp) multipath?.takeIf { it.isActive } else null
+            if (plainUdp) {
+                val key = pathKey(real)
+                ctx.pathKey = key
+                ctx.upstreamUdpSize = minOf(ctx.clientUdpSize, EdnsTuner.sizeFor(key))
+                DnsWire.setEdnsUdpSize(q, ctx.upstreamUdpSize)
+            }
+            // Envoi en tâche de fond (transports chiffrés, relance multi-chemins) : le message
+            // survit au contexte. UDP direct : envoyé tout de suite, un tampon réutilisé entre-temps
+            // ne peut appartenir qu'à une requête suivante, celle-ci ayant déjà reçu sa réponse.
+            if (!plainUdp || mp != null) ctx.detachQuery()
+
+            keepalive?.onActivity(real)
+            metrics.forwarded.incrementAndGet()
+            ctx.sentNanos = System.nanoTime()
+            if (trace != null) {
+                trace.mark(traceLabel)
+                trace.upstreamSent()
+            }
+            val watchLoss = plainUdp && ctx.upstreamUdpSize > EdnsTuner.SAFE_SIZE
+            pending[id] = ctx
+            armSweep(deadline)
+
+            if (isDoH(real)) {
+                launch(priority, deadline, trace) { remaining ->
+                    val mp = multipath?.takeIf { it.isActive }
+                    val resp = if (mp != null) mp.hedge(real) { network -> doH(q, real, client = httpClientFor(mp, network), timeoutMs = remaining, trace = trace) }
+                        else doH(q, real, timeoutMs = remaining, trace = trace)
+                    if (resp != null) pending.remove(id)?.let { answer(it, resp) }
+                    else { metrics.onError(real); reportFailure(set, real) }
                 }
-            }.start()
-        } else if (isDoQ(real)) {
-            val q = query
-            Thread {
-                val resp = doqClient?.query(q, real)
-                if (resp != null) {
-                    val p = pending.remove(id)
-                    if (p != null) writeTun(p, resp)
+            } else if (isDoQ(real)) {
+                launch(priority, deadline, trace) { remaining ->
+                    val resp = set.doq.query(q, real, remaining, trace)
+                    if (resp != null) pending.remove(id)?.let { answer(it, resp) }
+                    else { metrics.onError(real); reportFailure(set, real) }
                 }
-            }.start()
-        } else {
-            try {
-                dnsSocket?.send(DatagramPacket(query, query.size, InetAddress.getByName(real), 53))
-            } catch (e: Exception) { Log.w(T, "UDP send: ${e.message}") }
+            } else if (isDnsCrypt(real)) {
+                launch(priority, deadline, trace) { remaining ->
+                    val resp = set.dnsCrypt.query(q, real, remaining.toInt())
+                    if (resp != null) pending.remove(id)?.let { answer(it, resp) }
+                    else { metrics.onError(real); reportFailure(set, real) }
+                }
+            } else {
+                if (mp == null || !mp.send(q, real) { pending.containsKey(id) }) sendUdp(q, real)
+                if (watchLoss) armLossCheck()
+            }
+            return QueryChain.Verdict.FORWARDED
         }
+    }
 
-        // Cleanup vieilles requêtes
-        pending.entries.removeAll { System.currentTimeMillis() - it.value.time > 10_000 }
+    private fun servfail(ctx: QueryContext): QueryChain.Verdict {
+        ctx.answer = DnsWire.errorResponse(ctx.query, DnsWire.RCODE_SERVFAIL)
+        ctx.answerSource = QueryContext.SOURCE_LOCAL
+        return QueryChain.Verdict.ANSWERED
     }
 
-    private fun onDnsResponse(resp: ByteArray) {
-        val id = (resp[0].toInt() and 0xFF) shl 8 or (resp[1].toInt() and 0xFF)
-        val p = pending.remove(id) ?: return
-        writeTun(p, resp)
+    /**
+     * Relance `ctx` d'une requête déjà en vol (même client UDP : adresse et port, même ID, même
+     * question) : elle prend sa place dans `pending` avec son état d'envoi et une échéance
+     * repoussée, la réponse attendue lui revient. L'ancien contexte, remplacé, est recyclé : le
+     * client n'attend qu'une réponse, et un parcours de `pending` qui le lirait encore le
+     * revérifie dans `pending` comme pour une requête qui vient d'être répondue.
+     * Pas de fusion en TCP : chaque message attend sa propre réponse sur sa connexion.
+     * @return false si ce n'est pas une relance ou si la requête d'origine vient de se terminer
+     */
+    private fun coalesce(previous: QueryContext, ctx: QueryContext, now: Long): Boolean {
+        if (ctx.tcpReply != null || previous.tcpReply != null) return false
+        if (ctx.srcPort != previous.srcPort || !ctx.srcIp.contentEquals(previous.srcIp)) return false
+        val end = ctx.questionEnd
+        val prevQuery = previous.query
+        if (end < 0 || previous.questionEnd != end || prevQuery.size < end) return false
+        for (i in DnsWire.HEADER_SIZE until end) if (prevQuery[i] != ctx.query[i]) return false
+        val upstream = ctx.upstream
+        val time = ctx.time
+        val deadline = ctx.deadline
+        ctx.upstream = previous.upstream
+        ctx.pathKey = previous.pathKey
+        ctx.upstreamUdpSize = previous.upstreamUdpSize
+        ctx.retried = previous.retried
+        ctx.sentNanos = previous.sentNanos
+        ctx.time = previous.time
+        ctx.deadline = deadlines.retryDeadline(now, now - previous.time)
+        ctx.trace?.mark("coalesce")
+        if (pending.replace(ctx.id, previous, ctx)) {
+            armSweep(ctx.deadline)
+            QueryContext.recycle(previous)
+            return true
+        }
+        ctx.upstream = upstream; ctx.time = time; ctx.deadline = deadline
+        ctx.pathKey = null; ctx.upstreamUdpSize = 0; ctx.retried = false; ctx.sentNanos = 0
+        return false
     }
 
-    // ── Rewrite : restaurer le qname original dans la réponse ─────────────
+    /**
+     * Passe du balayage à l'échéance `deadline`, si elle est plus proche que celle programmée.
+     * Chemin courant sans verrou : les échéances arrivent dans l'ordre, la passe est déjà prévue.
+     */
+    private fun armSweep(deadline: Long) {
+        if (deadline >= sweepAt) return
+        synchronized(sweepLock) {
+            if (deadline >= sweepAt || !isRunning) return
+            deadlineSweep?.cancel(false)
+            sweepAt = deadline
+            deadlineSweep = sweepExecutor.schedule({ expireOverdue() },
+                (deadline - System.currentTimeMillis()).coerceAtLeast(0), TimeUnit.MILLISECONDS)
+        }
+    }
 
-    private fun writeTun(p: Pending, payload: ByteArray) {
-        val finalPayload = if (p.wasRewritten && p.originalQnameEncoded != null) {
-            restoreOriginalQName(payload, p.originalQnameEncoded)
-        } else {
-            payload
+    private fun cancelSweep() = synchronized(sweepLock) {
+        deadlineSweep?.cancel(false)
+        deadlineSweep = null
+        sweepAt = Long.MAX_VALUE
+    }
+
+    /**
+     * Requêtes en vol dont l'échéance est dépassée : SERVFAIL au client, échec pour l'upstream ;
+     * reprogrammée ensuite à la plus proche échéance restante
+     */
+    private fun expireOverdue() {
+        // Désarmée avant le parcours : une requête publiée pendant celui-ci programme sa passe
+        synchronized(sweepLock) {
+            deadlineSweep = null
+            sweepAt = Long.MAX_VALUE
         }
-        val pkt = buildPkt(p.dstIp, p.srcIp, 53, p.srcPort, finalPayload)
-        try {
-            synchronized(tunOutLock) { if (isRunning) tunOut?.write(pkt) }
-        } catch (e: Exception) { Log.w(T, "TUN write: ${e.message}") }
+        val now = System.currentTimeMillis()
+        var next = Long.MAX_VALUE
+        for ((id, p) in pending) {
+            val due = p.deadline
+            if (now < due) {
+                if (due < next) next = due
+                continue
+            }
+            val set = p.set
+            val upstream = p.upstream
+            if (!pending.remove(id, p)) continue
+            deadlines.expiredUpstream.incrementAndGet()
+            metrics.onTimeout(upstream)
+            p.trace?.upstreamDone()
+            if (set != null) reportFailure(set, upstream)
+            p.answerSource = QueryContext.SOURCE_LOCAL
+            val chain = p.chain
+            if (chain != null) chain.complete(p, DnsWire.errorResponse(p.query, DnsWire.RCODE_SERVFAIL))
+            else QueryContext.recycle(p)
+        }
+        if (next != Long.MAX_VALUE) armSweep(next)
+    }
+
+    /** Retour d'information des réponses : métriques, groupes d'endpoints et mode auto */
+    private val feedbackStage = object : ResponseStage {
+        override fun onResponse(ctx: QueryContext, response: ByteArray): ByteArray {
+            when (ctx.answerSource) {
+                QueryContext.SOURCE_CACHE -> metrics.cacheHits.incrementAndGet()
+                QueryContext.SOURCE_LOCAL -> metrics.local.incrementAndGet()
+                else -> if (ctx.upstream.isNotEmpty()) {
+                    if (ctx.sentNanos != 0L) metrics.onAnswer(ctx.upstream, System.nanoTime() - ctx.sentNanos)
+                    val rtt = System.currentTimeMillis() - ctx.time
+                    ctx.set?.balancers?.values?.forEach { it.onAnswer(ctx.upstream, rtt) }
+                    autoSelector?.onAnswer(ctx.upstream)
+                }
+            }
+            return response
+        }
+    }
+
+    /** Réponse d'un upstream pour une requête retirée de `pending` */
+    private fun answer(ctx: QueryContext, response: ByteArray) {
+        ctx.trace?.upstreamDone()
+        ctx.answerSource = QueryContext.SOURCE_UPSTREAM
+        ctx.chain?.complete(ctx, response) ?: QueryContext.recycle(ctx)
+    }
+
+    private fun reportFailure(set: UpstreamSet, upstream: String) {
+        for (b in set.balancers.values) b.onFailure(upstream)
+        autoSelector?.onFailure(upstream)
     }
 
     /**
-     * Remplace le qname dans la réponse DNS par le qname original.
-     * La réponse du serveur contient le domaine réécrit, mais le client
-     * s'attend au domaine qu'il a demandé à l'origine.
+     * Requête bloquante vers un upstream chiffré : pool QoS par priorité, sinon thread dédié.
+     * `task` reçoit le temps restant avant l'échéance ; expirée dans la file, elle n'est pas lancée.
+     * L'attente dans la file est détaillée dans la trace de la requête (partie de l'étape upstream).
      */
-    private fun restoreOriginalQName(response: ByteArray, originalQnameEncoded: ByteArray): ByteArray {
+    private fun launch(priority: Int, deadline: Long, trace: QueryTrace?, task: (remainingMs: Long) -> Unit) {
+        val queuedAt = if (trace != null) System.nanoTime() else 0L
+        val run = Runnable {
+            trace?.nested("queue", System.nanoTime() - queuedAt)
+            val remaining = deadline - System.currentTimeMillis()
+            if (remaining > 0) task(remaining) else deadlines.expiredQueued.incrementAndGet()
+        }
+        val q = qos
+        if (q != null) q.execute(priority, run) else upstreamExecutor.execute(run)
+    }
+
+    private fun sendUdp(query: ByteArray, real: String) {
         try {
-            // Trouver la fin du qname dans la réponse (section question, offset 12)
-            val rewrittenQnameLen = getQNameLength(response, 12)
-            // +4 pour QTYPE + QCLASS
-            val afterQuestion = 12 + rewrittenQnameLen + 4
-            if (afterQuestion > response.size) return response
-
-            // Reconstruire : header + original qname + QTYPE/QCLASS + reste de la réponse
-            val header = response.copyOfRange(0, 12)
-            val qtypeClass = response.copyOfRange(12 + rewrittenQnameLen, afterQuestion)
-            val rest = if (afterQuestion < response.size) response.copyOfRange(afterQuestion, response.size) else byteArrayOf()
-
-            val result = ByteBuffer.allocate(header.size + originalQnameEncoded.size + qtypeClass.size + rest.size)
-            result.put(header)
-            result.put(originalQnameEncoded)
-            result.put(qtypeClass)
-            result.put(rest)
-            return result.array()
+            dnsSocket?.send(DatagramPacket(query, query.size, InetAddress.getByName(real), 53))
         } catch (e: Exception) {
-            Log.w(T, "restoreOriginalQName err: ${e.message}")
-            return response
+            metrics.onError(real)
+            DiagLog.w(T) { "UDP send: ${e.message}" }
+        }
+    }
+
+    private fun onDnsResponse(resp: ByteArray) {
+        val id = (resp[0].toInt() and 0xFF) shl 8 or (resp[1].toInt() and 0xFF)
+        val p = pending.remove(id) ?: return
+        p.pathKey?.let { EdnsTuner.onAnswer(it, p.upstreamUdpSize, resp.size) }
+        // Réponse tronquée par l'upstream alors que le client accepte plus (client TCP, ou taille
+        // EDNS0 plafonnée par EdnsTuner) : récupérée sans bloquer le DnsReceiver
+        if (DnsWire.isTruncated(resp) && (p.tcpReply != null || p.clientUdpSize > p.upstreamUdpSize)) {
+            upstreamExecutor.execute {
+                // Plus le temps d'un second échange : réponse tronquée, le client réessaiera en TCP
+                val full = if (System.currentTimeMillis() < p.deadline) fetchLarge(p, p.query) else null
+                answer(p, full ?: resp)
+            }
+            return
         }
+        answer(p, resp)
     }
 
-    // ── DNS Rewrite helpers ───────────────────────────────────────────────
+    /**
+     * Réponse complète d'une requête tronquée : palier EDNS0 supérieur si le chemin
+     * n'est pas encore connu pour le bloquer, sinon sur un flux (DoT / TCP)
+     */
+    private fun fetchLarge(p: QueryContext, query: ByteArray): ByteArray? {
+        val key = p.pathKey
+        if (key != null) {
+            val wanted = if (p.tcpReply != null) 0xFFFF else minOf(p.clientUdpSize, MAX_UDP_PAYLOAD)
+            val size = EdnsTuner.probeSize(key, wanted)
+            if (size != null) {
+                val resp = probeUdp(DnsWire.withEdnsUdpSize(query, size) ?: query, p.upstream)
+                if (resp == null) EdnsTuner.onLoss(key, size)
+                else {
+                    EdnsTuner.onAnswer(key, size, resp.size)
+                    if (!DnsWire.isTruncated(resp)) return resp
+                }
+            }
+        }
+        return fetchOverStream(query, p.upstream)
+    }
+
+    /** Requête UDP isolée (socket protégée dédiée), null si pas de réponse à temps */
+    private fun probeUdp(query: ByteArray, real: String): ByteArray? {
+        val sock = DatagramSocket()
+        return try {
+            protect(sock)
+            sock.soTimeout = PROBE_TIMEOUT_MS
+            sock.send(DatagramPacket(query, query.size, InetAddress.getByName(real), 53))
+            val buf = ByteArray(65535)
+            var resp: ByteArray? = null
+            while (resp == null) {
+                val pkt = DatagramPacket(buf, buf.size)
+                sock.receive(pkt)
+                if (pkt.length >= 12 && buf[0] == query[0] && buf[1] == query[1]) resp = buf.copyOf(pkt.length)
+            }
+            resp
+        } catch (_: Exception) {
+            null
+        } finally {
+            sock.close()
+        }
+    }
 
-    private fun getQNameAndApplyRewrite(query: ByteArray): Pair<String, ByteArray?> {
-        val buffer = ByteBuffer.wrap(query).asReadOnlyBuffer()
-        buffer.position(12)
-        val qname = parseQName(buffer)
-        rewriteRules.find { it.fromDomain.equals(qname, ignoreCase = true) }?.let {
-            return Pair(qname, buildNewQuery(query, it.toDomain))
+    /** Vérification des pertes toutes les LOSS_CHECK_MS, jusqu'à ce qu'aucune grande réponse ne soit attendue */
+    private fun armLossCheck() = synchronized(lossCheckLock) {
+        lossCheckRequested = true
+        if (lossCheck == null && isRunning) {
+            lossCheck = timerExecutor.scheduleWithFixedDelay({ retryLostAnswers() },
+                LOSS_CHECK_MS, LOSS_CHECK_MS, TimeUnit.MILLISECONDS)
         }
-        return Pair(qname, null)
     }
 
-    private fun parseQName(buffer: ByteBuffer): String {
-        val sb = StringBuilder()
-        while (buffer.hasRemaining()) {
-            val len = buffer.get().toInt()
-            if (len == 0) break
-            if (len < 0 || len > 63) return "<invalid>"
-            val bytes = ByteArray(len)
-            buffer.get(bytes)
-            if (sb.isNotEmpty()) sb.append('.')
-            sb.append(String(bytes))
+    private fun cancelLossCheck() = synchronized(lossCheckLock) {
+        lossCheck?.cancel(false)
+        lossCheck = null
+    }
+
+    /**
+     * Requêtes UDP annoncées au-delà de 1232 octets restées sans réponse : fragments IP
+     * probablement perdus sur le chemin, rejouées une fois à la taille sûre
+     */
+    private fun retryLostAnswers() {
+        synchronized(lossCheckLock) { lossCheckRequested = false }
+        val now = System.currentTimeMillis()
+        var watching = false
+        for ((id, p) in pending) {
+            // Lecture indicative : la requête peut être répondue (et son contexte recyclé) à tout moment
+            if (p.pathKey == null || p.retried || p.upstreamUdpSize <= EdnsTuner.SAFE_SIZE) continue
+            if (now - p.time < LOSS_TIMEOUT_MS) { watching = true; continue }
+            // Contexte pris dans `pending` comme par une réponse ou le balayage : personne d'autre
+            // ne peut le terminer pendant qu'il est modifié. Revérifié une fois pris (contexte
+            // recyclé puis réutilisé par une requête suivante sous le même ID)
+            if (!pending.remove(id, p)) continue
+            val key = p.pathKey
+            if (key == null || p.retried || p.upstreamUdpSize <= EdnsTuner.SAFE_SIZE || now - p.time < LOSS_TIMEOUT_MS) {
+                if (restorePending(id, p)) watching = true
+                continue
+            }
+            val lostSize = p.upstreamUdpSize
+            val size = minOf(p.clientUdpSize, EdnsTuner.SAFE_SIZE)
+            p.upstreamUdpSize = size
+            p.retried = true
+            // Copie : une fois remis en attente, le contexte peut être répondu et recyclé avant l'envoi
+            val query = DnsWire.withEdnsUdpSize(p.query, size) ?: p.query.copyOf()
+            val upstream = p.upstream
+            // Remis en attente avant l'envoi, pour la réponse à la relance
+            if (!restorePending(id, p)) continue
+            EdnsTuner.onLoss(key, lostSize)
+            sendUdp(query, upstream)
+        }
+        // Plus rien à surveiller, et aucune grande requête partie pendant le parcours : désarmée
+        if (!watching) synchronized(lossCheckLock) {
+            if (!lossCheckRequested) cancelLossCheck()
         }
-        return sb.toString()
     }
 
-    private fun getQNameLength(data: ByteArray, offset: Int): Int {
-        var pos = offset
-        while (pos < data.size && data[pos].toInt() != 0) {
-            val labelLen = data[pos].toInt() and 0xFF
-            if (labelLen and 0xC0 == 0xC0) return pos - offset + 2 // compression pointer
-            pos += labelLen + 1
+    /**
+     * Remet dans `pending` un contexte pris par retryLostAnswers. Une nouvelle requête sous le même
+     * ID a pu prendre la place entre-temps : en UDP, la relance du client, qui attend sa réponse à
+     * elle ; en TCP, ce message-ci attend toujours la sienne sur sa connexion (SERVFAIL).
+     * @return false si le contexte a été clos
+     */
+    private fun restorePending(id: Int, p: QueryContext): Boolean {
+        val deadline = p.deadline
+        if (pending.putIfAbsent(id, p) == null) {
+            // Le balayage a pu passer sans le voir
+            armSweep(deadline)
+            return true
         }
-        return pos - offset + 1 // +1 pour le 0x00 terminal
+        val chain = p.chain
+        if (p.tcpReply != null && chain != null) {
+            p.answerSource = QueryContext.SOURCE_LOCAL
+            chain.complete(p, DnsWire.errorResponse(p.query, DnsWire.RCODE_SERVFAIL))
+        } else QueryContext.recycle(p)
+        return false
     }
 
-    /** Encode un nom de domaine en wire format DNS (labels + 0x00) */
-    private fun encodeQName(domain: String): ByteArray {
-        val buf = ByteBuffer.allocate(256)
-        domain.split(".").forEach { label ->
-            buf.put(label.length.toByte())
-            buf.put(label.toByteArray())
+    /** Clé EdnsTuner de l'upstream sur le réseau courant, construite une fois par réseau et non par requête */
+    private fun pathKey(upstream: String): String {
+        val network = networkKey()
+        var keys = pathKeys
+        if (keys.network != network) {
+            keys = PathKeys(network)
+            pathKeys = keys
         }
-        buf.put(0.toByte())
-        return buf.array().copyOf(buf.position())
+        return keys.byUpstream.getOrPut(upstream) { EdnsTuner.key(upstream, network) }
     }
 
-    private fun buildNewQuery(originalQuery: ByteArray, newDomain: String): ByteArray {
-        val header = originalQuery.copyOfRange(0, 12)
-        val origQnameLen = getQNameLength(originalQuery, 12)
-        val qtypeClass = originalQuery.copyOfRange(12 + origQnameLen, 12 + origQnameLen + 4)
+    /** Identifiant du réseau physique courant (clé du cache EdnsTuner), rafraîchi toutes les 5s */
+    private fun networkKey(): String {
+        val now = SystemClock.elapsedRealtime()
+        if (now - networkKeyAt > 5000) {
+            val cm = getSystemService(Context.CONNECTIVITY_SERVICE) as ConnectivityManager
+            networkKey = BootstrapResolver.physicalNetwork(cm)?.toString() ?: ""
+            networkKeyAt = now
+        }
+        return networkKey
+    }
 
-        val buffer = ByteBuffer.allocate(512)
-        buffer.put(header)
-        newDomain.split(".").forEach { label ->
-            buffer.put(label.length.toByte())
-            buffer.put(label.toByteArray())
+    /**
+     * Même requête sur un flux chiffré : DoT si le hostname TLS du résolveur est connu, sinon
+     * le premier upstream DoH / DoQ du jeu courant qui répond. TCP/53 en clair seulement si
+     * l'utilisateur l'a autorisé (DotClient.PREF_CLEARTEXT), sinon la réponse reste tronquée.
+     */
+    private fun fetchOverStream(query: ByteArray, real: String): ByteArray? {
+        val set = upstreams ?: return null
+        DOH_SNI_MAP[real]?.let { tlsHost -> set.dot.query(query, real, tlsHost)?.let { return it } }
+        for (upstream in set.all) {
+            val resp = when {
+                isDoH(upstream) -> doH(query, upstream)
+                isDoQ(upstream) -> set.doq.query(query, upstream)
+                else -> null
+            }
+            if (resp != null) return resp
         }
-        buffer.put(0.toByte())
-        buffer.put(qtypeClass)
-        return buffer.array().copyOf(buffer.position())
+        return set.dot.query(query, real, null)
+    }
+
+    // ── Réponse vers le client ─────────────────────────────────────────────
+
+    /** Écriture de la réponse finale (après les étapes de réponse) vers le client */
+    private fun deliver(p: QueryContext, payload: ByteArray) {
+        logFirstAnswer()
+        queryLog?.append(p, payload)
+        domainStats?.record(p, payload)
+        p.tcpReply?.let { it(payload); return }
+        // Trop grand pour le client en UDP (EDNS0 ou 512) ou pour le MTU du TUN :
+        // réponse tronquée, le client réessaie en TCP
+        val udpPayload = if (payload.size > minOf(p.clientUdpSize, MAX_UDP_PAYLOAD)) {
+            DnsWire.truncate(payload)
+        } else payload
+        writeRaw(buildPkt(p.dstIp, p.srcIp, 53, p.srcPort, udpPayload))
+    }
+
+    private fun logFirstAnswer() {
+        if (firstAnswerLogged.get() || !firstAnswerLogged.compareAndSet(false, true)) return
+        DiagLog.i(T) { "First query answered ${SystemClock.elapsedRealtime() - startRequestedAt}ms after start" }
+    }
+
+    private fun writeRaw(pkt: ByteArray) {
+        try {
+            synchronized(tunOutLock) { if (isRunning) tunOut?.write(pkt) }
+        } catch (e: Exception) { DiagLog.w(T) { "TUN write: ${e.message}" } }
     }
 
     // ── DoH via OkHttp (HTTP/2) ─────────────────────────────────────────
 
-    private fun doH(q: ByteArray, url: String): ByteArray? = try {
+    /** Client DoH lié à un réseau physique (mode multi-chemins) */
+    private fun httpClientFor(mp: MultipathRouter, network: Network): OkHttpClient {
+        okHttpByNetwork.keys.retainAll(mp.networks())
+        return okHttpByNetwork.getOrPut(network) {
+            okHttpClient.newBuilder()
+                .socketFactory(mp.socketFactory(network))
+                .connectionPool(ConnectionPool())
+                .build()
+        }
+    }
+
+    /** @param timeoutMs durée max de l'appel (échéance de la requête), 0 = délais du client OkHttp */
+    private fun doH(
+        q: ByteArray, url: String, probe: KeepaliveProbe? = null, client: OkHttpClient = okHttpClient, timeoutMs: Long = 0,
+        trace: QueryTrace? = null
+    ): ByteArray? = try {
         // For IP-based URLs (e.g. https://9.9.9.9/dns-query), rewrite to hostname for TLS/SNI
         val finalUrl = run {
             val parsed = java.net.URL(url)
@@ -509,106 +1484,26 @@ class DnsVpnService : VpnService() {
             .url(finalUrl)
             .post(body)
             .header("Accept", "application/dns-message")
+            .apply { if (probe != null) tag(KeepaliveProbe::class.java, probe) }
+            .apply { if (trace != null) tag(QueryTrace::class.java, trace) }
             .build()
 
-        val response = okHttpClient.newCall(request).execute()
+        val call = client.newCall(request)
+        if (timeoutMs > 0) call.timeout().timeout(timeoutMs, TimeUnit.MILLISECONDS)
+        val response = call.execute()
         val responseBody = response.body?.bytes()
         response.close()
 
         if (response.isSuccessful && responseBody != null && responseBody.size >= 12) {
             responseBody
         } else {
-            Log.w(T, "DoH: HTTP ${response.code} body=${responseBody?.size ?: 0}")
+            DiagLog.w(T) { "DoH: HTTP ${response.code} body=${responseBody?.size ?: 0}" }
             null
         }
-    } catch (e: Exception) { Log.w(T, "DoH err: ${e.javaClass.simpleName}: ${e.message}"); null }
-
-    /** Résoudre un hostname en bypassant le VPN (requête DNS directe UDP vers 8.8.8.8) */
-    private fun resolveHostBypass(host: String): InetAddress? = try {
-        // Si c'est déjà une IP, pas besoin de résoudre
-        if (host.matches(Regex("\\d+\\.\\d+\\.\\d+\\.\\d+"))) {
-            InetAddress.getByName(host)
-        } else {
-            // Construire une requête DNS brute pour résoudre le host
-            val query = buildDnsQuery(host)
-            val sock = DatagramSocket()
-            protect(sock) // bypass VPN
-            sock.soTimeout = 3000
-            val googleDns = InetAddress.getByAddress(byteArrayOf(8, 8, 8, 8))
-            sock.send(DatagramPacket(query, query.size, googleDns, 53))
-            val resp = ByteArray(512)
-            val pkt = DatagramPacket(resp, resp.size)
-            sock.receive(pkt)
-            sock.close()
-            // Parser la réponse pour extraire la première IP
-            parseDnsResponseIp(resp, pkt.length)
-        }
-    } catch (e: Exception) { Log.w(T, "resolveHostBypass: ${e.message}"); null }
-
-    /** Construire une requête DNS type A pour un hostname */
-    private fun buildDnsQuery(host: String): ByteArray {
-        val buf = java.io.ByteArrayOutputStream()
-        // Transaction ID
-        buf.write(0x12); buf.write(0x34)
-        // Flags: standard query
-        buf.write(0x01); buf.write(0x00)
-        // Questions: 1
-        buf.write(0x00); buf.write(0x01)
-        // Answer, Authority, Additional: 0
-        buf.write(0x00); buf.write(0x00)
-        buf.write(0x00); buf.write(0x00)
-        buf.write(0x00); buf.write(0x00)
-        // QNAME
-        for (label in host.split(".")) {
-            buf.write(label.length)
-            buf.write(label.toByteArray())
-        }
-        buf.write(0x00) // end
-        // QTYPE: A (1)
-        buf.write(0x00); buf.write(0x01)
-        // QCLASS: IN (1)
-        buf.write(0x00); buf.write(0x01)
-        return buf.toByteArray()
-    }
-
-    /** Parser une réponse DNS pour extraire la première adresse IPv4 */
-    private fun parseDnsResponseIp(data: ByteArray, length: Int): InetAddress? {
-        if (length < 12) return null
-        val anCount = ((data[6].toInt() and 0xFF) shl 8) or (data[7].toInt() and 0xFF)
-        if (anCount == 0) return null
-        // Skip question section
-        var offset = 12
-        while (offset < length && data[offset].toInt() != 0) {
-            val len = data[offset].toInt() and 0xFF
-            if (len >= 0xC0) { offset += 2; break } // compression pointer
-            offset += len + 1
-        }
-        if (offset < length && data[offset].toInt() == 0) offset++ // null terminator
-        offset += 4 // QTYPE + QCLASS
-        // Parse answer records
-        for (i in 0 until anCount) {
-            if (offset >= length) break
-            // Name (may be compressed)
-            if ((data[offset].toInt() and 0xC0) == 0xC0) offset += 2
-            else { while (offset < length && data[offset].toInt() != 0) offset++; offset++ }
-            if (offset + 10 > length) break
-            val rtype = ((data[offset].toInt() and 0xFF) shl 8) or (data[offset + 1].toInt() and 0xFF)
-            val rdlen = ((data[offset + 8].toInt() and 0xFF) shl 8) or (data[offset + 9].toInt() and 0xFF)
-            offset += 10
-            if (rtype == 1 && rdlen == 4 && offset + 4 <= length) {
-                return InetAddress.getByAddress(data.copyOfRange(offset, offset + 4))
-            }
-            offset += rdlen
-        }
-        return null
-    }
-
+    } catch (e: Exception) { DiagLog.w(T) { "DoH err: ${e.javaClass.simpleName}: ${e.message}" }; null }
 
     // ── Utilitaires réseau ────────────────────────────────────────────────
 
-    private fun ipStr(b: ByteArray) =
-        "${b[0].toInt() and 0xFF}.${b[1].toInt() and 0xFF}.${b[2].toInt() and 0xFF}.${b[3].toInt() and 0xFF}"
-
     private fun buildPkt(src: ByteArray, dst: ByteArray, sp: Int, dp: Int, data: ByteArray): ByteArray {
         val totalLen = 20 + 8 + data.size
         val p = ByteArray(totalLen)
@@ -666,13 +1561,33 @@ class DnsVpnService : VpnService() {
 
     private fun stopVpn() {
         if (!isRunning) return
-        Log.i(T, "=== STOP VPN v34 ===")
+        DiagLog.i(T) { "=== STOP VPN v34 ===" }
         isRunning = false; isVpnRunning = false; instance = null
+        cancelSweep()
+        cancelLossCheck()
+        notifRefresh?.cancel(false); notifRefresh = null
+        queryLog?.close(); queryLog = null
+        statsPersist?.cancel(false); statsPersist = null
+        domainStats?.close(); domainStats = null
+        profilerSample?.cancel(false); profilerSample = null; profiler = null
+        metricsServer?.close(); metricsServer = null
+        DiagLog.i(T) { "Deadlines: ${deadlines.expiredQueued.get()} expired before sending, " +
+            "${deadlines.expiredUpstream.get()} at upstream, ${deadlines.coalesced.get()} client retries coalesced" }
+        unregisterNetworkWatch()
         tunReaderThread?.interrupt(); dnsReceiverThread?.interrupt()
         try { tunReaderThread?.join(1000) } catch (_: InterruptedException) {}
         try { dnsReceiverThread?.join(1000) } catch (_: InterruptedException) {}
         pending.clear(); rewriteRules = emptyList()
-        try { doqClient?.closeAll() } catch (_: Exception) {}; doqClient = null
+        swapGeneration.incrementAndGet()
+        keepalive?.stop(); keepalive = null
+        multipath?.stop(); multipath = null
+        autoSelector?.stop(); autoSelector = null
+        qos?.shutdown(); qos = null
+        answerCache.clear()
+        okHttpByNetwork.values.forEach { it.connectionPool.evictAll() }
+        okHttpByNetwork.clear()
+        upstreams?.close(); upstreams = null
+        tcpHandler?.clear(); tcpHandler = null
         try { dnsSocket?.close() } catch (_: Exception) {}
         synchronized(tunOutLock) { try { tunOut?.close() } catch (_: Exception) {} }
         try { vpnInterface?.close() } catch (_: Exception) {}
@@ -684,7 +1599,73 @@ class DnsVpnService : VpnService() {
         }
     }
 
-    private fun mkNotif(msg: String): Notification {
+    /** Profileur des threads selon les préférences : relevé immédiat (référence) puis chaque minute */
+    private fun loadProfiler() {
+        val next = ThreadProfiler.load(this, profiler)
+        if (next === profiler) return
+        profilerSample?.cancel(false); profilerSample = null
+        profiler = next
+        if (next != null) {
+            profilerSample = timerExecutor.scheduleWithFixedDelay({ next.sample() },
+                0, ThreadProfiler.SAMPLE_MS, TimeUnit.MILLISECONDS)
+        }
+    }
+
+    /**
+     * Texte Prometheus de GET /metrics, construit sur le thread du serveur à partir des compteurs
+     * atomiques et de l'état des pools : aucun verrou du chemin des requêtes n'est pris
+     */
+    private fun exportMetrics(): String {
+        val e = Exposition()
+        metrics.export(e, pending.size, deadlines)
+        e.gauge("pdm_cache_entries", "Answers held in the answer cache", answerCache.size())
+        queryLog?.let { e.counter("pdm_query_log_dropped_total", "Query log records dropped (writer behind)", it.dropped.get()) }
+
+        e.family("pdm_connections", "gauge", "Upstream connections by transport and state")
+        val pools = listOf(okHttpClient.connectionPool) + okHttpByNetwork.values.map { it.connectionPool }
+        val total = pools.sumOf { it.connectionCount() }
+        val idle = pools.sumOf { it.idleConnectionCount() }
+        e.sample("pdm_connections", total - idle, "transport", DnsMetrics.TRANSPORT_DOH, "state", "active")
+        e.sample("pdm_connections", idle, "transport", DnsMetrics.TRANSPORT_DOH, "state", "idle")
+        upstreams?.let { set ->
+            e.sample("pdm_connections", set.doq.openConnections(), "transport", DnsMetrics.TRANSPORT_DOQ, "state", "open")
+            e.sample("pdm_connections", set.dot.openConnections(), "transport", "dot", "state", "open")
+        }
+
+        var rssKb = -1L
+        try {
+            File("/proc/self/status").forEachLine { line ->
+                if (line.startsWith("VmRSS:")) rssKb = line.substringAfter(':').trim().substringBefore(' ').toLongOrNull() ?: -1
+            }
+        } catch (_: Exception) {}
+        if (rssKb >= 0) e.gauge("process_resident_memory_bytes", "Resident memory size in bytes", rssKb * 1024)
+        val rt = Runtime.getRuntime()
+        e.gauge("pdm_jvm_heap_used_bytes", "Java heap in use", rt.totalMemory() - rt.freeMemory())
+        e.gauge("pdm_jvm_heap_max_bytes", "Java heap limit", rt.maxMemory())
+        e.gauge("pdm_native_heap_allocated_bytes", "Native heap allocated", Debug.getNativeHeapAllocatedSize())
+        e.counter("process_cpu_seconds_total", "CPU time of the VPN process", Process.getElapsedCpuTime() / 1000.0)
+        return e.toString()
+    }
+
+    /**
+     * Résumé de l'activité sous le libellé du DNS (débit, cache, latence médiane) : écran
+     * éteint, personne ne le lit et chaque mise à jour réveillerait le système d'affichage
+     */
+    private fun refreshNotification() {
+        if (!isRunning) return
+        val pm = getSystemService(Context.POWER_SERVICE) as PowerManager
+        if (!pm.isInteractive) return
+        val snap = metrics.snapshot(pending.size, deadlines)
+        if (snap.getLong("queries") == 0L) return
+        val summary = getString(R.string.notif_stats_summary, snap.getDouble("qps"),
+            (snap.getDouble("cacheHitRatio") * 100).roundToInt(), snap.getLong("p50").coerceAtLeast(0))
+        if (summary == notifSummary) return
+        notifSummary = summary
+        (getSystemService(Context.NOTIFICATION_SERVICE) as NotificationManager)
+            .notify(NOTIF_ID, mkNotif("DNS: ${notifLabel()}", summary))
+    }
+
+    private fun mkNotif(msg: String, summary: String? = null): Notification {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
             getSystemService(NotificationManager::class.java)
                 .createNotificationChannel(NotificationChannel(CH_ID, "DNS VPN", NotificationManager.IMPORTANCE_LOW))
@@ -692,7 +1673,9 @@ class DnsVpnService : VpnService() {
         return NotificationCompat.Builder(this, CH_ID)
             .setContentTitle("Perfect DNS Manager")
             .setContentText(msg)
+            .setSubText(summary)
             .setSmallIcon(R.drawable.ic_launcher_foreground)
+            .setOnlyAlertOnce(true)
             .setContentIntent(PendingIntent.getActivity(this, 0,
                 Intent(this, MainActivity::class.java),
                 PendingIntent.FLAG_IMMUTABLE or PendingIntent.FLAG_UPDATE_CURRENT))
@@ -701,9 +1684,9 @@ class DnsVpnService : VpnService() {
 
     override fun onDestroy() { stopVpn(); super.onDestroy() }
     override fun onRevoke() {
+        // vpn_active n'est pas écrit ici : écrire "prefs" depuis ce processus écraserait les réglages
+        // de l'interface, qui remet l'état à zéro en constatant que le VPN ne tourne plus
         stopVpn()
-        getSharedPreferences("prefs", Context.MODE_PRIVATE).edit()
-            .putBoolean("vpn_active", false).putString("vpn_label", "").apply()
         stopSelf(); super.onRevoke()
     }
 }
@@ -1,17 +1,21 @@
 package net.appstorefr.perfectdnsmanager.service
 
 import android.net.VpnService
-import android.util.Log
 import tech.kwik.core.QuicClientConnection
 import tech.kwik.core.QuicStream
+import tech.kwik.core.impl.QuicClientConnectionImpl
 import java.io.ByteArrayOutputStream
-import java.net.DatagramPacket
 import java.net.DatagramSocket
 import java.net.InetAddress
 import java.net.URI
 import java.nio.ByteBuffer
 import java.time.Duration
 import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicReference
 
 /**
  * Client DNS over QUIC (DoQ, RFC 9250)
@@ -21,6 +25,10 @@ import java.util.concurrent.ConcurrentHashMap
  * - Chaque requête = 1 stream QUIC bidirectionnel
  * - Restauration du transaction ID original dans la réponse
  * - Timeout 5s, reconnexion auto si connexion morte
+ * - Reprise de session TLS 1.3 via tickets persistés (TlsSessionCache)
+ * - Hostname résolu par BootstrapResolver, connexion en course sur toutes ses adresses
+ * - Changement de réseau : migration de connexion (RFC 9000 §9) si le serveur l'autorise,
+ *   sinon reconnexion en tâche de fond
  */
 class DoQClient(private val vpnService: VpnService) {
 
@@ -28,17 +36,34 @@ class DoQClient(private val vpnService: VpnService) {
         private const val T = "DoQClient"
         private const val DEFAULT_PORT = 853
         private const val CONNECT_TIMEOUT_MS = 5000L
+        /** Décalage entre deux tentatives de connexion sur des adresses différentes */
+        private const val RACE_STAGGER_MS = 250L
+        private const val MAX_RACE_ADDRESSES = 4
+        private val RACE_CLOSED = Any()
+        private val raceExecutor = Executors.newCachedThreadPool { r ->
+            Thread(r, "DoQ-connect").apply { isDaemon = true }
+        }
+        /** RFC 9250 : DOQ_REQUEST_CANCELLED, lecture abandonnée à l'échéance de la requête */
+        private const val DOQ_REQUEST_CANCELLED = 0x3L
+        private val timeoutScheduler = Executors.newSingleThreadScheduledExecutor { r ->
+            Thread(r, "DoQ-timeout").apply { isDaemon = true }
+        }
     }
 
     private val connections = ConcurrentHashMap<String, QuicClientConnection>()
+    /** Endpoints dont le ticket de session de la connexion courante est déjà persisté */
+    private val ticketSaved = ConcurrentHashMap.newKeySet<String>()
 
     /**
      * Envoie une requête DNS via QUIC (DoQ).
      * @param dnsPayload le message DNS brut (avec transaction ID original)
      * @param quicUrl URL au format quic://host[:port][/path]
+     * @param timeoutMs attente max de la réponse (échéance du client), 0 = jusqu'à la fin du stream ;
+     *   à l'échéance seul le stream est abandonné, la connexion reste ouverte
+     * @param trace requête tracée : résolution bootstrap et handshake QUIC s'il a fallu se connecter
      * @return la réponse DNS brute (avec transaction ID restauré), ou null si erreur
      */
-    fun query(dnsPayload: ByteArray, quicUrl: String): ByteArray? {
+    fun query(dnsPayload: ByteArray, quicUrl: String, timeoutMs: Long = 0, trace: QueryTrace? = null): ByteArray? {
         return try {
             // 1. Parse quic://host[:port]
             val uri = URI(quicUrl.replace("quic://", "https://"))
@@ -61,7 +86,7 @@ class DoQClient(private val vpnService: VpnService) {
             val wireMsgBytes = wireMsg.array()
 
             // 5. Obtenir ou créer la connexion QUIC
-            val conn = getOrCreateConnection(key, host, port)
+            val conn = getOrCreateConnection(key, host, port, trace)
                 ?: return null
 
             // 6. Ouvrir un stream bidirectionnel, écrire, lire
@@ -70,9 +95,12 @@ class DoQClient(private val vpnService: VpnService) {
             stream.outputStream.close()
 
             // Lire la réponse
-            val response = readFully(stream)
+            val abort = if (timeoutMs > 0) timeoutScheduler.schedule({
+                try { stream.abortReading(DOQ_REQUEST_CANCELLED) } catch (_: Exception) {}
+            }, timeoutMs, TimeUnit.MILLISECONDS) else null
+            val response = try { readFully(stream) } finally { abort?.cancel(false) }
             if (response == null || response.size < 14) {
-                Log.w(T, "DoQ: réponse trop courte (${response?.size ?: 0} bytes)")
+                DiagLog.w(T) { "DoQ: réponse trop courte (${response?.size ?: 0} bytes)" }
                 return null
             }
 
@@ -94,19 +122,42 @@ class DoQClient(private val vpnService: VpnService) {
                 dnsResp[1] = (originalId and 0xFF).toByte()
             }
 
+            // 9. Persister le ticket de session (reçu après le handshake) pour la prochaine reconnexion
+            if (key !in ticketSaved) saveTicket(key, conn)
+
             dnsResp
         } catch (e: Exception) {
-            Log.w(T, "DoQ query err: ${e.javaClass.simpleName}: ${e.message}")
+            DiagLog.w(T) { "DoQ query err: ${e.javaClass.simpleName}: ${e.message}" }
             // Invalider la connexion en cas d'erreur
             try {
                 val uri = URI(quicUrl.replace("quic://", "https://"))
                 val key = "${uri.host}:${if (uri.port > 0) uri.port else DEFAULT_PORT}"
                 connections.remove(key)?.close()
+                ticketSaved.remove(key)
             } catch (_: Exception) {}
             null
         }
     }
 
+    /** Une connexion QUIC ouverte existe pour cet upstream (keepalive) */
+    fun isConnected(quicUrl: String): Boolean = try {
+        val uri = URI(quicUrl.replace("quic://", "https://"))
+        connections["${uri.host}:${if (uri.port > 0) uri.port else DEFAULT_PORT}"]?.isConnected == true
+    } catch (_: Exception) { false }
+
+    /** Connexions QUIC ouvertes */
+    fun openConnections(): Int = connections.values.count { try { it.isConnected } catch (_: Exception) { false } }
+
+    private fun saveTicket(key: String, conn: QuicClientConnection) {
+        try {
+            val ticket = conn.newSessionTickets.lastOrNull() ?: return
+            TlsSessionCache.saveQuicTicket(key, ticket.serialize())
+            ticketSaved.add(key)
+        } catch (e: Exception) {
+            DiagLog.w(T) { "saveTicket $key: ${e.message}" }
+        }
+    }
+
     private fun readFully(stream: QuicStream): ByteArray? = try {
         val inputStream = stream.inputStream
         val baos = ByteArrayOutputStream()
@@ -120,15 +171,16 @@ class DoQClient(private val vpnService: VpnService) {
         }
         baos.toByteArray()
     } catch (e: Exception) {
-        Log.w(T, "readFully err: ${e.message}")
+        DiagLog.w(T) { "readFully err: ${e.message}" }
         null
     }
 
-    private fun getOrCreateConnection(key: String, host: String, port: Int): QuicClientConnection? {
+    private fun getOrCreateConnection(key: String, host: String, port: Int, trace: QueryTrace? = null): QuicClientConnection? {
         // Vérifier si la connexion existante est encore valide
         connections[key]?.let { conn ->
             if (!conn.isConnected) {
                 connections.remove(key)
+                ticketSaved.remove(key)
                 try { conn.close() } catch (_: Exception) {}
             } else {
                 return conn
@@ -136,115 +188,125 @@ class DoQClient(private val vpnService: VpnService) {
         }
 
         // Créer une nouvelle connexion
-        return try {
-            // Résoudre le hostname en bypassant le VPN
-            val resolved = resolveHostBypass(host) ?: run {
-                Log.w(T, "Cannot resolve $host")
-                return null
-            }
+        val t0 = System.nanoTime()
+        val addresses = BootstrapResolver.resolve(vpnService, host).take(MAX_RACE_ADDRESSES)
+        val t1 = System.nanoTime()
+        trace?.nested("bootstrap", t1 - t0)
+        if (addresses.isEmpty()) {
+            DiagLog.w(T) { "Cannot resolve $host" }
+            return null
+        }
 
-            val builder = QuicClientConnection.newBuilder()
-                .uri(URI("https://$host:$port"))
-                .host(resolved.hostAddress)
-                .port(port)
-                .applicationProtocol("doq")
-                .connectTimeout(Duration.ofMillis(CONNECT_TIMEOUT_MS))
-                .noServerCertificateCheck()
-                .socketFactory { _ ->
-                    DatagramSocket().also { vpnService.protect(it) }
-                }
+        val ticket = TlsSessionCache.quicTicket(key)
+        val conn = connectRacing(key, host, port, addresses, ticket)
+        trace?.nested("quic handshake", System.nanoTime() - t1)
+        if (conn == null) {
+            // Ticket périmé ou rejeté : on l'oublie, le prochain essai fera un handshake complet
+            if (ticket != null) TlsSessionCache.forgetQuicTicket(key)
+            DiagLog.w(T) { "QUIC connect failed: $host:$port (${addresses.size} addresses)" }
+            return null
+        }
+        connections[key] = conn
+        DiagLog.i(T) { "QUIC connected: $host:$port" }
+        return conn
+    }
 
-            val conn = builder.build()
-            conn.connect()
+    /**
+     * Happy Eyeballs (RFC 8305) : une tentative par adresse, décalées de RACE_STAGGER_MS,
+     * la première connexion établie gagne, les suivantes sont fermées.
+     */
+    private fun connectRacing(
+        key: String, host: String, port: Int, addresses: List<InetAddress>, ticket: ByteArray?
+    ): QuicClientConnection? {
+        if (addresses.size == 1) return connectTo(key, host, port, addresses[0], ticket)
 
-            if (conn.isConnected) {
-                connections[key] = conn
-                Log.i(T, "QUIC connected: $host:$port")
-                conn
-            } else {
-                Log.w(T, "QUIC connect failed: $host:$port")
-                null
+        val winner = AtomicReference<Any?>(null)
+        val done = CountDownLatch(1)
+        val remaining = AtomicInteger(addresses.size)
+        for ((i, address) in addresses.withIndex()) {
+            raceExecutor.execute {
+                // Inutile de lancer la tentative suivante si une précédente a déjà abouti
+                val skip = i > 0 && done.await(i * RACE_STAGGER_MS, TimeUnit.MILLISECONDS)
+                val conn = if (skip) null else connectTo(key, host, port, address, ticket)
+                if (conn != null && !winner.compareAndSet(null, conn)) {
+                    try { conn.close() } catch (_: Exception) {}
+                }
+                if (conn != null || remaining.decrementAndGet() == 0) done.countDown()
             }
-        } catch (e: Exception) {
-            Log.w(T, "QUIC connect err $host:$port: ${e.javaClass.simpleName}: ${e.message}")
-            null
         }
+        done.await(CONNECT_TIMEOUT_MS + addresses.size * RACE_STAGGER_MS, TimeUnit.MILLISECONDS)
+        // Marquer la course comme terminée : une connexion qui aboutirait plus tard sera fermée
+        return winner.getAndSet(RACE_CLOSED) as? QuicClientConnection
     }
 
-    /** Résoudre un hostname en bypassant le VPN (requête DNS directe UDP vers 8.8.8.8) */
-    private fun resolveHostBypass(host: String): InetAddress? = try {
-        if (host.matches(Regex("\\d+\\.\\d+\\.\\d+\\.\\d+"))) {
-            InetAddress.getByName(host)
-        } else {
-            val query = buildDnsQuery(host)
-            val sock = DatagramSocket()
-            vpnService.protect(sock)
-            sock.soTimeout = 3000
-            val googleDns = InetAddress.getByAddress(byteArrayOf(8, 8, 8, 8))
-            sock.send(DatagramPacket(query, query.size, googleDns, 53))
-            val resp = ByteArray(512)
-            val pkt = DatagramPacket(resp, resp.size)
-            sock.receive(pkt)
-            sock.close()
-            parseDnsResponseIp(resp, pkt.length)
+    private fun connectTo(
+        key: String, host: String, port: Int, address: InetAddress, ticket: ByteArray?
+    ): QuicClientConnection? = try {
+        val builder = QuicClientConnection.newBuilder()
+            .uri(URI("https://$host:$port"))
+            .host(address.hostAddress)
+            .port(port)
+            .applicationProtocol("doq")
+            .connectTimeout(Duration.ofMillis(CONNECT_TIMEOUT_MS))
+            .noServerCertificateCheck()
+            .socketFactory { _ ->
+                DatagramSocket().also { vpnService.protect(it) }
+            }
+
+        // Reprise de session : 1 RTT au lieu d'un handshake complet
+        if (ticket != null) {
+            try { builder.sessionTicket(ticket) } catch (e: Exception) {
+                DiagLog.w(T) { "Invalid session ticket for $key: ${e.message}" }
+                TlsSessionCache.forgetQuicTicket(key)
+            }
         }
+
+        val conn = builder.build()
+        conn.connect()
+        if (conn.isConnected) conn else { try { conn.close() } catch (_: Exception) {}; null }
     } catch (e: Exception) {
-        Log.w(T, "resolveHostBypass: ${e.message}")
+        DiagLog.w(T) { "QUIC connect err ${address.hostAddress}:$port: ${e.javaClass.simpleName}: ${e.message}" }
         null
     }
 
-    private fun buildDnsQuery(host: String): ByteArray {
-        val buf = ByteArrayOutputStream()
-        buf.write(0x12); buf.write(0x34)
-        buf.write(0x01); buf.write(0x00)
-        buf.write(0x00); buf.write(0x01)
-        buf.write(0x00); buf.write(0x00)
-        buf.write(0x00); buf.write(0x00)
-        buf.write(0x00); buf.write(0x00)
-        for (label in host.split(".")) {
-            buf.write(label.length)
-            buf.write(label.toByteArray())
-        }
-        buf.write(0x00)
-        buf.write(0x00); buf.write(0x01)
-        buf.write(0x00); buf.write(0x01)
-        return buf.toByteArray()
-    }
-
-    private fun parseDnsResponseIp(data: ByteArray, length: Int): InetAddress? {
-        if (length < 12) return null
-        val anCount = ((data[6].toInt() and 0xFF) shl 8) or (data[7].toInt() and 0xFF)
-        if (anCount == 0) return null
-        var offset = 12
-        while (offset < length && data[offset].toInt() != 0) {
-            val len = data[offset].toInt() and 0xFF
-            if (len >= 0xC0) { offset += 2; break }
-            offset += len + 1
-        }
-        if (offset < length && data[offset].toInt() == 0) offset++
-        offset += 4
-        for (i in 0 until anCount) {
-            if (offset >= length) break
-            if ((data[offset].toInt() and 0xC0) == 0xC0) offset += 2
-            else { while (offset < length && data[offset].toInt() != 0) offset++; offset++ }
-            if (offset + 10 > length) break
-            val rtype = ((data[offset].toInt() and 0xFF) shl 8) or (data[offset + 1].toInt() and 0xFF)
-            val rdlen = ((data[offset + 8].toInt() and 0xFF) shl 8) or (data[offset + 9].toInt() and 0xFF)
-            offset += 10
-            if (rtype == 1 && rdlen == 4 && offset + 4 <= length) {
-                return InetAddress.getByAddress(data.copyOfRange(offset, offset + 4))
+    /**
+     * Le réseau physique a changé : chaque connexion migre vers une nouvelle socket protégée
+     * (liée au nouveau réseau) ou, si le serveur refuse la migration, est rouverte en tâche de fond.
+     */
+    fun onNetworkChanged() {
+        for ((key, conn) in connections) {
+            val impl = conn as? QuicClientConnectionImpl
+            val migratable = try {
+                impl != null && conn.isConnected && !impl.peerTransportParameters.disableMigration
+            } catch (_: Exception) { false }
+            if (migratable) {
+                try {
+                    impl!!.changeAddress()
+                    impl.ping() // valide le nouveau chemin côté serveur
+                    DiagLog.i(T) { "QUIC migrated: $key" }
+                    continue
+                } catch (e: Exception) {
+                    DiagLog.w(T) { "QUIC migration failed $key: ${e.message}" }
+                }
             }
-            offset += rdlen
+            connections.remove(key, conn)
+            if (key !in ticketSaved) saveTicket(key, conn)
+            ticketSaved.remove(key)
+            try { conn.close() } catch (_: Exception) {}
+            val host = key.substringBeforeLast(':')
+            val port = key.substringAfterLast(':').toIntOrNull() ?: DEFAULT_PORT
+            raceExecutor.execute { getOrCreateConnection(key, host, port) }
         }
-        return null
     }
 
     /** Ferme toutes les connexions QUIC */
     fun closeAll() {
         for ((key, conn) in connections) {
+            if (key !in ticketSaved) saveTicket(key, conn)
             try { conn.close() } catch (_: Exception) {}
         }
         connections.clear()
-        Log.i(T, "All QUIC connections closed")
+        ticketSaved.clear()
+        DiagLog.i(T) { "All QUIC connections closed" }
     }
 }
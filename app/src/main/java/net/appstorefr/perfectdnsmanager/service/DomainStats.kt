@@ -0,0 +1,444 @@
+package net.appstorefr.perfectdnsmanager.service
+
+import android.content.Context
+import net.appstorefr.perfectdnsmanager.util.DnsWire
+import org.json.JSONArray
+import org.json.JSONObject
+import java.io.File
+import java.text.SimpleDateFormat
+import java.util.Calendar
+import java.util.Date
+import java.util.Locale
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+import java.util.concurrent.locks.LockSupport
+
+/**
+ * Noms les plus fréquents d'un flux, en mémoire fixe
+ *
+ * - Count-min sketch (depth × width compteurs) : fréquence estimée de n'importe quel nom, jamais
+ *   sous-estimée ; mise à jour conservatrice (seuls les compteurs au minimum augmentent)
+ * - Space-saving sur `k` emplacements : un nom hors classement ne prend la place du moins fréquent
+ *   que si son estimation la dépasse, les noms vus une fois ne font pas tourner le classement
+ * - Noms identifiés par une empreinte 64 bits : le texte n'est créé qu'à l'entrée au classement
+ * - Non synchronisé : DomainStats sérialise les appels
+ */
+class HeavyHitters(val k: Int, private val width: Int, private val depth: Int) {
+
+    companion object {
+        private const val FNV_OFFSET = -3750763034362895579L // 0xcbf29ce484222325
+        private const val FNV_PRIME = 0x100000001b3L
+
+        /** Empreinte FNV-1a du nom wire à `offset`, en minuscules : identique à fingerprint(texte) */
+        fun fingerprint(data: ByteArray, offset: Int, end: Int): Long {
+            var h = FNV_OFFSET
+            var pos = offset
+            while (pos < end) {
+                val len = data[pos].toInt() and 0xFF
+                if (len == 0 || len > 63 || pos + 1 + len > end) break
+                if (pos != offset) h = (h xor '.'.code.toLong()) * FNV_PRIME
+                for (j in pos + 1..pos + len) {
+                    var b = data[j].toInt() and 0xFF
+                    if (b in 0x41..0x5A) b += 0x20
+                    h = (h xor b.toLong()) * FNV_PRIME
+                }
+                pos += 1 + len
+            }
+            return h
+        }
+
+        fun fingerprint(name: String): Long {
+            var h = FNV_OFFSET
+            if (name == ".") return h
+            for (c in name) {
+                var b = c.code and 0xFF
+                if (b in 0x41..0x5A) b += 0x20
+                h = (h xor b.toLong()) * FNV_PRIME
+            }
+            return h
+        }
+    }
+
+    class Entry(val name: String, val count: Long)
+
+    init { require(width and (width - 1) == 0) { "width must be a power of two" } }
+
+    private val sketch = IntArray(width * depth)
+    private val fingerprints = LongArray(k)
+    private val counts = LongArray(k)
+    private val names = arrayOfNulls<String>(k)
+    private var size = 0
+    /** Occurrences comptées depuis le dernier reset() */
+    var total = 0L; private set
+
+    /** Une occurrence du nom wire `data[offset, end)` d'empreinte `fingerprint` */
+    fun offer(fingerprint: Long, data: ByteArray, offset: Int, end: Int) {
+        total++
+        val estimate = bump(fingerprint, 1)
+        for (i in 0 until size) {
+            if (fingerprints[i] == fingerprint) {
+                counts[i]++
+                return
+            }
+        }
+        val slot = when {
+            size < k -> size++
+            else -> {
+                var min = 0
+                for (i in 1 until size) if (counts[i] < counts[min]) min = i
+                if (estimate <= counts[min]) return
+                min
+            }
+        }
+        fingerprints[slot] = fingerprint
+        counts[slot] = estimate
+        names[slot] = DnsWire.nameToString(data, offset, end).lowercase(Locale.ROOT)
+    }
+
+    /** Reprise d'un classement enregistré (redémarrage dans la journée) */
+    fun restore(total: Long, entries: List<Entry>) {
+        this.total += total
+        for (e in entries) {
+            if (size == k) break
+            val fp = fingerprint(e.name)
+            bump(fp, e.count.coerceAtMost(Int.MAX_VALUE.toLong()).toInt())
+            fingerprints[size] = fp
+            counts[size] = e.count
+            names[size] = e.name
+            size++
+        }
+    }
+
+    /** Classement, du plus fréquent au moins fréquent */
+    fun entries(): List<Entry> =
+        (0 until size).map { Entry(names[it]!!, counts[it]) }.sortedByDescending { it.count }
+
+    fun reset() {
+        sketch.fill(0)
+        names.fill(null)
+        size = 0
+        total = 0
+    }
+
+    /** Ajoute `n` à l'estimation du nom (mise à jour conservatrice), retourne la nouvelle estimation */
+    private fun bump(fingerprint: Long, n: Int): Long {
+        val h1 = fingerprint.toInt()
+        val h2 = (fingerprint ushr 32).toInt() or 1
+        var estimate = Int.MAX_VALUE
+        for (r in 0 until depth) {
+            val c = sketch[r * width + ((h1 + r * h2) and (width - 1))]
+            if (c < estimate) estimate = c
+        }
+        val next = if (estimate > Int.MAX_VALUE - n) Int.MAX_VALUE else estimate + n
+        for (r in 0 until depth) {
+            val i = r * width + ((h1 + r * h2) and (width - 1))
+            if (sketch[i] < next) sketch[i] = next
+        }
+        return next.toLong()
+    }
+}
+
+/**
+ * Domaines les plus demandés, bloqués et lents de la journée
+ *
+ * - Désactivé par défaut (comme QueryLog), activé depuis l'écran des domaines
+ * - Chemin des réponses : nom et catégories copiés dans un anneau préalloué, sans verrou ni
+ *   allocation (comme QueryLog) ; le nom est copié, le tampon de la requête retournant au pool.
+ *   Anneau plein = réponse non comptée
+ * - Thread "DomainStats" : vide l'anneau chaque seconde dans trois HeavyHitters de taille fixe
+ *   (≈ 64 Ko de compteurs chacun), quel que soit le nombre de noms distincts ; lecture du bilan
+ *   et écriture vident aussi l'anneau
+ * - Bloqué : voir DnsWire.isBlockingAnswer (refus de la QoS exclus) ; lent : SLOW_MS ou plus
+ *   entre la requête et sa réponse (réponses du cache exclues)
+ * - Bilan écrit toutes les PERSIST_MS et à l'arrêt dans filesDir/domainstats/<aaaa-mm-jj>.json,
+ *   repris au redémarrage le même jour ; à minuit, bilan de la veille figé et compteurs remis à zéro
+ * - KEEP_DAYS jours conservés ; l'interface lit les fichiers, la journée en cours par le binder
+ */
+class DomainStats private constructor(private val dir: File) {
+
+    companion object {
+        private const val T = "DomainStats"
+        const val PREF_ENABLED = "domain_stats_enabled"
+        /** Heure du dernier effacement depuis l'interface : le VPN repart de zéro au rechargement */
+        private const val PREF_CLEARED_AT = "domain_stats_cleared_at"
+        const val DIR_NAME = "domainstats"
+        const val TOP_K = 50
+        const val SLOW_MS = 300L
+        const val KEEP_DAYS = 30
+        const val PERSIST_MS = 5 * 60_000L
+        const val QUERIED = "queried"
+        const val BLOCKED = "blocked"
+        const val SLOW = "slow"
+        val CATEGORIES = arrayOf(QUERIED, BLOCKED, SLOW)
+        private const val SKETCH_WIDTH = 4096
+        private const val SKETCH_DEPTH = 4
+
+        // Anneau : CAPACITY emplacements de SLOT_SIZE octets (qname wire : 255 octets max)
+        private const val CAPACITY = 1024
+        private const val MASK = (CAPACITY - 1).toLong()
+        private const val SLOT_SIZE = 266
+        private const val S_TIME = 0
+        private const val S_FLAGS = 8
+        private const val S_QNAME_LEN = 9
+        private const val S_QNAME = 10
+        private const val F_BLOCKED = 1
+        private const val F_SLOW = 2
+        private const val DRAIN_MS = 1000L
+
+        fun dir(context: Context) = File(context.filesDir, DIR_NAME)
+
+        fun isEnabled(context: Context): Boolean =
+            context.getSharedPreferences("prefs", Context.MODE_PRIVATE).getBoolean(PREF_ENABLED, false)
+
+        fun setEnabled(context: Context, enabled: Boolean) {
+            context.getSharedPreferences("prefs", Context.MODE_PRIVATE).edit().putBoolean(PREF_ENABLED, enabled).commit()
+        }
+
+        /** Statistiques configurées : `current` conservé s'il tourne déjà, null si désactivées */
+        fun load(context: Context, current: DomainStats?): DomainStats? {
+            if (!isEnabled(context)) {
+                current?.close()
+                return null
+            }
+            val clearedAt = context.getSharedPreferences("prefs", Context.MODE_PRIVATE).getLong(PREF_CLEARED_AT, 0)
+            if (current != null) {
+                if (clearedAt > current.loadedAt) current.reset()
+                return current
+            }
+            return DomainStats(dir(context)).also {
+                it.restore()
+                it.start()
+            }
+        }
+
+        /** Supprime tous les bilans (le VPN actif repart de zéro au prochain rechargement) */
+        fun clear(context: Context) {
+            context.getSharedPreferences("prefs", Context.MODE_PRIVATE).edit()
+                .putLong(PREF_CLEARED_AT, System.currentTimeMillis()).commit()
+            dir(context).listFiles()?.forEach { it.delete() }
+        }
+
+        /** Jours enregistrés (aaaa-mm-jj), du plus récent au plus ancien */
+        fun days(context: Context): List<String> =
+            dir(context).list()?.filter { it.endsWith(".json") }?.map { it.removeSuffix(".json") }
+                ?.sortedDescending() ?: emptyList()
+
+        fun readDay(context: Context, day: String): JSONObject? = read(File(dir(context), "$day.json"))
+
+        /** Bilan de la journée : en direct si le VPN tourne, sinon le dernier écrit */
+        fun today(context: Context): JSONObject? =
+            DnsVpnControl.domainStats(context) ?: readDay(context, dayKey(System.currentTimeMillis()))
+
+        fun dayKey(time: Long): String = SimpleDateFormat("yyyy-MM-dd", Locale.ROOT).format(Date(time))
+
+        /** Classement `category` d'un bilan */
+        fun top(stats: JSONObject, category: String): List<HeavyHitters.Entry> {
+            val list = stats.optJSONObject("top")?.optJSONArray(category) ?: return emptyList()
+            return (0 until list.length()).map {
+                val e = list.getJSONObject(it)
+                HeavyHitters.Entry(e.getString("name"), e.getLong("count"))
+            }
+        }
+
+        fun total(stats: JSONObject, category: String): Long = stats.optJSONObject("totals")?.optLong(category) ?: 0
+
+        private fun read(file: File): JSONObject? {
+            if (!file.exists()) return null
+            return try { JSONObject(file.readText()) } catch (_: Exception) { null }
+        }
+
+        private fun nextMidnight(time: Long): Long = Calendar.getInstance().apply {
+            timeInMillis = time
+            set(Calendar.HOUR_OF_DAY, 0); set(Calendar.MINUTE, 0); set(Calendar.SECOND, 0); set(Calendar.MILLISECOND, 0)
+            add(Calendar.DAY_OF_MONTH, 1)
+        }.timeInMillis
+    }
+
+    private val queried = HeavyHitters(TOP_K, SKETCH_WIDTH, SKETCH_DEPTH)
+    private val blocked = HeavyHitters(TOP_K, SKETCH_WIDTH, SKETCH_DEPTH)
+    private val slow = HeavyHitters(TOP_K, SKETCH_WIDTH, SKETCH_DEPTH)
+    /** Début du comptage (création ou dernier effacement) */
+    private var loadedAt = System.currentTimeMillis()
+    private var day = dayKey(loadedAt)
+    private var dayEnd = nextMidnight(loadedAt)
+    /** Bilan de la veille, figé à minuit, en attente d'écriture */
+    private var finished: JSONObject? = null
+
+    private val slots = ByteArray(CAPACITY * SLOT_SIZE)
+    /** Séquence publiée dans chaque emplacement (-1 : jamais écrit) */
+    private val published = AtomicLongArray(CAPACITY).apply { for (i in 0 until CAPACITY) set(i, -1) }
+    private val head = AtomicLong()
+    /** Prochaine séquence à compter (sous le verrou de l'instance) */
+    @Volatile private var tail = 0L
+    /** Réponses non comptées, anneau plein */
+    val dropped = AtomicLong()
+
+    @Volatile private var running = false
+    @Volatile private var writer: Thread? = null
+
+    private fun start() {
+        running = true
+        writer = Thread({ run() }, "DomainStats").apply {
+            isDaemon = true
+            priority = Thread.MIN_PRIORITY
+            start()
+        }
+    }
+
+    /** Arrête le thread de comptage et écrit le bilan */
+    fun close() {
+        running = false
+        writer?.let { LockSupport.unpark(it) }
+        writer = null
+        persist()
+    }
+
+    private fun run() {
+        while (running) {
+            drain()
+            LockSupport.parkNanos(DRAIN_MS * 1_000_000)
+        }
+    }
+
+    /** Réponse `response` envoyée au client pour `ctx` */
+    fun record(ctx: QueryContext, response: ByteArray) {
+        // Nom demandé par le client, pas celui de la règle de réécriture
+        val original = ctx.originalQname
+        val data: ByteArray
+        val offset: Int
+        val end: Int
+        if (original != null) {
+            data = original; offset = 0; end = original.size
+        } else {
+            if (ctx.qnameEnd <= DnsWire.HEADER_SIZE) return
+            data = ctx.query; offset = DnsWire.HEADER_SIZE; end = ctx.qnameEnd
+        }
+        val now = System.currentTimeMillis()
+        var flags = 0
+        if (ctx.answerSource != QueryContext.SOURCE_LOCAL && DnsWire.isBlockingAnswer(response)) flags = flags or F_BLOCKED
+        if (ctx.answerSource != QueryContext.SOURCE_CACHE && now - ctx.time >= SLOW_MS) flags = flags or F_SLOW
+
+        var seq: Long
+        do {
+            seq = head.get()
+            if (seq - tail >= CAPACITY) {
+                dropped.incrementAndGet()
+                return
+            }
+        } while (!head.compareAndSet(seq, seq + 1))
+
+        val i = (seq and MASK).toInt()
+        val o = i * SLOT_SIZE
+        val s = slots
+        for (k in 0 until 8) s[o + S_TIME + k] = (now shr (56 - 8 * k)).toByte()
+        s[o + S_FLAGS] = flags.toByte()
+        val len = (end - offset).coerceAtMost(255)
+        s[o + S_QNAME_LEN] = len.toByte()
+        System.arraycopy(data, offset, s, o + S_QNAME, len)
+        published.set(i, seq)
+        // Rafale : comptage sans attendre la fin de la seconde
+        if (seq - tail == (CAPACITY / 2).toLong()) writer?.let { LockSupport.unpark(it) }
+    }
+
+    /** Compte les réponses publiées, dans l'ordre des séquences */
+    @Synchronized
+    private fun drain() {
+        var seq = tail
+        val s = slots
+        while (true) {
+            val i = (seq and MASK).toInt()
+            if (published.get(i) != seq) break
+            val o = i * SLOT_SIZE
+            var time = 0L
+            for (k in 0 until 8) time = (time shl 8) or (s[o + S_TIME + k].toLong() and 0xFF)
+            if (time >= dayEnd) rollover(time)
+            val flags = s[o + S_FLAGS].toInt()
+            val start = o + S_QNAME
+            val end = start + (s[o + S_QNAME_LEN].toInt() and 0xFF)
+            val fingerprint = HeavyHitters.fingerprint(s, start, end)
+            queried.offer(fingerprint, s, start, end)
+            if (flags and F_BLOCKED != 0) blocked.offer(fingerprint, s, start, end)
+            if (flags and F_SLOW != 0) slow.offer(fingerprint, s, start, end)
+            seq++
+            tail = seq
+        }
+    }
+
+    /** Bilan de la journée en cours */
+    @Synchronized
+    fun snapshot(): JSONObject {
+        drain()
+        return summary()
+    }
+
+    /** Bilan des compteurs, sans vider l'anneau */
+    private fun summary(): JSONObject {
+        val totals = JSONObject()
+        val top = JSONObject()
+        for ((category, hh) in arrayOf(QUERIED to queried, BLOCKED to blocked, SLOW to slow)) {
+            totals.put(category, hh.total)
+            top.put(category, JSONArray().apply {
+                hh.entries().forEach { put(JSONObject().put("name", it.name).put("count", it.count)) }
+            })
+        }
+        return JSONObject()
+            .put("day", day)
+            .put("slowMs", SLOW_MS)
+            .put("totals", totals)
+            .put("top", top)
+    }
+
+    /** Écrit la veille (si minuit est passé) et la journée en cours, puis supprime les plus anciens jours */
+    fun persist() {
+        val done: JSONObject?
+        val current: JSONObject
+        synchronized(this) {
+            current = snapshot()
+            done = finished
+            finished = null
+        }
+        try {
+            dir.mkdirs()
+            done?.let { write(it) }
+            if (total(current, QUERIED) > 0) write(current)
+            dir.list()?.filter { it.endsWith(".json") }?.sortedDescending()?.drop(KEEP_DAYS)
+                ?.forEach { File(dir, it).delete() }
+        } catch (e: Exception) {
+            DiagLog.w(T) { "persist: ${e.message}" }
+        }
+    }
+
+    private fun write(stats: JSONObject) {
+        val file = File(dir, "${stats.getString("day")}.json")
+        val tmp = File(dir, "${file.name}.tmp")
+        tmp.writeText(stats.toString())
+        if (!tmp.renameTo(file)) tmp.delete()
+    }
+
+    /** Reprise du bilan de la journée déjà écrit (VPN redémarré) */
+    private fun restore() {
+        val stats = read(File(dir, "$day.json")) ?: return
+        synchronized(this) {
+            queried.restore(total(stats, QUERIED), top(stats, QUERIED))
+            blocked.restore(total(stats, BLOCKED), top(stats, BLOCKED))
+            slow.restore(total(stats, SLOW), top(stats, SLOW))
+        }
+    }
+
+    @Synchronized
+    private fun reset() {
+        // Réponses d'avant l'effacement : comptées puis effacées avec le reste
+        drain()
+        finished = null
+        loadedAt = System.currentTimeMillis()
+        queried.reset(); blocked.reset(); slow.reset()
+    }
+
+    /** Minuit passé : bilan de la veille figé, nouvelle journée */
+    private fun rollover(now: Long) {
+        if (queried.total > 0) finished = summary()
+        queried.reset(); blocked.reset(); slow.reset()
+        day = dayKey(now)
+        dayEnd = nextMidnight(now)
+    }
+}
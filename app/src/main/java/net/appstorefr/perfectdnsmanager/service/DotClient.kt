@@ -0,0 +1,102 @@
+package net.appstorefr.perfectdnsmanager.service
+
+import android.net.VpnService
+import java.io.BufferedOutputStream
+import java.io.DataInputStream
+import java.io.OutputStream
+import java.net.InetSocketAddress
+import java.net.Socket
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Client DNS sur flux : DNS over TLS (DoT, RFC 7858) ou TCP/53 en clair (RFC 7766)
+ *
+ * - Sert au re-fetch des réponses UDP tronquées (bit TC) des upstreams classiques
+ * - TCP/53 en clair seulement si autorisé dans les réglages (PREF_CLEARTEXT), refusé sinon
+ * - 1 connexion persistante par endpoint, requêtes sérialisées dessus
+ * - Connexion : chaque adresse résolue essayée à son tour
+ * - Sockets protégées, sessions TLS reprises via TlsSessionCache
+ * - Connexion fermée par le serveur (idle timeout) : reconnexion et nouvel essai
+ */
+class DotClient(private val vpnService: VpnService, private val allowCleartext: Boolean) {
+
+    companion object {
+        private const val T = "DotClient"
+        /** Re-fetch sur TCP/53 en clair autorisé (désactivé par défaut), appliqué au prochain démarrage VPN */
+        const val PREF_CLEARTEXT = "tcp_cleartext_fallback"
+        private const val DOT_PORT = 853
+        private const val TCP_PORT = 53
+        private const val TIMEOUT_MS = 5000
+    }
+
+    private class Conn(val socket: Socket) {
+        val input = DataInputStream(socket.getInputStream())
+        val output: OutputStream = BufferedOutputStream(socket.getOutputStream())
+    }
+
+    private val connections = ConcurrentHashMap<String, Conn>()
+
+    /**
+     * Envoie une requête DNS sur un flux.
+     * @param server IP (ou hostname) du résolveur
+     * @param tlsHost hostname TLS du résolveur : DoT sur le port 853 ; null = TCP/53 en clair
+     * @return la réponse DNS brute, ou null si erreur (ou TCP/53 en clair non autorisé)
+     */
+    fun query(dnsPayload: ByteArray, server: String, tlsHost: String?): ByteArray? {
+        if (tlsHost == null && !allowCleartext) return null
+        val port = if (tlsHost != null) DOT_PORT else TCP_PORT
+        val key = "$server:$port"
+        // 2 essais : la connexion en cache a pu être fermée côté serveur
+        repeat(2) { attempt ->
+            val conn = connections[key] ?: connect(server, port, tlsHost)?.also { connections[key] = it }
+                ?: return null
+            try {
+                synchronized(conn) { return exchange(conn, dnsPayload) }
+            } catch (e: Exception) {
+                connections.remove(key, conn)
+                try { conn.socket.close() } catch (_: Exception) {}
+                if (attempt == 1) DiagLog.w(T) { "query $key: ${e.javaClass.simpleName}: ${e.message}" }
+            }
+        }
+        return null
+    }
+
+    /** Connexions TLS ouvertes */
+    fun openConnections(): Int = connections.values.count { !it.socket.isClosed }
+
+    fun closeAll() {
+        connections.values.forEach { try { it.socket.close() } catch (_: Exception) {} }
+        connections.clear()
+    }
+
+    private fun connect(server: String, port: Int, tlsHost: String?): Conn? {
+        for (address in BootstrapResolver.resolve(vpnService, server)) {
+            val socket = Socket()
+            try {
+                vpnService.protect(socket)
+                socket.tcpNoDelay = true
+                socket.connect(InetSocketAddress(address, port), TIMEOUT_MS)
+                socket.soTimeout = TIMEOUT_MS
+                return Conn(if (tlsHost != null) TlsSessionCache.wrapSocket(socket, tlsHost, port) else socket)
+            } catch (e: Exception) {
+                DiagLog.w(T) { "connect $server:$port via ${address.hostAddress}: ${e.javaClass.simpleName}: ${e.message}" }
+                try { socket.close() } catch (_: Exception) {}
+            }
+        }
+        return null
+    }
+
+    /** Message préfixé par sa longueur (2 octets), réponse de même ID attendue */
+    private fun exchange(conn: Conn, payload: ByteArray): ByteArray {
+        conn.output.write(payload.size shr 8)
+        conn.output.write(payload.size and 0xFF)
+        conn.output.write(payload)
+        conn.output.flush()
+        while (true) {
+            val resp = ByteArray(conn.input.readUnsignedShort())
+            conn.input.readFully(resp)
+            // Réponse d'une requête précédente abandonnée (timeout) : ignorée
+            if (resp.size >= 2 && resp[0] == payload[0] && resp[1] == payload[1]) return resp
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package net.appstorefr.perfectdnsmanager.service
+
+import android.content.Context
+import net.appstorefr.perfectdnsmanager.R
+import net.appstorefr.perfectdnsmanager.util.DnsWire
+import org.json.JSONObject
+import java.net.Inet4Address
+import java.net.InetAddress
+
+/**
+ * EDNS Client Subnet (RFC 7871) par upstream
+ *
+ * - Transmis : la requête part telle que le client l'a construite (défaut)
+ * - Retiré : option du client supprimée et remplacée par un préfixe /0, qui demande aussi
+ *   au résolveur de ne pas ajouter le sien (confidentialité maximale)
+ * - Injecté : /24 (ou /56 en IPv6 seul) de l'adresse publique du réseau physique, pour que
+ *   les CDN répondent avec un serveur proche même derrière un résolveur lointain
+ * - Seules les requêtes avec EDNS0 sont modifiées : un client sans OPT ne doit pas recevoir
+ *   d'OPT en réponse ; l'option ajoutée est retirée de la réponse avant le client
+ * - Pas de cache sur le chemin normal : chaque requête part à l'upstream avec son sous-réseau.
+ *   Seul le mode QoS cache seul garde des réponses, séparées par sous-réseau (voir DnsAnswerCache)
+ * - Appliqué par EcsStage dans la chaîne de traitement, après le choix de l'upstream
+ */
+class EcsPolicy private constructor(private val modes: Map<String, Int>) {
+
+    companion object {
+        const val PREF_POLICIES = "ecs_policies_json"
+        const val MODE_PASS = 0
+        const val MODE_STRIP = 1
+        const val MODE_INJECT = 2
+        const val V4_PREFIX = 24
+        const val V6_PREFIX = 56
+        private val STRIP_DATA = DnsWire.ecsData(null, 0)
+
+        /** Politiques enregistrées : upstream → mode (MODE_PASS absent de la table) */
+        fun loadModes(context: Context): Map<String, Int> {
+            val json = context.getSharedPreferences("prefs", Context.MODE_PRIVATE)
+                .getString(PREF_POLICIES, null) ?: return emptyMap()
+            return try {
+                val obj = JSONObject(json)
+                obj.keys().asSequence().associateWith { obj.getInt(it) }.filterValues { it == MODE_STRIP || it == MODE_INJECT }
+            } catch (_: Exception) { emptyMap() }
+        }
+
+        fun saveModes(context: Context, modes: Map<String, Int>) {
+            val obj = JSONObject()
+            for ((upstream, mode) in modes.toSortedMap()) if (mode != MODE_PASS) obj.put(upstream, mode)
+            context.getSharedPreferences("prefs", Context.MODE_PRIVATE).edit()
+                .putString(PREF_POLICIES, obj.toString()).commit()
+        }
+
+        fun labelRes(mode: Int): Int = when (mode) {
+            MODE_STRIP -> R.string.ecs_mode_strip
+            MODE_INJECT -> R.string.ecs_mode_inject
+            else -> R.string.ecs_mode_pass
+        }
+
+        /** Politique courante, null si tous les upstreams sont en mode transmis */
+        fun load(context: Context): EcsPolicy? = loadModes(context).takeIf { it.isNotEmpty() }?.let { EcsPolicy(it) }
+    }
+
+    /** Une adresse publique est nécessaire (découverte seulement dans ce cas) */
+    val needsPublicAddress: Boolean = modes.values.any { it == MODE_INJECT }
+
+    @Volatile private var subnet: ByteArray? = null
+
+    fun modeFor(upstream: String): Int = modes[upstream] ?: MODE_PASS
+
+    /** Adresses publiques du réseau physique (null = inconnues, l'injection est alors suspendue) */
+    fun setPublicAddress(v4: InetAddress?, v6: InetAddress?) {
+        subnet = when {
+            v4 is Inet4Address -> DnsWire.ecsData(v4, V4_PREFIX)
+            v6 != null -> DnsWire.ecsData(v6, V6_PREFIX)
+            else -> null
+        }
+    }
+
+    /** Applique le mode de l'upstream choisi à la requête du contexte */
+    fun apply(ctx: QueryContext) {
+        val ecs = when (modeFor(ctx.upstream)) {
+            MODE_STRIP -> STRIP_DATA
+            MODE_INJECT -> subnet ?: return
+            else -> return
+        }
+        val hadEcs = DnsWire.hasEcs(ctx.query)
+        ctx.setQuery(DnsWire.withEcs(ctx.query, ecs) ?: return)
+        ctx.ecsAdded = ctx.ecsAdded || !hadEcs
+    }
+}
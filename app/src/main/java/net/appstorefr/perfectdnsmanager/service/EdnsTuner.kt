@@ -0,0 +1,74 @@
+package net.appstorefr.perfectdnsmanager.service
+
+import android.os.SystemClock
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Taille de payload UDP EDNS0 annoncée aux upstreams DNS classiques, par upstream et par réseau
+ *
+ * - Départ à 1232 octets (DNS Flag Day 2020) : pas de fragmentation IP sur un chemin à 1280
+ * - Montée par paliers (1452 puis 4096) sur le trafic réel : quand une réponse revient
+ *   tronquée alors que le client acceptait plus, la requête est rejouée au palier supérieur ;
+ *   si la réponse arrive, le chemin laisse passer cette taille
+ * - Perte détectée (pas de réponse à une taille > 1232) : retour au palier inférieur et
+ *   palier en quarantaine 10 min sur ce réseau, les réponses fragmentées ne bloquent plus
+ *   le client jusqu'à son timeout
+ */
+object EdnsTuner {
+
+    private const val T = "EdnsTuner"
+    /** Taille sûre (DNS Flag Day 2020) */
+    const val SAFE_SIZE = 1232
+    private val LADDER = intArrayOf(SAFE_SIZE, 1452, 4096)
+    private const val QUARANTINE_MS = 10 * 60_000L
+
+    private class PathState {
+        @Volatile var size = SAFE_SIZE
+        /** Palier ayant perdu des réponses, et quand */
+        @Volatile var failedSize = Int.MAX_VALUE
+        @Volatile var failedAt = 0L
+    }
+
+    private val paths = ConcurrentHashMap<String, PathState>()
+
+    fun key(upstream: String, network: String) = "$upstream@$network"
+
+    /** Taille à annoncer sur ce chemin */
+    fun sizeFor(key: String): Int = paths[key]?.size ?: SAFE_SIZE
+
+    /**
+     * Palier suivant à essayer, plafonné à `wanted` (taille acceptée par le client).
+     * @return null si la taille courante suffit déjà, est au max, ou si le palier est en quarantaine
+     */
+    fun probeSize(key: String, wanted: Int): Int? {
+        val state = paths.getOrPut(key) { PathState() }
+        if (state.size >= wanted) return null
+        val next = minOf(wanted, LADDER.firstOrNull { it > state.size } ?: return null)
+        if (next >= state.failedSize && SystemClock.elapsedRealtime() - state.failedAt < QUARANTINE_MS) return null
+        return next
+    }
+
+    /** Réponse reçue à une requête annoncée à `advertised` octets */
+    fun onAnswer(key: String, advertised: Int, length: Int) {
+        val state = paths.getOrPut(key) { PathState() }
+        if (advertised > state.size && length > state.size) {
+            state.size = advertised
+            DiagLog.i(T) { "$key: payload size raised to $advertised ($length bytes received)" }
+        }
+    }
+
+    /** Aucune réponse à une requête annoncée à `advertised` octets : fragments probablement perdus */
+    fun onLoss(key: String, advertised: Int) {
+        if (advertised <= SAFE_SIZE) return
+        val state = paths.getOrPut(key) { PathState() }
+        state.failedSize = minOf(advertised, if (SystemClock.elapsedRealtime() - state.failedAt < QUARANTINE_MS) state.failedSize else Int.MAX_VALUE)
+        state.failedAt = SystemClock.elapsedRealtime()
+        val lower = LADDER.lastOrNull { it < advertised } ?: SAFE_SIZE
+        if (state.size > lower) {
+            state.size = lower
+            DiagLog.i(T) { "$key: answer lost at $advertised, payload size lowered to $lower" }
+        }
+    }
+
+    fun clear() = paths.clear()
+}
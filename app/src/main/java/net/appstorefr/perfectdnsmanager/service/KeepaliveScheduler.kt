@@ -0,0 +1,109 @@
+package net.appstorefr.perfectdnsmanager.service
+
+import android.content.Context
+import android.os.Build
+import android.os.PowerManager
+import android.os.SystemClock
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.TimeUnit
+
+/**
+ * Garde chaudes les connexions des upstreams chiffrés (DoH, DoQ) entre deux périodes d'activité
+ *
+ * - Seuls les N premiers upstreams du profil sont entretenus (préférence keepalive_hot_count,
+ *   0 = désactivé)
+ * - Un keepalive n'est envoyé qu'après `interval` sans requête réelle vers l'upstream
+ * - Intervalle adaptatif par upstream : allongé de 25% tant que la connexion survit,
+ *   divisé par 2 quand elle a dû être rouverte (NAT ou serveur l'ont fermée avant)
+ * - Écran éteint : intervalle x4 ; économie d'énergie ou doze : aucun keepalive
+ */
+class KeepaliveScheduler(
+    private val context: Context,
+    /**
+     * Envoie un keepalive à l'upstream.
+     * @return false si la connexion était vivante, true si elle a dû être rouverte, null si échec
+     */
+    private val ping: (upstream: String) -> Boolean?
+) {
+
+    companion object {
+        private const val T = "Keepalive"
+        const val PREF_HOT_COUNT = "keepalive_hot_count"
+        const val DEFAULT_HOT_COUNT = 2
+        const val MAX_HOT_COUNT = 4
+        private const val TICK_S = 5L
+        private const val INITIAL_INTERVAL_MS = 30_000L
+        private const val MIN_INTERVAL_MS = 10_000L
+        private const val MAX_INTERVAL_MS = 240_000L
+        private const val SCREEN_OFF_FACTOR = 4
+    }
+
+    private class Target {
+        @Volatile var lastActivity = SystemClock.elapsedRealtime()
+        @Volatile var interval = INITIAL_INTERVAL_MS
+    }
+
+    private val targets = ConcurrentHashMap<String, Target>()
+    @Volatile private var hot = emptyList<String>()
+    private var executor: ScheduledExecutorService? = null
+
+    /** Upstreams du profil, dans l'ordre de priorité */
+    fun setUpstreams(upstreams: List<String>) {
+        val count = context.getSharedPreferences("prefs", Context.MODE_PRIVATE)
+            .getInt(PREF_HOT_COUNT, DEFAULT_HOT_COUNT).coerceIn(0, MAX_HOT_COUNT)
+        hot = upstreams.filter { it.startsWith("https://") || it.startsWith("quic://") }.distinct().take(count)
+        // Les intervalles appris sont conservés pour les upstreams toujours présents
+        targets.keys.retainAll(hot.toSet())
+        for (u in hot) targets.getOrPut(u) { Target() }
+        DiagLog.i(T) { "Hot upstreams: $hot" }
+    }
+
+    /** Requête réelle envoyée à l'upstream : repousse le prochain keepalive */
+    fun onActivity(upstream: String) {
+        targets[upstream]?.lastActivity = SystemClock.elapsedRealtime()
+    }
+
+    @Synchronized
+    fun start() {
+        if (executor != null) return
+        executor = Executors.newSingleThreadScheduledExecutor { r ->
+            Thread(r, "Keepalive").apply { isDaemon = true }
+        }.also { it.scheduleWithFixedDelay({ tick() }, TICK_S, TICK_S, TimeUnit.SECONDS) }
+    }
+
+    @Synchronized
+    fun stop() {
+        executor?.shutdownNow()
+        executor = null
+    }
+
+    private fun tick() {
+        try {
+            val pm = context.getSystemService(Context.POWER_SERVICE) as PowerManager
+            if (pm.isPowerSaveMode) return
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M && pm.isDeviceIdleMode) return
+            val factor = if (pm.isInteractive) 1 else SCREEN_OFF_FACTOR
+
+            for (upstream in hot) {
+                val target = targets[upstream] ?: continue
+                val idle = SystemClock.elapsedRealtime() - target.lastActivity
+                if (idle < target.interval * factor) continue
+
+                val reconnected = ping(upstream)
+                target.lastActivity = SystemClock.elapsedRealtime()
+                when (reconnected) {
+                    false -> target.interval = minOf(MAX_INTERVAL_MS, target.interval * 5 / 4)
+                    true -> {
+                        target.interval = maxOf(MIN_INTERVAL_MS, minOf(target.interval, idle) / 2)
+                        DiagLog.i(T) { "$upstream closed after ${idle / 1000}s idle, interval now ${target.interval / 1000}s" }
+                    }
+                    null -> {}
+                }
+            }
+        } catch (e: Exception) {
+            DiagLog.w(T) { "tick: ${e.message}" }
+        }
+    }
+}
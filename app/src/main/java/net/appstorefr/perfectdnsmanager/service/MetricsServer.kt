@@ -0,0 +1,253 @@
+package net.appstorefr.perfectdnsmanager.service
+
+import android.content.Context
+import android.os.SystemClock
+import java.io.IOException
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.nio.ByteBuffer
+import java.nio.channels.SelectionKey
+import java.nio.channels.Selector
+import java.nio.channels.ServerSocketChannel
+import java.nio.channels.SocketChannel
+
+/**
+ * Texte au format d'exposition Prometheus (text/plain, version 0.0.4)
+ *
+ * Les échantillons d'une famille doivent se suivre : family() puis un ou plusieurs sample().
+ */
+class Exposition {
+
+    private val out = StringBuilder(16 * 1024)
+
+    /** Début de la famille `name` : lignes HELP et TYPE */
+    fun family(name: String, type: String, help: String): Exposition {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n')
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n')
+        return this
+    }
+
+    /** Un échantillon ; `labels` en paires nom, valeur */
+    fun sample(name: String, value: Number, vararg labels: String): Exposition {
+        out.append(name)
+        if (labels.isNotEmpty()) {
+            out.append('{')
+            for (i in labels.indices step 2) {
+                if (i > 0) out.append(',')
+                out.append(labels[i]).append("=\"")
+                for (c in labels[i + 1]) {
+                    when (c) {
+                        '\\' -> out.append("\\\\")
+                        '"' -> out.append("\\\"")
+                        '\n' -> out.append("\\n")
+                        else -> out.append(c)
+                    }
+                }
+                out.append('"')
+            }
+            out.append('}')
+        }
+        out.append(' ').append(value).append('\n')
+        return this
+    }
+
+    fun counter(name: String, help: String, value: Number) = family(name, "counter", help).sample(name, value)
+
+    fun gauge(name: String, help: String, value: Number) = family(name, "gauge", help).sample(name, value)
+
+    override fun toString() = out.toString()
+}
+
+/**
+ * Point d'accès HTTP des métriques du VPN au format Prometheus (GET /metrics)
+ *
+ * - Désactivé par défaut ; 127.0.0.1 seulement (collecte par `adb forward tcp:9153 tcp:9153`),
+ *   toutes les interfaces si l'accès réseau local est explicitement activé (aucune authentification)
+ * - Un seul thread "Metrics" et un Selector NIO : pas de thread par connexion, aucun réveil
+ *   tant que personne ne se connecte
+ * - Le texte est construit à chaque requête par `render`, sur ce thread, à partir de compteurs
+ *   atomiques : le chemin des requêtes DNS n'attend jamais le serveur
+ * - HTTP/1.1 minimal : une requête par connexion, fermée après la réponse
+ */
+class MetricsServer private constructor(
+    val port: Int,
+    val lan: Boolean,
+    private val render: () -> String
+) {
+
+    companion object {
+        private const val T = "MetricsServer"
+        const val PREF_ENABLED = "metrics_endpoint_enabled"
+        const val PREF_LAN = "metrics_endpoint_lan"
+        const val PREF_PORT = "metrics_endpoint_port"
+        /** Port habituel de l'exportateur Prometheus des serveurs DNS */
+        const val DEFAULT_PORT = 9153
+        private const val MAX_REQUEST = 8192
+        /** Connexion abandonnée si la requête n'est pas complète (ou la réponse pas lue) à temps */
+        private const val IO_TIMEOUT_MS = 5000L
+        private const val CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8"
+
+        fun isEnabled(context: Context): Boolean =
+            context.getSharedPreferences("prefs", Context.MODE_PRIVATE).getBoolean(PREF_ENABLED, false)
+
+        /**
+         * Serveur configuré : `current` conservé si l'adresse d'écoute n'a pas changé, arrêté si le
+         * point d'accès est désactivé ; null aussi si le port n'a pas pu être ouvert
+         */
+        fun load(context: Context, current: MetricsServer?, render: () -> String): MetricsServer? {
+            val prefs = context.getSharedPreferences("prefs", Context.MODE_PRIVATE)
+            if (!prefs.getBoolean(PREF_ENABLED, false)) {
+                current?.close()
+                return null
+            }
+            val port = prefs.getInt(PREF_PORT, DEFAULT_PORT)
+            val lan = prefs.getBoolean(PREF_LAN, false)
+            if (current != null && current.port == port && current.lan == lan) return current
+            current?.close()
+            return try {
+                MetricsServer(port, lan, render).also { it.start() }
+            } catch (e: IOException) {
+                DiagLog.w(T) { "Cannot listen on port $port: ${e.message}" }
+                null
+            }
+        }
+    }
+
+    private class Conn(val openedAt: Long) {
+        val request: ByteBuffer = ByteBuffer.allocate(MAX_REQUEST)
+        var response: ByteBuffer? = null
+    }
+
+    private val selector = Selector.open()
+    private val server = ServerSocketChannel.open()
+    @Volatile private var running = false
+    private var thread: Thread? = null
+
+    private fun start() {
+        try {
+            val address = if (lan) InetAddress.getByName("0.0.0.0") else InetAddress.getLoopbackAddress()
+            server.socket().reuseAddress = true
+            server.socket().bind(InetSocketAddress(address, port))
+            server.configureBlocking(false)
+            server.register(selector, SelectionKey.OP_ACCEPT)
+        } catch (e: IOException) {
+            try { server.close() } catch (_: Exception) {}
+            try { selector.close() } catch (_: Exception) {}
+            throw e
+        }
+        running = true
+        thread = Thread({ loop() }, "Metrics").apply { isDaemon = true; start() }
+        DiagLog.i(T) { "Serving /metrics on ${if (lan) "0.0.0.0" else "127.0.0.1"}:$port" }
+    }
+
+    /** Arrête le serveur ; le port est libéré au retour (un nouveau serveur peut s'y lier) */
+    fun close() {
+        running = false
+        selector.wakeup()
+        try { thread?.join(1000) } catch (_: InterruptedException) {}
+    }
+
+    private fun loop() {
+        try {
+            while (running) {
+                // Connexions ouvertes : réveil périodique pour fermer celles qui traînent
+                if (selector.keys().size > 1) selector.select(IO_TIMEOUT_MS) else selector.select()
+                val it = selector.selectedKeys().iterator()
+                while (it.hasNext()) {
+                    val key = it.next()
+                    it.remove()
+                    try {
+                        when {
+                            !key.isValid -> {}
+                            key.isAcceptable -> accept()
+                            key.isReadable -> read(key)
+                            key.isWritable -> write(key)
+                        }
+                    } catch (_: IOException) {
+                        closeKey(key)
+                    }
+                }
+                expireStale()
+            }
+        } catch (e: Exception) {
+            DiagLog.w(T) { "loop: ${e.message}" }
+        } finally {
+            for (key in selector.keys()) closeKey(key)
+            try { server.close() } catch (_: Exception) {}
+            try { selector.close() } catch (_: Exception) {}
+        }
+    }
+
+    private fun accept() {
+        val channel = server.accept() ?: return
+        channel.configureBlocking(false)
+        channel.register(selector, SelectionKey.OP_READ, Conn(SystemClock.elapsedRealtime()))
+    }
+
+    private fun read(key: SelectionKey) {
+        val conn = key.attachment() as Conn
+        val n = (key.channel() as SocketChannel).read(conn.request)
+        if (n < 0) { closeKey(key); return }
+        val headerEnd = headerEnd(conn.request)
+        if (headerEnd < 0) {
+            if (!conn.request.hasRemaining()) respond(key, conn, "431 Request Header Fields Too Large", "")
+            return
+        }
+        val line = String(conn.request.array(), 0, conn.request.position(), Charsets.ISO_8859_1).substringBefore("\r\n")
+        val parts = line.split(' ')
+        val path = parts.getOrNull(1)?.substringBefore('?')
+        when {
+            parts.size < 3 -> respond(key, conn, "400 Bad Request", "")
+            parts[0] != "GET" && parts[0] != "HEAD" -> respond(key, conn, "405 Method Not Allowed", "")
+            path != "/metrics" && path != "/" -> respond(key, conn, "404 Not Found", "")
+            else -> {
+                val body = try { render() } catch (e: Exception) {
+                    DiagLog.w(T) { "render: ${e.message}" }
+                    respond(key, conn, "500 Internal Server Error", "")
+                    return
+                }
+                respond(key, conn, "200 OK", if (parts[0] == "HEAD") "" else body, body.toByteArray(Charsets.UTF_8).size)
+            }
+        }
+    }
+
+    private fun respond(key: SelectionKey, conn: Conn, status: String, body: String, length: Int = -1) {
+        val bytes = body.toByteArray(Charsets.UTF_8)
+        val head = "HTTP/1.1 $status\r\n" +
+            "Content-Type: $CONTENT_TYPE\r\n" +
+            "Content-Length: ${if (length >= 0) length else bytes.size}\r\n" +
+            "Connection: close\r\n\r\n"
+        conn.response = ByteBuffer.wrap(head.toByteArray(Charsets.ISO_8859_1) + bytes)
+        key.interestOps(SelectionKey.OP_WRITE)
+        write(key)
+    }
+
+    private fun write(key: SelectionKey) {
+        val response = (key.attachment() as Conn).response ?: return
+        (key.channel() as SocketChannel).write(response)
+        if (!response.hasRemaining()) closeKey(key)
+    }
+
+    private fun expireStale() {
+        val now = SystemClock.elapsedRealtime()
+        for (key in selector.keys()) {
+            val conn = key.attachment() as? Conn ?: continue
+            if (now - conn.openedAt > IO_TIMEOUT_MS) closeKey(key)
+        }
+    }
+
+    private fun closeKey(key: SelectionKey) {
+        key.cancel()
+        try { key.channel().close() } catch (_: Exception) {}
+    }
+
+    /** Position de fin des en-têtes (après la ligne vide), -1 si pas encore reçue */
+    private fun headerEnd(buf: ByteBuffer): Int {
+        val a = buf.array()
+        for (i in 3 until buf.position()) {
+            if (a[i] == '\n'.code.toByte() && a[i - 1] == '\r'.code.toByte() &&
+                a[i - 2] == '\n'.code.toByte() && a[i - 3] == '\r'.code.toByte()) return i + 1
+        }
+        return -1
+    }
+}
@@ -0,0 +1,312 @@
+package net.appstorefr.perfectdnsmanager.service
+
+import android.content.Context
+import android.net.ConnectivityManager
+import android.net.Network
+import android.net.NetworkCapabilities
+import android.net.NetworkRequest
+import android.net.VpnService
+import android.os.Build
+import android.os.SystemClock
+import java.net.DatagramPacket
+import java.net.DatagramSocket
+import java.net.InetAddress
+import java.net.Socket
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutorCompletionService
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import javax.net.SocketFactory
+
+/**
+ * Mode multi-chemins : Wi-Fi et données mobiles utilisés ensemble pour les upstreams
+ *
+ * - Chaque réseau physique (Wi-Fi, cellulaire, Ethernet) a ses sockets liées par Network.bindSocket,
+ *   le réseau cellulaire est maintenu actif par requestNetwork tant que le mode est activé
+ * - RTT lissé (façon RFC 6298) par réseau et par upstream : la requête part sur le meilleur réseau
+ * - Pas de réponse après srtt + 4·rttvar : une copie part sur l'autre réseau, la première réponse gagne
+ * - Requête sans réponse : pénalité de RTT sur ce réseau, qui cesse d'être choisi en premier
+ * - Nécessite Android 5.1 (bindSocket pour DatagramSocket)
+ */
+class MultipathRouter(
+    private val vpnService: VpnService,
+    /** Réponse UDP reçue sur l'un des réseaux */
+    private val onResponse: (ByteArray) -> Unit
+) {
+
+    companion object {
+        private const val T = "Multipath"
+        const val PREF_ENABLED = "multipath_enabled"
+        private const val DEFAULT_HEDGE_MS = 150L
+        private const val MIN_HEDGE_MS = 40L
+        private const val MAX_HEDGE_MS = 600L
+        /** Requête restée sans réponse : échantillon de RTT compté pour ce réseau */
+        private const val LOSS_RTT_MS = 1500.0
+        private const val SENT_TTL_MS = 5000L
+        private const val CALL_TIMEOUT_MS = 10_000L
+
+        fun isSupported() = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP_MR1
+    }
+
+    private inner class Path(val network: Network, val label: String) {
+        val socket = DatagramSocket().also {
+            vpnService.protect(it)
+            network.bindSocket(it)
+        }
+        @Volatile var open = true
+        val receiver = Thread({ receiveLoop(this) }, "Multipath-$label").apply { isDaemon = true }
+    }
+
+    /** RTT lissé en ms (srtt < 0 : pas encore d'échantillon) */
+    private class Rtt {
+        @Volatile var srtt = -1.0
+        @Volatile var rttvar = 0.0
+    }
+
+    private class Sent(val key: String, val at: Long)
+
+    private val paths = ConcurrentHashMap<Network, Path>()
+    private val rtts = ConcurrentHashMap<String, Rtt>()
+    private val sent = ConcurrentHashMap<String, Sent>()
+    private val callbacks = ArrayList<ConnectivityManager.NetworkCallback>()
+    private val hedgeTimer = Executors.newSingleThreadScheduledExecutor { r ->
+        Thread(r, "MultipathHedge").apply { isDaemon = true }
+    }
+    private val callExecutor = Executors.newCachedThreadPool { r ->
+        Thread(r, "MultipathCall").apply { isDaemon = true }
+    }
+
+    /** Au moins 2 réseaux disponibles : le mode multi-chemins a un sens */
+    val isActive: Boolean get() = paths.size >= 2
+
+    fun networks(): Set<Network> = paths.keys.toSet()
+
+    fun start() {
+        val cm = vpnService.getSystemService(Context.CONNECTIVITY_SERVICE) as ConnectivityManager
+        for (transport in intArrayOf(
+            NetworkCapabilities.TRANSPORT_WIFI,
+            NetworkCapabilities.TRANSPORT_CELLULAR,
+            NetworkCapabilities.TRANSPORT_ETHERNET
+        )) {
+            val label = when (transport) {
+                NetworkCapabilities.TRANSPORT_WIFI -> "wifi"
+                NetworkCapabilities.TRANSPORT_CELLULAR -> "cell"
+                else -> "eth"
+            }
+            val callback = object : ConnectivityManager.NetworkCallback() {
+                override fun onAvailable(network: Network) = addPath(network, label)
+                override fun onLost(network: Network) = removePath(network)
+            }
+            val request = NetworkRequest.Builder()
+                .addTransportType(transport)
+                .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                .addCapability(NetworkCapabilities.NET_CAPABILITY_NOT_VPN)
+                .build()
+            try {
+                // requestNetwork (et non registerNetworkCallback) : garde le cellulaire actif même en Wi-Fi
+                cm.requestNetwork(request, callback)
+                synchronized(callbacks) { callbacks.add(callback) }
+            } catch (e: Exception) {
+                DiagLog.w(T) { "requestNetwork $label: ${e.message}" }
+            }
+        }
+    }
+
+    fun stop() {
+        val cm = vpnService.getSystemService(Context.CONNECTIVITY_SERVICE) as ConnectivityManager
+        synchronized(callbacks) {
+            callbacks.forEach { try { cm.unregisterNetworkCallback(it) } catch (_: Exception) {} }
+            callbacks.clear()
+        }
+        paths.keys.toList().forEach { removePath(it) }
+        hedgeTimer.shutdownNow()
+        callExecutor.shutdownNow()
+        sent.clear()
+    }
+
+    private fun addPath(network: Network, label: String) {
+        if (paths.containsKey(network)) return
+        try {
+            val path = Path(network, label)
+            if (paths.putIfAbsent(network, path) == null) {
+                path.receiver.start()
+                DiagLog.i(T) { "Path up: $label ($network), ${paths.size} path(s)" }
+            } else path.socket.close()
+        } catch (e: Exception) {
+            DiagLog.w(T) { "Path $label ($network): ${e.message}" }
+        }
+    }
+
+    private fun removePath(network: Network) {
+        val path = paths.remove(network) ?: return
+        path.open = false
+        path.socket.close()
+        DiagLog.i(T) { "Path down: ${path.label} ($network), ${paths.size} path(s)" }
+    }
+
+    /** Socket TCP liée au réseau (OkHttp via DoH) */
+    fun socketFactory(network: Network): SocketFactory = object : SocketFactory() {
+        private fun bound(): Socket = Socket().also {
+            vpnService.protect(it)
+            network.bindSocket(it)
+        }
+        override fun createSocket(): Socket = bound()
+        override fun createSocket(host: String, port: Int): Socket =
+            bound().apply { connect(java.net.InetSocketAddress(host, port)) }
+        override fun createSocket(host: String, port: Int, localHost: InetAddress, localPort: Int): Socket =
+            bound().apply { bind(java.net.InetSocketAddress(localHost, localPort)); connect(java.net.InetSocketAddress(host, port)) }
+        override fun createSocket(host: InetAddress, port: Int): Socket =
+            bound().apply { connect(java.net.InetSocketAddress(host, port)) }
+        override fun createSocket(host: InetAddress, port: Int, localAddress: InetAddress, localPort: Int): Socket =
+            bound().apply { bind(java.net.InetSocketAddress(localAddress, localPort)); connect(java.net.InetSocketAddress(host, port)) }
+    }
+
+    // ── Choix du réseau ───────────────────────────────────────────────────
+
+    private fun rttKey(path: Path, upstream: String) = "${path.network}|$upstream"
+
+    /** RTT estimé du réseau pour cet upstream ; à défaut, celui du réseau tous upstreams confondus */
+    private fun estimate(path: Path, upstream: String): Rtt? =
+        rtts[rttKey(path, upstream)]?.takeIf { it.srtt >= 0 } ?: rtts["${path.network}|*"]?.takeIf { it.srtt >= 0 }
+
+    /** Réseaux du plus rapide au plus lent ; sans mesure, le réseau par défaut d'abord */
+    private fun ranked(upstream: String): List<Path> {
+        val cm = vpnService.getSystemService(Context.CONNECTIVITY_SERVICE) as ConnectivityManager
+        val default = BootstrapResolver.physicalNetwork(cm)
+        return paths.values.sortedWith(compareBy<Path> { estimate(it, upstream)?.srtt ?: Double.MAX_VALUE }
+            .thenBy { if (it.network == default) 0 else 1 })
+    }
+
+    private fun hedgeDelay(path: Path, upstream: String): Long {
+        val rtt = estimate(path, upstream) ?: return DEFAULT_HEDGE_MS
+        return (rtt.srtt + 4 * rtt.rttvar).toLong().coerceIn(MIN_HEDGE_MS, MAX_HEDGE_MS)
+    }
+
+    private fun record(path: Path, upstream: String, sample: Double) {
+        for (key in arrayOf(rttKey(path, upstream), "${path.network}|*")) {
+            val rtt = rtts.getOrPut(key) { Rtt() }
+            synchronized(rtt) {
+                if (rtt.srtt < 0) {
+                    rtt.srtt = sample
+                    rtt.rttvar = sample / 2
+                } else {
+                    rtt.rttvar = 0.75 * rtt.rttvar + 0.25 * Math.abs(rtt.srtt - sample)
+                    rtt.srtt = 0.875 * rtt.srtt + 0.125 * sample
+                }
+            }
+        }
+    }
+
+    // ── UDP classique ─────────────────────────────────────────────────────
+
+    /**
+     * Envoie une requête UDP sur le meilleur réseau, puis une copie sur le suivant si
+     * `isPending` est toujours vrai après le délai de course.
+     * @return false si aucun réseau n'est disponible (l'appelant utilise sa socket par défaut)
+     */
+    fun send(query: ByteArray, upstream: String, isPending: () -> Boolean): Boolean {
+        val order = ranked(upstream)
+        val first = order.firstOrNull() ?: return false
+        val address = try { InetAddress.getByName(upstream) } catch (_: Exception) { return false }
+        if (!sendOn(first, query, address, upstream)) return false
+        val second = order.getOrNull(1) ?: return true
+        try {
+            hedgeTimer.schedule({
+                if (isPending() && second.open) {
+                    DiagLog.d(T) { "Hedge $upstream: ${first.label} slow, racing on ${second.label}" }
+                    sendOn(second, query, address, upstream)
+                }
+            }, hedgeDelay(first, upstream), TimeUnit.MILLISECONDS)
+        } catch (_: Exception) {}
+        return true
+    }
+
+    private fun sendOn(path: Path, query: ByteArray, address: InetAddress, upstream: String): Boolean {
+        val id = (query[0].toInt() and 0xFF) shl 8 or (query[1].toInt() and 0xFF)
+        return try {
+            sent["$id|${path.network}"] = Sent(rttKey(path, upstream), SystemClock.elapsedRealtime())
+            path.socket.send(DatagramPacket(query, query.size, address, 53))
+            true
+        } catch (e: Exception) {
+            DiagLog.w(T) { "send on ${path.label}: ${e.message}" }
+            false
+        }
+    }
+
+    private fun receiveLoop(path: Path) {
+        val buf = ByteArray(65535)
+        while (path.open) {
+            try {
+                val pkt = DatagramPacket(buf, buf.size)
+                path.socket.soTimeout = 1000
+                path.socket.receive(pkt)
+                if (pkt.length <= 12) continue
+                val id = (buf[0].toInt() and 0xFF) shl 8 or (buf[1].toInt() and 0xFF)
+                sent.remove("$id|${path.network}")?.let {
+                    record(path, it.key.substringAfter('|'), (SystemClock.elapsedRealtime() - it.at).toDouble())
+                }
+                onResponse(buf.copyOf(pkt.length))
+            } catch (_: java.net.SocketTimeoutException) {
+                expireSent()
+            } catch (e: Exception) {
+                if (path.open) DiagLog.w(T) { "receive on ${path.label}: ${e.message}" }
+                break
+            }
+        }
+    }
+
+    /** Requêtes sans réponse sur un réseau : pénalité de RTT */
+    private fun expireSent() {
+        val now = SystemClock.elapsedRealtime()
+        val it = sent.entries.iterator()
+        while (it.hasNext()) {
+            val (key, s) = it.next()
+            if (now - s.at < SENT_TTL_MS) continue
+            it.remove()
+            val path = paths.values.firstOrNull { key.endsWith("|${it.network}") } ?: continue
+            record(path, s.key.substringAfter('|'), LOSS_RTT_MS)
+        }
+    }
+
+    // ── Transports bloquants (DoH) ────────────────────────────────────────
+
+    /**
+     * Appel bloquant lancé sur le meilleur réseau, doublé sur le suivant s'il tarde.
+     * @return le premier résultat non null, ou null si tous les réseaux ont échoué
+     */
+    fun <R : Any> hedge(upstream: String, call: (Network) -> R?): R? {
+        val order = ranked(upstream)
+        if (order.isEmpty()) return null
+        val completion = ExecutorCompletionService<R?>(callExecutor)
+        fun launch(path: Path) = completion.submit {
+            val t0 = SystemClock.elapsedRealtime()
+            val result = call(path.network)
+            record(path, upstream, if (result != null) (SystemClock.elapsedRealtime() - t0).toDouble() else LOSS_RTT_MS)
+            result
+        }
+        return try {
+            launch(order[0])
+            var launched = 1
+            var done = 0
+            val deadline = SystemClock.elapsedRealtime() + CALL_TIMEOUT_MS
+            var wait = hedgeDelay(order[0], upstream)
+            while (done < launched) {
+                val future = completion.poll(wait, TimeUnit.MILLISECONDS)
+                if (future != null) {
+                    done++
+                    future.get()?.let { return it }
+                }
+                // Premier réseau lent ou en échec : course sur le suivant
+                if (launched < order.size && (future == null || done == launched)) {
+                    DiagLog.d(T) { "Hedge $upstream on ${order[launched].label}" }
+                    launch(order[launched++])
+                }
+                wait = deadline - SystemClock.elapsedRealtime()
+                if (wait <= 0) break
+            }
+            null
+        } catch (e: Exception) {
+            null
+        }
+    }
+}
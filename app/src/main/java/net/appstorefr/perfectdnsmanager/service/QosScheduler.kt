@@ -0,0 +1,139 @@
+package net.appstorefr.perfectdnsmanager.service
+
+import android.content.Context
+import android.content.pm.PackageManager
+import android.os.SystemClock
+import org.json.JSONArray
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.PriorityBlockingQueue
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Qualité de service des requêtes DNS par application (UID, Android 10+)
+ *
+ * - Seau à jetons par UID (débit + rafale) : au-delà, REFUSED immédiat ou cache seul
+ * - Requêtes chiffrées (DoH, DoQ, DNSCrypt) exécutées par un pool borné à file de priorité :
+ *   apps prioritaires d'abord, puis trafic normal, puis apps qui vident leur seau (trafic de masse)
+ * - Compteurs par application (requêtes, limitées) pour repérer qui inonde le résolveur
+ */
+class QosScheduler private constructor(
+    private val rate: Double,
+    private val burst: Double,
+    /** MODE_REFUSED ou MODE_CACHE_ONLY */
+    val excessMode: Int,
+    private val priorityUids: Set<Int>
+) {
+
+    companion object {
+        private const val T = "Qos"
+        const val PREF_ENABLED = "qos_enabled"
+        const val PREF_RATE = "qos_rate_qps"
+        const val PREF_BURST = "qos_burst"
+        const val PREF_EXCESS_MODE = "qos_excess_mode"
+        const val PREF_PRIORITY_APPS = "qos_priority_apps_json"
+        const val DEFAULT_RATE = 20
+        const val DEFAULT_BURST = 100
+        const val MODE_REFUSED = 0
+        const val MODE_CACHE_ONLY = 1
+        const val PRIORITY_HIGH = 0
+        const val PRIORITY_NORMAL = 1
+        const val PRIORITY_BULK = 2
+        private const val WORKERS = 24
+
+        /** Planificateur selon les préférences, null si désactivé ou Android < 10 (pas d'UID) */
+        fun fromPrefs(context: Context): QosScheduler? {
+            if (!AppUpstreamRouter.isSupported()) return null
+            val prefs = context.getSharedPreferences("prefs", Context.MODE_PRIVATE)
+            if (!prefs.getBoolean(PREF_ENABLED, false)) return null
+            val pm = context.packageManager
+            val uids = loadPriorityApps(context).mapNotNull { pkg ->
+                try { pm.getApplicationInfo(pkg, 0).uid } catch (_: PackageManager.NameNotFoundException) { null }
+            }.toSet()
+            return QosScheduler(
+                prefs.getInt(PREF_RATE, DEFAULT_RATE).coerceAtLeast(1).toDouble(),
+                prefs.getInt(PREF_BURST, DEFAULT_BURST).coerceAtLeast(1).toDouble(),
+                prefs.getInt(PREF_EXCESS_MODE, MODE_REFUSED),
+                uids
+            )
+        }
+
+        fun loadPriorityApps(context: Context): Set<String> {
+            val json = context.getSharedPreferences("prefs", Context.MODE_PRIVATE)
+                .getString(PREF_PRIORITY_APPS, null) ?: return emptySet()
+            return try {
+                val arr = JSONArray(json)
+                (0 until arr.length()).map { arr.getString(it) }.toSet()
+            } catch (_: Exception) { emptySet() }
+        }
+
+        fun savePriorityApps(context: Context, packages: Set<String>) {
+            val arr = JSONArray()
+            packages.sorted().forEach { arr.put(it) }
+            context.getSharedPreferences("prefs", Context.MODE_PRIVATE).edit()
+                .putString(PREF_PRIORITY_APPS, arr.toString()).apply()
+        }
+    }
+
+    /** Compteurs d'une application */
+    class AppCount(val uid: Int, val queries: Long, val limited: Long, val priority: Boolean)
+
+    private inner class AppState {
+        val queries = AtomicLong()
+        val limited = AtomicLong()
+        var tokens = burst
+        var refilledAt = SystemClock.elapsedRealtime()
+    }
+
+    private class Job(val priority: Int, val seq: Long, val task: Runnable) : Runnable, Comparable<Job> {
+        override fun run() = task.run()
+        override fun compareTo(other: Job): Int =
+            if (priority != other.priority) priority.compareTo(other.priority) else seq.compareTo(other.seq)
+    }
+
+    private val apps = ConcurrentHashMap<Int, AppState>()
+    private val seq = AtomicLong()
+    private val executor = ThreadPoolExecutor(
+        WORKERS, WORKERS, 30, TimeUnit.SECONDS, PriorityBlockingQueue<Runnable>()
+    ) { r -> Thread(r, "QosWorker").apply { isDaemon = true } }.apply { allowCoreThreadTimeOut(true) }
+
+    /** Prend un jeton pour cette requête ; false = application au-delà de sa limite */
+    fun admit(uid: Int): Boolean {
+        val state = apps.getOrPut(uid) { AppState() }
+        state.queries.incrementAndGet()
+        if (uid in priorityUids) return true
+        synchronized(state) {
+            val now = SystemClock.elapsedRealtime()
+            state.tokens = minOf(burst, state.tokens + (now - state.refilledAt) * rate / 1000)
+            state.refilledAt = now
+            if (state.tokens >= 1) {
+                state.tokens -= 1
+                return true
+            }
+        }
+        if (state.limited.incrementAndGet() % 100 == 1L) DiagLog.w(T) { "uid $uid over its rate limit (${state.limited.get()} limited)" }
+        return false
+    }
+
+    /** Priorité d'ordonnancement : apps prioritaires, normal, ou trafic de masse (seau à moitié vide) */
+    fun priorityOf(uid: Int): Int {
+        if (uid in priorityUids) return PRIORITY_HIGH
+        val state = apps[uid] ?: return PRIORITY_NORMAL
+        return if (state.tokens < burst / 2) PRIORITY_BULK else PRIORITY_NORMAL
+    }
+
+    /** Exécute une requête bloquante vers l'upstream selon sa priorité */
+    fun execute(priority: Int, task: Runnable) {
+        executor.execute(Job(priority, seq.incrementAndGet(), task))
+    }
+
+    /** Compteurs par application, les plus actives d'abord */
+    fun snapshot(): List<AppCount> =
+        apps.entries.map { (uid, s) -> AppCount(uid, s.queries.get(), s.limited.get(), uid in priorityUids) }
+            .sortedByDescending { it.queries }
+
+    fun shutdown() {
+        executor.shutdownNow()
+    }
+}
@@ -0,0 +1,271 @@
+package net.appstorefr.perfectdnsmanager.service
+
+import android.os.Trace
+import net.appstorefr.perfectdnsmanager.util.DnsWire
+
+/**
+ * Étape de traitement d'une requête client (enregistrements locaux, blocage, réécriture,
+ * cache, routage, envoi...). Une étape qui répond elle-même place la réponse dans
+ * `ctx.answer` (source CACHE ou LOCAL) et renvoie ANSWERED.
+ */
+interface QueryStage {
+    fun onQuery(ctx: QueryContext): QueryChain.Verdict
+
+    /** Nom de l'étape dans les traces (QueryTracer, sections android.os.Trace) */
+    val traceLabel: String get() = javaClass.simpleName
+}
+
+/** Étape appliquée à chaque réponse avant le client (cache, restauration du qname...) */
+interface ResponseStage {
+    /** @return réponse éventuellement modifiée (le même tableau si inchangée) */
+    fun onResponse(ctx: QueryContext, response: ByteArray): ByteArray
+}
+
+/**
+ * Chaîne de traitement des requêtes DNS du VPN
+ *
+ * - Assemblée une fois par configuration (démarrage, règles rechargées), jamais par paquet
+ * - Les étapes de requête s'exécutent dans l'ordre jusqu'à ce que l'une réponde, envoie
+ *   la requête à l'upstream ou l'abandonne
+ * - Toute réponse (upstream, cache ou locale) traverse les étapes de réponse puis `deliver`,
+ *   après quoi le contexte retourne au pool
+ * - Une requête en vol garde la chaîne qui l'a traitée, même si une autre la remplace
+ * - Requête échantillonnée (ctx.trace) : chaque étape est mesurée et tracée, la trace est
+ *   remise à `tracer` une fois la réponse écrite
+ */
+class QueryChain(
+    queryStages: List<QueryStage>,
+    responseStages: List<ResponseStage>,
+    /** Écriture de la réponse finale vers le client (TUN ou connexion TCP) */
+    private val deliver: (QueryContext, ByteArray) -> Unit,
+    private val tracer: QueryTracer? = null
+) {
+
+    enum class Verdict {
+        /** Étape suivante */
+        CONTINUE,
+        /** Réponse dans ctx.answer : étapes de réponse puis client */
+        ANSWERED,
+        /** Requête partie vers l'upstream : la réponse reviendra par complete() */
+        FORWARDED,
+        /** Requête abandonnée sans réponse */
+        DROPPED
+    }
+
+    // Tableaux : parcours par index, sans itérateur alloué par paquet
+    private val queryStages = queryStages.toTypedArray()
+    private val responseStages = responseStages.toTypedArray()
+
+    fun process(ctx: QueryContext) {
+        ctx.chain = this
+        val trace = ctx.trace
+        for (stage in queryStages) {
+            if (trace != null) Trace.beginSection(stage.traceLabel)
+            val verdict = stage.onQuery(ctx)
+            if (trace != null) {
+                // Requête envoyée : l'étape s'est marquée avant de la publier, elle peut déjà être terminée
+                if (verdict != Verdict.FORWARDED) trace.mark(stage.traceLabel)
+                Trace.endSection()
+            }
+            when (verdict) {
+                Verdict.CONTINUE -> continue
+                Verdict.ANSWERED -> {
+                    val answer = ctx.answer
+                    if (answer != null) complete(ctx, answer) else QueryContext.recycle(ctx)
+                    return
+                }
+                Verdict.FORWARDED -> return
+                Verdict.DROPPED -> { QueryContext.recycle(ctx); return }
+            }
+        }
+        QueryContext.recycle(ctx)
+    }
+
+    /** Réponse de la requête → étapes de réponse → client ; le contexte est ensuite recyclé */
+    fun complete(ctx: QueryContext, response: ByteArray) {
+        val trace = ctx.trace
+        if (trace != null) Trace.beginSection("dns response")
+        var out = response
+        for (stage in responseStages) out = stage.onResponse(ctx, out)
+        if (trace != null) {
+            trace.mark("response")
+            Trace.endSection()
+        }
+        try {
+            deliver(ctx, out)
+        } finally {
+            if (trace != null) {
+                trace.mark("deliver")
+                tracer?.onFinished(trace, ctx)
+            }
+            QueryContext.recycle(ctx)
+        }
+    }
+}
+
+/**
+ * Requête en cours de traitement : message, offsets de la question parsés une fois,
+ * client, routage et état nécessaire à la réponse.
+ *
+ * Réutilisée via un pool : obtain() à la lecture du paquet, recycle() une fois la réponse
+ * écrite ou la requête abandonnée. Le propriétaire est le thread qui la tient hors de la
+ * table des requêtes en vol ; une fois publiée dans cette table, seul celui qui l'en retire
+ * y touche encore.
+ *
+ * Une requête UDP lue sur le TUN est copiée dans un tampon de longueur exacte pris dans un
+ * pool par longueur et rendu au recyclage : pas d'allocation par paquet en régime établi.
+ * Un transport qui lit le message après la publication (appel bloquant en tâche de fond)
+ * appelle detachQuery() : le tableau n'est alors plus rendu au pool.
+ */
+class QueryContext private constructor() {
+
+    companion object {
+        const val SOURCE_UPSTREAM = 0
+        const val SOURCE_CACHE = 1
+        const val SOURCE_LOCAL = 2
+        private const val POOL_SIZE = 128
+        private val EMPTY = ByteArray(0)
+
+        private val pool = arrayOfNulls<QueryContext>(POOL_SIZE)
+        private var pooled = 0
+
+        // Tampons de requêtes par longueur exacte (sous le verrou de `buffers`)
+        private const val MAX_POOLED_QUERY = 512
+        private const val BUFFERS_PER_LENGTH = 4
+        private val buffers = arrayOfNulls<ByteArray>((MAX_POOLED_QUERY + 1) * BUFFERS_PER_LENGTH)
+        private val bufferCounts = IntArray(MAX_POOLED_QUERY + 1)
+
+        private fun takeBuffer(length: Int): ByteArray {
+            if (length <= MAX_POOLED_QUERY) synchronized(buffers) {
+                val n = bufferCounts[length]
+                if (n > 0) {
+                    val slot = length * BUFFERS_PER_LENGTH + n - 1
+                    val b = buffers[slot]!!
+                    buffers[slot] = null
+                    bufferCounts[length] = n - 1
+                    return b
+                }
+            }
+            return ByteArray(length)
+        }
+
+        private fun giveBuffer(b: ByteArray) {
+            val length = b.size
+            if (length > MAX_POOLED_QUERY) return
+            synchronized(buffers) {
+                val n = bufferCounts[length]
+                if (n == BUFFERS_PER_LENGTH) return
+                val base = length * BUFFERS_PER_LENGTH
+                // Déjà rendu : un même tableau partagé par deux contextes serait corrompu
+                for (i in base until base + n) if (buffers[i] === b) return
+                buffers[base + n] = b
+                bufferCounts[length] = n + 1
+            }
+        }
+
+        fun obtain(): QueryContext {
+            synchronized(pool) {
+                if (pooled > 0) {
+                    val ctx = pool[--pooled]!!
+                    pool[pooled] = null
+                    // Remis à zéro aussi ici : une écriture tardive d'un thread qui parcourait
+                    // encore les requêtes en vol ne survit pas à la réutilisation
+                    ctx.reset()
+                    return ctx
+                }
+            }
+            return QueryContext()
+        }
+
+        fun recycle(ctx: QueryContext) {
+            ctx.ownBuffer?.let { giveBuffer(it) }
+            ctx.reset()
+            synchronized(pool) { if (pooled < POOL_SIZE) pool[pooled++] = ctx }
+        }
+    }
+
+    // ── Client ──
+    val srcIp = ByteArray(4)
+    val dstIp = ByteArray(4)
+    var srcPort = 0
+    /** Requête reçue en DNS over TCP : la réponse repart sur la connexion */
+    var tcpReply: ((ByteArray) -> Unit)? = null
+    /** Application émettrice (Android 10+, politiques / QoS), valide si hasUid */
+    var uid = 0
+    var hasUid = false
+
+    // ── Message (offsets valides si questionEnd > 0) ──
+    var query: ByteArray = EMPTY; private set
+    /** Tampon du pool possédé par ce contexte, rendu au recyclage ; null si aucun */
+    private var ownBuffer: ByteArray? = null
+    var id = 0; private set
+    /** Fin du qname (premier octet de QTYPE) */
+    var qnameEnd = -1; private set
+    var qtype = 0; private set
+    var questionEnd = -1; private set
+    /** Taille UDP annoncée par le client (EDNS0), 512 sans OPT */
+    var clientUdpSize = DnsWire.CLASSIC_UDP_SIZE
+    /** Heure de réception (System.currentTimeMillis) */
+    var time = 0L
+    /** Échéance (System.currentTimeMillis) : SERVFAIL au-delà, le client est reparti (voir QueryDeadlines) */
+    var deadline = 0L
+
+    // ── Routage / envoi ──
+    var set: UpstreamSet? = null
+    var upstream = ""
+    var priority = QosScheduler.PRIORITY_NORMAL
+    /** Au-delà de la limite QoS en mode cache seul : REFUSED si le cache ne répond pas */
+    var cacheOnly = false
+    /** Upstream UDP classique : clé de chemin EdnsTuner et taille EDNS0 annoncée */
+    var pathKey: String? = null
+    var upstreamUdpSize = 0
+    var retried = false
+    /** Envoi à l'upstream (System.nanoTime) : latence mesurée pour DnsMetrics */
+    var sentNanos = 0L
+    /** Requête échantillonnée par QueryTracer, null sinon */
+    var trace: QueryTrace? = null
+
+    // ── Réponse ──
+    var answer: ByteArray? = null
+    var answerSource = SOURCE_UPSTREAM
+    /** qname d'origine (wire) si la requête a été réécrite, restauré dans la réponse */
+    var originalQname: ByteArray? = null
+    /** Option Client Subnet ajoutée par EcsPolicy, retirée de la réponse */
+    var ecsAdded = false
+    var chain: QueryChain? = null
+
+    /** Remplace le message (réception ou réécriture) et relit l'en-tête et la question */
+    fun setQuery(message: ByteArray) {
+        query = message
+        id = if (message.size >= 2) DnsWire.u16(message, 0) else 0
+        qnameEnd = -1; questionEnd = -1; qtype = 0
+        if (message.size < DnsWire.HEADER_SIZE || DnsWire.u16(message, 4) != 1) return
+        val end = DnsWire.skipName(message, DnsWire.HEADER_SIZE, message.size)
+        if (end < 0 || end + 4 > message.size) return
+        qnameEnd = end
+        qtype = DnsWire.u16(message, end)
+        questionEnd = end + 4
+    }
+
+    /** Requête lue dans un paquet : copiée dans un tampon du pool (voir la classe) */
+    fun setQuery(packet: ByteArray, offset: Int, length: Int) {
+        val b = takeBuffer(length)
+        System.arraycopy(packet, offset, b, 0, length)
+        ownBuffer = b
+        setQuery(b)
+    }
+
+    /** Le message courant sera lu au-delà du recyclage : son tableau n'est pas rendu au pool */
+    fun detachQuery() {
+        if (query === ownBuffer) ownBuffer = null
+    }
+
+    private fun reset() {
+        tcpReply = null; uid = 0; hasUid = false
+        query = EMPTY; ownBuffer = null; id = 0; qnameEnd = -1; qtype = 0; questionEnd = -1
+        clientUdpSize = DnsWire.CLASSIC_UDP_SIZE; time = 0; deadline = 0
+        set = null; upstream = ""; priority = QosScheduler.PRIORITY_NORMAL; cacheOnly = false
+        pathKey = null; upstreamUdpSize = 0; retried = false; sentNanos = 0; trace = null
+        answer = null; answerSource = SOURCE_UPSTREAM; originalQname = null; ecsAdded = false; chain = null
+    }
+}
@@ -0,0 +1,37 @@
+package net.appstorefr.perfectdnsmanager.service
+
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Échéance des requêtes clientes : au-delà, le client est reparti (relance ou serveur suivant)
+ *
+ * - Résolveur Android : délai de base de 5 s réparti entre les serveurs (nos deux IP virtuelles),
+ *   soit ~2,5 s avant de passer au suivant, doublé à chaque tour de relance
+ * - Première tentative : 90 % de ce délai, le SERVFAIL arrive avant que le client abandonne
+ * - Relance UDP d'une requête encore en vol (même client, même ID) : fusionnée avec elle, échéance repoussée
+ *   au double de l'intervalle observé (le client a doublé son délai), 5 s max
+ * - Clients TCP (après troncature) : pas de relance rapide, échéance longue fixe
+ * - Compteurs des échéances dépassées : avant l'envoi (file de la QoS) ou chez l'upstream
+ */
+class QueryDeadlines {
+
+    companion object {
+        private const val FIRST_TRY_MS = 2250L
+        private const val MAX_BUDGET_MS = 5000L
+    }
+
+    /** Requêtes expirées avant d'être envoyées */
+    val expiredQueued = AtomicLong()
+    /** Requêtes expirées en attente de l'upstream */
+    val expiredUpstream = AtomicLong()
+    /** Relances de clients fusionnées avec la requête déjà en vol */
+    val coalesced = AtomicLong()
+
+    /** Échéance (System.currentTimeMillis) d'une requête reçue à `time` */
+    fun deadlineFor(time: Long, tcp: Boolean): Long =
+        time + if (tcp) MAX_BUDGET_MS else FIRST_TRY_MS
+
+    /** Échéance d'une relance reçue à `time`, `intervalMs` après la tentative précédente */
+    fun retryDeadline(time: Long, intervalMs: Long): Long =
+        time + (intervalMs * 2).coerceIn(FIRST_TRY_MS, MAX_BUDGET_MS)
+}
@@ -0,0 +1,443 @@
+package net.appstorefr.perfectdnsmanager.service
+
+import android.content.Context
+import net.appstorefr.perfectdnsmanager.util.DnsWire
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.EOFException
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.util.Locale
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+import java.util.concurrent.locks.LockSupport
+
+/**
+ * Journal persistant des requêtes résolues par le VPN
+ *
+ * - Chemin des requêtes : un enregistrement de taille fixe copié dans un anneau préalloué,
+ *   sans verrou ni allocation (emplacement réservé par CAS, publié par son numéro de séquence) ;
+ *   anneau plein = enregistrement perdu et compté, jamais d'attente
+ * - Thread "QueryLog" : vide l'anneau par lots chaque seconde vers un fichier binaire compact,
+ *   nouveau fichier au-delà de MAX_FILE_BYTES, plus anciens supprimés au-delà de MAX_TOTAL_BYTES
+ * - Lecture (QueryLogReader) : directement sur les fichiers, depuis n'importe quel processus
+ *
+ * Format (filesDir/querylog/, entiers big-endian, version 1) :
+ *
+ * `ql-<t0>.bin` — t0 = heure (ms epoch, 13 chiffres) du premier enregistrement
+ * - En-tête, 16 octets : magic "PDQL" (4), version u8, 3 octets réservés, t0 i64
+ * - Puis une suite d'enregistrements, chacun préfixé par un tag u8 :
+ *   - TAG_UPSTREAM (1) : id u16, longueur u8, nom UTF-8 de l'upstream ; précède sa première
+ *     utilisation dans le fichier, ids numérotés à partir de 0 dans chaque fichier
+ *   - TAG_QUERY (2) : heure i64 (ms epoch), latence u32 (ms, réception → réponse), uid i32
+ *     (-1 inconnu), qtype u16, rcode u8, flags u8 (FLAG_*), id d'upstream u16 (0xFFFF aucun),
+ *     longueur u8 puis qname au format wire tel que demandé par le client (sans compression)
+ * - Un dernier enregistrement incomplet (écriture en cours) est ignoré à la lecture
+ *
+ * `ql-<t0>.idx` — index du fichier .bin de même nom, mêmes tags :
+ * - TAG_UPSTREAM : copie des définitions d'upstream du .bin
+ * - TAG_INDEX (3) : heure i64 puis offset i32 dans le .bin d'un enregistrement TAG_QUERY,
+ *   tous les INDEX_EVERY enregistrements : accès par date sans lire le fichier depuis le début
+ */
+class QueryLog internal constructor(private val dir: File) {
+
+    companion object {
+        private const val T = "QueryLog"
+        const val PREF_ENABLED = "query_log_enabled"
+        const val DIR_NAME = "querylog"
+
+        const val MAGIC = 0x5044514C // "PDQL"
+        const val VERSION = 1
+        const val HEADER_SIZE = 16
+        const val TAG_UPSTREAM = 1
+        const val TAG_QUERY = 2
+        const val TAG_INDEX = 3
+        const val FLAG_CACHED = 1
+        const val FLAG_LOCAL = 2
+        const val FLAG_TCP = 4
+        const val FLAG_REWRITTEN = 8
+        const val NO_UPSTREAM = 0xFFFF
+        const val UID_NONE = -1
+
+        const val MAX_FILE_BYTES = 1L shl 20
+        const val MAX_TOTAL_BYTES = 8L shl 20
+        const val INDEX_EVERY = 256
+
+        // Anneau : CAPACITY emplacements de SLOT_SIZE octets (qname wire : 255 octets max)
+        private const val CAPACITY = 2048
+        private const val MASK = (CAPACITY - 1).toLong()
+        private const val SLOT_SIZE = 276
+        private const val S_TIME = 0
+        private const val S_LATENCY = 8
+        private const val S_UID = 12
+        private const val S_QTYPE = 16
+        private const val S_RCODE = 18
+        private const val S_FLAGS = 19
+        private const val S_QNAME_LEN = 20
+        private const val S_QNAME = 21
+        private const val FLUSH_MS = 1000L
+
+        fun dir(context: Context) = File(context.filesDir, DIR_NAME)
+
+        fun isEnabled(context: Context): Boolean =
+            context.getSharedPreferences("prefs", Context.MODE_PRIVATE).getBoolean(PREF_ENABLED, false)
+
+        fun setEnabled(context: Context, enabled: Boolean) {
+            context.getSharedPreferences("prefs", Context.MODE_PRIVATE).edit().putBoolean(PREF_ENABLED, enabled).commit()
+        }
+
+        /** Journal configuré : `current` conservé s'il tourne déjà, arrêté si le journal est désactivé */
+        fun load(context: Context, current: QueryLog?): QueryLog? {
+            if (!isEnabled(context)) {
+                current?.close()
+                return null
+            }
+            return current ?: QueryLog(dir(context)).also { it.start() }
+        }
+
+        /** Supprime tous les fichiers du journal (le journal actif recommence un nouveau fichier) */
+        fun clear(context: Context) {
+            dir(context).listFiles()?.forEach { it.delete() }
+        }
+
+        fun fileName(t0: Long, ext: String) = String.format(Locale.ROOT, "ql-%013d.%s", t0, ext)
+    }
+
+    private val slots = ByteArray(CAPACITY * SLOT_SIZE)
+    private val slotUpstreams = arrayOfNulls<String>(CAPACITY)
+    /** Séquence publiée dans chaque emplacement (-1 : jamais écrit) */
+    private val published = AtomicLongArray(CAPACITY).apply { for (i in 0 until CAPACITY) set(i, -1) }
+    private val head = AtomicLong()
+    /** Prochaine séquence à écrire sur disque (thread d'écriture seul) */
+    @Volatile private var tail = 0L
+    /** Enregistrements perdus, anneau plein */
+    val dropped = AtomicLong()
+
+    @Volatile private var running = false
+    @Volatile private var writer: Thread? = null
+
+    // État du fichier courant (thread d'écriture seul)
+    private var current: File? = null
+    private var out: DataOutputStream? = null
+    private var index: DataOutputStream? = null
+    private var fileSize = 0L
+    private var sinceIndex = 0
+    private val upstreamIds = HashMap<String, Int>()
+
+    /** Démarre le thread d'écriture (load, tests unitaires) */
+    internal fun start() {
+        running = true
+        writer = Thread({ run() }, "QueryLog").apply {
+            isDaemon = true
+            priority = Thread.MIN_PRIORITY
+            start()
+        }
+    }
+
+    /** Arrête le thread d'écriture après un dernier vidage de l'anneau */
+    fun close() {
+        running = false
+        writer?.let { LockSupport.unpark(it) }
+        writer = null
+    }
+
+    /** Requête terminée, `response` telle qu'envoyée au client */
+    fun append(ctx: QueryContext, response: ByteArray) {
+        var seq: Long
+        do {
+            seq = head.get()
+            if (seq - tail >= CAPACITY) {
+                dropped.incrementAndGet()
+                return
+            }
+        } while (!head.compareAndSet(seq, seq + 1))
+
+        val i = (seq and MASK).toInt()
+        val o = i * SLOT_SIZE
+        val s = slots
+        putLong(s, o + S_TIME, System.currentTimeMillis())
+        putInt(s, o + S_LATENCY, (System.currentTimeMillis() - ctx.time).coerceIn(0, Int.MAX_VALUE.toLong()).toInt())
+        putInt(s, o + S_UID, if (ctx.hasUid) ctx.uid else UID_NONE)
+        s[o + S_QTYPE] = (ctx.qtype shr 8).toByte()
+        s[o + S_QTYPE + 1] = ctx.qtype.toByte()
+        s[o + S_RCODE] = DnsWire.rcode(response).coerceAtLeast(0).toByte()
+        var flags = 0
+        if (ctx.answerSource == QueryContext.SOURCE_CACHE) flags = flags or FLAG_CACHED
+        if (ctx.answerSource == QueryContext.SOURCE_LOCAL) flags = flags or FLAG_LOCAL
+        if (ctx.tcpReply != null) flags = flags or FLAG_TCP
+        // qname demandé par le client, pas celui de la règle de réécriture
+        val original = ctx.originalQname
+        val len = when {
+            original != null -> {
+                flags = flags or FLAG_REWRITTEN
+                original.size.coerceAtMost(255).also { System.arraycopy(original, 0, s, o + S_QNAME, it) }
+            }
+            ctx.qnameEnd > DnsWire.HEADER_SIZE -> (ctx.qnameEnd - DnsWire.HEADER_SIZE).coerceAtMost(255).also {
+                System.arraycopy(ctx.query, DnsWire.HEADER_SIZE, s, o + S_QNAME, it)
+            }
+            else -> 0
+        }
+        s[o + S_FLAGS] = flags.toByte()
+        s[o + S_QNAME_LEN] = len.toByte()
+        slotUpstreams[i] = ctx.upstream.ifEmpty { null }
+        published.set(i, seq)
+        // Rafale : vidage sans attendre la fin de la seconde
+        if (seq - tail == (CAPACITY / 2).toLong()) writer?.let { LockSupport.unpark(it) }
+    }
+
+    private fun run() {
+        while (running) {
+            drain()
+            LockSupport.parkNanos(FLUSH_MS * 1_000_000)
+        }
+        drain()
+        closeFile()
+    }
+
+    /** Écrit les enregistrements publiés, dans l'ordre des séquences */
+    private fun drain() {
+        var seq = tail
+        if (published.get((seq and MASK).toInt()) != seq) return
+        // Journal effacé depuis l'interface : nouveau fichier
+        if (out != null && current?.exists() == false) closeFile()
+        try {
+            while (true) {
+                val i = (seq and MASK).toInt()
+                if (published.get(i) != seq) break
+                write(i)
+                slotUpstreams[i] = null
+                seq++
+                tail = seq
+            }
+            out?.flush()
+            index?.flush()
+        } catch (e: Exception) {
+            DiagLog.w(T) { "write: ${e.message}" }
+            closeFile()
+            // Enregistrements de l'anneau abandonnés : on repart sur un nouveau fichier au prochain lot
+            tail = head.get().coerceAtLeast(seq)
+        }
+    }
+
+    private fun write(i: Int) {
+        val o = i * SLOT_SIZE
+        val s = slots
+        val time = getLong(s, o + S_TIME)
+        if (out == null || fileSize >= MAX_FILE_BYTES) openFile(time)
+        val out = out!!
+        val upstream = slotUpstreams[i]
+        val upstreamId = if (upstream == null) NO_UPSTREAM else upstreamIds[upstream] ?: defineUpstream(upstream)
+        if (sinceIndex == 0) {
+            index!!.apply { writeByte(TAG_INDEX); writeLong(time); writeInt(fileSize.toInt()) }
+        }
+        sinceIndex = (sinceIndex + 1) % INDEX_EVERY
+        val len = s[o + S_QNAME_LEN].toInt() and 0xFF
+        out.writeByte(TAG_QUERY)
+        out.write(s, o + S_TIME, S_QNAME_LEN - S_TIME)
+        out.writeShort(upstreamId)
+        out.writeByte(len)
+        out.write(s, o + S_QNAME, len)
+        fileSize += 1 + (S_QNAME_LEN - S_TIME) + 2 + 1 + len
+    }
+
+    private fun defineUpstream(upstream: String): Int {
+        val id = upstreamIds.size
+        if (id >= NO_UPSTREAM) return NO_UPSTREAM
+        upstreamIds[upstream] = id
+        val bytes = upstream.toByteArray(Charsets.UTF_8).let { if (it.size > 255) it.copyOf(255) else it }
+        for (stream in arrayOf(out!!, index!!)) {
+            stream.writeByte(TAG_UPSTREAM)
+            stream.writeShort(id)
+            stream.writeByte(bytes.size)
+            stream.write(bytes)
+        }
+        fileSize += 4 + bytes.size
+        return id
+    }
+
+    private fun openFile(t0: Long) {
+        closeFile()
+        dir.mkdirs()
+        val bin = File(dir, fileName(t0, "bin"))
+        current = bin
+        out = DataOutputStream(BufferedOutputStream(FileOutputStream(bin), 16 * 1024)).apply {
+            writeInt(MAGIC)
+            writeByte(VERSION)
+            write(ByteArray(3))
+            writeLong(t0)
+        }
+        index = DataOutputStream(BufferedOutputStream(FileOutputStream(File(dir, fileName(t0, "idx")))))
+        fileSize = HEADER_SIZE.toLong()
+        sinceIndex = 0
+        upstreamIds.clear()
+        enforceCap(bin)
+    }
+
+    /** Supprime les plus anciens fichiers tant que le journal dépasse MAX_TOTAL_BYTES */
+    private fun enforceCap(current: File) {
+        val bins = dir.listFiles { f -> f.name.endsWith(".bin") }?.sortedBy { it.name } ?: return
+        var total = bins.sumOf { it.length() + File(dir, it.name.replace(".bin", ".idx")).length() }
+        for (f in bins) {
+            if (total <= MAX_TOTAL_BYTES || f == current) break
+            val idx = File(dir, f.name.replace(".bin", ".idx"))
+            total -= f.length() + idx.length()
+            f.delete(); idx.delete()
+        }
+    }
+
+    private fun closeFile() {
+        try { out?.close() } catch (_: Exception) {}
+        try { index?.close() } catch (_: Exception) {}
+        out = null; index = null
+    }
+
+    private fun putLong(b: ByteArray, o: Int, v: Long) {
+        for (k in 0 until 8) b[o + k] = (v shr (56 - 8 * k)).toByte()
+    }
+
+    private fun putInt(b: ByteArray, o: Int, v: Int) {
+        for (k in 0 until 4) b[o + k] = (v shr (24 - 8 * k)).toByte()
+    }
+
+    private fun getLong(b: ByteArray, o: Int): Long {
+        var v = 0L
+        for (k in 0 until 8) v = (v shl 8) or (b[o + k].toLong() and 0xFF)
+        return v
+    }
+}
+
+/** Lecture du journal des requêtes (voir QueryLog pour le format) */
+class QueryLogReader(private val dir: File) {
+
+    private companion object {
+        /**
+         * Les heures sont relevées par plusieurs threads : l'ordre du fichier peut s'en écarter de
+         * quelques ms, les recherches par date partent d'un peu plus tôt
+         */
+        const val REORDER_SLACK_MS = 1000L
+    }
+
+    class Entry(
+        val time: Long, val latencyMs: Long, val uid: Int, val qtype: Int, val rcode: Int, val flags: Int,
+        val upstream: String?, val qname: String
+    ) {
+        val cached get() = flags and QueryLog.FLAG_CACHED != 0
+        val local get() = flags and QueryLog.FLAG_LOCAL != 0
+    }
+
+    /** Critères d'affichage ; `uid` null = toutes les applications */
+    class Filter(
+        val since: Long = 0,
+        val text: String? = null,
+        val uid: Int? = null,
+        val errorsOnly: Boolean = false,
+        val cachedOnly: Boolean = false
+    ) {
+        fun matches(e: Entry): Boolean =
+            e.time >= since &&
+                (uid == null || e.uid == uid) &&
+                (!errorsOnly || e.rcode != 0) &&
+                (!cachedOnly || e.cached) &&
+                (text.isNullOrEmpty() || e.qname.contains(text, ignoreCase = true))
+    }
+
+    /**
+     * Page d'entrées correspondant à `filter`, antérieures à `before`, de la plus récente à la
+     * plus ancienne ; la page suivante se demande avec `before` = heure de la dernière entrée
+     */
+    fun page(filter: Filter, before: Long, limit: Int): List<Entry> {
+        val bins = dir.listFiles { f -> f.name.endsWith(".bin") }?.sortedByDescending { it.name } ?: return emptyList()
+        val out = ArrayList<Entry>(limit)
+        for ((n, bin) in bins.withIndex()) {
+            val t0 = startOf(bin) ?: continue
+            if (t0 >= before) continue
+            // Fichier entièrement antérieur à la période : les suivants aussi
+            val next = if (n > 0) startOf(bins[n - 1]) else null
+            if (next != null && next < filter.since - REORDER_SLACK_MS) break
+            val window = ArrayDeque<Entry>(limit)
+            scan(bin, filter.since) { e ->
+                if (e.time < before && filter.matches(e)) {
+                    if (window.size == limit) window.removeFirst()
+                    window.addLast(e)
+                }
+            }
+            while (window.isNotEmpty() && out.size < limit) out.add(window.removeLast())
+            if (out.size == limit || t0 < filter.since - REORDER_SLACK_MS) break
+        }
+        return out
+    }
+
+    private fun startOf(bin: File): Long? = bin.name.removePrefix("ql-").removeSuffix(".bin").toLongOrNull()
+
+    /** Parcourt `bin` à partir du dernier point d'index antérieur à `since` */
+    private fun scan(bin: File, since: Long, block: (Entry) -> Unit) {
+        val upstreams = HashMap<Int, String>()
+        var offset = QueryLog.HEADER_SIZE.toLong()
+        readIndex(File(bin.parentFile, bin.name.replace(".bin", ".idx")), upstreams) { time, pos ->
+            if (time < since - REORDER_SLACK_MS) offset = pos
+        }
+        try {
+            DataInputStream(BufferedInputStream(FileInputStream(bin), 32 * 1024)).use { input ->
+                if (input.readInt() != QueryLog.MAGIC || input.readUnsignedByte() != QueryLog.VERSION) return
+                input.skipFully(offset - 5)
+                val name = ByteArray(255)
+                while (true) {
+                    when (input.readUnsignedByte()) {
+                        QueryLog.TAG_UPSTREAM -> {
+                            val id = input.readUnsignedShort()
+                            val bytes = ByteArray(input.readUnsignedByte()).also { input.readFully(it) }
+                            upstreams[id] = String(bytes, Charsets.UTF_8)
+                        }
+                        QueryLog.TAG_QUERY -> {
+                            val time = input.readLong()
+                            val latency = input.readInt().toLong() and 0xFFFFFFFFL
+                            val uid = input.readInt()
+                            val qtype = input.readUnsignedShort()
+                            val rcode = input.readUnsignedByte()
+                            val flags = input.readUnsignedByte()
+                            val upstreamId = input.readUnsignedShort()
+                            val len = input.readUnsignedByte()
+                            input.readFully(name, 0, len)
+                            block(Entry(time, latency, uid, qtype, rcode, flags,
+                                if (upstreamId == QueryLog.NO_UPSTREAM) null else upstreams[upstreamId],
+                                if (len == 0) "" else DnsWire.nameToString(name, 0, len)))
+                        }
+                        else -> return
+                    }
+                }
+            }
+        } catch (_: EOFException) {
+        } catch (_: Exception) {}
+    }
+
+    private fun readIndex(idx: File, upstreams: MutableMap<Int, String>, onIndex: (Long, Long) -> Unit) {
+        if (!idx.exists()) return
+        try {
+            DataInputStream(BufferedInputStream(FileInputStream(idx))).use { input ->
+                while (true) {
+                    when (input.readUnsignedByte()) {
+                        QueryLog.TAG_UPSTREAM -> {
+                            val id = input.readUnsignedShort()
+                            val bytes = ByteArray(input.readUnsignedByte()).also { input.readFully(it) }
+                            upstreams[id] = String(bytes, Charsets.UTF_8)
+                        }
+                        QueryLog.TAG_INDEX -> onIndex(input.readLong(), input.readInt().toLong())
+                        else -> return
+                    }
+                }
+            }
+        } catch (_: Exception) {}
+    }
+
+    private fun DataInputStream.skipFully(n: Long) {
+        var left = n
+        while (left > 0) {
+            val skipped = skip(left)
+            if (skipped <= 0) throw EOFException()
+            left -= skipped
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package net.appstorefr.perfectdnsmanager.service
+
+import net.appstorefr.perfectdnsmanager.data.DnsRewriteRule
+import net.appstorefr.perfectdnsmanager.util.DnsWire
+
+/**
+ * Réécriture DNS (règles utilisateur) : le qname est remplacé avant l'envoi et le qname
+ * d'origine restauré dans la réponse, car le client attend le domaine qu'il a demandé.
+ * Règles encodées une fois en wire format : comparaison sur les octets de la requête,
+ * sans décoder le nom.
+ */
+class RewriteStage(rules: List<DnsRewriteRule>) : QueryStage, ResponseStage {
+
+    override val traceLabel get() = "rewrite"
+
+    private class Rule(val from: ByteArray, val to: ByteArray, val label: String)
+
+    private val rules = rules.mapNotNull { r ->
+        val from = encode(r.fromDomain.lowercase()) ?: return@mapNotNull null
+        val to = encode(r.toDomain) ?: return@mapNotNull null
+        Rule(from, to, r.fromDomain)
+    }.toTypedArray()
+
+    override fun onQuery(ctx: QueryContext): QueryChain.Verdict {
+        if (rules.isEmpty() || ctx.qnameEnd < 0) return QueryChain.Verdict.CONTINUE
+        val q = ctx.query
+        val start = DnsWire.HEADER_SIZE
+        for (rule in rules) {
+            if (rule.from.size != ctx.qnameEnd - start || !sameName(q, start, rule.from)) continue
+            // Chemin de chaque requête : trace de debug seulement (retirée des builds release)
+            DiagLog.d(T) { "DNS Rewrite: '${rule.label}' → règle trouvée" }
+            ctx.originalQname = q.copyOfRange(start, ctx.qnameEnd)
+            val out = ByteArray(start + rule.to.size + q.size - ctx.qnameEnd)
+            System.arraycopy(q, 0, out, 0, start)
+            System.arraycopy(rule.to, 0, out, start, rule.to.size)
+            System.arraycopy(q, ctx.qnameEnd, out, start + rule.to.size, q.size - ctx.qnameEnd)
+            ctx.setQuery(out)
+            break
+        }
+        return QueryChain.Verdict.CONTINUE
+    }
+
+    override fun onResponse(ctx: QueryContext, response: ByteArray): ByteArray {
+        val original = ctx.originalQname ?: return response
+        val start = DnsWire.HEADER_SIZE
+        val end = DnsWire.skipName(response, start, response.size)
+        if (end < 0) return response
+        val out = ByteArray(start + original.size + response.size - end)
+        System.arraycopy(response, 0, out, 0, start)
+        System.arraycopy(original, 0, out, start, original.size)
+        System.arraycopy(response, end, out, start + original.size, response.size - end)
+        return out
+    }
+
+    /** Nom wire de la requête égal à `name` (minuscules), sans tenir compte de la casse ASCII */
+    private fun sameName(q: ByteArray, offset: Int, name: ByteArray): Boolean {
+        for (i in name.indices) {
+            var b = q[offset + i]
+            if (b in 'A'.code.toByte()..'Z'.code.toByte()) b = (b + 32).toByte()
+            if (b != name[i]) return false
+        }
+        return true
+    }
+
+    private companion object {
+        const val T = "DnsVPN"
+
+        /** Nom de domaine → wire format (labels + 0x00), null si invalide */
+        fun encode(domain: String): ByteArray? {
+            val labels = domain.trimEnd('.').split('.').filter { it.isNotEmpty() }.map { it.toByteArray() }
+            if (labels.isEmpty() || labels.any { it.size > 63 }) return null
+            val out = ByteArray(labels.sumOf { it.size + 1 } + 1)
+            var pos = 0
+            for (label in labels) {
+                out[pos++] = label.size.toByte()
+                System.arraycopy(label, 0, out, pos, label.size)
+                pos += label.size
+            }
+            return out
+        }
+    }
+}
+
+/**
+ * Cache des réponses upstream (voir DnsAnswerCache), dans la chaîne seulement en mode QoS
+ * cache seul : garde les réponses des upstreams, et ne sert que les requêtes au-delà de la
+ * limite de leur application (défaut de cache → REFUSED). Les autres partent à l'upstream.
+ */
+class CacheStage(private val cache: DnsAnswerCache) : QueryStage, ResponseStage {
+
+    override val traceLabel get() = "cache"
+
+    override fun onQuery(ctx: QueryContext): QueryChain.Verdict {
+        if (!ctx.cacheOnly) return QueryChain.Verdict.CONTINUE
+        val hit = cache.get(ctx.upstream, ctx.query)
+        if (hit != null) {
+            ctx.answer = hit
+            ctx.answerSource = QueryContext.SOURCE_CACHE
+        } else {
+            ctx.answer = DnsWire.errorResponse(ctx.query, DnsWire.RCODE_REFUSED)
+            ctx.answerSource = QueryContext.SOURCE_LOCAL
+        }
+        return QueryChain.Verdict.ANSWERED
+    }
+
+    override fun onResponse(ctx: QueryContext, response: ByteArray): ByteArray {
+        if (ctx.answerSource == QueryContext.SOURCE_UPSTREAM && ctx.upstream.isNotEmpty()) {
+            cache.put(ctx.upstream, ctx.query, response)
+        }
+        return response
+    }
+}
+
+/** Client Subnet selon l'upstream choisi (voir EcsPolicy), option ajoutée retirée de la réponse */
+object EcsStage : QueryStage, ResponseStage {
+
+    override val traceLabel get() = "ecs"
+
+    override fun onQuery(ctx: QueryContext): QueryChain.Verdict {
+        ctx.set?.ecs?.apply(ctx)
+        return QueryChain.Verdict.CONTINUE
+    }
+
+    override fun onResponse(ctx: QueryContext, response: ByteArray): ByteArray =
+        if (ctx.ecsAdded) DnsWire.withEcs(response, null) ?: response else response
+}
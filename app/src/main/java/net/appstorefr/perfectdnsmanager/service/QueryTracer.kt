@@ -0,0 +1,208 @@
+package net.appstorefr.perfectdnsmanager.service
+
+import android.content.Context
+import android.os.Build
+import android.os.Trace
+import net.appstorefr.perfectdnsmanager.util.DnsWire
+import okhttp3.Call
+import okhttp3.EventListener
+import okhttp3.Handshake
+import org.json.JSONArray
+import org.json.JSONObject
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.net.Proxy
+import java.util.PriorityQueue
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Trace d'une requête échantillonnée : durée de chaque étape, dans l'ordre où elles se
+ * succèdent (lecture TUN, UID, étapes de la chaîne, file, upstream, réponse, écriture).
+ *
+ * - mark() clôt l'étape courante : la somme des étapes couvre toute la durée de la requête
+ * - nested() détaille une étape sans s'y ajouter (résolution bootstrap, handshake TLS/QUIC)
+ * - Remplie par plusieurs threads l'un après l'autre (TUN, file QoS, transport) : synchronisée
+ */
+class QueryTrace internal constructor(private val startNanos: Long, private val cookie: Int) {
+
+    private companion object {
+        const val MAX_SPANS = 24
+        const val SECTION_QUERY = "dns query"
+        const val SECTION_UPSTREAM = "dns upstream"
+    }
+
+    private val labels = arrayOfNulls<String>(MAX_SPANS)
+    private val nanos = LongArray(MAX_SPANS)
+    private val nestedFlags = BooleanArray(MAX_SPANS)
+    private var count = 0
+    private var lastMark = startNanos
+    @Volatile private var awaitingUpstream = false
+
+    init { beginAsync(SECTION_QUERY) }
+
+    /** Fin de l'étape `label`, commencée à la marque précédente */
+    @Synchronized
+    fun mark(label: String) {
+        val now = System.nanoTime()
+        add(label, now - lastMark, false)
+        lastMark = now
+    }
+
+    /** Détail d'une étape en cours (non compté dans le total) */
+    @Synchronized
+    fun nested(label: String, durationNanos: Long) = add(label, durationNanos, true)
+
+    /** Attente de l'upstream : section asynchrone (Perfetto), close par upstreamDone() */
+    fun upstreamSent() {
+        awaitingUpstream = true
+        beginAsync(SECTION_UPSTREAM)
+    }
+
+    /** Réponse de l'upstream (ou échéance) : fin de l'étape "upstream" */
+    fun upstreamDone() {
+        if (awaitingUpstream) {
+            awaitingUpstream = false
+            endAsync(SECTION_UPSTREAM)
+        }
+        mark("upstream")
+    }
+
+    private fun add(label: String, duration: Long, nested: Boolean) {
+        if (count == MAX_SPANS) return
+        labels[count] = label
+        nanos[count] = duration
+        nestedFlags[count] = nested
+        count++
+    }
+
+    private fun beginAsync(section: String) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) Trace.beginAsyncSection(section, cookie)
+    }
+
+    private fun endAsync(section: String) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) Trace.endAsyncSection(section, cookie)
+    }
+
+    /** Requête terminée : trace figée pour QueryTracer */
+    @Synchronized
+    internal fun finish(ctx: QueryContext): QueryTracer.Record {
+        endAsync(SECTION_QUERY)
+        val qname = ctx.originalQname?.let { DnsWire.nameToString(it, 0) }
+            ?: if (ctx.qnameEnd > 0) DnsWire.nameToString(ctx.query, DnsWire.HEADER_SIZE, ctx.qnameEnd) else ""
+        return QueryTracer.Record(
+            System.currentTimeMillis(), qname, ctx.qtype, ctx.upstream, ctx.answerSource,
+            System.nanoTime() - startNanos,
+            Array(count) { labels[it]!! }, nanos.copyOf(count), nestedFlags.copyOf(count)
+        )
+    }
+}
+
+/** Connexion d'une requête DoH tracée (appel OkHttp) : résolution bootstrap, TCP, handshake TLS */
+internal class DohTraceListener(private val trace: QueryTrace) : EventListener() {
+    private var dnsAt = 0L
+    private var connectAt = 0L
+    private var tlsAt = 0L
+
+    override fun dnsStart(call: Call, domainName: String) {
+        dnsAt = System.nanoTime()
+    }
+
+    override fun dnsEnd(call: Call, domainName: String, inetAddressList: List<InetAddress>) {
+        trace.nested("bootstrap", System.nanoTime() - dnsAt)
+    }
+
+    override fun connectStart(call: Call, inetSocketAddress: InetSocketAddress, proxy: Proxy) {
+        connectAt = System.nanoTime()
+    }
+
+    override fun secureConnectStart(call: Call) {
+        tlsAt = System.nanoTime()
+        trace.nested("tcp connect", tlsAt - connectAt)
+    }
+
+    override fun secureConnectEnd(call: Call, handshake: Handshake?) {
+        trace.nested("tls handshake", System.nanoTime() - tlsAt)
+    }
+}
+
+/**
+ * Traçage échantillonné des requêtes du VPN, pour comprendre une résolution lente
+ *
+ * - Une requête sur `sampleEvery` reçoit une QueryTrace (aucun coût pour les autres)
+ * - Sections android.os.Trace : une par étape de la chaîne, asynchrones pour la requête
+ *   entière et l'attente de l'upstream (visibles dans systrace / Perfetto)
+ * - Les MAX_RECORDS requêtes tracées les plus lentes sont gardées avec leur détail
+ */
+class QueryTracer(val sampleEvery: Int) {
+
+    companion object {
+        const val PREF_SAMPLE = "query_trace_sample"
+        /** Choix proposés : désactivé, 1 requête sur 100, 1 sur 10, toutes */
+        val SAMPLE_CHOICES = intArrayOf(0, 100, 10, 1)
+        const val MAX_RECORDS = 50
+
+        /** Traçage configuré, null si désactivé */
+        fun load(context: Context, current: QueryTracer?): QueryTracer? {
+            val every = context.getSharedPreferences("prefs", Context.MODE_PRIVATE).getInt(PREF_SAMPLE, 0)
+            if (every <= 0) return null
+            // Même réglage : on garde les requêtes lentes déjà relevées
+            return if (current?.sampleEvery == every) current else QueryTracer(every)
+        }
+
+        fun save(context: Context, every: Int) {
+            context.getSharedPreferences("prefs", Context.MODE_PRIVATE).edit().putInt(PREF_SAMPLE, every).commit()
+        }
+    }
+
+    /** Requête tracée terminée ; `spans*` dans l'ordre des étapes */
+    class Record(
+        val time: Long, val qname: String, val qtype: Int, val upstream: String, val source: Int,
+        val totalNanos: Long, val spanLabels: Array<String>, val spanNanos: LongArray, val spanNested: BooleanArray
+    ) {
+        fun toJson(): JSONObject {
+            val spans = JSONArray()
+            for (i in spanLabels.indices) {
+                spans.put(JSONObject()
+                    .put("label", spanLabels[i])
+                    .put("us", spanNanos[i] / 1000)
+                    .put("nested", spanNested[i]))
+            }
+            return JSONObject()
+                .put("time", time)
+                .put("qname", qname)
+                .put("qtype", qtype)
+                .put("upstream", upstream)
+                .put("source", source)
+                .put("totalUs", totalNanos / 1000)
+                .put("spans", spans)
+        }
+    }
+
+    private val counter = AtomicInteger()
+    private val cookies = AtomicInteger()
+    // Tas des plus lentes : la plus rapide en tête, évincée quand une plus lente arrive
+    private val slowest = PriorityQueue<Record>(MAX_RECORDS + 1, compareBy { it.totalNanos })
+
+    /** Trace pour une requête reçue à `startNanos`, ou null si elle n'est pas échantillonnée */
+    fun sample(startNanos: Long): QueryTrace? {
+        if (counter.incrementAndGet() % sampleEvery != 0) return null
+        return QueryTrace(startNanos, cookies.incrementAndGet())
+    }
+
+    fun onFinished(trace: QueryTrace, ctx: QueryContext) {
+        val record = trace.finish(ctx)
+        synchronized(slowest) {
+            if (slowest.size < MAX_RECORDS) slowest.add(record)
+            else if (record.totalNanos > slowest.peek()!!.totalNanos) {
+                slowest.poll()
+                slowest.add(record)
+            }
+        }
+    }
+
+    /** Requêtes les plus lentes, de la plus lente à la moins lente */
+    fun slowestJson(): JSONArray {
+        val records = synchronized(slowest) { slowest.toList() }
+        return JSONArray().apply { records.sortedByDescending { it.totalNanos }.forEach { put(it.toJson()) } }
+    }
+}
@@ -0,0 +1,201 @@
+package net.appstorefr.perfectdnsmanager.service
+
+import android.content.Context
+import android.os.SystemClock
+import android.system.Os
+import android.system.OsConstants
+import org.json.JSONArray
+import org.json.JSONObject
+import java.io.File
+
+/**
+ * Profilage des threads du processus du VPN : temps CPU et réveils, minute par minute
+ *
+ * - Relevé toutes les SAMPLE_MS de /proc/self/task/<tid>/stat (utime + stime) et
+ *   /proc/self/task/<tid>/status (changements de contexte) ; un relevé par minute, le
+ *   profileur ne réveille lui-même le système qu'une fois par minute
+ * - Réveil = changement de contexte volontaire (le thread s'est endormi puis a été réveillé :
+ *   attente réseau, délai de scrutation, file vide) ; préemption = changement involontaire
+ * - Threads regroupés par nom, chiffres remplacés par # ("Thread-12" → "Thread-#") : un
+ *   thread par requête apparaît comme un seul groupe et son nombre de créations par minute
+ * - Threads terminés entre deux relevés : leur CPU est la différence entre le total du processus
+ *   (/proc/self/stat) et celui des threads vivants ; leurs réveils ne sont pas visibles
+ * - HISTORY dernières minutes gardées, ramenées à des taux par minute pour l'écran de diagnostic
+ */
+class ThreadProfiler private constructor() {
+
+    companion object {
+        private const val T = "ThreadProfiler"
+        const val PREF_ENABLED = "thread_profiler_enabled"
+        const val SAMPLE_MS = 60_000L
+        const val HISTORY = 60
+        private const val MAX_GROUPS = 64
+        private const val OTHER = "…"
+        private val DIGITS = Regex("\\d+")
+
+        fun isEnabled(context: Context): Boolean =
+            context.getSharedPreferences("prefs", Context.MODE_PRIVATE).getBoolean(PREF_ENABLED, false)
+
+        fun setEnabled(context: Context, enabled: Boolean) {
+            context.getSharedPreferences("prefs", Context.MODE_PRIVATE).edit().putBoolean(PREF_ENABLED, enabled).commit()
+        }
+
+        /** Profileur configuré : `current` conservé s'il tourne déjà, null si désactivé */
+        fun load(context: Context, current: ThreadProfiler?): ThreadProfiler? {
+            if (!isEnabled(context)) return null
+            return current ?: ThreadProfiler()
+        }
+
+        fun groupName(comm: String): String = DIGITS.replace(comm, "#")
+    }
+
+    /** Groupe de threads de même nom ; tableaux circulaires indexés comme `elapsed` */
+    private class Group(val name: String) {
+        val cpuMs = LongArray(HISTORY)
+        val wakeups = LongArray(HISTORY)
+        val preemptions = LongArray(HISTORY)
+        var threads = 0
+        var totalCpuMs = 0L
+        var totalWakeups = 0L
+    }
+
+    /** Dernières valeurs cumulées d'un thread vivant */
+    private class Task(val cpuTicks: Long, val voluntary: Long, val involuntary: Long)
+
+    private val msPerTick = 1000.0 / (try { Os.sysconf(OsConstants._SC_CLK_TCK) } catch (_: Exception) { 100L }).coerceAtLeast(1)
+    private val tasks = HashMap<Int, Task>()
+    private val groups = LinkedHashMap<String, Group>()
+    /** Durée réelle de chaque intervalle (ms) */
+    private val elapsed = LongArray(HISTORY)
+    private val exitedCpuMs = LongArray(HISTORY)
+    private val created = LongArray(HISTORY)
+    /** Intervalles relevés depuis le démarrage */
+    private var intervals = 0
+    private var lastAt = 0L
+    private var lastProcessTicks = -1L
+
+    /** Relevé de tous les threads du processus (appelé toutes les SAMPLE_MS) */
+    @Synchronized
+    fun sample() {
+        val now = SystemClock.elapsedRealtime()
+        val processTicks = readCpuTicks(File("/proc/self/stat")) ?: return
+        val baseline = lastProcessTicks < 0
+        val slot = intervals % HISTORY
+        if (!baseline) {
+            for (g in groups.values) { g.cpuMs[slot] = 0; g.wakeups[slot] = 0; g.preemptions[slot] = 0 }
+        }
+        for (g in groups.values) g.threads = 0
+
+        val dirs = File("/proc/self/task").listFiles() ?: return
+        val seen = HashSet<Int>(dirs.size * 2)
+        var liveTicks = 0L
+        var newThreads = 0L
+        for (dir in dirs) {
+            val tid = dir.name.toIntOrNull() ?: continue
+            val stat = try { File(dir, "stat").readText() } catch (_: Exception) { continue }
+            val comm = stat.substring(stat.indexOf('(') + 1, stat.lastIndexOf(')').coerceAtLeast(0))
+            val ticks = cpuTicks(stat) ?: continue
+            var voluntary = 0L
+            var involuntary = 0L
+            try {
+                File(dir, "status").forEachLine { line ->
+                    when {
+                        line.startsWith("voluntary_ctxt_switches:") -> voluntary = line.substringAfter(':').trim().toLongOrNull() ?: 0
+                        line.startsWith("nonvoluntary_ctxt_switches:") -> involuntary = line.substringAfter(':').trim().toLongOrNull() ?: 0
+                    }
+                }
+            } catch (_: Exception) {}
+            seen.add(tid)
+            val group = group(groupName(comm))
+            group.threads++
+            // Thread apparu depuis le dernier relevé (ou tid réutilisé) : tout son cumul est récent
+            val prev = tasks[tid]?.takeIf { it.cpuTicks <= ticks && it.voluntary <= voluntary }
+            if (prev == null && !baseline) newThreads++
+            if (!baseline) {
+                val dTicks = ticks - (prev?.cpuTicks ?: 0)
+                val dWake = voluntary - (prev?.voluntary ?: 0)
+                val dPreempt = involuntary - (prev?.involuntary ?: 0)
+                val cpu = (dTicks * msPerTick).toLong()
+                group.cpuMs[slot] += cpu
+                group.wakeups[slot] += dWake
+                group.preemptions[slot] += dPreempt
+                group.totalCpuMs += cpu
+                group.totalWakeups += dWake
+                liveTicks += dTicks
+            }
+            tasks[tid] = Task(ticks, voluntary, involuntary)
+        }
+        tasks.keys.retainAll(seen)
+
+        if (!baseline) {
+            val exitedTicks = (processTicks - lastProcessTicks - liveTicks).coerceAtLeast(0)
+            exitedCpuMs[slot] = (exitedTicks * msPerTick).toLong()
+            created[slot] = newThreads
+            elapsed[slot] = now - lastAt
+            intervals++
+        }
+        lastProcessTicks = processTicks
+        lastAt = now
+    }
+
+    private fun group(name: String): Group = groups[name]
+        ?: (if (groups.size < MAX_GROUPS) Group(name) else groups[OTHER] ?: Group(OTHER)).also { groups[it.name] = it }
+
+    /** utime + stime (ticks) d'un fichier stat, le nom entre parenthèses pouvant contenir des espaces */
+    private fun cpuTicks(stat: String): Long? {
+        val fields = stat.substring(stat.lastIndexOf(')') + 2).split(' ')
+        // Champs 14 et 15 de proc(5), comptés à partir de l'état (champ 3)
+        if (fields.size < 13) return null
+        val utime = fields[11].toLongOrNull() ?: return null
+        val stime = fields[12].toLongOrNull() ?: return null
+        return utime + stime
+    }
+
+    private fun readCpuTicks(file: File): Long? = try {
+        cpuTicks(file.readText())
+    } catch (e: Exception) {
+        DiagLog.w(T) { "read ${file.path}: ${e.message}" }
+        null
+    }
+
+    /**
+     * Historique pour l'écran de diagnostic, de la plus ancienne à la plus récente minute ;
+     * valeurs ramenées à des taux par minute
+     */
+    @Synchronized
+    fun snapshot(): JSONObject {
+        val n = minOf(intervals, HISTORY)
+        val first = intervals - n
+        fun perMinute(values: LongArray) = JSONArray().apply {
+            for (i in first until intervals) {
+                val slot = i % HISTORY
+                put(if (elapsed[slot] > 0) values[slot] * 60_000 / elapsed[slot] else 0)
+            }
+        }
+        val totalCpu = LongArray(HISTORY)
+        val totalWake = LongArray(HISTORY)
+        for (i in 0 until HISTORY) {
+            totalCpu[i] = exitedCpuMs[i]
+            for (g in groups.values) { totalCpu[i] += g.cpuMs[i]; totalWake[i] += g.wakeups[i] }
+        }
+        val list = JSONArray()
+        for (g in groups.values.sortedByDescending { it.totalCpuMs }) {
+            list.put(JSONObject()
+                .put("name", g.name)
+                .put("threads", g.threads)
+                .put("totalCpuMs", g.totalCpuMs)
+                .put("totalWakeups", g.totalWakeups)
+                .put("cpuMs", perMinute(g.cpuMs))
+                .put("wakeups", perMinute(g.wakeups))
+                .put("preemptions", perMinute(g.preemptions)))
+        }
+        return JSONObject()
+            .put("intervalMs", SAMPLE_MS)
+            .put("threads", tasks.size)
+            .put("cpuMs", perMinute(totalCpu))
+            .put("wakeups", perMinute(totalWake))
+            .put("exitedCpuMs", perMinute(exitedCpuMs))
+            .put("created", perMinute(created))
+            .put("groups", list)
+    }
+}
@@ -0,0 +1,130 @@
+package net.appstorefr.perfectdnsmanager.service
+
+import android.content.Context
+import okhttp3.ConnectionSpec
+import okhttp3.OkHttpClient
+import java.io.File
+import java.net.Socket
+import java.security.KeyStore
+import javax.net.ssl.HttpsURLConnection
+import javax.net.ssl.SSLContext
+import javax.net.ssl.SSLPeerUnverifiedException
+import javax.net.ssl.SSLSocket
+import javax.net.ssl.SSLSocketFactory
+import javax.net.ssl.TrustManagerFactory
+import javax.net.ssl.X509TrustManager
+
+/**
+ * Cache de sessions TLS partagé par tous les upstreams DNS chiffrés (DoH, DoT, DoQ)
+ *
+ * - Un seul SSLContext par processus pour le VPN et les testeurs : les sessions TLS 1.2/1.3
+ *   négociées par l'un sont reprises par l'autre ; elles survivent à stopVpn(), une
+ *   reconnexion coûte 1 RTT au lieu de 2-3
+ * - Cache de sessions client borné (SESSION_CACHE_SIZE, SESSION_TIMEOUT_S)
+ * - Tickets de session QUIC (kwik) persistés par endpoint pour la reprise DoQ, dans un
+ *   répertoire propre à chaque processus (quic_tickets/<processus>/) : le processus :vpn
+ *   est le seul à écrire les siens, l'interface garde ceux de ses testeurs
+ *
+ * TCP Fast Open n'est pas exposé par l'API socket Java/Android : non géré.
+ */
+object TlsSessionCache {
+
+    private const val T = "TlsSessionCache"
+    private const val TICKET_DIR = "quic_tickets"
+    private const val SESSION_CACHE_SIZE = 64
+    private const val SESSION_TIMEOUT_S = 24 * 3600
+    private const val HANDSHAKE_TIMEOUT_MS = 5000
+
+    @Volatile private var ticketDir: File? = null
+
+    /** Active la persistance des tickets QUIC. Sans appel à init(), ils ne sont pas gardés. */
+    fun init(context: Context) {
+        if (ticketDir != null) return
+        synchronized(this) {
+            if (ticketDir != null) return
+            // "net.appstorefr.perfectdnsmanager:vpn" → "vpn", processus principal → "app"
+            val process = try {
+                File("/proc/self/cmdline").readText().trimEnd('\u0000').substringAfter(':', "app")
+            } catch (_: Exception) { "app" }
+            ticketDir = File(File(context.applicationContext.filesDir, TICKET_DIR), process).also { it.mkdirs() }
+        }
+    }
+
+    /** Factory TLS partagée (validation de certificat par le trust store système) */
+    val sslSocketFactory: SSLSocketFactory by lazy {
+        val context = SSLContext.getInstance("TLS")
+        context.init(null, arrayOf(trustManager), null)
+        context.clientSessionContext.apply {
+            sessionCacheSize = SESSION_CACHE_SIZE
+            sessionTimeout = SESSION_TIMEOUT_S
+        }
+        context.socketFactory
+    }
+
+    val trustManager: X509TrustManager by lazy {
+        val tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm())
+        tmf.init(null as KeyStore?)
+        tmf.trustManagers.filterIsInstance<X509TrustManager>().first()
+    }
+
+    /**
+     * Branche le cache partagé sur un client OkHttp (DoH).
+     * MODERN_TLS propose TLS 1.3 en priorité, TLS 1.2 en repli sur les anciens Android.
+     */
+    fun applyTo(builder: OkHttpClient.Builder): OkHttpClient.Builder =
+        builder.sslSocketFactory(sslSocketFactory, trustManager)
+            .connectionSpecs(listOf(ConnectionSpec.MODERN_TLS))
+
+    /**
+     * Monte TLS (DoT) sur une socket TCP déjà connectée.
+     * Le host sert de clé de reprise de session, de SNI et de vérification du certificat.
+     */
+    fun wrapSocket(socket: Socket, host: String, port: Int): SSLSocket {
+        val ssl = sslSocketFactory.createSocket(socket, host, port, true) as SSLSocket
+        val timeout = socket.soTimeout
+        ssl.soTimeout = HANDSHAKE_TIMEOUT_MS
+        try {
+            ssl.startHandshake()
+        } catch (e: Exception) {
+            try { ssl.close() } catch (_: Exception) {}
+            throw e
+        }
+        ssl.soTimeout = timeout
+        if (!HttpsURLConnection.getDefaultHostnameVerifier().verify(host, ssl.session)) {
+            try { ssl.close() } catch (_: Exception) {}
+            throw SSLPeerUnverifiedException("Certificate does not match $host")
+        }
+        return ssl
+    }
+
+    // ── Tickets de session QUIC (DoQ) ─────────────────────────────────────
+
+    /** Fichier du ticket d'un endpoint ("host:port"), nom réduit aux caractères sûrs */
+    private fun ticketFile(endpoint: String): File? =
+        ticketDir?.let { File(it, endpoint.replace(Regex("[^A-Za-z0-9._-]"), "_")) }
+
+    fun quicTicket(endpoint: String): ByteArray? {
+        val file = ticketFile(endpoint) ?: return null
+        return try { if (file.exists()) file.readBytes() else null } catch (e: Exception) {
+            DiagLog.w(T) { "read ticket $endpoint: ${e.message}" }
+            null
+        }
+    }
+
+    /** Écriture dans un fichier temporaire puis renommage : jamais de ticket tronqué à la lecture */
+    fun saveQuicTicket(endpoint: String, ticket: ByteArray) {
+        val file = ticketFile(endpoint) ?: return
+        try {
+            val tmp = File(file.parentFile, file.name + ".tmp")
+            tmp.writeBytes(ticket)
+            if (!tmp.renameTo(file)) tmp.delete()
+        } catch (e: Exception) {
+            DiagLog.w(T) { "save ticket $endpoint: ${e.message}" }
+        }
+    }
+
+    /** Ticket refusé ou illisible : on l'oublie pour ne pas le rejouer */
+    fun forgetQuicTicket(endpoint: String) {
+        ticketFile(endpoint)?.delete()
+    }
+}
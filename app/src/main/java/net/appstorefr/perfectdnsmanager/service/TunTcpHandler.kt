@@ -0,0 +1,390 @@
+package net.appstorefr.perfectdnsmanager.service
+
+import net.appstorefr.perfectdnsmanager.util.DnsWire
+import java.io.ByteArrayOutputStream
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+import kotlin.random.Random
+
+/**
+ * DNS over TCP (RFC 7766) sur l'interface TUN
+ *
+ * - Termine les connexions TCP vers le port 53 des IP DNS virtuelles : pas une pile TCP
+ *   complète, juste ce qu'il faut pour des échanges requête / réponse courts
+ * - Messages préfixés par leur longueur (2 octets), plusieurs requêtes par connexion
+ *   (pipelining), chaque réponse renvoyée dès qu'elle arrive de l'upstream
+ * - Segment hors séquence : ignoré et ré-acquitté, le client retransmet
+ * - Réponses découpées en segments ≤ MSS et gardées jusqu'à leur acquittement : retransmises
+ *   (avec le FIN) après RTO_MS, délai doublé à chaque essai, RST après MAX_RETRANSMITS
+ *   (écriture TUN perdue sous pression mémoire, client qui a écarté un segment)
+ * - Connexions inactives oubliées après 30s (un segment tardif reçoit un RST)
+ * - Un seul minuteur (retransmissions, connexions inactives), armé seulement tant qu'il
+ *   reste des connexions ; rien ne tourne hors des échanges TCP
+ */
+class TunTcpHandler(
+    mtu: Int,
+    private val scheduler: ScheduledExecutorService,
+    private val writeTun: (ByteArray) -> Unit,
+    /** Requête DNS reçue ; reply() renvoie la réponse sur la connexion */
+    private val onQuery: (query: ByteArray, clientIp: ByteArray, serverIp: ByteArray, clientPort: Int,
+                          reply: (ByteArray) -> Unit) -> Unit
+) {
+
+    companion object {
+        private const val FIN = 0x01
+        private const val SYN = 0x02
+        private const val RST = 0x04
+        private const val PSH = 0x08
+        private const val ACK = 0x10
+        private const val WINDOW = 0xFFFF
+        private const val IDLE_MS = 30_000L
+        private const val RTO_MS = 300L
+        private const val MAX_RETRANSMITS = 5
+        private const val MAX_MESSAGE = 0xFFFF
+        private const val SEQ_MASK = 0xFFFFFFFFL
+
+        /**
+         * Clé de flux sans allocation de chaîne : IP serveur (32 bits), 16 bits bas de l'IP
+         * client (le client est dans le /24 du TUN), port client. Port serveur toujours 53.
+         */
+        private fun flowKey(serverIp: Long, clientIp: Long, clientPort: Int): Long =
+            (serverIp shl 32) or ((clientIp and 0xFFFF) shl 16) or clientPort.toLong()
+    }
+
+    private enum class State { SYN_RECEIVED, ESTABLISHED, LAST_ACK }
+
+    private class Conn(val key: Long, val clientIp: ByteArray, val serverIp: ByteArray, val clientPort: Int, val serverPort: Int) {
+        var state = State.SYN_RECEIVED
+        var rcvNext = 0L
+        var sndNext = 0L
+        var mss = 536
+        val buffer = ByteArrayOutputStream()
+        var inFlight = 0
+        var finReceived = false
+        var lastActivity = System.currentTimeMillis()
+        /** Octets envoyés non acquittés, à partir de sndUna */
+        var sndUna = 0L
+        var unacked = ByteArray(0)
+        var unackedLen = 0
+        var finSent = false
+        var retransmits = 0
+        /** Échéance de retransmission, 0 si rien à acquitter */
+        var rtoAt = 0L
+
+        fun awaitingAck() = unackedLen > 0 || (finSent && sndUna != sndNext)
+    }
+
+    private val ourMss = mtu - 40
+    private val connections = ConcurrentHashMap<Long, Conn>()
+    // Minuteur unique (sous le verrou de l'instance)
+    private var timer: ScheduledFuture<*>? = null
+    private var timerAt = 0L
+
+    /**
+     * Paquet IPv4/TCP lu sur le TUN, à destination d'une IP DNS virtuelle. Lu pendant l'appel
+     * seulement : `buf` peut être le tampon de lecture du TUN.
+     */
+    fun onPacket(buf: ByteArray, length: Int, ihl: Int) {
+        val totalLen = minOf(length, u16(buf, 2))
+        if (totalLen < ihl + 20) return
+        val clientPort = u16(buf, ihl)
+        val serverPort = u16(buf, ihl + 2)
+        val seq = u32(buf, ihl + 4)
+        val ack = u32(buf, ihl + 8)
+        val dataOff = ihl + ((buf[ihl + 12].toInt() and 0xF0) shr 4) * 4
+        val flags = buf[ihl + 13].toInt() and 0x3F
+        if (dataOff > totalLen) return
+        val payloadLen = totalLen - dataOff
+
+        if (flags and RST != 0) {
+            if (serverPort == 53) connections.remove(flowKey(u32(buf, 16), u32(buf, 12), clientPort))
+            return
+        }
+        // Seul le port 53 est servi : tout le reste est refusé
+        if (serverPort != 53) {
+            if (flags and ACK != 0) sendRst(buf.copyOfRange(16, 20), buf.copyOfRange(12, 16), serverPort, clientPort, ack, 0)
+            else sendRst(buf.copyOfRange(16, 20), buf.copyOfRange(12, 16), serverPort, clientPort, 0,
+                (seq + payloadLen + (if (flags and SYN != 0) 1 else 0)) and SEQ_MASK)
+            return
+        }
+        val key = flowKey(u32(buf, 16), u32(buf, 12), clientPort)
+
+        if (flags and SYN != 0 && flags and ACK == 0) {
+            val conn = connections.getOrPut(key) {
+                Conn(key, buf.copyOfRange(12, 16), buf.copyOfRange(16, 20), clientPort, serverPort).apply {
+                    rcvNext = (seq + 1) and SEQ_MASK
+                    sndNext = Random.nextLong(SEQ_MASK)
+                    mss = minOf(ourMss, parseMss(buf, ihl + 20, dataOff) ?: 536)
+                }
+            }
+            synchronized(conn) {
+                // SYN retransmis : même SYN-ACK
+                if (conn.state == State.SYN_RECEIVED) {
+                    send(conn, conn.sndNext, SYN or ACK, mssOption(ourMss), null, 0, 0)
+                }
+            }
+            arm(conn.lastActivity + IDLE_MS)
+            return
+        }
+
+        val conn = connections[key]
+        if (conn == null) {
+            val serverIp = buf.copyOfRange(16, 20)
+            val clientIp = buf.copyOfRange(12, 16)
+            if (flags and ACK != 0) sendRst(serverIp, clientIp, serverPort, clientPort, ack, 0)
+            else sendRst(serverIp, clientIp, serverPort, clientPort, 0, (seq + payloadLen) and SEQ_MASK)
+            return
+        }
+
+        val messages = ArrayList<ByteArray>()
+        synchronized(conn) {
+            conn.lastActivity = System.currentTimeMillis()
+            if (conn.state == State.SYN_RECEIVED && flags and ACK != 0) {
+                conn.sndNext = (conn.sndNext + 1) and SEQ_MASK
+                conn.sndUna = conn.sndNext
+                conn.state = State.ESTABLISHED
+            }
+            if (flags and ACK != 0) onAck(conn, ack)
+            if (conn.state == State.LAST_ACK) {
+                if (!conn.awaitingAck()) connections.remove(key, conn)
+                return
+            }
+
+            if (payloadLen > 0 && seq == conn.rcvNext) {
+                conn.buffer.write(buf, dataOff, payloadLen)
+                conn.rcvNext = (conn.rcvNext + payloadLen) and SEQ_MASK
+                extractMessages(conn, messages)
+            }
+            conn.inFlight += messages.size
+
+            val fin = flags and FIN != 0 && !conn.finReceived &&
+                ((seq + payloadLen) and SEQ_MASK) == conn.rcvNext
+            if (fin) {
+                conn.rcvNext = (conn.rcvNext + 1) and SEQ_MASK
+                conn.finReceived = true
+            }
+            if (fin && conn.inFlight == 0) sendFin(conn)
+            // Segment attendu, dupliqué ou hors séquence : l'ACK indique ce qui manque
+            else if (payloadLen > 0 || fin) send(conn, conn.sndNext, ACK, null, null, 0, 0)
+        }
+        messages.forEach { dispatch(conn, it) }
+    }
+
+    /** Oublie toutes les connexions (arrêt du VPN) */
+    fun clear() {
+        connections.clear()
+        synchronized(this) {
+            timer?.cancel(false)
+            timer = null
+        }
+    }
+
+    /** Libère les octets acquittés par le client */
+    private fun onAck(conn: Conn, ack: Long) {
+        val acked = (ack - conn.sndUna) and SEQ_MASK
+        val outstanding = (conn.sndNext - conn.sndUna) and SEQ_MASK
+        if (acked == 0L || acked > outstanding) return
+        val data = minOf(acked, conn.unackedLen.toLong()).toInt()
+        System.arraycopy(conn.unacked, data, conn.unacked, 0, conn.unackedLen - data)
+        conn.unackedLen -= data
+        conn.sndUna = ack
+        conn.retransmits = 0
+        conn.rtoAt = if (conn.awaitingAck()) System.currentTimeMillis() + RTO_MS else 0L
+    }
+
+    private fun extractMessages(conn: Conn, out: MutableList<ByteArray>) {
+        val data = conn.buffer.toByteArray()
+        var pos = 0
+        while (data.size - pos >= 2) {
+            val len = u16(data, pos)
+            if (data.size - pos - 2 < len) break
+            if (len >= 12) out.add(data.copyOfRange(pos + 2, pos + 2 + len))
+            pos += 2 + len
+        }
+        if (pos > 0) {
+            conn.buffer.reset()
+            conn.buffer.write(data, pos, data.size - pos)
+        }
+    }
+
+    private fun dispatch(conn: Conn, query: ByteArray) {
+        var replied = false
+        onQuery(query, conn.clientIp, conn.serverIp, conn.clientPort) { resp ->
+            synchronized(conn) {
+                if (replied) return@synchronized
+                replied = true
+                sendMessage(conn, resp)
+            }
+        }
+    }
+
+    private fun sendMessage(conn: Conn, resp: ByteArray) {
+        if (connections[conn.key] !== conn) return
+        val msg = if (resp.size > MAX_MESSAGE) DnsWire.truncate(resp) else resp
+        val framed = ByteArray(2 + msg.size)
+        framed[0] = (msg.size shr 8).toByte(); framed[1] = msg.size.toByte()
+        System.arraycopy(msg, 0, framed, 2, msg.size)
+        if (conn.unackedLen + framed.size > conn.unacked.size) {
+            conn.unacked = conn.unacked.copyOf(maxOf(conn.unackedLen + framed.size, conn.unacked.size * 2))
+        }
+        System.arraycopy(framed, 0, conn.unacked, conn.unackedLen, framed.size)
+        conn.unackedLen += framed.size
+        sendSegments(conn, framed, 0, framed.size, conn.sndNext)
+        conn.sndNext = (conn.sndNext + framed.size) and SEQ_MASK
+        conn.inFlight--
+        if (conn.finReceived && conn.inFlight <= 0) sendFin(conn)
+        startRto(conn)
+    }
+
+    private fun sendSegments(conn: Conn, data: ByteArray, from: Int, to: Int, firstSeq: Long) {
+        var off = from
+        while (off < to) {
+            val n = minOf(conn.mss, to - off)
+            send(conn, (firstSeq + off - from) and SEQ_MASK, PSH or ACK, null, data, off, n)
+            off += n
+        }
+    }
+
+    private fun sendFin(conn: Conn) {
+        send(conn, conn.sndNext, FIN or ACK, null, null, 0, 0)
+        conn.sndNext = (conn.sndNext + 1) and SEQ_MASK
+        conn.finSent = true
+        conn.state = State.LAST_ACK
+        startRto(conn)
+    }
+
+    private fun startRto(conn: Conn) {
+        if (conn.rtoAt == 0L) conn.rtoAt = System.currentTimeMillis() + RTO_MS
+        arm(conn.rtoAt)
+    }
+
+    /** Renvoie tout ce qui n'est pas acquitté (données puis FIN) ; false si la connexion est abandonnée */
+    private fun retransmit(conn: Conn, now: Long): Boolean {
+        if (conn.retransmits >= MAX_RETRANSMITS) {
+            connections.remove(conn.key, conn)
+            sendRst(conn.serverIp, conn.clientIp, conn.serverPort, conn.clientPort, conn.sndNext, 0)
+            return false
+        }
+        conn.retransmits++
+        sendSegments(conn, conn.unacked, 0, conn.unackedLen, conn.sndUna)
+        if (conn.finSent) send(conn, (conn.sndNext - 1) and SEQ_MASK, FIN or ACK, null, null, 0, 0)
+        conn.rtoAt = now + (RTO_MS shl conn.retransmits)
+        return true
+    }
+
+    // ── Minuteur ─────────────────────
+
+    /** Minuteur au plus tard à `at` (ms epoch) */
+    private fun arm(at: Long) = synchronized(this) {
+        if (timer != null && timerAt <= at) return@synchronized
+        timer?.cancel(false)
+        timerAt = at
+        timer = try {
+            scheduler.schedule({ tick() }, maxOf(0L, at - System.currentTimeMillis()), TimeUnit.MILLISECONDS)
+        } catch (_: Exception) { null } // exécuteur arrêté (arrêt du VPN)
+    }
+
+    /** Retransmissions échues, connexions inactives ; réarmé pour la prochaine échéance s'il reste des connexions */
+    private fun tick() {
+        synchronized(this) { timer = null }
+        val now = System.currentTimeMillis()
+        var next = Long.MAX_VALUE
+        for (conn in connections.values) {
+            synchronized(conn) {
+                if (now - conn.lastActivity > IDLE_MS) {
+                    connections.remove(conn.key, conn)
+                    return@synchronized
+                }
+                if (conn.rtoAt != 0L && now >= conn.rtoAt && !retransmit(conn, now)) return@synchronized
+                next = minOf(next, conn.lastActivity + IDLE_MS)
+                if (conn.rtoAt != 0L) next = minOf(next, conn.rtoAt)
+            }
+        }
+        if (next != Long.MAX_VALUE) arm(next)
+    }
+
+    private fun send(conn: Conn, seq: Long, flags: Int, options: ByteArray?, data: ByteArray?, off: Int, len: Int) {
+        writeTun(buildSegment(conn.serverIp, conn.clientIp, conn.serverPort, conn.clientPort,
+            seq, conn.rcvNext, flags, options, data, off, len))
+    }
+
+    private fun sendRst(src: ByteArray, dst: ByteArray, sp: Int, dp: Int, seq: Long, ack: Long) {
+        val flags = if (ack != 0L) RST or ACK else RST
+        writeTun(buildSegment(src, dst, sp, dp, seq, ack, flags, null, null, 0, 0))
+    }
+
+    // ── Format wire IPv4 / TCP ────────────────────────────────────────────
+
+    private fun parseMss(buf: ByteArray, start: Int, end: Int): Int? {
+        var pos = start
+        while (pos < end) {
+            when (buf[pos].toInt() and 0xFF) {
+                0 -> return null
+                1 -> pos++
+                else -> {
+                    if (pos + 1 >= end) return null
+                    val len = buf[pos + 1].toInt() and 0xFF
+                    if (len < 2) return null
+                    if (buf[pos].toInt() == 2 && len == 4 && pos + 4 <= end) return u16(buf, pos + 2)
+                    pos += len
+                }
+            }
+        }
+        return null
+    }
+
+    private fun mssOption(mss: Int) = byteArrayOf(2, 4, (mss shr 8).toByte(), mss.toByte())
+
+    private fun buildSegment(
+        src: ByteArray, dst: ByteArray, sp: Int, dp: Int, seq: Long, ack: Long, flags: Int,
+        options: ByteArray?, data: ByteArray?, off: Int, len: Int
+    ): ByteArray {
+        val tcpHeader = 20 + (options?.size ?: 0)
+        val totalLen = 20 + tcpHeader + len
+        val p = ByteArray(totalLen)
+        // IPv4 header
+        p[0] = 0x45.toByte()
+        p[2] = (totalLen shr 8).toByte(); p[3] = totalLen.toByte()
+        p[6] = 0x40.toByte() // Don't fragment
+        p[8] = 64 // TTL
+        p[9] = 6 // TCP
+        System.arraycopy(src, 0, p, 12, 4)
+        System.arraycopy(dst, 0, p, 16, 4)
+        val ipChk = checksum(p, 0, 20, 0L)
+        p[10] = (ipChk shr 8).toByte(); p[11] = ipChk.toByte()
+        // TCP header
+        p[20] = (sp shr 8).toByte(); p[21] = sp.toByte()
+        p[22] = (dp shr 8).toByte(); p[23] = dp.toByte()
+        putU32(p, 24, seq)
+        putU32(p, 28, ack)
+        p[32] = ((tcpHeader / 4) shl 4).toByte()
+        p[33] = flags.toByte()
+        p[34] = (WINDOW shr 8).toByte(); p[35] = WINDOW.toByte()
+        options?.let { System.arraycopy(it, 0, p, 40, it.size) }
+        if (data != null && len > 0) System.arraycopy(data, off, p, 20 + tcpHeader, len)
+        // Pseudo-header : src, dst, protocole, longueur TCP
+        var pseudo = 6L + (tcpHeader + len)
+        for (i in 12 until 20 step 2) pseudo += u16(p, i)
+        val tcpChk = checksum(p, 20, tcpHeader + len, pseudo)
+        p[36] = (tcpChk shr 8).toByte(); p[37] = tcpChk.toByte()
+        return p
+    }
+
+    private fun checksum(p: ByteArray, off: Int, len: Int, initial: Long): Int {
+        var s = initial
+        var i = off
+        while (i + 1 < off + len) { s += u16(p, i); i += 2 }
+        if (i < off + len) s += (p[i].toInt() and 0xFF) shl 8
+        while (s shr 16 != 0L) s = (s and 0xFFFF) + (s shr 16)
+        return s.toInt().inv() and 0xFFFF
+    }
+
+    private fun u16(b: ByteArray, off: Int) = ((b[off].toInt() and 0xFF) shl 8) or (b[off + 1].toInt() and 0xFF)
+    private fun u32(b: ByteArray, off: Int) = (u16(b, off).toLong() shl 16) or u16(b, off + 2).toLong()
+    private fun putU32(b: ByteArray, off: Int, v: Long) {
+        b[off] = (v shr 24).toByte(); b[off + 1] = (v shr 16).toByte()
+        b[off + 2] = (v shr 8).toByte(); b[off + 3] = v.toByte()
+    }
+}
@@ -0,0 +1,172 @@
+package net.appstorefr.perfectdnsmanager.service
+
+import android.os.SystemClock
+import net.appstorefr.perfectdnsmanager.data.UpstreamGroup
+import net.appstorefr.perfectdnsmanager.util.DnsWire
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.random.Random
+
+/**
+ * Répartition des requêtes entre les endpoints d'un groupe (voir UpstreamGroup)
+ *
+ * - Stratégies : tourniquet, plus faible EWMA de latence, aléatoire pondéré, hachage cohérent du qname
+ * - Santé commune à toutes les stratégies : 3 échecs consécutifs → endpoint écarté 30 s
+ *   (sauf si tous le sont) ; liste des endpoints sains recalculée seulement quand un endpoint
+ *   tombe ou revient, pas à chaque requête
+ * - EWMA : endpoint jamais mesuré essayé en premier, 5% des requêtes explorent au hasard
+ *   pour suivre un endpoint qui redevient rapide
+ */
+class UpstreamBalancer(group: UpstreamGroup) {
+
+    companion object {
+        private const val EWMA_ALPHA = 0.3
+        private const val FAILURE_RTT_MS = 2000.0
+        private const val MAX_FAILURES = 3
+        private const val DOWN_MS = 30_000L
+        private const val EXPLORE_PERCENT = 5
+        private const val VNODES_PER_WEIGHT = 64
+    }
+
+    private class State(val upstream: String, val weight: Int) {
+        @Volatile var ewma = -1.0
+        @Volatile var failures = 0
+        @Volatile var downUntil = 0L
+    }
+
+    private val strategy = group.strategy ?: UpstreamGroup.Strategy.EWMA
+    private val states = group.endpoints.orEmpty().mapNotNull { e -> e.upstream?.let { State(it, e.weight) } }
+    private val byUpstream = states.associateBy { it.upstream }
+    private val next = AtomicInteger()
+    /**
+     * Endpoints sains (tous si aucun ne l'est) et somme de leurs poids, valables jusqu'à healthyUntil
+     * (retour du premier écarté). Tableau parcouru par index : aucun itérateur alloué par requête.
+     */
+    private class Healthy(val states: Array<State>, val totalWeight: Int)
+    @Volatile private var healthy = healthyOf(states)
+    @Volatile private var healthyUntil = Long.MAX_VALUE
+
+    // Anneau du hachage cohérent : positions triées → index d'endpoint
+    private val ringHashes: LongArray
+    private val ringOwners: IntArray
+
+    init {
+        val ring = ArrayList<Pair<Long, Int>>()
+        if (strategy == UpstreamGroup.Strategy.CONSISTENT_HASH) {
+            states.forEachIndexed { i, s ->
+                for (v in 0 until s.weight * VNODES_PER_WEIGHT) ring.add(hash("${s.upstream}#$v".toByteArray()) to i)
+            }
+            ring.sortBy { it.first }
+        }
+        ringHashes = LongArray(ring.size) { ring[it].first }
+        ringOwners = IntArray(ring.size) { ring[it].second }
+    }
+
+    /** Tous les endpoints (préchauffage, keepalive) */
+    val upstreams: List<String> = states.map { it.upstream }
+
+    /** Endpoint pour cette requête */
+    fun pick(query: ByteArray): String {
+        val now = SystemClock.elapsedRealtime()
+        if (now >= healthyUntil) refreshHealthy(now)
+        val healthy = healthy
+        val candidates = healthy.states
+        return when (strategy) {
+            UpstreamGroup.Strategy.ROUND_ROBIN ->
+                candidates[Math.floorMod(next.getAndIncrement(), candidates.size)]
+            UpstreamGroup.Strategy.WEIGHTED_RANDOM -> weighted(healthy)
+            UpstreamGroup.Strategy.CONSISTENT_HASH -> byHash(query, now) ?: candidates[0]
+            UpstreamGroup.Strategy.EWMA -> byEwma(candidates)
+        }.upstream
+    }
+
+    /** Réponse de l'endpoint reçue après `rttMs` */
+    fun onAnswer(upstream: String, rttMs: Long) {
+        val s = byUpstream[upstream] ?: return
+        s.failures = 0
+        if (s.downUntil != 0L) {
+            s.downUntil = 0
+            refreshHealthy(SystemClock.elapsedRealtime())
+        }
+        record(s, rttMs.toDouble())
+    }
+
+    /** Pas de réponse de l'endpoint (erreur ou timeout) */
+    fun onFailure(upstream: String) {
+        val s = byUpstream[upstream] ?: return
+        record(s, FAILURE_RTT_MS)
+        if (++s.failures >= MAX_FAILURES) {
+            val now = SystemClock.elapsedRealtime()
+            s.downUntil = now + DOWN_MS
+            s.failures = 0
+            refreshHealthy(now)
+        }
+    }
+
+    @Synchronized
+    private fun refreshHealthy(now: Long) {
+        var until = Long.MAX_VALUE
+        for (s in states) if (s.downUntil > now) until = minOf(until, s.downUntil)
+        healthy = healthyOf(states.filter { it.downUntil <= now }.ifEmpty { states })
+        healthyUntil = until
+    }
+
+    private fun healthyOf(list: List<State>) = Healthy(list.toTypedArray(), list.sumOf { it.weight })
+
+    private fun record(s: State, sample: Double) {
+        s.ewma = if (s.ewma < 0) sample else s.ewma + EWMA_ALPHA * (sample - s.ewma)
+    }
+
+    private fun weighted(healthy: Healthy): State {
+        val candidates = healthy.states
+        var r = Random.nextInt(healthy.totalWeight)
+        for (i in candidates.indices) {
+            r -= candidates[i].weight
+            if (r < 0) return candidates[i]
+        }
+        return candidates[candidates.size - 1]
+    }
+
+    /** Endpoint jamais mesuré d'abord, sinon exploration au hasard ou plus faible EWMA */
+    private fun byEwma(candidates: Array<State>): State {
+        for (i in candidates.indices) if (candidates[i].ewma < 0) return candidates[i]
+        if (Random.nextInt(100) < EXPLORE_PERCENT) return candidates[Random.nextInt(candidates.size)]
+        var best = candidates[0]
+        for (i in 1 until candidates.size) if (candidates[i].ewma < best.ewma) best = candidates[i]
+        return best
+    }
+
+    /** Premier endpoint sain après le hash du qname sur l'anneau */
+    private fun byHash(query: ByteArray, now: Long): State? {
+        if (ringHashes.isEmpty()) return null
+        val end = DnsWire.skipName(query, DnsWire.HEADER_SIZE, query.size)
+        if (end < 0) return null
+        val h = hash(query, DnsWire.HEADER_SIZE, end, lowercase = true)
+        var idx = java.util.Arrays.binarySearch(ringHashes, h).let { if (it < 0) -it - 1 else it }
+        repeat(ringHashes.size) {
+            if (idx >= ringHashes.size) idx = 0
+            val s = states[ringOwners[idx]]
+            if (s.downUntil <= now) return s
+            idx++
+        }
+        return null
+    }
+
+    /**
+     * FNV-1a 64 bits + finaliseur de MurmurHash3 (meilleure dispersion sur l'anneau)
+     * @param lowercase qname : majuscules ASCII repliées à la volée, sans copie
+     */
+    private fun hash(data: ByteArray, from: Int = 0, to: Int = data.size, lowercase: Boolean = false): Long {
+        var h = -0x340d631b7bdddcdbL
+        for (i in from until to) {
+            var b = data[i].toInt() and 0xFF
+            if (lowercase && b in 'A'.code..'Z'.code) b += 32
+            h = h xor b.toLong()
+            h *= 0x100000001b3L
+        }
+        h = h xor (h ushr 33)
+        h *= -0xae502812aa7333L
+        h = h xor (h ushr 33)
+        h *= -0x3b314601e57a13adL
+        return h xor (h ushr 33)
+    }
+}
@@ -0,0 +1,43 @@
+package net.appstorefr.perfectdnsmanager.service
+
+/**
+ * Jeu d'upstreams actif du VPN : IP DNS virtuelle → upstream réel, politiques par application,
+ * et clients des transports (une connexion par endpoint, partagée par les politiques).
+ * Remplacé d'un bloc au changement de profil (hot-swap), l'ancien jeu est fermé
+ * une fois ses requêtes en vol terminées.
+ */
+class UpstreamSet(
+    val routes: Map<String, String>,
+    val doq: DoQClient,
+    val dnsCrypt: DnsCryptClient,
+    val dot: DotClient,
+    val apps: AppUpstreamRouter?,
+    /** Groupes d'endpoints : upstream de la route → répartiteur */
+    val balancers: Map<String, UpstreamBalancer>,
+    /** Client Subnet par upstream, null si tout est transmis tel quel */
+    val ecs: EcsPolicy?
+) {
+    // Routes indexées par adresse brute : recherche par paquet sans construire de String
+    private val routeAddresses = routes.keys.map { addr -> addr.split('.').map { it.toInt().toByte() }.toByteArray() }.toTypedArray()
+    private val routeUpstreams = routes.values.toTypedArray()
+
+    /** Tous les upstreams servis : profil (et endpoints de ses groupes), puis politiques par application */
+    val all: List<String> get() =
+        (routes.values.flatMap { balancers[it]?.upstreams ?: listOf(it) } + apps?.upstreams.orEmpty()).distinct()
+
+    /** Upstream de l'IP DNS virtuelle `packet[offset..offset+4]`, null si ce n'en est pas une */
+    fun routeFor(packet: ByteArray, offset: Int): String? {
+        for (i in routeAddresses.indices) {
+            val a = routeAddresses[i]
+            if (packet[offset] == a[0] && packet[offset + 1] == a[1] && packet[offset + 2] == a[2] && packet[offset + 3] == a[3]) {
+                return routeUpstreams[i]
+            }
+        }
+        return null
+    }
+
+    fun close() {
+        try { doq.closeAll() } catch (_: Exception) {}
+        try { dot.closeAll() } catch (_: Exception) {}
+    }
+}
@@ -10,7 +10,9 @@ import android.view.WindowManager
 import android.widget.*
 import net.appstorefr.perfectdnsmanager.R
 import net.appstorefr.perfectdnsmanager.data.DnsProfile
+import net.appstorefr.perfectdnsmanager.data.DnsStamp
 import net.appstorefr.perfectdnsmanager.data.DnsType
+import net.appstorefr.perfectdnsmanager.data.UpstreamGroup
 import net.appstorefr.perfectdnsmanager.util.DnsColors
 
 class AddProfileDialog(
@@ -24,6 +26,7 @@ class AddProfileDialog(
     private lateinit var rbDoh: RadioButton
     private lateinit var rbDot: RadioButton
     private lateinit var rbDoq: RadioButton
+    private lateinit var rbDnsCrypt: RadioButton
     private lateinit var rbStandard: RadioButton
     private lateinit var etPrimary: EditText
     private lateinit var etSecondary: EditText
@@ -31,6 +34,9 @@ class AddProfileDialog(
     private lateinit var etPrimaryV6: EditText
     private lateinit var etSecondaryV6: EditText
     private lateinit var tvPrimaryV6Label: TextView
+    private lateinit var tvGroupLabel: TextView
+    private lateinit var etGroupEndpoints: EditText
+    private lateinit var spGroupStrategy: Spinner
     private lateinit var btnSave: Button
     private lateinit var btnCancel: Button
 
@@ -51,6 +57,7 @@ class AddProfileDialog(
         rbDoh = findViewById(R.id.rbDoh)
         rbDot = findViewById(R.id.rbDot)
         rbDoq = findViewById(R.id.rbDoq)
+        rbDnsCrypt = findViewById(R.id.rbDnsCrypt)
         rbStandard = findViewById(R.id.rbStandard)
         etPrimary = findViewById(R.id.etPrimary)
         etSecondary = findViewById(R.id.etSecondary)
@@ -58,6 +65,9 @@ class AddProfileDialog(
         etPrimaryV6 = findViewById(R.id.etPrimaryV6)
         etSecondaryV6 = findViewById(R.id.etSecondaryV6)
         tvPrimaryV6Label = findViewById(R.id.tvPrimaryV6Label)
+        tvGroupLabel = findViewById(R.id.tvGroupLabel)
+        etGroupEndpoints = findViewById(R.id.etGroupEndpoints)
+        spGroupStrategy = findViewById(R.id.spGroupStrategy)
         btnSave = findViewById(R.id.btnSave)
         btnCancel = findViewById(R.id.btnCancel)
 
@@ -65,18 +75,29 @@ class AddProfileDialog(
         rbDoh.buttonTintList = ColorStateList.valueOf(DnsColors.colorForType(DnsType.DOH))
         rbDot.buttonTintList = ColorStateList.valueOf(DnsColors.colorForType(DnsType.DOT))
         rbDoq.buttonTintList = ColorStateList.valueOf(DnsColors.colorForType(DnsType.DOQ))
+        rbDnsCrypt.buttonTintList = ColorStateList.valueOf(DnsColors.colorForType(DnsType.DNSCRYPT))
         rbStandard.buttonTintList = ColorStateList.valueOf(DnsColors.colorForType(DnsType.DEFAULT))
 
         rbDoh.isChecked = true
         etSecondary.visibility = View.GONE
         tvSecondaryLabel.visibility = View.GONE
 
-        // Masquer DoT, DoQ et Standard si mode avancé désactivé
+        // Stratégies de répartition du groupe, dans l'ordre de l'enum
+        spGroupStrategy.adapter = ArrayAdapter(
+            context, android.R.layout.simple_spinner_dropdown_item,
+            listOf(R.string.group_strategy_round_robin, R.string.group_strategy_ewma,
+                R.string.group_strategy_weighted, R.string.group_strategy_hash).map { context.getString(it) }
+        )
+        spGroupStrategy.setSelection(UpstreamGroup.Strategy.EWMA.ordinal)
+
+        // Masquer DoT, DoQ, DNSCrypt et Standard si mode avancé désactivé
         if (!advancedEnabled) {
             rbDot.visibility = View.GONE
             rbDoq.visibility = View.GONE
+            rbDnsCrypt.visibility = View.GONE
             rbStandard.visibility = View.GONE
         }
+        showGroupFields(advancedEnabled)
     }
 
     private fun setupTypeSelection() {
@@ -87,6 +108,8 @@ class AddProfileDialog(
             etPrimaryV6.visibility = if (showSecondary) View.VISIBLE else View.GONE
             etSecondaryV6.visibility = if (showSecondary) View.VISIBLE else View.GONE
             tvPrimaryV6Label.visibility = if (showSecondary) View.VISIBLE else View.GONE
+            // Groupe d'endpoints : mode VPN uniquement (DoT passe par le DNS privé du système)
+            showGroupFields(advancedEnabled && checkedId != R.id.rbDot)
             if (!showSecondary) {
                 etSecondary.text.clear()
                 etPrimaryV6.text.clear()
@@ -97,15 +120,33 @@ class AddProfileDialog(
                 R.id.rbDoh -> "Ex: https://dns.adguard-dns.com/dns-query"
                 R.id.rbDoq -> "Ex: quic://dns.adguard-dns.com"
                 R.id.rbDot -> "Ex: dns.adguard-dns.com"
+                R.id.rbDnsCrypt -> "Ex: sdns://AQMAAAAAAAAAETk0LjE0MC4xNC4xNDo1NDQz..."
                 else -> "Ex: 94.140.14.14"
             }
         }
     }
 
+    private fun showGroupFields(show: Boolean) {
+        val v = if (show) View.VISIBLE else View.GONE
+        tvGroupLabel.visibility = v
+        etGroupEndpoints.visibility = v
+        spGroupStrategy.visibility = v
+        if (!show) etGroupEndpoints.text.clear()
+    }
+
     private fun setupButtons() {
         btnSave.setOnClickListener {
+            // Un stamp sdns:// décrit entièrement le serveur : il fixe le type quel que soit le bouton coché
+            val primaryText = etPrimary.text.toString().trim()
+            val stamp = if (DnsStamp.isStamp(primaryText)) DnsStamp.parse(primaryText) else null
+            if ((DnsStamp.isStamp(primaryText) || rgType.checkedRadioButtonId == R.id.rbDnsCrypt) && stamp == null) {
+                Toast.makeText(context, context.getString(R.string.invalid_dns_stamp), Toast.LENGTH_SHORT).show()
+                return@setOnClickListener
+            }
+            if (stamp != null && etName.text.isBlank()) etName.setText(stamp.displayName)
+
             if (validateInput()) {
-                val selectedType = when (rgType.checkedRadioButtonId) {
+                val selectedType = stamp?.type ?: when (rgType.checkedRadioButtonId) {
                     R.id.rbDoh -> DnsType.DOH
                     R.id.rbDot -> DnsType.DOT
                     R.id.rbDoq -> DnsType.DOQ
@@ -116,12 +157,17 @@ class AddProfileDialog(
                     providerName = etName.text.toString().trim(),
                     name = "Custom",
                     type = selectedType,
-                    primary = etPrimary.text.toString().trim(),
+                    primary = stamp?.toUpstream() ?: primaryText,
                     secondary = etSecondary.text.toString().trim().takeIf { it.isNotBlank() },
                     primaryV6 = etPrimaryV6.text.toString().trim().takeIf { it.isNotBlank() },
                     secondaryV6 = etSecondaryV6.text.toString().trim().takeIf { it.isNotBlank() },
                     description = "Profil personnalisé",
-                    isCustom = true
+                    isCustom = true,
+                    group = UpstreamGroup.parse(
+                        stamp?.toUpstream() ?: primaryText,
+                        etGroupEndpoints.text.toString(),
+                        UpstreamGroup.Strategy.values()[spGroupStrategy.selectedItemPosition.coerceAtLeast(0)]
+                    )
                 )
                 onProfileCreated(profile)
                 dismiss()
@@ -7,6 +7,7 @@ object DnsColors {
         DnsType.DOH -> 0xFF44FF44.toInt()  // Vert (légendaire)
         DnsType.DOQ -> 0xFF7B68EE.toInt()  // Bleu-violet (rare)
         DnsType.DOT -> 0xFFFFB700.toInt()  // Or (épique)
+        DnsType.DNSCRYPT -> 0xFF00CED1.toInt()  // Turquoise (peu commun)
         DnsType.DEFAULT -> 0xFF888888.toInt()  // Gris (commun)
     }
 
@@ -14,6 +15,7 @@ object DnsColors {
         DnsType.DOH -> "DoH"
         DnsType.DOQ -> "DoQ"
         DnsType.DOT -> "DoT"
+        DnsType.DNSCRYPT -> "DNSCrypt"
         DnsType.DEFAULT -> "Standard"
     }
 }
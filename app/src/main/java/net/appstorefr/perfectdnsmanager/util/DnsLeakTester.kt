@@ -5,7 +5,7 @@ import android.net.ConnectivityManager
 import android.net.NetworkCapabilities
 import android.os.Build
 import android.util.Log
-import net.appstorefr.perfectdnsmanager.service.DnsVpnService
+import net.appstorefr.perfectdnsmanager.service.DnsVpnControl
 import okhttp3.OkHttpClient
 import okhttp3.Request
 import org.json.JSONObject
@@ -17,7 +17,7 @@ import java.util.concurrent.TimeUnit
 /**
  * DNS Leak Test avec comparaison avant/après via socket protégé.
  *
- * ISP DNS : résolution via socket protégé par DnsVpnService.protectSocket() (bypass VPN)
+ * ISP DNS : résolution via socket protégé par DnsVpnControl.protect() (bypass VPN)
  * VPN DNS : résolution via InetAddress système (passe par le VPN)
  */
 object DnsLeakTester {
@@ -90,7 +90,7 @@ object DnsLeakTester {
 
     /**
      * Détecte les résolveurs DNS via socket protégé (bypass VPN).
-     * Utilise DnsVpnService.protectSocket() pour bypasser le tunnel VPN.
+     * Utilise DnsVpnControl.protect() pour bypasser le tunnel VPN.
      */
     private fun detectResolversViaProtectedSocket(context: Context): Set<String> {
         val resolverIps = mutableSetOf<String>()
@@ -114,12 +114,12 @@ object DnsLeakTester {
             }
 
             // whoami.akamai.net
-            val ip1 = resolveViaProtectedSocket(ispDns, "whoami.akamai.net")
+            val ip1 = resolveViaProtectedSocket(context, ispDns, "whoami.akamai.net")
             if (ip1 != null) resolverIps.add(ip1)
 
             // myip.opendns.com via OpenDNS
             val openDns = InetAddress.getByName("208.67.222.222")
-            val ip2 = resolveViaProtectedSocket(openDns, "myip.opendns.com")
+            val ip2 = resolveViaProtectedSocket(context, openDns, "myip.opendns.com")
             if (ip2 != null) resolverIps.add(ip2)
 
         } catch (e: Exception) {
@@ -128,22 +128,22 @@ object DnsLeakTester {
         return resolverIps
     }
 
-    private fun resolveViaProtectedSocket(dnsServer: InetAddress, hostname: String): String? {
+    private fun resolveViaProtectedSocket(context: Context, dnsServer: InetAddress, hostname: String): String? {
         return try {
             val socket = DatagramSocket()
-            if (!DnsVpnService.protectSocket(socket)) {
+            if (!DnsVpnControl.protect(context, socket)) {
                 socket.close()
                 Log.w(TAG, "Cannot protect socket for $hostname")
                 return null
             }
             socket.soTimeout = 5000
-            val query = buildDnsQuery(hostname)
+            val query = DnsWire.buildQuery(hostname, id = (System.currentTimeMillis() and 0xFFFF).toInt())
             socket.send(DatagramPacket(query, query.size, dnsServer, 53))
             val buf = ByteArray(512)
             val response = DatagramPacket(buf, buf.size)
             socket.receive(response)
             socket.close()
-            parseDnsResponseIp(buf, response.length)?.hostAddress
+            DnsWire.firstIpv4(buf, response.length)?.hostAddress
         } catch (e: Exception) {
             Log.w(TAG, "Protected socket resolve $hostname: ${e.message}")
             null
@@ -185,53 +185,6 @@ object DnsLeakTester {
         } catch (_: Exception) {}
     }
 
-    private fun buildDnsQuery(host: String): ByteArray {
-        val buf = java.io.ByteArrayOutputStream()
-        val txId = (System.currentTimeMillis() and 0xFFFF).toInt()
-        buf.write(txId shr 8); buf.write(txId and 0xFF)
-        buf.write(0x01); buf.write(0x00)
-        buf.write(0x00); buf.write(0x01)
-        buf.write(0x00); buf.write(0x00)
-        buf.write(0x00); buf.write(0x00)
-        buf.write(0x00); buf.write(0x00)
-        for (label in host.split(".")) {
-            buf.write(label.length)
-            buf.write(label.toByteArray())
-        }
-        buf.write(0x00)
-        buf.write(0x00); buf.write(0x01)
-        buf.write(0x00); buf.write(0x01)
-        return buf.toByteArray()
-    }
-
-    private fun parseDnsResponseIp(data: ByteArray, length: Int): InetAddress? {
-        if (length < 12) return null
-        val anCount = ((data[6].toInt() and 0xFF) shl 8) or (data[7].toInt() and 0xFF)
-        if (anCount == 0) return null
-        var offset = 12
-        while (offset < length && data[offset].toInt() != 0) {
-            val len = data[offset].toInt() and 0xFF
-            if (len >= 0xC0) { offset += 2; break }
-            offset += len + 1
-        }
-        if (offset < length && data[offset].toInt() == 0) offset++
-        offset += 4
-        for (i in 0 until anCount) {
-            if (offset >= length) break
-            if ((data[offset].toInt() and 0xC0) == 0xC0) offset += 2
-            else { while (offset < length && data[offset].toInt() != 0) offset++; offset++ }
-            if (offset + 10 > length) break
-            val rtype = ((data[offset].toInt() and 0xFF) shl 8) or (data[offset + 1].toInt() and 0xFF)
-            val rdlen = ((data[offset + 8].toInt() and 0xFF) shl 8) or (data[offset + 9].toInt() and 0xFF)
-            offset += 10
-            if (rtype == 1 && rdlen == 4 && offset + 4 <= length) {
-                return InetAddress.getByAddress(data.copyOfRange(offset, offset + 4))
-            }
-            offset += rdlen
-        }
-        return null
-    }
-
     private fun lookupGeoIp(client: OkHttpClient, ip: String): ResolverInfo {
         return try {
             val request = Request.Builder()
@@ -1,6 +1,11 @@
 package net.appstorefr.perfectdnsmanager.util
 
+import android.content.Context
 import android.util.Log
+import net.appstorefr.perfectdnsmanager.service.BootstrapResolver
+import net.appstorefr.perfectdnsmanager.service.DnsCryptClient
+import net.appstorefr.perfectdnsmanager.service.TlsSessionCache
+import okhttp3.Dns
 import okhttp3.MediaType.Companion.toMediaType
 import okhttp3.OkHttpClient
 import okhttp3.Request
@@ -8,6 +13,9 @@ import okhttp3.RequestBody.Companion.toRequestBody
 import java.net.DatagramPacket
 import java.net.DatagramSocket
 import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.net.Socket
+import java.net.UnknownHostException
 import java.nio.ByteBuffer
 import java.util.concurrent.TimeUnit
 
@@ -102,15 +110,24 @@ object DnsTester {
         }
     }
 
-    /** Client HTTP réutilisable pour les tests DoH (évite le coût TCP+TLS à chaque test) */
+    /** Client HTTP réutilisable pour les tests DoH (évite le coût TCP+TLS à chaque test, sessions TLS partagées) */
     private val dohClient: OkHttpClient by lazy {
-        OkHttpClient.Builder()
+        TlsSessionCache.applyTo(OkHttpClient.Builder())
             .connectTimeout(5, TimeUnit.SECONDS)
             .readTimeout(5, TimeUnit.SECONDS)
             .writeTimeout(5, TimeUnit.SECONDS)
             .build()
     }
 
+    /** Résolution des hostnames d'upstreams par le résolveur bootstrap, comme le VPN */
+    fun bootstrapDns(context: Context): Dns = object : Dns {
+        override fun lookup(hostname: String): List<InetAddress> =
+            BootstrapResolver.resolveOutsideVpn(context, hostname).ifEmpty { throw UnknownHostException("Cannot resolve $hostname") }
+    }
+
+    private fun resolve(context: Context, host: String): InetAddress =
+        BootstrapResolver.resolveOutsideVpn(context, host).firstOrNull() ?: throw UnknownHostException("Cannot resolve $host")
+
     /**
      * Mesure la latence d'un serveur DNS over HTTPS (DoH).
      * @param client client HTTP à utiliser (réutiliser pour bénéficier du pool de connexions)
@@ -141,17 +158,17 @@ object DnsTester {
 
     /**
      * Mesure la latence d'un serveur DNS over QUIC (DoQ).
-     * Connexion éphémère (pas de pool).
+     * Connexion éphémère (pas de pool), reprise de session si un ticket est connu.
      * @return latence en millisecondes, ou null si erreur
      */
-    fun measureDoqLatency(url: String, domain: String = "google.com"): Long? {
+    fun measureDoqLatency(context: Context, url: String, domain: String = "google.com"): Long? {
         return try {
             val uri = java.net.URI(url.replace("quic://", "https://"))
             val host = uri.host
             val port = if (uri.port > 0) uri.port else 853
 
-            // Résoudre le host
-            val resolved = InetAddress.getByName(host)
+            // Résoudre le host (résolveur bootstrap, comme DoQClient)
+            val resolved = resolve(context, host)
 
             val queryBuffer = buildQuery(domain)
             val queryBytes = queryBuffer.array().copyOf(queryBuffer.limit())
@@ -165,14 +182,18 @@ object DnsTester {
             wireMsg.put(queryBytes)
             val wireMsgBytes = wireMsg.array()
 
-            val conn = tech.kwik.core.QuicClientConnection.newBuilder()
+            val ticketKey = "$host:$port"
+            val builder = tech.kwik.core.QuicClientConnection.newBuilder()
                 .uri(java.net.URI("https://$host:$port"))
                 .host(resolved.hostAddress)
                 .port(port)
                 .applicationProtocol("doq")
                 .connectTimeout(java.time.Duration.ofMillis(5000))
                 .noServerCertificateCheck()
-                .build()
+            TlsSessionCache.quicTicket(ticketKey)?.let { ticket ->
+                try { builder.sessionTicket(ticket) } catch (_: Exception) { TlsSessionCache.forgetQuicTicket(ticketKey) }
+            }
+            val conn = builder.build()
 
             val start = System.currentTimeMillis()
             conn.connect()
@@ -185,6 +206,9 @@ object DnsTester {
             val n = stream.inputStream.read(buf)
             val elapsed = System.currentTimeMillis() - start
 
+            try {
+                conn.newSessionTickets.lastOrNull()?.let { TlsSessionCache.saveQuicTicket(ticketKey, it.serialize()) }
+            } catch (_: Exception) {}
             try { conn.close() } catch (_: Exception) {}
 
             if (n > 12) elapsed else null
@@ -196,10 +220,10 @@ object DnsTester {
 
     /**
      * Mesure la latence d'un serveur DNS over TLS (DoT, port 853).
-     * Connexion TLS éphémère.
+     * Connexion TLS éphémère, session TLS reprise via le cache partagé.
      * @return latence en millisecondes, ou null si erreur
      */
-    fun measureDotLatency(hostname: String, domain: String = "google.com"): Long? {
+    fun measureDotLatency(context: Context, hostname: String, domain: String = "google.com"): Long? {
         return try {
             val queryBuffer = buildQuery(domain)
             val queryBytes = queryBuffer.array().copyOf(queryBuffer.limit())
@@ -210,11 +234,12 @@ object DnsTester {
             wireMsg.put(queryBytes)
             val wireMsgBytes = wireMsg.array()
 
-            val sslFactory = javax.net.ssl.SSLSocketFactory.getDefault() as javax.net.ssl.SSLSocketFactory
+            val address = resolve(context, hostname)
             val start = System.currentTimeMillis()
-            val socket = sslFactory.createSocket(hostname, 853) as javax.net.ssl.SSLSocket
-            socket.soTimeout = 5000
-            socket.startHandshake()
+            val tcp = Socket()
+            tcp.connect(InetSocketAddress(address, 853), 5000)
+            tcp.soTimeout = 5000
+            val socket = TlsSessionCache.wrapSocket(tcp, hostname, 853)
 
             socket.outputStream.write(wireMsgBytes)
             socket.outputStream.flush()
@@ -238,6 +263,28 @@ object DnsTester {
         }
     }
 
+    /**
+     * Mesure la latence d'un serveur DNSCrypt (stamp sdns://).
+     * Le certificat du résolveur est mis en cache par le client : seul le 1er appel le récupère.
+     * @return latence en millisecondes, ou null si erreur
+     */
+    fun measureDnsCryptLatency(stamp: String, domain: String = "google.com"): Long? {
+        return try {
+            val queryBuffer = buildQuery(domain)
+            val queryBytes = queryBuffer.array().copyOf(queryBuffer.limit())
+            // Processus de l'interface : pas de VpnService local, seules les IP DNS virtuelles
+            // passent par le tunnel, l'upstream est joint directement
+            val client = DnsCryptClient(null)
+            val start = System.currentTimeMillis()
+            val resp = client.query(queryBytes, stamp)
+            val elapsed = System.currentTimeMillis() - start
+            if (resp != null && resp.size >= 12) elapsed else null
+        } catch (e: Exception) {
+            Log.e(TAG, "DNSCrypt latency test failed for $stamp", e)
+            null
+        }
+    }
+
     private fun parseResponse(data: ByteArray, length: Int): String? {
         try {
             val buffer = ByteBuffer.wrap(data, 0, length)
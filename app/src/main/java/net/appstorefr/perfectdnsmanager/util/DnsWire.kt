@@ -0,0 +1,424 @@
+package net.appstorefr.perfectdnsmanager.util
+
+import java.net.InetAddress
+import java.nio.ByteBuffer
+
+/**
+ * Encodage / décodage minimal du format wire DNS (RFC 1035)
+ *
+ * Partagé par le résolveur bootstrap du VPN et les testeurs (fuite DNS, blocage d'URL).
+ * Les noms compressés (pointeurs 0xC0) sont sautés, pas décompressés.
+ */
+object DnsWire {
+
+    const val HEADER_SIZE = 12
+    const val TYPE_A = 1
+    const val TYPE_TXT = 16
+    const val TYPE_AAAA = 28
+    const val TYPE_OPT = 41
+    /** Option EDNS0 Client Subnet (RFC 7871) */
+    const val OPT_ECS = 8
+    const val CLASS_IN = 1
+    const val RCODE_SERVFAIL = 2
+    const val RCODE_NXDOMAIN = 3
+    const val RCODE_REFUSED = 5
+    /** Taille UDP max d'un client sans EDNS0 (RFC 1035) */
+    const val CLASSIC_UDP_SIZE = 512
+
+    /** Adresses extraites d'une réponse + plus petit TTL rencontré dans la section answer (secondes) */
+    class AddressAnswer(val addresses: List<InetAddress>, val ttlSeconds: Long)
+
+    fun u16(data: ByteArray, offset: Int): Int =
+        ((data[offset].toInt() and 0xFF) shl 8) or (data[offset + 1].toInt() and 0xFF)
+
+    fun u32(data: ByteArray, offset: Int): Long =
+        (u16(data, offset).toLong() shl 16) or u16(data, offset + 2).toLong()
+
+    /** Nom non compressé (question) à `offset` → texte ("." pour la racine) */
+    fun nameToString(data: ByteArray, offset: Int, end: Int = data.size): String {
+        val sb = StringBuilder()
+        var pos = offset
+        while (pos < end) {
+            val len = data[pos].toInt() and 0xFF
+            if (len == 0 || len > 63 || pos + 1 + len > end) break
+            if (sb.isNotEmpty()) sb.append('.')
+            sb.append(String(data, pos + 1, len, Charsets.US_ASCII))
+            pos += 1 + len
+        }
+        return sb.ifEmpty { "." }.toString()
+    }
+
+    /** Mnémonique d'un type de requête (affichage) */
+    fun typeName(qtype: Int): String = when (qtype) {
+        TYPE_A -> "A"
+        5 -> "CNAME"
+        12 -> "PTR"
+        15 -> "MX"
+        TYPE_TXT -> "TXT"
+        TYPE_AAAA -> "AAAA"
+        33 -> "SRV"
+        64 -> "SVCB"
+        65 -> "HTTPS"
+        else -> "TYPE$qtype"
+    }
+
+    /** Mnémonique d'un RCODE (affichage) */
+    fun rcodeName(rcode: Int): String = when (rcode) {
+        0 -> "NOERROR"
+        1 -> "FORMERR"
+        RCODE_SERVFAIL -> "SERVFAIL"
+        RCODE_NXDOMAIN -> "NXDOMAIN"
+        4 -> "NOTIMP"
+        RCODE_REFUSED -> "REFUSED"
+        else -> "RCODE$rcode"
+    }
+
+    /**
+     * Requête récursive standard (RD=1) pour un hostname
+     * @param edns ajoute un enregistrement OPT (EDNS0, 1232 octets, sans option)
+     */
+    fun buildQuery(host: String, qtype: Int = TYPE_A, id: Int = 0x1234, edns: Boolean = false): ByteArray {
+        val labels = host.trimEnd('.').split('.').filter { it.isNotEmpty() }.map { it.toByteArray() }
+        val buf = ByteBuffer.allocate(HEADER_SIZE + labels.sumOf { it.size + 1 } + 1 + 4 + if (edns) 11 else 0)
+        buf.putShort(id.toShort())
+        buf.putShort(0x0100)       // Flags: standard query, RD
+        buf.putShort(1)            // QDCOUNT
+        buf.putShort(0)            // ANCOUNT
+        buf.putShort(0)            // NSCOUNT
+        buf.putShort(if (edns) 1 else 0) // ARCOUNT
+        for (label in labels) {
+            buf.put(label.size.toByte())
+            buf.put(label)
+        }
+        buf.put(0)
+        buf.putShort(qtype.toShort())
+        buf.putShort(CLASS_IN.toShort())
+        if (edns) {
+            buf.put(0)                 // Nom racine
+            buf.putShort(TYPE_OPT.toShort())
+            buf.putShort(1232)         // Taille UDP
+            buf.putInt(0)              // RCODE étendu, version, flags
+            buf.putShort(0)            // RDLENGTH
+        }
+        return buf.array()
+    }
+
+    /** Position juste après un nom encodé, ou -1 si le nom est malformé */
+    fun skipName(data: ByteArray, offset: Int, length: Int): Int {
+        var pos = offset
+        while (pos < length) {
+            val len = data[pos].toInt() and 0xFF
+            when {
+                len == 0 -> return pos + 1
+                len and 0xC0 == 0xC0 -> return if (pos + 2 <= length) pos + 2 else -1
+                len and 0xC0 != 0 -> return -1
+                else -> pos += len + 1
+            }
+        }
+        return -1
+    }
+
+    /**
+     * Extrait toutes les adresses A et AAAA de la section answer.
+     * @return null si la réponse est tronquée, malformée ou en erreur (RCODE != NOERROR)
+     */
+    fun parseAddresses(data: ByteArray, length: Int): AddressAnswer? {
+        if (length < HEADER_SIZE) return null
+        val flags = u16(data, 2)
+        if (flags and 0x0200 != 0 || flags and 0x000F != 0) return null // TC ou RCODE
+        val qdCount = u16(data, 4)
+        val anCount = u16(data, 6)
+
+        var pos = HEADER_SIZE
+        for (i in 0 until qdCount) {
+            pos = skipName(data, pos, length)
+            if (pos < 0 || pos + 4 > length) return null
+            pos += 4 // QTYPE + QCLASS
+        }
+
+        val addresses = ArrayList<InetAddress>(anCount)
+        var minTtl = Long.MAX_VALUE
+        for (i in 0 until anCount) {
+            pos = skipName(data, pos, length)
+            if (pos < 0 || pos + 10 > length) break
+            val rtype = u16(data, pos)
+            val ttl = u32(data, pos + 4)
+            val rdLen = u16(data, pos + 8)
+            pos += 10
+            if (pos + rdLen > length) break
+            minTtl = minOf(minTtl, ttl)
+            if ((rtype == TYPE_A && rdLen == 4) || (rtype == TYPE_AAAA && rdLen == 16)) {
+                addresses.add(InetAddress.getByAddress(data.copyOfRange(pos, pos + rdLen)))
+            }
+            pos += rdLen
+        }
+        return AddressAnswer(addresses, if (minTtl == Long.MAX_VALUE) 0 else minTtl)
+    }
+
+    /** Données de chaque enregistrement TXT de la section answer (character-strings concaténées) */
+    fun parseTxt(data: ByteArray, length: Int): List<ByteArray> {
+        if (length < HEADER_SIZE || u16(data, 2) and 0x000F != 0) return emptyList()
+        var pos = HEADER_SIZE
+        for (i in 0 until u16(data, 4)) {
+            pos = skipName(data, pos, length)
+            if (pos < 0 || pos + 4 > length) return emptyList()
+            pos += 4
+        }
+        val out = ArrayList<ByteArray>()
+        for (i in 0 until u16(data, 6)) {
+            pos = skipName(data, pos, length)
+            if (pos < 0 || pos + 10 > length) break
+            val rtype = u16(data, pos)
+            val rdLen = u16(data, pos + 8)
+            pos += 10
+            if (pos + rdLen > length) break
+            if (rtype == TYPE_TXT) {
+                val txt = java.io.ByteArrayOutputStream(rdLen)
+                var p = pos
+                while (p < pos + rdLen) {
+                    val n = data[p].toInt() and 0xFF
+                    if (p + 1 + n > pos + rdLen) break
+                    txt.write(data, p + 1, n)
+                    p += 1 + n
+                }
+                out.add(txt.toByteArray())
+            }
+            pos += rdLen
+        }
+        return out
+    }
+
+    /** Position de fin de la section question, -1 si malformée */
+    fun questionEnd(data: ByteArray, length: Int): Int {
+        var pos = HEADER_SIZE
+        for (i in 0 until u16(data, 4)) {
+            pos = skipName(data, pos, length)
+            if (pos < 0 || pos + 4 > length) return -1
+            pos += 4
+        }
+        return pos
+    }
+
+    /** Position du champ TYPE de l'enregistrement OPT (section additional), -1 si absent */
+    private fun optOffset(data: ByteArray, length: Int): Int {
+        if (length < HEADER_SIZE) return -1
+        var pos = questionEnd(data, length)
+        if (pos < 0) return -1
+        val arCount = u16(data, 10)
+        val rrCount = u16(data, 6) + u16(data, 8) + arCount
+        for (i in 0 until rrCount) {
+            pos = skipName(data, pos, length)
+            if (pos < 0 || pos + 10 > length) return -1
+            if (i >= rrCount - arCount && u16(data, pos) == TYPE_OPT) return pos
+            pos += 10 + u16(data, pos + 8)
+        }
+        return -1
+    }
+
+    fun hasEdns(data: ByteArray): Boolean = optOffset(data, data.size) >= 0
+
+    /** Bit DO (DNSSEC OK) de l'enregistrement OPT */
+    fun ednsDnssecOk(data: ByteArray): Boolean {
+        val opt = optOffset(data, data.size)
+        return opt >= 0 && (data[opt + 6].toInt() and 0x80) != 0
+    }
+
+    /** Taille UDP annoncée par l'enregistrement OPT (EDNS0) d'un message, 512 sans OPT */
+    fun ednsUdpSize(data: ByteArray, length: Int = data.size): Int {
+        val opt = optOffset(data, length)
+        return if (opt < 0) CLASSIC_UDP_SIZE else maxOf(CLASSIC_UDP_SIZE, u16(data, opt + 2))
+    }
+
+    /** Copie du message avec la taille UDP de l'OPT remplacée ; null si le message n'a pas d'OPT */
+    fun withEdnsUdpSize(data: ByteArray, size: Int): ByteArray? {
+        val opt = optOffset(data, data.size)
+        if (opt < 0) return null
+        val out = data.copyOf()
+        out[opt + 2] = (size shr 8).toByte()
+        out[opt + 3] = size.toByte()
+        return out
+    }
+
+    /** Taille UDP de l'OPT remplacée dans le message lui-même ; false si le message n'a pas d'OPT */
+    fun setEdnsUdpSize(data: ByteArray, size: Int): Boolean {
+        val opt = optOffset(data, data.size)
+        if (opt < 0) return false
+        data[opt + 2] = (size shr 8).toByte()
+        data[opt + 3] = size.toByte()
+        return true
+    }
+
+    /** Position de l'option Client Subnet (code) dans l'OPT, -1 si absente */
+    private fun ecsOffset(data: ByteArray): Int {
+        val opt = optOffset(data, data.size)
+        if (opt < 0) return -1
+        val end = minOf(data.size, opt + 10 + u16(data, opt + 8))
+        var pos = opt + 10
+        while (pos + 4 <= end) {
+            val len = u16(data, pos + 2)
+            if (pos + 4 + len > end) return -1
+            if (u16(data, pos) == OPT_ECS) return pos
+            pos += 4 + len
+        }
+        return -1
+    }
+
+    fun hasEcs(data: ByteArray): Boolean = ecsOffset(data) >= 0
+
+    /** Données de l'option Client Subnet (famille, préfixes, adresse), null si absente */
+    fun ecsOption(data: ByteArray): ByteArray? {
+        val pos = ecsOffset(data)
+        return if (pos < 0) null else data.copyOfRange(pos + 4, pos + 4 + u16(data, pos + 2))
+    }
+
+    /**
+     * Copie du message avec l'option Client Subnet retirée, puis remplacée par `ecs` si non null.
+     * @return null si le message n'a pas d'OPT (pas d'EDNS0 : rien à modifier)
+     */
+    fun withEcs(data: ByteArray, ecs: ByteArray?): ByteArray? {
+        val opt = optOffset(data, data.size)
+        if (opt < 0) return null
+        val rdStart = opt + 10
+        val rdEnd = minOf(data.size, rdStart + u16(data, opt + 8))
+        val options = java.io.ByteArrayOutputStream(rdEnd - rdStart + (ecs?.size ?: 0) + 4)
+        var pos = rdStart
+        while (pos + 4 <= rdEnd) {
+            val len = u16(data, pos + 2)
+            if (pos + 4 + len > rdEnd) break
+            if (u16(data, pos) != OPT_ECS) options.write(data, pos, 4 + len)
+            pos += 4 + len
+        }
+        if (ecs != null) {
+            options.write(byteArrayOf(0, OPT_ECS.toByte(), (ecs.size shr 8).toByte(), ecs.size.toByte()))
+            options.write(ecs)
+        }
+        val rdata = options.toByteArray()
+        val out = ByteArray(rdStart + rdata.size + data.size - rdEnd)
+        System.arraycopy(data, 0, out, 0, rdStart)
+        System.arraycopy(rdata, 0, out, rdStart, rdata.size)
+        System.arraycopy(data, rdEnd, out, rdStart + rdata.size, data.size - rdEnd)
+        out[opt + 8] = (rdata.size shr 8).toByte()
+        out[opt + 9] = rdata.size.toByte()
+        return out
+    }
+
+    /**
+     * Données d'une option Client Subnet : `address` tronquée à `prefix` bits (octets inutiles
+     * omis, bits hors préfixe à 0). prefix = 0 : le client demande qu'aucun sous-réseau ne soit utilisé.
+     */
+    fun ecsData(address: InetAddress?, prefix: Int): ByteArray {
+        val family = if (address is java.net.Inet6Address) 2 else 1
+        val bytes = address?.address ?: ByteArray(0)
+        val n = minOf(bytes.size, (prefix + 7) / 8)
+        val out = ByteArray(4 + n)
+        out[1] = family.toByte()
+        out[2] = prefix.toByte()
+        System.arraycopy(bytes, 0, out, 4, n)
+        if (prefix % 8 != 0 && n > 0) out[3 + n] = (out[3 + n].toInt() and (0xFF shl (8 - prefix % 8))).toByte()
+        return out
+    }
+
+    /** Réponse réduite à l'en-tête + question, bit TC levé : le client doit réessayer en TCP */
+    fun truncate(response: ByteArray): ByteArray {
+        val end = questionEnd(response, response.size)
+        if (end < 0) return response
+        val out = response.copyOf(end)
+        out[2] = (out[2].toInt() or 0x02).toByte()
+        for (i in 6 until HEADER_SIZE) out[i] = 0
+        return out
+    }
+
+    /** Réponse d'erreur (ex. SERVFAIL) construite à partir de la requête : en-tête + question */
+    fun errorResponse(query: ByteArray, rcode: Int): ByteArray {
+        val end = questionEnd(query, query.size)
+        val out = query.copyOf(if (end < 0) HEADER_SIZE else end)
+        out[2] = ((out[2].toInt() and 0x01) or 0x80).toByte()       // QR=1, RD conservé
+        out[3] = (0x80 or (rcode and 0x0F)).toByte()                 // RA=1, RCODE
+        if (end < 0) { out[4] = 0; out[5] = 0 }
+        for (i in 6 until HEADER_SIZE) out[i] = 0
+        return out
+    }
+
+    fun rcode(data: ByteArray): Int = if (data.size >= 4) data[3].toInt() and 0x0F else -1
+
+    /** Copie du message avec un autre ID */
+    fun withId(data: ByteArray, id: Int): ByteArray {
+        val out = data.copyOf()
+        out[0] = (id shr 8).toByte()
+        out[1] = id.toByte()
+        return out
+    }
+
+    /**
+     * Appelle `block` avec la position du champ TYPE de chaque enregistrement (answer, authority,
+     * additional), OPT exclu.
+     * @return false si le message est malformé
+     */
+    private inline fun forEachRecord(data: ByteArray, block: (Int) -> Unit): Boolean {
+        var pos = questionEnd(data, data.size)
+        if (pos < 0) return false
+        for (i in 0 until u16(data, 6) + u16(data, 8) + u16(data, 10)) {
+            pos = skipName(data, pos, data.size)
+            if (pos < 0 || pos + 10 > data.size) return false
+            if (u16(data, pos) != TYPE_OPT) block(pos)
+            pos += 10 + u16(data, pos + 8)
+        }
+        return pos <= data.size
+    }
+
+    /** Plus petit TTL des enregistrements (OPT exclu), -1 si aucun ; null si le message est malformé */
+    fun minTtl(data: ByteArray): Long? {
+        var min = -1L
+        val ok = forEachRecord(data) { pos ->
+            val ttl = u32(data, pos + 4)
+            if (min < 0 || ttl < min) min = ttl
+        }
+        return if (ok) min else null
+    }
+
+    /**
+     * Réponse de blocage d'un DNS filtrant : NXDOMAIN, REFUSED, ou adresse A/AAAA non routable
+     * (0.0.0.0, 127.0.0.1, ::, ::1) à la place de la vraie
+     */
+    fun isBlockingAnswer(data: ByteArray): Boolean {
+        val rcode = rcode(data)
+        if (rcode == RCODE_NXDOMAIN || rcode == RCODE_REFUSED) return true
+        if (rcode != 0) return false
+        var sinkhole = false
+        forEachRecord(data) { pos ->
+            val type = u16(data, pos)
+            val rd = pos + 10
+            val rdLen = u16(data, pos + 8)
+            if (type == TYPE_A && rdLen == 4 && rd + 4 <= data.size) {
+                val first = data[rd].toInt() and 0xFF
+                if ((first == 0 || first == 127) && data[rd + 1].toInt() == 0 && data[rd + 2].toInt() == 0 &&
+                    (data[rd + 3].toInt() and 0xFF) == (if (first == 127) 1 else 0)) sinkhole = true
+            } else if (type == TYPE_AAAA && rdLen == 16 && rd + 16 <= data.size) {
+                var zeros = true
+                for (k in 0 until 15) if (data[rd + k].toInt() != 0) { zeros = false; break }
+                val last = data[rd + 15].toInt()
+                if (zeros && (last == 0 || last == 1)) sinkhole = true
+            }
+        }
+        return sinkhole
+    }
+
+    /** Copie du message avec les TTL diminués de `elapsedSeconds` (planchers à 0), OPT exclu */
+    fun withAgedTtls(data: ByteArray, elapsedSeconds: Long): ByteArray {
+        val out = data.copyOf()
+        forEachRecord(out) { pos ->
+            val ttl = maxOf(0L, u32(out, pos + 4) - elapsedSeconds)
+            out[pos + 4] = (ttl shr 24).toByte()
+            out[pos + 5] = (ttl shr 16).toByte()
+            out[pos + 6] = (ttl shr 8).toByte()
+            out[pos + 7] = ttl.toByte()
+        }
+        return out
+    }
+
+    fun isTruncated(data: ByteArray): Boolean = data.size >= 4 && (data[2].toInt() and 0x02) != 0
+
+    /** Première adresse IPv4 d'une réponse (testeurs) */
+    fun firstIpv4(data: ByteArray, length: Int): InetAddress? =
+        parseAddresses(data, length)?.addresses?.firstOrNull { it is java.net.Inet4Address }
+}
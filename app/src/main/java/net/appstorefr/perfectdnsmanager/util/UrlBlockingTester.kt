@@ -5,7 +5,7 @@ import android.net.ConnectivityManager
 import android.net.NetworkCapabilities
 import android.os.Build
 import android.util.Log
-import net.appstorefr.perfectdnsmanager.service.DnsVpnService
+import net.appstorefr.perfectdnsmanager.service.DnsVpnControl
 import java.net.DatagramPacket
 import java.net.DatagramSocket
 import java.net.InetAddress
@@ -15,7 +15,7 @@ import java.net.InetAddress
  *
  * Compare la résolution DNS :
  *   1. DNS FAI (sans VPN) : détecte le DNS opérateur via LinkProperties,
- *      crée un DatagramSocket protégé via DnsVpnService.protectSocket(),
+ *      crée un DatagramSocket protégé via DnsVpnControl.protect(),
  *      et envoie une requête DNS brute UDP
  *   2. DNS actif (avec VPN) : résout via InetAddress (passe par le VPN)
  */
@@ -66,12 +66,12 @@ object UrlBlockingTester {
     /**
      * Résout un domaine en bypassant le VPN via un socket protégé :
      * 1. Détecter le DNS opérateur via ConnectivityManager → LinkProperties.dnsServers
-     * 2. Si VPN actif : créer un DatagramSocket protégé via DnsVpnService.protectSocket()
+     * 2. Si VPN actif : créer un DatagramSocket protégé via DnsVpnControl.protect()
      * 3. Si VPN inactif : utiliser un socket UDP normal (pas de VPN à bypasser)
      * 4. Envoyer requête DNS brute UDP au DNS opérateur détecté
      */
     fun resolveViaProtectedSocket(context: Context, domain: String): ResolutionResult {
-        val vpnRunning = DnsVpnService.isVpnRunning
+        val vpnRunning = DnsVpnControl.isRunning(context)
 
         // Try raw UDP DNS query first
         val udpResult = try {
@@ -96,7 +96,7 @@ object UrlBlockingTester {
             // Créer un socket : protégé si VPN actif, normal sinon
             val socket = DatagramSocket()
             if (vpnRunning) {
-                val isProtected = DnsVpnService.protectSocket(socket)
+                val isProtected = DnsVpnControl.protect(context, socket)
                 if (!isProtected) {
                     Log.w(TAG, "Could not protect socket, using unprotected")
                 }
@@ -105,7 +105,7 @@ object UrlBlockingTester {
             socket.soTimeout = 5000
 
             // Construire et envoyer la requête DNS
-            val query = buildDnsQuery(domain)
+            val query = DnsWire.buildQuery(domain, id = (System.currentTimeMillis() and 0xFFFF).toInt())
             socket.send(DatagramPacket(query, query.size, ispDnsServer, 53))
 
             // Recevoir la réponse
@@ -115,7 +115,7 @@ object UrlBlockingTester {
             socket.close()
 
             // Parser la réponse
-            val ip = parseDnsResponseIp(buf, response.length)
+            val ip = DnsWire.firstIpv4(buf, response.length)
             if (ip != null) {
                 val ipStr = ip.hostAddress ?: ""
                 ResolutionResult(ipStr, isBlockedIp(ipStr), null)
@@ -180,64 +180,6 @@ object UrlBlockingTester {
         } catch (_: Exception) {}
     }
 
-    /** Construire une requête DNS type A pour un hostname */
-    private fun buildDnsQuery(host: String): ByteArray {
-        val buf = java.io.ByteArrayOutputStream()
-        // Transaction ID
-        val txId = (System.currentTimeMillis() and 0xFFFF).toInt()
-        buf.write(txId shr 8); buf.write(txId and 0xFF)
-        // Flags: standard query, recursion desired
-        buf.write(0x01); buf.write(0x00)
-        // Questions: 1
-        buf.write(0x00); buf.write(0x01)
-        // Answer, Authority, Additional: 0
-        buf.write(0x00); buf.write(0x00)
-        buf.write(0x00); buf.write(0x00)
-        buf.write(0x00); buf.write(0x00)
-        // QNAME
-        for (label in host.split(".")) {
-            buf.write(label.length)
-            buf.write(label.toByteArray())
-        }
-        buf.write(0x00) // end
-        // QTYPE: A (1)
-        buf.write(0x00); buf.write(0x01)
-        // QCLASS: IN (1)
-        buf.write(0x00); buf.write(0x01)
-        return buf.toByteArray()
-    }
-
-    /** Parser une réponse DNS pour extraire la première adresse IPv4 */
-    private fun parseDnsResponseIp(data: ByteArray, length: Int): InetAddress? {
-        if (length < 12) return null
-        val anCount = ((data[6].toInt() and 0xFF) shl 8) or (data[7].toInt() and 0xFF)
-        if (anCount == 0) return null
-        // Skip question section
-        var offset = 12
-        while (offset < length && data[offset].toInt() != 0) {
-            val len = data[offset].toInt() and 0xFF
-            if (len >= 0xC0) { offset += 2; break }
-            offset += len + 1
-        }
-        if (offset < length && data[offset].toInt() == 0) offset++
-        offset += 4 // QTYPE + QCLASS
-        // Parse answer records
-        for (i in 0 until anCount) {
-            if (offset >= length) break
-            if ((data[offset].toInt() and 0xC0) == 0xC0) offset += 2
-            else { while (offset < length && data[offset].toInt() != 0) offset++; offset++ }
-            if (offset + 10 > length) break
-            val rtype = ((data[offset].toInt() and 0xFF) shl 8) or (data[offset + 1].toInt() and 0xFF)
-            val rdlen = ((data[offset + 8].toInt() and 0xFF) shl 8) or (data[offset + 9].toInt() and 0xFF)
-            offset += 10
-            if (rtype == 1 && rdlen == 4 && offset + 4 <= length) {
-                return InetAddress.getByAddress(data.copyOfRange(offset, offset + 4))
-            }
-            offset += rdlen
-        }
-        return null
-    }
-
     private fun isBlockedIp(ip: String?): Boolean {
         if (ip == null) return true
         return ip in BLOCKED_IPS || ip.startsWith("127.") || ip.startsWith("0.") || ip == "::1" || ip == "::"
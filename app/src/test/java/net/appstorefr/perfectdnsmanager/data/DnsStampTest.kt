@@ -0,0 +1,122 @@
+package net.appstorefr.perfectdnsmanager.data
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.ByteArrayOutputStream
+import java.util.Base64
+
+/**
+ * Décodage des stamps (https://dnscrypt.info/stamps-specifications) : contenu binaire passé à
+ * DnsStamp.fromBytes, le base64 de parse() passant par android.util
+ */
+class DnsStampTest {
+
+    private fun decode(stamp: String): DnsStamp? =
+        DnsStamp.fromBytes(stamp, Base64.getUrlDecoder().decode(stamp.removePrefix("sdns://")))
+
+    /** Stamp binaire : protocole, props (8 octets LE), puis champs préfixés par leur longueur */
+    private fun stamp(protocol: Int, vararg fields: ByteArray): ByteArray {
+        val out = ByteArrayOutputStream()
+        out.write(protocol)
+        out.write(byteArrayOf(1, 0, 0, 0, 0, 0, 0, 0))
+        for (f in fields) {
+            out.write(f.size)
+            out.write(f)
+        }
+        return out.toByteArray()
+    }
+
+    private fun s(text: String) = text.toByteArray()
+
+    // ── Protocoles ─────────────────────
+
+    @Test
+    fun doh_publishedStamp() {
+        val doh = decode("sdns://AgcAAAAAAAAABzEuMC4wLjEAEmRucy5jbG91ZGZsYXJlLmNvbQovZG5zLXF1ZXJ5")!!
+        assertEquals(DnsStamp.PROTO_DOH, doh.protocol)
+        assertEquals(DnsType.DOH, doh.type)
+        assertEquals("1.0.0.1", doh.address)
+        assertEquals(443, doh.port)
+        assertEquals("dns.cloudflare.com", doh.hostname)
+        assertEquals("https://dns.cloudflare.com/dns-query", doh.toUpstream())
+        assertEquals("dns.cloudflare.com", doh.displayName)
+    }
+
+    @Test
+    fun dnsCrypt_keepsStampAsUpstream() {
+        val pk = ByteArray(32) { it.toByte() }
+        val raw = stamp(DnsStamp.PROTO_DNSCRYPT, s("9.9.9.9:8443"), pk, s("2.dnscrypt-cert.quad9.net"))
+        val text = "sdns://" + Base64.getUrlEncoder().withoutPadding().encodeToString(raw)
+        val dc = decode(text)!!
+        assertEquals(DnsType.DNSCRYPT, dc.type)
+        assertEquals("9.9.9.9", dc.address)
+        assertEquals(8443, dc.port)
+        assertArrayEquals(pk, dc.providerPublicKey)
+        assertEquals("2.dnscrypt-cert.quad9.net", dc.providerName)
+        assertEquals(text, dc.toUpstream())
+        assertEquals("quad9.net", dc.displayName)
+        assertEquals(1L, dc.props)
+    }
+
+    @Test
+    fun dot_ipv6AddressAndHostPort() {
+        // Ensemble de hashes vide : un seul octet de longueur 0
+        val dot = DnsStamp.fromBytes("x", stamp(DnsStamp.PROTO_DOT, s("[2620:fe::fe]:853"), ByteArray(0), s("dns.quad9.net:853")))!!
+        assertEquals(DnsType.DOT, dot.type)
+        assertEquals("2620:fe::fe", dot.address)
+        assertEquals(853, dot.port)
+        assertEquals("dns.quad9.net", dot.toUpstream())
+    }
+
+    @Test
+    fun doq_andPlain_defaultPorts() {
+        val doq = DnsStamp.fromBytes("x", stamp(DnsStamp.PROTO_DOQ, s(""), ByteArray(0), s("dns.adguard-dns.com")))!!
+        assertEquals("quic://dns.adguard-dns.com", doq.toUpstream())
+        assertEquals(853, doq.port)
+        val plain = DnsStamp.fromBytes("x", stamp(DnsStamp.PROTO_PLAIN, s("8.8.8.8")))!!
+        assertEquals(DnsType.DEFAULT, plain.type)
+        assertEquals(53, plain.port)
+        assertEquals("8.8.8.8", plain.toUpstream())
+    }
+
+    @Test
+    fun doh_multipleCertificateHashes() {
+        val out = ByteArrayOutputStream()
+        out.write(DnsStamp.PROTO_DOH)
+        out.write(ByteArray(8))
+        out.write(0)                                 // adresse absente
+        out.write(0x80 or 2); out.write(byteArrayOf(1, 2)) // premier hash, suite annoncée
+        out.write(3); out.write(byteArrayOf(3, 4, 5))      // dernier hash
+        out.write(11); out.write(s("doh.example"))
+        out.write(0)                                 // chemin vide : /dns-query
+        val doh = DnsStamp.fromBytes("x", out.toByteArray())!!
+        assertEquals("", doh.address)
+        assertEquals("https://doh.example/dns-query", doh.toUpstream())
+    }
+
+    // ── Stamps refusés ─────────────────────
+
+    @Test
+    fun rejectsMalformedOrUnsupported() {
+        // DNSCrypt : clé de 31 octets, ou sans adresse
+        assertNull(DnsStamp.fromBytes("x", stamp(DnsStamp.PROTO_DNSCRYPT, s("1.2.3.4"), ByteArray(31), s("2.dnscrypt-cert.x"))))
+        assertNull(DnsStamp.fromBytes("x", stamp(DnsStamp.PROTO_DNSCRYPT, s(""), ByteArray(32), s("2.dnscrypt-cert.x"))))
+        // Protocole inconnu (relais DNSCrypt 0x81)
+        assertNull(DnsStamp.fromBytes("x", stamp(0x81, s("1.2.3.4"))))
+        // Tronqué
+        val doh = stamp(DnsStamp.PROTO_DOH, s("1.2.3.4"), ByteArray(0), s("doh.example"), s("/dns-query"))
+        assertNull(DnsStamp.fromBytes("x", doh.copyOf(doh.size - 12)))
+        assertNull(DnsStamp.fromBytes("x", ByteArray(0)))
+    }
+
+    @Test
+    fun isStamp() {
+        assertTrue(DnsStamp.isStamp("  SDNS://AgcAAAAAAAAA"))
+        assertFalse(DnsStamp.isStamp("https://dns.example/dns-query"))
+        assertNull(DnsStamp.parse("https://dns.example/dns-query"))
+    }
+}
@@ -0,0 +1,77 @@
+package net.appstorefr.perfectdnsmanager.service
+
+import android.content.SharedPreferences
+import com.google.gson.Gson
+import net.appstorefr.perfectdnsmanager.data.DnsProfile
+import net.appstorefr.perfectdnsmanager.data.DnsType
+import net.appstorefr.perfectdnsmanager.data.UpstreamGroup
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+/** Bascule du mode auto : profil et libellé persistés pour les redémarrages et l'interface */
+class AutoProviderSelectorTest {
+
+    /** Préférences en mémoire ; commit() et apply() comptés séparément */
+    private class MemoryPrefs : SharedPreferences {
+        val values = HashMap<String, Any?>()
+        var commits = 0
+        var applies = 0
+
+        override fun getAll(): Map<String, *> = values
+        override fun getString(key: String, defValue: String?) = values[key] as String? ?: defValue
+        override fun getStringSet(key: String, defValues: Set<String>?) = defValues
+        override fun getInt(key: String, defValue: Int) = values[key] as Int? ?: defValue
+        override fun getLong(key: String, defValue: Long) = values[key] as Long? ?: defValue
+        override fun getFloat(key: String, defValue: Float) = values[key] as Float? ?: defValue
+        override fun getBoolean(key: String, defValue: Boolean) = values[key] as Boolean? ?: defValue
+        override fun contains(key: String) = values.containsKey(key)
+        override fun registerOnSharedPreferenceChangeListener(l: SharedPreferences.OnSharedPreferenceChangeListener?) {}
+        override fun unregisterOnSharedPreferenceChangeListener(l: SharedPreferences.OnSharedPreferenceChangeListener?) {}
+
+        override fun edit(): SharedPreferences.Editor = object : SharedPreferences.Editor {
+            val changes = HashMap<String, Any?>()
+            override fun putString(key: String, value: String?) = apply { changes[key] = value }
+            override fun putStringSet(key: String, values: Set<String>?) = apply { changes[key] = values }
+            override fun putInt(key: String, value: Int) = apply { changes[key] = value }
+            override fun putLong(key: String, value: Long) = apply { changes[key] = value }
+            override fun putFloat(key: String, value: Float) = apply { changes[key] = value }
+            override fun putBoolean(key: String, value: Boolean) = apply { changes[key] = value }
+            override fun remove(key: String) = apply { changes[key] = null }
+            override fun clear() = apply { values.clear() }
+            override fun commit(): Boolean { values.putAll(changes); commits++; return true }
+            override fun apply() { values.putAll(changes); applies++ }
+        }
+    }
+
+    private val quad9 = DnsProfile(id = 1, providerName = "Quad9", name = "Secure", type = DnsType.DOH,
+        primary = "https://dns.quad9.net/dns-query")
+    private val cloudflare = DnsProfile(id = 2, providerName = "Cloudflare", name = "Standard", type = DnsType.DOH,
+        primary = "https://cloudflare-dns.com/dns-query", secondary = "https://1.1.1.1/dns-query",
+        group = UpstreamGroup(listOf(UpstreamGroup.Endpoint("https://1.0.0.1/dns-query")), UpstreamGroup.Strategy.EWMA))
+
+    @Test
+    fun saveSwitch_persistsProfileAndLabel() {
+        val prefs = MemoryPrefs()
+        prefs.values["selected_profile_json"] = Gson().toJson(quad9)
+        prefs.values["vpn_label"] = "DNS via VPN: Quad9\nhttps://dns.quad9.net/dns-query"
+
+        assertTrue(AutoProviderSelector.saveSwitch(prefs, cloudflare))
+
+        // Profil relu aux redémarrages : le primaire correspond au nouvel upstream, groupe conservé
+        val saved = Gson().fromJson(prefs.getString("selected_profile_json", null), DnsProfile::class.java)
+        assertEquals(cloudflare, saved)
+        assertEquals(cloudflare.primary, saved.primary)
+        assertEquals(cloudflare.group, saved.group)
+        assertEquals("DNS via VPN: Cloudflare\nhttps://cloudflare-dns.com/dns-query", prefs.getString("vpn_label", null))
+    }
+
+    @Test
+    fun saveSwitch_commitsSynchronously() {
+        val prefs = MemoryPrefs()
+        AutoProviderSelector.saveSwitch(prefs, quad9)
+        // Une seule écriture, sur le disque avant la bascule (pas d'apply() différé)
+        assertEquals(1, prefs.commits)
+        assertEquals(0, prefs.applies)
+    }
+}
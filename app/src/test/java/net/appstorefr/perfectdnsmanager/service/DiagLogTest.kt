@@ -0,0 +1,68 @@
+package net.appstorefr.perfectdnsmanager.service
+
+import android.util.Log
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import java.io.File
+import java.nio.file.Files
+import java.text.SimpleDateFormat
+import java.util.Date
+import java.util.Locale
+
+/** Relecture des journaux des deux processus : fusion par heure epoch, processus et date complète */
+class DiagLogTest {
+
+    private lateinit var dir: File
+    private val display = SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.ROOT)
+
+    @Before
+    fun setUp() {
+        dir = Files.createTempDirectory("diaglog").toFile()
+    }
+
+    @After
+    fun tearDown() {
+        dir.deleteRecursively()
+    }
+
+    private fun write(name: String, vararg lines: String) = File(dir, name).writeText(lines.joinToString("\n", postfix = "\n"))
+
+    @Test
+    fun readRecent_mergesProcessesAcrossYearBoundary() {
+        // 31/12 23:59:59 puis 01/01 00:00:01 : "MM-dd" seul les aurait inversés
+        val dec31 = 1_767_225_599_000L
+        val jan1 = dec31 + 2_000
+        write("vpn.log", "$jan1 vpn I/DnsVpnService [Main]: after midnight")
+        write("app.log", "$dec31 app W/Settings [main]: before midnight")
+
+        val lines = DiagLog.readRecent(dir, Log.INFO, 10)
+        assertEquals(listOf(
+            "${display.format(Date(dec31))} app W/Settings [main]: before midnight",
+            "${display.format(Date(jan1))} vpn I/DnsVpnService [Main]: after midnight"
+        ), lines)
+    }
+
+    @Test
+    fun readRecent_keepsContinuationLinesAndFiltersLevel() {
+        val t = 1_700_000_000_000L
+        write("vpn.1.log", "$t vpn E/DoQ [Upstream]: query failed", "java.io.IOException: reset", "\tat Foo.bar(Foo.kt:1)")
+        write("vpn.log", "${t + 1} vpn I/DoQ [Upstream]: reconnected")
+
+        val errors = DiagLog.readRecent(dir, Log.ERROR, 10)
+        assertEquals(1, errors.size)
+        assertTrue(errors[0].endsWith("vpn E/DoQ [Upstream]: query failed\njava.io.IOException: reset\n\tat Foo.bar(Foo.kt:1)"))
+        assertEquals(2, DiagLog.readRecent(dir, Log.INFO, 10).size)
+        // Les plus récentes seulement
+        assertTrue(DiagLog.readRecent(dir, Log.INFO, 1).single().endsWith("reconnected"))
+    }
+
+    @Test
+    fun readRecent_sameTimeKeepsWriteOrder() {
+        val t = 1_700_000_000_000L
+        write("vpn.log", "$t vpn I/A [x]: first", "$t vpn I/A [x]: second", "$t vpn I/A [x]: third")
+        assertEquals(listOf("first", "second", "third"), DiagLog.readRecent(dir, Log.INFO, 10).map { it.substringAfterLast(": ") })
+    }
+}
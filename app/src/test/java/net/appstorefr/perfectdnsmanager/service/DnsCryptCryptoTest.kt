@@ -0,0 +1,138 @@
+package net.appstorefr.perfectdnsmanager.service
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+/**
+ * Vecteurs de référence des primitives DNSCrypt : RFC 7748 (X25519), RFC 8032 (Ed25519),
+ * test "box" de NaCl (crypto_box_beforenm + XSalsa20-Poly1305)
+ */
+class DnsCryptCryptoTest {
+
+    private fun hex(s: String): ByteArray {
+        val clean = s.replace(" ", "")
+        return ByteArray(clean.length / 2) { clean.substring(it * 2, it * 2 + 2).toInt(16).toByte() }
+    }
+
+    // ── RFC 7748 ─────────────────────
+
+    @Test
+    fun x25519_rfc7748_section5_2() {
+        assertArrayEquals(
+            hex("c3da55379de9c6908e94ea4df28d084f32eccf03491c71f754b4075577a28552"),
+            DnsCryptCrypto.x25519(
+                hex("a546e36bf0527c9d3b16154b82465edd62144c0ac1fc5a18506a2244ba449ac4"),
+                hex("e6db6867583030db3594c1a424b15f7c726624ec26b3353b10a903a6d0ab1c4c")))
+        assertArrayEquals(
+            hex("95cbde9476e8907d7aade45cb4b873f88b595a68799fa152e6f8f7647aac7957"),
+            DnsCryptCrypto.x25519(
+                hex("4b66e9d4d1b4673c5ad22691957d6af5c11b6421e0ea01d42ca4169e7918ba0d"),
+                hex("e5210f12786811d3f4b7959d0538ae2c31dbe7106fc03c3efc4cd549c715a493")))
+    }
+
+    @Test
+    fun x25519_rfc7748_section6_1() {
+        val alicePriv = hex("77076d0a7318a57d3c16c17251b26645df4c2f87ebc0992ab177fba51db92c2a")
+        val bobPriv = hex("5dab087e624a8a4b79e17f8b83800ee66f3bb1292618b6fd1c2f8b27ff88e0eb")
+        val alicePub = hex("8520f0098930a754748b7ddcb43ef75a0dbf3a0d26381af4eba4a98eaa9b4e6a")
+        val bobPub = hex("de9edb7d7b7dc1b4d35b61c2ece435373f8343c85b78674dadfc7e146f882b4f")
+        val shared = hex("4a5d9d5ba4ce2de1728e3bf480350f25e07e21c947d19e3376f09b3c1e161742")
+        assertArrayEquals(alicePub, DnsCryptCrypto.x25519PublicKey(alicePriv))
+        assertArrayEquals(bobPub, DnsCryptCrypto.x25519PublicKey(bobPriv))
+        assertArrayEquals(shared, DnsCryptCrypto.x25519(alicePriv, bobPub))
+        assertArrayEquals(shared, DnsCryptCrypto.x25519(bobPriv, alicePub))
+    }
+
+    // ── RFC 8032 ─────────────────────
+
+    @Test
+    fun ed25519_rfc8032_test1_emptyMessage() {
+        val pk = hex("d75a980182b10ab7d54bfed3c964073a0ee172f3daa62325af021a68f707511a")
+        val sig = hex("e5564300c360ac729086e2cc806e828a84877f1eb8e5d974d873e06522490155" +
+            "5fb8821590a33bacc61e39701cf9b46bd25bf5f0595bbe24655141438e7a100b")
+        assertTrue(DnsCryptCrypto.ed25519Verify(pk, ByteArray(0), sig))
+    }
+
+    @Test
+    fun ed25519_rfc8032_test2_oneByte() {
+        val pk = hex("3d4017c3e843895a92b70aa74d1b7ebc9c982ccf2ec4968cc0cd55f12af4660c")
+        val sig = hex("92a009a9f0d4cab8720e820b5f642540a2b27b5416503f8fb3762223ebdb69da" +
+            "085ac1e43e15996e458f3613d0f11d8c387b2eaeb4302aeeb00d291612bb0c00")
+        assertTrue(DnsCryptCrypto.ed25519Verify(pk, hex("72"), sig))
+    }
+
+    @Test
+    fun ed25519_rejectsAlteredMessageOrSignature() {
+        val pk = hex("3d4017c3e843895a92b70aa74d1b7ebc9c982ccf2ec4968cc0cd55f12af4660c")
+        val sig = hex("92a009a9f0d4cab8720e820b5f642540a2b27b5416503f8fb3762223ebdb69da" +
+            "085ac1e43e15996e458f3613d0f11d8c387b2eaeb4302aeeb00d291612bb0c00")
+        assertFalse(DnsCryptCrypto.ed25519Verify(pk, hex("73"), sig))
+        sig[10] = (sig[10].toInt() xor 1).toByte()
+        assertFalse(DnsCryptCrypto.ed25519Verify(pk, hex("72"), sig))
+    }
+
+    // ── NaCl crypto_box (tests/box.c, box2.c) ─────────────────────
+
+    private val aliceSk = hex("77076d0a7318a57d3c16c17251b26645df4c2f87ebc0992ab177fba51db92c2a")
+    private val bobPk = hex("de9edb7d7b7dc1b4d35b61c2ece435373f8343c85b78674dadfc7e146f882b4f")
+    private val nonce = hex("69696ee955b62b73cd62bda875fc73d68219e0036b7a0b37")
+    private val message = hex(
+        "be075fc53c81f2d5cf141316ebeb0c7b5228c52a4c62cbd44b66849b64244ffc" +
+        "e5ecbaaf33bd751a1ac728d45e6c61296cdc3c01233561f41db66cce314adb31" +
+        "0e3be8250c46f06dceea3a7fa1348057e2f6556ad6b1318a024a838f21af1fde" +
+        "048977eb48f59ffd4924ca1c60902e52f0a089bc76897040e082f93776384864" +
+        "5e0705")
+    /** MAC (16) || texte chiffré, c'est-à-dire la sortie de crypto_box sans ses 16 zéros de tête */
+    private val box = hex(
+        "f3ffc7703f9400e52a7dfb4b3d3305d9" +
+        "8e993b9f48681273c29650ba32fc76ce48332ea7164d96a4476fb8c531a1186a" +
+        "c0dfc17c98dce87b4da7f011ec48c97271d2c20f9b928fe2270d6fb863d51738" +
+        "b48eeee314a7cc8ab932164548e526ae90224368517acfeabd6bb3732bc0e9da" +
+        "99832b61ca01b6de56244a9e88d5f9b37973f622a43d14a6599b1f654cb45a74" +
+        "e355a5")
+
+    @Test
+    fun sharedKey_naclFirstKey() {
+        assertArrayEquals(
+            hex("1b27556473e985d462cd51197a9a46c76009549eac6474f206c4ee0844f68389"),
+            DnsCryptCrypto.sharedKey(bobPk, aliceSk))
+    }
+
+    @Test
+    fun seal_naclBox() {
+        assertArrayEquals(box, DnsCryptCrypto.seal(DnsCryptCrypto.sharedKey(bobPk, aliceSk), nonce, message))
+    }
+
+    @Test
+    fun open_naclBox() {
+        val key = DnsCryptCrypto.sharedKey(bobPk, aliceSk)
+        assertArrayEquals(message, DnsCryptCrypto.open(key, nonce, box))
+        // Même boîte au milieu d'un paquet
+        val packet = ByteArray(7) + box + ByteArray(5)
+        assertArrayEquals(message, DnsCryptCrypto.open(key, nonce, packet, 7, box.size))
+    }
+
+    @Test
+    fun open_rejectsTamperedBox() {
+        val key = DnsCryptCrypto.sharedKey(bobPk, aliceSk)
+        for (i in listOf(0, 15, 16, box.size - 1)) {
+            val tampered = box.copyOf()
+            tampered[i] = (tampered[i].toInt() xor 0x80).toByte()
+            assertNull(DnsCryptCrypto.open(key, nonce, tampered))
+        }
+        assertNull(DnsCryptCrypto.open(key, nonce, box.copyOf(DnsCryptCrypto.MAC_SIZE - 1)))
+    }
+
+    @Test
+    fun sealThenOpen_roundTripsAllLengths() {
+        val key = DnsCryptCrypto.randomBytes(DnsCryptCrypto.KEY_SIZE)
+        val n = DnsCryptCrypto.randomBytes(DnsCryptCrypto.NONCE_SIZE)
+        for (len in listOf(0, 1, 15, 16, 17, 63, 64, 65, 256, 1500)) {
+            val m = DnsCryptCrypto.randomBytes(len)
+            assertArrayEquals(m, DnsCryptCrypto.open(key, n, DnsCryptCrypto.seal(key, n, m)))
+        }
+    }
+}
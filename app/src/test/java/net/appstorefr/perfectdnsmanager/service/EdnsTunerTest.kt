@@ -0,0 +1,70 @@
+package net.appstorefr.perfectdnsmanager.service
+
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Test
+
+/** Paliers de taille EDNS0 par chemin : montée sur réponse, descente et quarantaine sur perte */
+class EdnsTunerTest {
+
+    private val key = EdnsTuner.key("9.9.9.9", "wifi:test")
+
+    @After
+    fun tearDown() {
+        EdnsTuner.clear()
+    }
+
+    @Test
+    fun startsAtSafeSize() {
+        assertEquals(EdnsTuner.SAFE_SIZE, EdnsTuner.sizeFor(key))
+        assertEquals(EdnsTuner.SAFE_SIZE, EdnsTuner.sizeFor(EdnsTuner.key("9.9.9.9", "cell:other")))
+    }
+
+    @Test
+    fun climbsLadderOnAnswers() {
+        assertEquals(1452, EdnsTuner.probeSize(key, 4096))
+        EdnsTuner.onAnswer(key, 1452, 1400)
+        assertEquals(1452, EdnsTuner.sizeFor(key))
+        assertEquals(4096, EdnsTuner.probeSize(key, 4096))
+        EdnsTuner.onAnswer(key, 4096, 3000)
+        assertEquals(4096, EdnsTuner.sizeFor(key))
+        // Sommet atteint
+        assertNull(EdnsTuner.probeSize(key, 65535))
+    }
+
+    @Test
+    fun probeSize_cappedToClientSize() {
+        assertEquals(1400, EdnsTuner.probeSize(key, 1400))
+        // Le client n'accepte pas plus que la taille courante
+        assertNull(EdnsTuner.probeSize(key, EdnsTuner.SAFE_SIZE))
+        assertNull(EdnsTuner.probeSize(key, 512))
+    }
+
+    @Test
+    fun smallAnswer_doesNotRaiseSize() {
+        // Réponse qui tenait déjà dans la taille courante : rien de prouvé sur le chemin
+        EdnsTuner.onAnswer(key, 4096, 900)
+        assertEquals(EdnsTuner.SAFE_SIZE, EdnsTuner.sizeFor(key))
+    }
+
+    @Test
+    fun loss_lowersSizeAndQuarantinesStep() {
+        EdnsTuner.onAnswer(key, 1452, 1400)
+        EdnsTuner.onAnswer(key, 4096, 3000)
+        EdnsTuner.onLoss(key, 4096)
+        assertEquals(1452, EdnsTuner.sizeFor(key))
+        // Palier perdu en quarantaine, y compris une taille intermédiaire au-delà
+        assertNull(EdnsTuner.probeSize(key, 4096))
+        assertNull(EdnsTuner.probeSize(key, 4096 + 1))
+        EdnsTuner.onLoss(key, 1452)
+        assertEquals(EdnsTuner.SAFE_SIZE, EdnsTuner.sizeFor(key))
+        assertNull(EdnsTuner.probeSize(key, 1452))
+    }
+
+    @Test
+    fun lossAtSafeSize_ignored() {
+        EdnsTuner.onLoss(key, EdnsTuner.SAFE_SIZE)
+        assertEquals(1452, EdnsTuner.probeSize(key, 4096))
+    }
+}
@@ -0,0 +1,109 @@
+package net.appstorefr.perfectdnsmanager.service
+
+import net.appstorefr.perfectdnsmanager.util.DnsWire
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import kotlin.random.Random
+
+/**
+ * Classement des noms les plus fréquents : empreintes wire / texte, count-min sketch
+ * (jamais sous-estimé), space-saving, reprise d'un classement enregistré
+ */
+class HeavyHittersTest {
+
+    /** Nom wire d'une requête construite par DnsWire : (message, début, fin) */
+    private fun wire(name: String): Triple<ByteArray, Int, Int> {
+        val q = DnsWire.buildQuery(name)
+        return Triple(q, DnsWire.HEADER_SIZE, DnsWire.skipName(q, DnsWire.HEADER_SIZE, q.size))
+    }
+
+    private fun HeavyHitters.offer(name: String) {
+        val (data, start, end) = wire(name)
+        offer(HeavyHitters.fingerprint(data, start, end), data, start, end)
+    }
+
+    // ── Empreintes ─────────────────────
+
+    @Test
+    fun fingerprint_wireMatchesText() {
+        for (name in listOf("example.com", "a.b.c.d.example.org", "x")) {
+            val (data, start, end) = wire(name)
+            assertEquals(name, HeavyHitters.fingerprint(name), HeavyHitters.fingerprint(data, start, end))
+        }
+    }
+
+    @Test
+    fun fingerprint_ignoresAsciiCase() {
+        val (data, start, end) = wire("WwW.ExAmPlE.CoM")
+        assertEquals(HeavyHitters.fingerprint("www.example.com"), HeavyHitters.fingerprint(data, start, end))
+        assertEquals(HeavyHitters.fingerprint("www.example.com"), HeavyHitters.fingerprint("WWW.EXAMPLE.COM"))
+        assertNotEquals(HeavyHitters.fingerprint("www.example.com"), HeavyHitters.fingerprint("www.example.org"))
+    }
+
+    // ── Classement ─────────────────────
+
+    @Test
+    fun offer_countsExactlyWhileUnderK() {
+        val hh = HeavyHitters(10, 1024, 4)
+        repeat(5) { hh.offer("a.example") }
+        repeat(3) { hh.offer("B.example") }
+        hh.offer("c.example")
+        val entries = hh.entries()
+        assertEquals(listOf("a.example", "b.example", "c.example"), entries.map { it.name })
+        assertEquals(listOf(5L, 3L, 1L), entries.map { it.count })
+        assertEquals(9L, hh.total)
+    }
+
+    @Test
+    fun offer_keepsHeavyNamesAmongManySingletons() {
+        val hh = HeavyHitters(5, 1024, 4)
+        val random = Random(42)
+        val heavy = listOf("one.example", "two.example", "three.example")
+        repeat(5000) { i ->
+            if (random.nextInt(4) == 0) hh.offer(heavy[i % heavy.size]) else hh.offer("n$i.example")
+        }
+        val top = hh.entries().take(heavy.size).map { it.name }
+        assertEquals(heavy.toSet(), top.toSet())
+        assertEquals(5000L, hh.total)
+    }
+
+    @Test
+    fun estimates_neverUnderestimate() {
+        // Sketch volontairement petit : collisions nombreuses, estimations jamais inférieures au réel
+        val hh = HeavyHitters(50, 64, 2)
+        val truth = HashMap<String, Long>()
+        val random = Random(7)
+        repeat(3000) {
+            val name = "h${random.nextInt(200)}.example"
+            truth[name] = (truth[name] ?: 0) + 1
+            hh.offer(name)
+        }
+        for (e in hh.entries()) assertTrue(e.name, e.count >= truth.getValue(e.name))
+    }
+
+    @Test
+    fun restore_thenOffer_continuesCounts() {
+        val hh = HeavyHitters(10, 1024, 4)
+        hh.restore(100, listOf(HeavyHitters.Entry("a.example", 60), HeavyHitters.Entry("b.example", 40)))
+        hh.offer("b.example")
+        hh.offer("c.example")
+        val counts = hh.entries().associate { it.name to it.count }
+        assertEquals(60L, counts["a.example"])
+        assertEquals(41L, counts["b.example"])
+        assertEquals(1L, counts["c.example"])
+        assertEquals(102L, hh.total)
+    }
+
+    @Test
+    fun reset_clearsEverything() {
+        val hh = HeavyHitters(10, 1024, 4)
+        repeat(20) { hh.offer("a.example") }
+        hh.reset()
+        assertTrue(hh.entries().isEmpty())
+        assertEquals(0L, hh.total)
+        hh.offer("a.example")
+        assertEquals(1L, hh.entries().single().count)
+    }
+}
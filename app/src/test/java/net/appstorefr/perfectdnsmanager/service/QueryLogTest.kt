@@ -0,0 +1,186 @@
+package net.appstorefr.perfectdnsmanager.service
+
+import net.appstorefr.perfectdnsmanager.util.DnsWire
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileOutputStream
+import java.nio.file.Files
+
+/**
+ * Journal des requêtes : format binaire (voir QueryLog) écrit par le thread d'écriture, et
+ * relu par QueryLogReader (pages, filtres, index, enregistrement incomplet)
+ */
+class QueryLogTest {
+
+    private lateinit var dir: File
+
+    @Before
+    fun setUp() {
+        dir = Files.createTempDirectory("querylog").toFile()
+    }
+
+    @After
+    fun tearDown() {
+        dir.deleteRecursively()
+    }
+
+    private fun answered(name: String, qtype: Int, rcode: Int, upstream: String, source: Int = QueryContext.SOURCE_UPSTREAM): Pair<QueryContext, ByteArray> {
+        val ctx = QueryContext.obtain()
+        ctx.setQuery(DnsWire.buildQuery(name, qtype))
+        ctx.time = System.currentTimeMillis()
+        ctx.uid = 10123
+        ctx.hasUid = true
+        ctx.upstream = upstream
+        ctx.answerSource = source
+        return ctx to DnsWire.errorResponse(ctx.query, rcode)
+    }
+
+    /** Attend que le thread d'écriture ait vidé l'anneau sur disque (close() n'attend pas) */
+    private fun awaitEntries(count: Int): List<QueryLogReader.Entry> {
+        val reader = QueryLogReader(dir)
+        val end = System.currentTimeMillis() + 5000
+        while (true) {
+            val page = reader.page(QueryLogReader.Filter(), Long.MAX_VALUE, 1000)
+            if (page.size >= count || System.currentTimeMillis() > end) return page
+            Thread.sleep(20)
+        }
+    }
+
+    // ── Écriture puis relecture ─────────────────────
+
+    @Test
+    fun append_roundTripsThroughReader() {
+        val log = QueryLog(dir).also { it.start() }
+        val (a, ra) = answered("www.example.com", DnsWire.TYPE_A, 0, "https://dns.example/dns-query")
+        val (b, rb) = answered("ads.example.net", DnsWire.TYPE_AAAA, DnsWire.RCODE_NXDOMAIN, "9.9.9.9")
+        val (c, rc) = answered("cached.example", DnsWire.TYPE_A, 0, "", QueryContext.SOURCE_CACHE)
+        log.append(a, ra); log.append(b, rb); log.append(c, rc)
+        log.close()
+
+        val entries = awaitEntries(3)
+        assertEquals(3, entries.size)
+        // Du plus récent au plus ancien
+        assertEquals(listOf("cached.example", "ads.example.net", "www.example.com"), entries.map { it.qname })
+        val (ec, eb, ea) = entries
+        assertEquals(DnsWire.TYPE_A, ea.qtype)
+        assertEquals(0, ea.rcode)
+        assertEquals(10123, ea.uid)
+        assertEquals("https://dns.example/dns-query", ea.upstream)
+        assertFalse(ea.cached)
+        assertEquals(DnsWire.TYPE_AAAA, eb.qtype)
+        assertEquals(DnsWire.RCODE_NXDOMAIN, eb.rcode)
+        assertEquals("9.9.9.9", eb.upstream)
+        assertTrue(ec.cached)
+        assertNull(ec.upstream)
+        assertEquals(0L, log.dropped.get())
+    }
+
+    @Test
+    fun page_appliesFilterAndPaging() {
+        val log = QueryLog(dir).also { it.start() }
+        for (i in 0 until 10) {
+            val (ctx, resp) = answered("host$i.example", DnsWire.TYPE_A, if (i % 2 == 0) 0 else DnsWire.RCODE_SERVFAIL, "1.1.1.1")
+            log.append(ctx, resp)
+        }
+        log.close()
+        assertEquals(10, awaitEntries(10).size)
+
+        val reader = QueryLogReader(dir)
+        val errors = reader.page(QueryLogReader.Filter(errorsOnly = true), Long.MAX_VALUE, 100)
+        assertEquals(5, errors.size)
+        assertTrue(errors.all { it.rcode == DnsWire.RCODE_SERVFAIL })
+        assertEquals(listOf("host7.example"), reader.page(QueryLogReader.Filter(text = "HOST7"), Long.MAX_VALUE, 100).map { it.qname })
+        assertTrue(reader.page(QueryLogReader.Filter(uid = 1), Long.MAX_VALUE, 100).isEmpty())
+        assertEquals(3, reader.page(QueryLogReader.Filter(), Long.MAX_VALUE, 3).size)
+    }
+
+    // ── Format ─────────────────────
+
+    /** Fichier écrit à la main, selon le format documenté dans QueryLog */
+    private fun writeBin(t0: Long, block: DataOutputStream.() -> Unit) {
+        DataOutputStream(FileOutputStream(File(dir, QueryLog.fileName(t0, "bin")))).use { out ->
+            out.writeInt(QueryLog.MAGIC)
+            out.writeByte(QueryLog.VERSION)
+            out.write(ByteArray(3))
+            out.writeLong(t0)
+            out.block()
+        }
+    }
+
+    private fun DataOutputStream.query(time: Long, name: String, upstreamId: Int, rcode: Int = 0) {
+        val qname = DnsWire.buildQuery(name).let { it.copyOfRange(DnsWire.HEADER_SIZE, it.size - 4) }
+        writeByte(QueryLog.TAG_QUERY)
+        writeLong(time)
+        writeInt(12)
+        writeInt(QueryLog.UID_NONE)
+        writeShort(DnsWire.TYPE_A)
+        writeByte(rcode)
+        writeByte(QueryLog.FLAG_LOCAL)
+        writeShort(upstreamId)
+        writeByte(qname.size)
+        write(qname)
+    }
+
+    @Test
+    fun reader_decodesHandWrittenFile_andIgnoresPartialLastRecord() {
+        val t0 = 1_700_000_000_000L
+        writeBin(t0) {
+            writeByte(QueryLog.TAG_UPSTREAM); writeShort(0); writeByte(7); write("8.8.8.8".toByteArray())
+            query(t0, "first.example", 0)
+            query(t0 + 1000, "second.example", QueryLog.NO_UPSTREAM, DnsWire.RCODE_REFUSED)
+            // Écriture en cours : tag et heure seulement
+            writeByte(QueryLog.TAG_QUERY); writeLong(t0 + 2000)
+        }
+        val entries = QueryLogReader(dir).page(QueryLogReader.Filter(), Long.MAX_VALUE, 10)
+        assertEquals(listOf("second.example", "first.example"), entries.map { it.qname })
+        assertEquals(t0 + 1000, entries[0].time)
+        assertNull(entries[0].upstream)
+        assertEquals(DnsWire.RCODE_REFUSED, entries[0].rcode)
+        assertTrue(entries[0].local)
+        assertEquals("8.8.8.8", entries[1].upstream)
+        assertEquals(12L, entries[1].latencyMs)
+        assertEquals(QueryLog.UID_NONE, entries[1].uid)
+    }
+
+    @Test
+    fun reader_rejectsUnknownVersion() {
+        DataOutputStream(FileOutputStream(File(dir, QueryLog.fileName(1L, "bin")))).use { out ->
+            out.writeInt(QueryLog.MAGIC)
+            out.writeByte(QueryLog.VERSION + 1)
+            out.write(ByteArray(3))
+            out.writeLong(1L)
+            out.query(1L, "x.example", QueryLog.NO_UPSTREAM)
+        }
+        assertTrue(QueryLogReader(dir).page(QueryLogReader.Filter(), Long.MAX_VALUE, 10).isEmpty())
+    }
+
+    @Test
+    fun reader_startsFromIndexPoint() {
+        val t0 = 1_700_000_000_000L
+        var midAt = 0
+        writeBin(t0) {
+            // Zone illisible avant le point d'index : la lecture s'arrêterait dessus
+            writeByte(0x7F)
+            midAt = size()
+            query(t0 + 1_000_000, "mid.example", QueryLog.NO_UPSTREAM)
+            query(t0 + 3_600_000, "new.example", QueryLog.NO_UPSTREAM)
+        }
+        // Lecture depuis le dernier point d'index antérieur à la période demandée
+        DataOutputStream(FileOutputStream(File(dir, QueryLog.fileName(t0, "idx")))).use { idx ->
+            idx.writeByte(QueryLog.TAG_INDEX); idx.writeLong(t0); idx.writeInt(QueryLog.HEADER_SIZE)
+            idx.writeByte(QueryLog.TAG_INDEX); idx.writeLong(t0 + 1_000_000); idx.writeInt(midAt)
+        }
+        val reader = QueryLogReader(dir)
+        val recent = reader.page(QueryLogReader.Filter(since = t0 + 1_800_000), Long.MAX_VALUE, 10)
+        assertEquals(listOf("new.example"), recent.map { it.qname })
+        // Depuis le début du fichier : arrêt sur la zone illisible
+        assertTrue(reader.page(QueryLogReader.Filter(), Long.MAX_VALUE, 10).isEmpty())
+    }
+}
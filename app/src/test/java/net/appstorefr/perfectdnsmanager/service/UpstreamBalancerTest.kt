@@ -0,0 +1,105 @@
+package net.appstorefr.perfectdnsmanager.service
+
+import net.appstorefr.perfectdnsmanager.data.UpstreamGroup
+import net.appstorefr.perfectdnsmanager.data.UpstreamGroup.Endpoint
+import net.appstorefr.perfectdnsmanager.data.UpstreamGroup.Strategy
+import net.appstorefr.perfectdnsmanager.util.DnsWire
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+/** Stratégies de répartition d'un groupe d'endpoints et santé commune (voir UpstreamBalancer) */
+class UpstreamBalancerTest {
+
+    private val a = "https://a.example/dns-query"
+    private val b = "https://b.example/dns-query"
+    private val c = "https://c.example/dns-query"
+    private val query = DnsWire.buildQuery("www.example.com")
+
+    private fun balancer(strategy: Strategy, vararg endpoints: Endpoint) =
+        UpstreamBalancer(UpstreamGroup(endpoints.toList(), strategy))
+
+    private fun UpstreamBalancer.down(upstream: String) = repeat(3) { onFailure(upstream) }
+
+    // ── Tourniquet et santé ─────────────────────
+
+    @Test
+    fun roundRobin_cyclesEndpoints() {
+        val lb = balancer(Strategy.ROUND_ROBIN, Endpoint(a), Endpoint(b), Endpoint(c))
+        assertEquals(listOf(a, b, c, a, b, c), (0 until 6).map { lb.pick(query) })
+        assertEquals(listOf(a, b, c), lb.upstreams)
+    }
+
+    @Test
+    fun failures_takeEndpointOutUntilItAnswers() {
+        val lb = balancer(Strategy.ROUND_ROBIN, Endpoint(a), Endpoint(b), Endpoint(c))
+        lb.onFailure(b); lb.onFailure(b)
+        assertTrue((0 until 6).map { lb.pick(query) }.contains(b))
+        lb.onFailure(b)
+        assertFalse((0 until 6).map { lb.pick(query) }.contains(b))
+        lb.onAnswer(b, 20)
+        assertTrue((0 until 6).map { lb.pick(query) }.contains(b))
+    }
+
+    @Test
+    fun allDown_stillPicks() {
+        val lb = balancer(Strategy.ROUND_ROBIN, Endpoint(a), Endpoint(b))
+        lb.down(a); lb.down(b)
+        assertEquals(setOf(a, b), (0 until 4).map { lb.pick(query) }.toSet())
+    }
+
+    // ── Hachage cohérent ─────────────────────
+
+    @Test
+    fun consistentHash_sameNameSameEndpoint() {
+        val lb = balancer(Strategy.CONSISTENT_HASH, Endpoint(a), Endpoint(b), Endpoint(c))
+        val first = lb.pick(query)
+        repeat(10) { assertEquals(first, lb.pick(query)) }
+        // Casse ignorée, ID et type sans effet
+        assertEquals(first, lb.pick(DnsWire.buildQuery("WWW.Example.COM", DnsWire.TYPE_AAAA, id = 7)))
+        // Noms différents : répartis sur tous les endpoints
+        val spread = (0 until 300).map { lb.pick(DnsWire.buildQuery("host$it.example")) }
+        assertEquals(setOf(a, b, c), spread.toSet())
+    }
+
+    @Test
+    fun consistentHash_onlyNamesOfDownEndpointMove() {
+        val lb = balancer(Strategy.CONSISTENT_HASH, Endpoint(a), Endpoint(b), Endpoint(c))
+        val names = (0 until 200).map { DnsWire.buildQuery("host$it.example") }
+        val before = names.map { lb.pick(it) }
+        lb.down(b)
+        val after = names.map { lb.pick(it) }
+        for (i in names.indices) {
+            assertNotEquals(b, after[i])
+            if (before[i] != b) assertEquals(before[i], after[i])
+        }
+    }
+
+    // ── Pondération et latence ─────────────────────
+
+    @Test
+    fun weightedRandom_followsWeights() {
+        val lb = balancer(Strategy.WEIGHTED_RANDOM, Endpoint(a, 9), Endpoint(b, 1))
+        val picks = (0 until 5000).map { lb.pick(query) }
+        val share = picks.count { it == a } / 5000.0
+        assertTrue("share of a = $share", share in 0.85..0.95)
+    }
+
+    @Test
+    fun ewma_triesUnmeasuredThenPrefersFastest() {
+        val lb = balancer(Strategy.EWMA, Endpoint(a), Endpoint(b))
+        assertEquals(a, lb.pick(query))
+        lb.onAnswer(a, 200)
+        assertEquals(b, lb.pick(query))
+        lb.onAnswer(b, 20)
+        val picks = (0 until 2000).map { lb.pick(query) }
+        // Exploration : 5 % des requêtes au hasard
+        assertTrue(picks.count { it == b } > 1800)
+        assertTrue(picks.contains(a))
+        // Endpoint devenu lent : l'autre prend le relais
+        repeat(10) { lb.onAnswer(b, 1000) }
+        assertTrue((0 until 2000).map { lb.pick(query) }.count { it == a } > 1800)
+    }
+}
@@ -0,0 +1,137 @@
+package net.appstorefr.perfectdnsmanager.util
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.ByteArrayOutputStream
+
+/** Format wire : question, enregistrement OPT (EDNS0), réponses construites et réponses de blocage */
+class DnsWireTest {
+
+    /** Réponse NOERROR à `query` avec un enregistrement A (nom compressé vers la question) */
+    private fun answerA(query: ByteArray, ip: ByteArray, ttl: Int = 300): ByteArray {
+        val end = DnsWire.questionEnd(query, query.size)
+        val out = ByteArrayOutputStream()
+        out.write(query, 0, end)
+        out.write(byteArrayOf(0xC0.toByte(), DnsWire.HEADER_SIZE.toByte(), 0, DnsWire.TYPE_A.toByte(), 0, 1))
+        out.write(byteArrayOf((ttl shr 24).toByte(), (ttl shr 16).toByte(), (ttl shr 8).toByte(), ttl.toByte(), 0, 4))
+        out.write(ip)
+        return out.toByteArray().also {
+            it[2] = 0x81.toByte(); it[3] = 0x80.toByte()
+            it[6] = 0; it[7] = 1; it[10] = 0; it[11] = 0
+        }
+    }
+
+    // ── Question ─────────────────────
+
+    @Test
+    fun buildQuery_question() {
+        val q = DnsWire.buildQuery("www.example.com.", DnsWire.TYPE_AAAA, id = 0xBEEF)
+        assertEquals(0xBEEF, DnsWire.u16(q, 0))
+        assertEquals(1, DnsWire.u16(q, 4))
+        val nameEnd = DnsWire.skipName(q, DnsWire.HEADER_SIZE, q.size)
+        assertEquals("www.example.com", DnsWire.nameToString(q, DnsWire.HEADER_SIZE, nameEnd))
+        assertEquals(DnsWire.TYPE_AAAA, DnsWire.u16(q, nameEnd))
+        assertEquals(q.size, DnsWire.questionEnd(q, q.size))
+        assertFalse(DnsWire.hasEdns(q))
+    }
+
+    @Test
+    fun skipName_rejectsMalformedNames() {
+        // Longueur de label au-delà du message
+        assertEquals(-1, DnsWire.skipName(byteArrayOf(5, 'a'.code.toByte()), 0, 2))
+        // Bits 01 / 10 réservés
+        assertEquals(-1, DnsWire.skipName(byteArrayOf(0x40, 0), 0, 2))
+        // Pointeur de compression : deux octets
+        assertEquals(2, DnsWire.skipName(byteArrayOf(0xC0.toByte(), 12), 0, 2))
+        assertEquals(-1, DnsWire.skipName(byteArrayOf(0xC0.toByte()), 0, 1))
+        assertEquals(".", DnsWire.nameToString(byteArrayOf(0), 0, 1))
+    }
+
+    // ── EDNS0 ─────────────────────
+
+    @Test
+    fun ednsUdpSize_readAndPatch() {
+        val plain = DnsWire.buildQuery("example.com")
+        assertEquals(DnsWire.CLASSIC_UDP_SIZE, DnsWire.ednsUdpSize(plain))
+        assertNull(DnsWire.withEdnsUdpSize(plain, 4096))
+        assertFalse(DnsWire.setEdnsUdpSize(plain, 4096))
+
+        val q = DnsWire.buildQuery("example.com", edns = true)
+        assertTrue(DnsWire.hasEdns(q))
+        assertEquals(1232, DnsWire.ednsUdpSize(q))
+
+        val copy = DnsWire.withEdnsUdpSize(q, 4096)!!
+        assertEquals(4096, DnsWire.ednsUdpSize(copy))
+        assertEquals(1232, DnsWire.ednsUdpSize(q))
+
+        assertTrue(DnsWire.setEdnsUdpSize(q, 1452))
+        assertEquals(1452, DnsWire.ednsUdpSize(q))
+        // Taille annoncée < 512 : 512 (RFC 6891)
+        assertTrue(DnsWire.setEdnsUdpSize(q, 100))
+        assertEquals(DnsWire.CLASSIC_UDP_SIZE, DnsWire.ednsUdpSize(q))
+    }
+
+    @Test
+    fun ecs_addAndRead() {
+        val q = DnsWire.buildQuery("example.com", edns = true)
+        assertFalse(DnsWire.hasEcs(q))
+        val ecs = DnsWire.ecsData(java.net.InetAddress.getByAddress(byteArrayOf(192.toByte(), 0, 2, 77)), 24)
+        // Famille 1, préfixe /24 : trois octets d'adresse
+        assertArrayEquals(byteArrayOf(0, 1, 24, 0, 192.toByte(), 0, 2), ecs)
+        val withEcs = DnsWire.withEcs(q, ecs)!!
+        assertTrue(DnsWire.hasEcs(withEcs))
+        assertEquals(1232, DnsWire.ednsUdpSize(withEcs))
+        assertArrayEquals(ecs, DnsWire.ecsOption(withEcs))
+        assertArrayEquals(q, DnsWire.withEcs(withEcs, null))
+    }
+
+    // ── Réponses ─────────────────────
+
+    @Test
+    fun errorResponse_keepsQuestion() {
+        val q = DnsWire.buildQuery("example.com", id = 0x4242, edns = true)
+        val r = DnsWire.errorResponse(q, DnsWire.RCODE_SERVFAIL)
+        assertEquals(0x4242, DnsWire.u16(r, 0))
+        assertEquals(DnsWire.RCODE_SERVFAIL, DnsWire.rcode(r))
+        assertTrue(r[2].toInt() and 0x80 != 0)
+        assertEquals(DnsWire.questionEnd(q, q.size), r.size)
+        assertEquals(1, DnsWire.u16(r, 4))
+        assertEquals(0, DnsWire.u16(r, 10))
+    }
+
+    @Test
+    fun truncate_setsTcAndDropsRecords() {
+        val q = DnsWire.buildQuery("example.com")
+        val r = answerA(q, byteArrayOf(93.toByte(), 184.toByte(), 216.toByte(), 34))
+        assertFalse(DnsWire.isTruncated(r))
+        val t = DnsWire.truncate(r)
+        assertTrue(DnsWire.isTruncated(t))
+        assertEquals(q.size, t.size)
+        assertEquals(0, DnsWire.u16(t, 6))
+    }
+
+    @Test
+    fun minTtl_andAgedTtls() {
+        val r = answerA(DnsWire.buildQuery("example.com"), byteArrayOf(1, 2, 3, 4), ttl = 300)
+        assertEquals(300L, DnsWire.minTtl(r))
+        assertEquals(200L, DnsWire.minTtl(DnsWire.withAgedTtls(r, 100)))
+        assertEquals(0L, DnsWire.minTtl(DnsWire.withAgedTtls(r, 1000)))
+        assertNull(DnsWire.minTtl(r.copyOf(r.size - 2)))
+    }
+
+    @Test
+    fun isBlockingAnswer() {
+        val q = DnsWire.buildQuery("ads.example")
+        assertTrue(DnsWire.isBlockingAnswer(DnsWire.errorResponse(q, DnsWire.RCODE_NXDOMAIN)))
+        assertTrue(DnsWire.isBlockingAnswer(DnsWire.errorResponse(q, DnsWire.RCODE_REFUSED)))
+        assertFalse(DnsWire.isBlockingAnswer(DnsWire.errorResponse(q, DnsWire.RCODE_SERVFAIL)))
+        assertTrue(DnsWire.isBlockingAnswer(answerA(q, byteArrayOf(0, 0, 0, 0))))
+        assertTrue(DnsWire.isBlockingAnswer(answerA(q, byteArrayOf(127, 0, 0, 1))))
+        assertFalse(DnsWire.isBlockingAnswer(answerA(q, byteArrayOf(127, 0, 0, 2))))
+        assertFalse(DnsWire.isBlockingAnswer(answerA(q, byteArrayOf(93.toByte(), 184.toByte(), 216.toByte(), 34))))
+    }
+}